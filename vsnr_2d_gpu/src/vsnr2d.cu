@@ -18,13 +18,17 @@
 #endif
 
 
+#include <float.h>
 #include <math.h>
 #include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
 #include "cuda.h"
 #include "cuda_runtime.h"
 #include "cufft.h"
 #include <cuda_runtime.h>
 #include <cublas_v2.h>
+#include <mutex>
 
 #define PI (3.141592653589793)
 
@@ -227,230 +231,476 @@ __global__ void setd2(CuR* d2, int n, int n1)
     }
 }
 
-// Compute Phi
-__global__ void compute_phi(CuC* fphi1, CuC* fphi2, CuC* fphi, float beta, int n)
+// Computes tmpi = -lambdai + beta * yi
+__global__ void betay_m_lambda(CuR* lambda1, CuR* lambda2, CuR* y1, CuR* y2, CuR* tmp1, CuR* tmp2, float beta, int n)
 {
     int i    = blockIdx.x * blockDim.x + threadIdx.x;
     int step = blockDim.x * gridDim.x;
 
     for ( ; i < n ; i += step) {
-        fphi[i].x = 1 + beta*(fphi1[i].x*fphi1[i].x + fphi1[i].y*fphi1[i].y + fphi2[i].x*fphi2[i].x + fphi2[i].y*fphi2[i].y);
-        fphi[i].y = 0;
+        tmp1[i] = (beta * y1[i]) - lambda1[i];
+        tmp2[i] = (beta * y2[i]) - lambda2[i];
     }
 }
 
-// Computes tmpi = -lambdai + beta * yi
-__global__ void betay_m_lambda(CuR* lambda1, CuR* lambda2, CuR* y1, CuR* y2, CuR* tmp1, CuR* tmp2, float beta, int n)
+// tmpi = alpha.tmpi + (1-alpha).yi (over-relaxed Ax, kept for update_lambda), then y update
+__global__ void update_y(CuR* d1u0, CuR* d2u0, CuR* tmp1, CuR* tmp2, CuR* lambda1, CuR* lambda2, CuR* y1, CuR* y2, float beta, float alpha, int n)
 {
     int i    = blockIdx.x * blockDim.x + threadIdx.x;
     int step = blockDim.x * gridDim.x;
+    float ng, t1, t2;
 
     for ( ; i < n ; i += step) {
-        tmp1[i] = (beta * y1[i]) - lambda1[i];
-        tmp2[i] = (beta * y2[i]) - lambda2[i];
+        tmp1[i] = alpha * tmp1[i] + (1 - alpha) * y1[i];
+        tmp2[i] = alpha * tmp2[i] + (1 - alpha) * y2[i];
+        t1 = d1u0[i] - (tmp1[i] + (lambda1[i] / beta));
+        t2 = d2u0[i] - (tmp2[i] + (lambda2[i] / beta));
+        ng = sqrtf((t1 * t1) + (t2 * t2));
+
+        if (ng > 1.0 / beta) {
+            y1[i] = d1u0[i] - t1 * (1.0 - (1.0 / (beta * ng)));
+            y2[i] = d2u0[i] - t2 * (1.0 - (1.0 / (beta * ng)));
+        } else {
+            y1[i] = d1u0[i];
+            y2[i] = d2u0[i];
+        }
     }
 }
 
-// Computes w = conj(u) * v
-__global__ void conju_x_v(CuC* u, CuC* v, CuC* w, int n)
+// update_y, and the sums of plane p (of n elements) into res[4p..4p+3] (with Ax before relaxation) :
+// ||Ax - y||^2 (primal residual), ||y - previous y||^2 (dual residual), ||Ax||^2 and ||y||^2
+__global__ void update_y_res(CuR* d1u0, CuR* d2u0, CuR* tmp1, CuR* tmp2, CuR* lambda1, CuR* lambda2, CuR* y1, CuR* y2, float beta, float alpha, float* res, int n, int total)
 {
     int i    = blockIdx.x * blockDim.x + threadIdx.x;
     int step = blockDim.x * gridDim.x;
-    float a1, a2, b1, b2;
+    int p    = -1;
+    float ng, t1, t2, x1, x2, r1, r2, z1, z2, a;
+    float rp = 0, rd = 0, ax = 0, ny = 0;
+
+    for ( ; i < total ; i += step) {
+        if (i / n != p) {
+            if (p >= 0) {
+                atomicAdd(res + 4*p,   rp);
+                atomicAdd(res + 4*p+1, rd);
+                atomicAdd(res + 4*p+2, ax);
+                atomicAdd(res + 4*p+3, ny);
+            }
+            p  = i / n;
+            rp = rd = ax = ny = 0;
+        }
 
-    for ( ; i < n ; i += step) {
-        a1 = u[i].x;
-        b1 = u[i].y;
+        x1 = tmp1[i];
+        x2 = tmp2[i];
+        r1 = alpha * x1 + (1 - alpha) * y1[i];
+        r2 = alpha * x2 + (1 - alpha) * y2[i];
+        t1 = d1u0[i] - (r1 + (lambda1[i] / beta));
+        t2 = d2u0[i] - (r2 + (lambda2[i] / beta));
+        ng = sqrtf((t1 * t1) + (t2 * t2));
+
+        if (ng > 1.0 / beta) {
+            a  = 1.0 - (1.0 / (beta * ng));
+            z1 = d1u0[i] - t1 * a;
+            z2 = d2u0[i] - t2 * a;
+        } else {
+            z1 = d1u0[i];
+            z2 = d2u0[i];
+        }
+
+        rp += (x1 - z1) * (x1 - z1) + (x2 - z2) * (x2 - z2);
+        rd += (z1 - y1[i]) * (z1 - y1[i]) + (z2 - y2[i]) * (z2 - y2[i]);
+        ax += (x1 * x1) + (x2 * x2);
+        ny += (z1 * z1) + (z2 * z2);
+        tmp1[i] = r1;
+        tmp2[i] = r2;
+        y1[i] = z1;
+        y2[i] = z2;
+    }
+    if (p >= 0) {
+        atomicAdd(res + 4*p,   rp);
+        atomicAdd(res + 4*p+1, rd);
+        atomicAdd(res + 4*p+2, ax);
+        atomicAdd(res + 4*p+3, ny);
+    }
+}
+
+// -
+__global__ void update_lambda(CuR* lambda, CuR* tmp, CuR* y, float beta, int n)
+{
+    int i    = blockIdx.x * blockDim.x + threadIdx.x ;
+    int step = blockDim.x * gridDim.x;
+
+    for ( ; i < n ; i += step)
+        lambda[i] = lambda[i] + (beta * (tmp[i] - y[i]));
+}
+
+// Batched kernels : total = batch*m elements, u1 / u is one plane shared by the batch,
+// s[p] the scale of plane p (NULL means 1)
+
+// Computes out = s.u1.*u2
+__global__ void product_carray_many(CuC* u1, CuC* u2, CuC* out, float* s, int m, int total)
+{
+    int i    = blockIdx.x * blockDim.x + threadIdx.x;
+    int step = blockDim.x * gridDim.x;
+    float a;
+    int k;
+
+    for ( ; i < total ; i += step) {
+        k = i % m;
+        a = (s == NULL ? 1.0f : s[i / m]);
+        out[i].x = a * ((u1[k].x * u2[i].x) - (u1[k].y * u2[i].y));
+        out[i].y = a * ((u1[k].y * u2[i].x) + (u1[k].x * u2[i].y));
+    }
+}
+
+// Computes w = s.conj(u) * v
+__global__ void conju_x_v_many(CuC* u, CuC* v, CuC* w, float* s, int m, int total)
+{
+    int i    = blockIdx.x * blockDim.x + threadIdx.x;
+    int step = blockDim.x * gridDim.x;
+    float a, a1, a2, b1, b2;
+    int k;
+
+    for ( ; i < total ; i += step) {
+        k  = i % m;
+        a  = s[i / m];
+        a1 = u[k].x;
+        b1 = u[k].y;
         a2 = v[i].x;
         b2 = v[i].y;
-        w[i].x = (a1 * a2) + (b1 * b2);
-        w[i].y = (b2 * a1) - (b1 * a2);
+        w[i].x = a * ((a1 * a2) + (b1 * b2));
+        w[i].y = a * ((b2 * a1) - (b1 * a2));
     }
 }
 
-// fx = (tmp1 + tmp2) / fphi;
-__global__ void update_fx(CuC* ftmp1, CuC* ftmp2, CuC* fphi, CuC* fx, int n)
+// Computes fw = |fphi1|^2 + |fphi2|^2 of the unit filter
+__global__ void compute_w(CuC* fphi1, CuC* fphi2, CuR* fw, int m)
 {
     int i    = blockIdx.x * blockDim.x + threadIdx.x;
     int step = blockDim.x * gridDim.x;
 
-    for ( ; i < n ; i += step) {
-        fx[i].x = (ftmp1[i].x + ftmp2[i].x) / fphi[i].x;
-        fx[i].y = (ftmp1[i].y + ftmp2[i].y) / fphi[i].x;
+    for ( ; i < m ; i += step)
+        fw[i] = fphi1[i].x*fphi1[i].x + fphi1[i].y*fphi1[i].y + fphi2[i].x*fphi2[i].x + fphi2[i].y*fphi2[i].y;
+}
+
+// fx = (tmp1 + tmp2) / fphi, fphi = 1 + beta.s^2.fw
+__global__ void update_fx_many(CuC* ftmp1, CuC* ftmp2, CuR* fw, CuC* fx, float* s, float beta, int m, int total)
+{
+    int i    = blockIdx.x * blockDim.x + threadIdx.x;
+    int step = blockDim.x * gridDim.x;
+    float a, fphi;
+
+    for ( ; i < total ; i += step) {
+        a    = s[i / m];
+        fphi = 1 + beta * a * a * fw[i % m];
+        fx[i].x = (ftmp1[i].x + ftmp2[i].x) / fphi;
+        fx[i].y = (ftmp1[i].y + ftmp2[i].y) / fphi;
     }
 }
 
-// -
-__global__ void update_y(CuR* d1u0, CuR* d2u0, CuR* tmp1, CuR* tmp2, CuR* lambda1, CuR* lambda2, CuR* y1, CuR* y2, float beta, int n)
+// Normalizes batch planes of n elements
+__global__ void normalize_many(CuR* u, int n, int total)
 {
     int i    = blockIdx.x * blockDim.x + threadIdx.x;
     int step = blockDim.x * gridDim.x;
-    float ng, t1, t2;
 
-    for ( ; i < n ; i += step) {
-        t1 = d1u0[i] - (tmp1[i] + (lambda1[i] / beta));
-        t2 = d2u0[i] - (tmp2[i] + (lambda2[i] / beta));
-        ng = sqrtf((t1 * t1) + (t2 * t2));
+    for ( ; i < total ; i += step)
+        u[i] = u[i] / (float)n;
+}
 
-        if (ng > 1.0 / beta) {
-            y1[i] = d1u0[i] - t1 * (1.0 - (1.0 / (beta * ng)));
-            y2[i] = d2u0[i] - t2 * (1.0 - (1.0 / (beta * ng)));
-        } else {
-            y1[i] = d1u0[i];
-            y2[i] = d2u0[i];
+// SESSIONS
+// -------------------------------------------------------------------------
+
+#define PLAN_CACHE_SIZE 8
+#define MAX_DEVICES     16
+
+// R2C / C2R plans of batch planes of one size on one device, shared by every session of that size
+typedef struct {
+    int device;
+    int n0, n1, batch;
+    int refs;
+    cufftHandle planR2C, planC2R;
+} CachedPlans;
+
+// Everything batch planes of one size need : plans, cuBLAS handle, fd1 / fd2 and the work buffers
+// the filter spectra (fpsi, fphi1, fphi2, fw) are those of ||u0|| = 1 and shared by the planes,
+// scale[p] = sqrt(||u0_p||) turns them into the filters of plane p
+// a session lives on the device current when it was opened, its calls switch to it and back
+// y1, y2, lambda1 and lambda2 are kept from one call to the next, state is the number of planes whose ADMM state
+// they hold (those of the previous call, 0 until then)
+typedef struct {
+    int device;
+    int n0, n1, n, m, batch;
+    int state;
+    int dimGrid, dimBlock;
+    CachedPlans *plans, *many;
+    cublasHandle_t handle;
+    float *scale, *norms;
+    float *res, *hres;
+    CuR *fw;
+    CuC *fpsi, *fd1, *fd2, *fphi1, *fphi2;
+    CuR *gu, *gu0;
+    CuC *ftmp1, *ftmp2, *fx;
+    CuR *d1u0, *d2u0, *tmp1, *tmp2, *y1, *y2, *lambda1, *lambda2;
+} VsnrSession;
+
+// Process-wide plan cache, the plans of a size stay alive when its last session is closed
+static CachedPlans plan_cache[PLAN_CACHE_SIZE];
+static int plan_cache_used = 0;
+
+// Guards the plan and filter caches, the sessions of several devices run on several threads
+static std::mutex cache_lock;
+
+// Makes device current, returns the previous one for leave_device
+int enter_device(int device)
+{
+    int previous = 0;
+    cudaGetDevice(&previous);
+    if (previous != device) cudaSetDevice(device);
+    return previous;
+}
+
+// -
+void leave_device(int previous)
+{
+    int device = 0;
+    cudaGetDevice(&device);
+    if (previous != device) cudaSetDevice(previous);
+}
+
+// Destroys the plans of a slot on their device
+void destroy_plans(CachedPlans* p)
+{
+    int previous = enter_device(p->device);
+    cufftDestroy(p->planR2C);
+    cufftDestroy(p->planC2R);
+    leave_device(previous);
+    p->n0 = 0;
+    p->n1 = 0;
+}
+
+// cufftPlan2d, or cufftPlanMany for several planes stored one after the other
+cufftResult plan_many(cufftHandle* plan, int n0, int n1, int batch, cufftType type)
+{
+    int dims[2] = {n0, n1};
+    if (batch == 1) return cufftPlan2d(plan, n0, n1, type);
+    return cufftPlanMany(plan, 2, dims, NULL, 1, 0, NULL, 1, 0, type, batch);
+}
+
+// Plans of batch planes of n0 x n1 on the current device, created on the first request only
+// (NULL if they can not be created)
+CachedPlans* acquire_plans(int device, int n0, int n1, int batch)
+{
+    std::lock_guard<std::mutex> lock(cache_lock);
+    int i, slot = -1;
+    CachedPlans* p;
+
+    for (i = 0 ; i < plan_cache_used ; i++) {
+        if (plan_cache[i].device == device && plan_cache[i].n0 == n0 && plan_cache[i].n1 == n1 && plan_cache[i].batch == batch) {
+            plan_cache[i].refs++;
+            return &plan_cache[i];
         }
+        if (plan_cache[i].refs == 0 && slot < 0) slot = i;
+    }
+
+    // a new slot, or the first unused size
+    if (plan_cache_used < PLAN_CACHE_SIZE) slot = plan_cache_used++;
+    if (slot < 0) return NULL;
+    p = &plan_cache[slot];
+    if (p->n0 > 0) destroy_plans(p);
+
+    p->device = device;
+    p->n0 = 0;
+    p->n1 = 0;
+    p->refs = 0;
+    if (plan_many(&p->planR2C, n0, n1, batch, CUFFT_R2C) != CUFFT_SUCCESS) return NULL;
+    if (plan_many(&p->planC2R, n0, n1, batch, CUFFT_C2R) != CUFFT_SUCCESS) {
+        cufftDestroy(p->planR2C);
+        return NULL;
     }
+    p->n0 = n0;
+    p->n1 = n1;
+    p->batch = batch;
+    p->refs = 1;
+    return p;
 }
 
 // -
-__global__ void update_lambda(CuR* lambda, CuR* tmp, CuR* y, float beta, int n)
+void release_plans(CachedPlans* p)
 {
-    int i    = blockIdx.x * blockDim.x + threadIdx.x ;
-    int step = blockDim.x * gridDim.x;
+    std::lock_guard<std::mutex> lock(cache_lock);
+    if (p != NULL) p->refs--;
+}
 
-    for ( ; i < n ; i += step)
-        lambda[i] = lambda[i] + (beta * (tmp[i] - y[i]));
+// Destroys the plans no session uses
+_export_ void clearPlanCache()
+{
+    std::lock_guard<std::mutex> lock(cache_lock);
+    for (int i = 0 ; i < plan_cache_used ; i++)
+        if (plan_cache[i].refs == 0 && plan_cache[i].n0 > 0) destroy_plans(&plan_cache[i]);
 }
 
-// Main function
-void VSNR_ADMM_GPU(float* u0, float* psi, int n0, int n1, int nit, float beta, float* u, int dimGrid, int dimBlock)
+// cudaMalloc which clears *ok on failure
+void* session_alloc(size_t size, int* ok)
 {
-    cufftHandle planR2C, planC2R;
-    CuC *fpsi, *fu0;
-    CuC *fd1, *fd2, *fphi1, *fphi2, *fphi, *ftmp1, *ftmp2, *fx;
-    CuR *d1, *d2, *d1u0, *d2u0, *tmp1, *tmp2, *y1, *y2, *lambda1, *lambda2;
+    void* ptr = NULL;
+    if (cudaMalloc(&ptr, size) != cudaSuccess) {
+        *ok = 0;
+        return NULL;
+    }
+    return ptr;
+}
 
-    int n = n0*n1;
-    int m = n0*(n1/2+1);
 
-    cudaMalloc((void**)&fpsi, m*sizeof(CuC));
-    cudaMalloc((void**)&fu0,  m*sizeof(CuC));
-    cudaMalloc((void**)&d1u0, n*sizeof(CuR));
-    cudaMalloc((void**)&d2u0, n*sizeof(CuR));
-
-    // Allocation for the main loop
-    cudaMalloc((void**)&tmp1,  n*sizeof(CuR));
-    cudaMalloc((void**)&tmp2,  n*sizeof(CuR));
-    cudaMalloc((void**)&ftmp1, m*sizeof(CuC));
-    cudaMalloc((void**)&ftmp2, m*sizeof(CuC));
-
-    cufftPlan2d(&planR2C, n0, n1, CUFFT_R2C);
-    cufftPlan2d(&planC2R, n0, n1, CUFFT_C2R);
-
-    cufftExecR2C(planR2C, u0,  fu0); // fu0 = fftn(u0);
-    cufftExecR2C(planR2C, psi, fpsi); // fpsi = fftn(psi);
-
-    // Computes d1 and fd1
-    cudaMalloc((void**)&d1,  n*sizeof(CuR));
-    cudaMalloc((void**)&fd1, m*sizeof(CuC));
-    setd1<<<dimGrid,dimBlock>>>(d1, n, n1);  // d1[0] = 1; d1[n1-1] = -1;
-    cufftExecR2C(planR2C, d1, fd1); // fd1 = fftn(d1);
-    cudaFree(d1);
-
-    // Computes d2 and fd2
-    cudaMalloc((void**)&d2,  n*sizeof(CuR));
-    cudaMalloc((void**)&fd2, m*sizeof(CuC));
-    setd2<<<dimGrid,dimBlock>>>(d2, n, n1);  // d2[0] = 1; d2[n-n1] = -1;
-    cufftExecR2C(planR2C, d2, fd2); // fd2 = fftn(d2)
-    cudaFree(d2);
+// -------------------------------------------------------------------------
+
+
+// True when the primal and dual residuals of the batch planes summed by update_y_res are below tol,
+// relative to the size of Ax and y : ||Ax - y|| <= tol.max(||Ax||, ||y||) and ||y - previous y|| <= tol.||y||
+int converged(float* res, int batch, float tol)
+{
+    for (int p = 0 ; p < batch ; p++) {
+        float primal = sqrtf(res[4*p]), dual = sqrtf(res[4*p+1]);
+        float ax = sqrtf(res[4*p+2]), y = sqrtf(res[4*p+3]);
+        if (primal > tol * MAX(ax, y) || dual > tol * y) return 0;
+    }
+    return 1;
+}
+
+// Residual balancing : beta is doubled when the relative primal residual ||Ax - y|| / max(||Ax||, ||y||) of the
+// batch is 10 times its relative dual residual ||y - previous y|| / ||y|| (the two ratios of converged), halved in
+// the opposite case (lambda is not scaled by beta, it is kept as is)
+float adapt_beta(float* res, int batch, float beta)
+{
+    float rp = 0, rd = 0, ax = 0, ny = 0;
+    for (int p = 0 ; p < batch ; p++) {
+        rp += res[4*p];
+        rd += res[4*p+1];
+        ax += res[4*p+2];
+        ny += res[4*p+3];
+    }
+    float primal = sqrtf(rp / MAX(MAX(ax, ny), FLT_MIN));
+    float dual   = sqrtf(rd / MAX(ny, FLT_MIN));
+    if (primal > 10 * dual) return 2 * beta;
+    if (dual > 10 * primal) return beta / 2;
+    return beta;
+}
+
+// Main function, plans, fd1 / fd2 and work buffers come from the session
+// denoises the s->batch planes of s->gu0 into s->gu, s->fpsi and s->scale are set by GET_FILTERS
+// stops before nit iterations once every plane has converged (see converged, tol = 0 : never),
+// alpha is the over-relaxation of Ax in the y and lambda updates (1 : none, 1.5 to 1.8 usually faster),
+// adaptive rebalances beta during the first half of the iterations (see adapt_beta)
+// warm starts from the y and lambda left by the previous call (warm start, see VSNR_2D_DENOISE_BATCH)
+// returns the number of iterations run
+int VSNR_ADMM_GPU(VsnrSession* s, int nit, float beta, float tol, float alpha, int adaptive, int warm)
+{
+    int n  = s->n;
+    int m  = s->m;
+    int bn = s->batch * n;
+    int bm = s->batch * m;
+    int dimGrid  = s->dimGrid;
+    int dimBlock = s->dimBlock;
+    cufftHandle planR2C = s->many->planR2C;
+    cufftHandle planC2R = s->many->planC2R;
+
+    float* scale = s->scale;
+    CuR *u0    = s->gu0,   *u     = s->gu;
+    CuC *fpsi  = s->fpsi,  *fu0   = s->fx; // fx is unused before the main loop
+    CuC *fd1   = s->fd1,   *fd2   = s->fd2;
+    CuC *fphi1 = s->fphi1, *fphi2 = s->fphi2;
+    CuR *fw    = s->fw;
+    CuC *ftmp1 = s->ftmp1, *ftmp2 = s->ftmp2, *fx   = s->fx;
+    CuR *d1u0  = s->d1u0,  *d2u0  = s->d2u0;
+    CuR *tmp1  = s->tmp1,  *tmp2  = s->tmp2;
+    CuR *y1    = s->y1,    *y2    = s->y2;
+    CuR *lambda1 = s->lambda1, *lambda2 = s->lambda2;
+
+    cufftExecR2C(planR2C, u0, fu0); // fu0 = fftn(u0);
 
     // Computes d1u0
-    product_carray<<<dimGrid,dimBlock>>>(fd1, fu0, ftmp1, m);
+    product_carray_many<<<dimGrid,dimBlock>>>(fd1, fu0, ftmp1, NULL, m, bm);
     cufftExecC2R(planC2R, ftmp1, d1u0);  // d1u0 = ifftn(fd1.*fu0);
-    normalize<<<dimGrid,dimBlock>>>(d1u0, n);
+    normalize_many<<<dimGrid,dimBlock>>>(d1u0, n, bn);
 
     // Computes d2u0
-    product_carray<<<dimGrid,dimBlock>>>(fd2, fu0, ftmp2, m);
+    product_carray_many<<<dimGrid,dimBlock>>>(fd2, fu0, ftmp2, NULL, m, bm);
     cufftExecC2R(planC2R, ftmp2, d2u0);  // d2u0 = ifftn(fd2.*fu0);
-    normalize<<<dimGrid,dimBlock>>>(d2u0, n);
-
-    cudaFree(fu0); // This is unused until the end
+    normalize_many<<<dimGrid,dimBlock>>>(d2u0, n, bn);
 
-    // Computes fphi1 and fphi2
-    cudaMalloc((void**)&fphi1, m*sizeof(CuC));
-    cudaMalloc((void**)&fphi2, m*sizeof(CuC));
+    // Computes fphi1 and fphi2 of the unit filter, plane p uses scale[p].fphi1 and scale[p].fphi2
     product_carray<<<dimGrid,dimBlock>>>(fd1, fpsi, fphi1, m); // fphi1 = fpsi.*fd1;
     product_carray<<<dimGrid,dimBlock>>>(fd2, fpsi, fphi2, m); // fphi2 = fpsi.*fd2;
 
-    cudaFree(fd1);
-    cudaFree(fd2);
+    // Computes fphi = 1 + beta.scale^2.fw
+    compute_w<<<dimGrid,dimBlock>>>(fphi1, fphi2, fw, m);
 
-    // Computes fphi
-    cudaMalloc((void**)&fphi, m*sizeof(CuC));
-    compute_phi<<<dimGrid,dimBlock>>>(fphi1, fphi2, fphi, beta, m);
-
-    // Initialization
-    cudaMalloc((void**)&y1, 	 n*sizeof(CuR));
-    cudaMalloc((void**)&y2, 	 n*sizeof(CuR));
-    cudaMalloc((void**)&lambda1, n*sizeof(CuR));
-    cudaMalloc((void**)&lambda2, n*sizeof(CuR));
-    cudaMalloc((void**)&fx, 	 m*sizeof(CuC));
-
-    cudaMemset(y1, 		0, n*sizeof(CuR));
-    cudaMemset(y2, 		0, n*sizeof(CuR));
-    cudaMemset(lambda1, 0, n*sizeof(CuR));
-    cudaMemset(lambda2, 0, n*sizeof(CuR));
+    // Initialization, y and lambda are kept when warm
+    if (!warm) {
+        cudaMemset(y1, 		0, bn*sizeof(CuR));
+        cudaMemset(y2, 		0, bn*sizeof(CuR));
+        cudaMemset(lambda1, 0, bn*sizeof(CuR));
+        cudaMemset(lambda2, 0, bn*sizeof(CuR));
+    }
+    cudaMemset(fx,      0, bm*sizeof(CuC));
 
     // Main algorithm
-    for (int k = 0 ; k < nit ; ++k) {
+    int k;
+    for (k = 0 ; k < nit ; ++k) {
 
         // -------------------------------------------------------------
         // First step, x update : (I+beta ATA)x = AT (-lambda+beta*ATy)
         // -------------------------------------------------------------
         // ftmp1 = conj(fphi1).*(fftn(-lambda1+beta*y1));
         // ftmp2 = conj(fphi2).*(fftn(-lambda2+beta*y2));
-        betay_m_lambda<<<dimGrid,dimBlock>>>(lambda1, lambda2, y1, y2, tmp1, tmp2, beta, n);
+        betay_m_lambda<<<dimGrid,dimBlock>>>(lambda1, lambda2, y1, y2, tmp1, tmp2, beta, bn);
         cufftExecR2C(planR2C, tmp1, ftmp1);
         cufftExecR2C(planR2C, tmp2, ftmp2);
-        conju_x_v<<<dimGrid,dimBlock>>>(fphi1, ftmp1, ftmp1, m);
-        conju_x_v<<<dimGrid,dimBlock>>>(fphi2, ftmp2, ftmp2, m);
-        update_fx<<<dimGrid,dimBlock>>>(ftmp1, ftmp2, fphi, fx, m);
+        conju_x_v_many<<<dimGrid,dimBlock>>>(fphi1, ftmp1, ftmp1, scale, m, bm);
+        conju_x_v_many<<<dimGrid,dimBlock>>>(fphi2, ftmp2, ftmp2, scale, m, bm);
+        update_fx_many<<<dimGrid,dimBlock>>>(ftmp1, ftmp2, fw, fx, scale, beta, m, bm);
 
         // --------------------------------------------------------
         // Second step y update : y = prox_{f1/beta}(Ax+lambda/beta)
         // --------------------------------------------------------
-        product_carray<<<dimGrid,dimBlock>>>(fphi1, fx, ftmp1, m);
-        product_carray<<<dimGrid,dimBlock>>>(fphi2, fx, ftmp2, m);
+        product_carray_many<<<dimGrid,dimBlock>>>(fphi1, fx, ftmp1, scale, m, bm);
+        product_carray_many<<<dimGrid,dimBlock>>>(fphi2, fx, ftmp2, scale, m, bm);
         cufftExecC2R(planC2R, ftmp1, tmp1); // tmp1 = Ax1
         cufftExecC2R(planC2R, ftmp2, tmp2); // tmp2 = Ax2
-        normalize<<<dimGrid,dimBlock>>>(tmp1, n);
-        normalize<<<dimGrid,dimBlock>>>(tmp2, n);
-        update_y<<<dimGrid,dimBlock>>>(d1u0, d2u0, tmp1, tmp2, lambda1, lambda2, y1, y2, beta, n);
+        normalize_many<<<dimGrid,dimBlock>>>(tmp1, n, bn);
+        normalize_many<<<dimGrid,dimBlock>>>(tmp2, n, bn);
+        if (tol > 0 || adaptive) {
+            cudaMemset(s->res, 0, 4*s->batch*sizeof(float));
+            update_y_res<<<dimGrid,dimBlock>>>(d1u0, d2u0, tmp1, tmp2, lambda1, lambda2, y1, y2, beta, alpha, s->res, n, bn);
+        } else {
+            update_y<<<dimGrid,dimBlock>>>(d1u0, d2u0, tmp1, tmp2, lambda1, lambda2, y1, y2, beta, alpha, bn);
+        }
 
         // --------------------------
         // Third step lambda update
         // --------------------------
-        update_lambda<<<dimGrid,dimBlock>>>(lambda1, tmp1, y1, beta, n);
-        update_lambda<<<dimGrid,dimBlock>>>(lambda2, tmp2, y2, beta, n);
+        update_lambda<<<dimGrid,dimBlock>>>(lambda1, tmp1, y1, beta, bn);
+        update_lambda<<<dimGrid,dimBlock>>>(lambda2, tmp2, y2, beta, bn);
+
+        // ---------------------------------------------------------
+        // Stops once every plane has converged, rebalances beta
+        // ---------------------------------------------------------
+        if (tol > 0 || adaptive) {
+            cudaMemcpy(s->hres, s->res, 4*s->batch*sizeof(float), cudaMemcpyDeviceToHost);
+            if (tol > 0 && converged(s->hres, s->batch, tol)) {
+                k++;
+                break;
+            }
+            if (adaptive && 2*(k+1) <= nit) beta = adapt_beta(s->hres, s->batch, beta);
+        }
 
     }
 
     // Last but not the least : u = u0 - (psi * x)
-    product_carray<<<dimGrid,dimBlock>>>(fx, fpsi, ftmp1, m);
+    product_carray_many<<<dimGrid,dimBlock>>>(fpsi, fx, ftmp1, scale, m, bm);
     cufftExecC2R(planC2R, ftmp1, u);
-    normalize<<<dimGrid,dimBlock>>>(u, n);
-    substract<<<dimGrid,dimBlock>>>(u0, u, u, n);
-
-    // Free memory
-    cudaFree(fpsi);
-    cudaFree(fphi);
-    cudaFree(fphi1);
-    cudaFree(fphi2);
-    cudaFree(ftmp1);
-    cudaFree(ftmp2);
-    cudaFree(fx);
-
-    cudaFree(d1u0);
-    cudaFree(d2u0);
-    cudaFree(y1);
-    cudaFree(y2);
-    cudaFree(lambda1);
-    cudaFree(lambda2);
-    cudaFree(tmp1);
-    cudaFree(tmp2);
-
-    cufftDestroy(planR2C);
-    cufftDestroy(planC2R);
+    normalize_many<<<dimGrid,dimBlock>>>(u, n, bn);
+    substract<<<dimGrid,dimBlock>>>(u0, u, u, bn);
+    return k;
 }
 
 // Sets Gabor
@@ -550,50 +800,40 @@ __global__ void update_psi(CuC* fpsitemp, CuC* fsum, float alpha, int m)
 }
 
 // This function creates the filters from a Java list of filters
-void CREATE_FILTERS(float* psis, float* gu0, int length, float* gpsi, int n0, int n1, int dimGrid, int dimBlock)
+void CREATE_FILTERS(VsnrSession* s, float* psis, int length, float* gpsi)
 {
     int i = 0;
-    int n = n0*n1;
-    int m = n0*(n1/2+1);
-    cublasHandle_t handle;
+    int n0 = s->n0;
+    int n1 = s->n1;
+    int n  = s->n;
+    int m  = s->m;
+    int dimGrid  = s->dimGrid;
+    int dimBlock = s->dimBlock;
+    cublasHandle_t handle = s->handle;
+    cufftHandle planR2C = s->plans->planR2C;
+    cufftHandle planC2R = s->plans->planC2R;
 
     float eta, alpha, max1, max2, mmax, norm;
-    float *psitemp, *ftmp;
-    CuC *fpsitemp, *fsum, *fd1, *fd2;
-    CuR *d1, *d2;
-    cufftHandle planR2C, planC2R;
     int imax;
 
-    cudaMalloc((void**)&psitemp,  n*sizeof(float));
-    cudaMalloc((void**)&fpsitemp, m*sizeof(CuC));
-    cudaMalloc((void**)&ftmp, 	  m*sizeof(float));
-    cudaMalloc((void**)&fsum, 	  m*sizeof(CuC));
-    cudaMalloc((void**)&d1, 	  n*sizeof(CuR));
-    cudaMalloc((void**)&fd1,	  m*sizeof(CuC));
-    cudaMalloc((void**)&d2, 	  n*sizeof(CuR));
-    cudaMalloc((void**)&fd2,	  m*sizeof(CuC));
+    // Work buffers of the session, free between two denoisings
+    float* psitemp  = s->tmp1;
+    float* ftmp     = s->fw;
+    CuC*   fpsitemp = s->ftmp1;
+    CuC*   fsum     = s->ftmp2;
+    CuC*   fd1      = s->fphi1;
+    CuC*   fd2      = s->fphi2;
 
     cudaMemset(fsum, 0, m*sizeof(CuC));
 
-    cublasCreate(&handle);
-
-    cufftPlan2d(&planR2C, n0, n1, CUFFT_R2C);
-    cufftPlan2d(&planC2R, n0, n1, CUFFT_C2R);
-
-    // Computes the l2 norm of u0 on GPU
-    cublasSnrm2(handle, n, gu0, 1, &norm);
-
-    // Computes d1 and fd1
-    setd1<<<dimGrid,dimBlock>>>(d1, n, n1); // d1[0] = 1; d1[n1-1] = -1;
-    cufftExecR2C(planR2C, d1, fd1);
-    compute_norm<<<dimGrid,dimBlock>>>(fd1, m); // fd1 = |fd1|;
-    cudaFree(d1);
+    // The filters are built for ||u0|| = 1, GET_FILTERS scales them
+    norm = 1.0f;
 
-    // Computes d2 and fd2
-    setd2<<<dimGrid,dimBlock>>>(d2, n, n1); // d2[0] = 1; d2[(n0-1)*n1] = -1;
-    cufftExecR2C(planR2C, d2, fd2);
-    compute_norm<<<dimGrid,dimBlock>>>(fd2, m); // fd2 = |fd2|;
-    cudaFree(d2);
+    // fd1 = |fd1|, fd2 = |fd2|
+    cudaMemcpy(fd1, s->fd1, m*sizeof(CuC), cudaMemcpyDeviceToDevice);
+    cudaMemcpy(fd2, s->fd2, m*sizeof(CuC), cudaMemcpyDeviceToDevice);
+    compute_norm<<<dimGrid,dimBlock>>>(fd1, m);
+    compute_norm<<<dimGrid,dimBlock>>>(fd2, m);
 
     // Computes PSI = sum_{i=1}^m |PSI_i|^2/alpha_i, where alpha_i is defined in the paper.
     while (i < length) {
@@ -632,16 +872,108 @@ void CREATE_FILTERS(float* psis, float* gu0, int length, float* gpsi, int n0, in
     compute_sqrtf<<<dimGrid,dimBlock>>>(fsum, m); // fsum = sqrtf(fsum);
 
     cufftExecC2R(planC2R, fsum, gpsi);
+}
+
+// Filter cache : alpha_i is proportional to 1/||u0||, hence fsum = ||u0||.fsum(1) and
+// psi(u0) = sqrt(||u0||).psi(1). The unit filter of the last (filter list, n0, n1) is kept on
+// each device so that the planes / channels of a stack only pay for one CREATE_FILTERS per device.
+typedef struct {
+    float* psis;
+    int    length;
+    int    n0, n1;
+    float* gpsi;
+} FilterCache;
+
+static FilterCache filter_cache[MAX_DEVICES];
+
+// -
+int filter_cache_hit(FilterCache* c, float* psis, int length, int n0, int n1)
+{
+    return c->gpsi != NULL && c->length == length && c->n0 == n0 && c->n1 == n1 &&
+           memcmp(c->psis, psis, length*sizeof(float)) == 0;
+}
 
-    cudaFree(psitemp);
-    cudaFree(fpsitemp);
-    cudaFree(ftmp);
-    cudaFree(fsum);
-    cudaFree(fd1);
-    cudaFree(fd2);
-    cufftDestroy(planR2C);
-    cufftDestroy(planC2R);
-    cublasDestroy(handle);
+// Frees one cached filter, its device must be the current one
+void clear_filter(FilterCache* c)
+{
+    if (c->gpsi != NULL) cudaFree(c->gpsi);
+    if (c->psis != NULL) free(c->psis);
+    c->gpsi   = NULL;
+    c->psis   = NULL;
+    c->length = 0;
+}
+
+// Frees the cached filters of every device
+_export_ void clearFilterCache()
+{
+    std::lock_guard<std::mutex> lock(cache_lock);
+    for (int d = 0 ; d < MAX_DEVICES ; d++) {
+        if (filter_cache[d].gpsi == NULL) continue;
+        int previous = enter_device(d);
+        clear_filter(&filter_cache[d]);
+        leave_device(previous);
+    }
+}
+
+// s->fpsi = fftn(unit filter) and s->scale[p] = sqrt(||u0_p||), the unit filter is built on the first call only
+// returns 0 when the device (or the host) is out of memory for the unit filter
+int GET_FILTERS(VsnrSession* s, float* psis, int length)
+{
+    int n0 = s->n0;
+    int n1 = s->n1;
+    int n  = s->n;
+    std::lock_guard<std::mutex> lock(cache_lock);
+    FilterCache* c = &filter_cache[s->device];
+
+    if (!filter_cache_hit(c, psis, length, n0, n1)) {
+        clear_filter(c);
+        int ok = 1;
+        c->gpsi = (float*)session_alloc(n*sizeof(float), &ok);
+        c->psis = (float*)malloc(length*sizeof(float));
+        if (!ok || c->psis == NULL) {
+            clear_filter(c);
+            return 0;
+        }
+        CREATE_FILTERS(s, psis, length, c->gpsi);
+        memcpy(c->psis, psis, length*sizeof(float));
+        c->length = length;
+        c->n0 = n0;
+        c->n1 = n1;
+    }
+
+    // Computes the l2 norm of each plane of u0 on GPU
+    for (int p = 0 ; p < s->batch ; p++) {
+        cublasSnrm2(s->handle, n, s->gu0 + p*n, 1, &s->norms[p]);
+        s->norms[p] = sqrtf(s->norms[p]);
+    }
+    cudaMemcpy(s->scale, s->norms, s->batch*sizeof(float), cudaMemcpyHostToDevice);
+
+    // R2C leaves its input untouched
+    cufftExecR2C(s->plans->planR2C, c->gpsi, s->fpsi);
+    return 1;
+}
+
+// -
+_export_ long long getFreeMemory()
+{
+    size_t free = 0, total = 0;
+    if (cudaMemGetInfo(&free, &total) != cudaSuccess) return 0;
+    return (long long)free;
+}
+
+// -
+_export_ int getDeviceCount()
+{
+    int count = 0;
+    if (cudaGetDeviceCount(&count) != cudaSuccess) return 0;
+    return count;
+}
+
+// Makes device the current one of the calling thread (the next OPEN / MAX_BATCH use it), 0 on failure
+_export_ int setDevice(int device)
+{
+    if (device < 0 || device >= MAX_DEVICES) return 0;
+    return (cudaSetDevice(device) == cudaSuccess ? 1 : 0);
 }
 
 // -
@@ -665,36 +997,236 @@ _export_ int getMaxBlocks()
 }
 
 // -
-_export_ void VSNR_2D_FIJI_GPU(float* psis, int length, float* u0, int n0, int n1, int nit, float beta, float* u, int nBlocks, float max)
+// Frees a session, NULL is ignored
+_export_ void VSNR_2D_CLOSE(void* session)
 {
+    VsnrSession* s = (VsnrSession*)session;
+    if (s == NULL) return;
+    int previous = enter_device(s->device);
+
+    cudaFree(s->gu);
+    cudaFree(s->gu0);
+    cudaFree(s->scale);
+    cudaFree(s->res);
+    cudaFree(s->fw);
+    cudaFree(s->fpsi);
+    cudaFree(s->fd1);
+    cudaFree(s->fd2);
+    cudaFree(s->fphi1);
+    cudaFree(s->fphi2);
+    cudaFree(s->ftmp1);
+    cudaFree(s->ftmp2);
+    cudaFree(s->fx);
+
+    cudaFree(s->d1u0);
+    cudaFree(s->d2u0);
+    cudaFree(s->y1);
+    cudaFree(s->y2);
+    cudaFree(s->lambda1);
+    cudaFree(s->lambda2);
+    cudaFree(s->tmp1);
+    cudaFree(s->tmp2);
+
+    if (s->handle != NULL) cublasDestroy(s->handle);
+    if (s->many != s->plans) release_plans(s->many);
+    release_plans(s->plans);
+    free(s->norms);
+    free(s->hres);
+    free(s);
+    leave_device(previous);
+}
+
+// Device memory of a session of batch planes of n0 x n1, cuFFT work areas included
+_export_ long long VSNR_2D_BYTES(int n0, int n1, int batch)
+{
+    int dims[2] = {n0, n1};
+    long long n = (long long)n0*n1;
+    long long m = (long long)n0*(n1/2+1);
+    size_t r2c = 0, c2r = 0;
+
+    cufftEstimateMany(2, dims, NULL, 1, 0, NULL, 1, 0, CUFFT_R2C, batch, &r2c);
+    cufftEstimateMany(2, dims, NULL, 1, 0, NULL, 1, 0, CUFFT_C2R, batch, &c2r);
+
+    // per plane : 10 real and 3 complex arrays, shared : 5 complex and 1 real array, and the unit filter the device
+    // caches (see GET_FILTERS)
+    return batch*(10*n*sizeof(CuR) + 3*m*sizeof(CuC)) + 5*m*sizeof(CuC) + m*sizeof(CuR) + n*sizeof(float) + r2c + c2r;
+}
+
+// Number of n0 x n1 planes a session can hold in 90% of the free device memory (at least 1)
+_export_ int VSNR_2D_MAX_BATCH(int n0, int n1)
+{
+    long long avail = getFreeMemory() / 10 * 9;
+    long long one   = VSNR_2D_BYTES(n0, n1, 1);
+    long long plane = VSNR_2D_BYTES(n0, n1, 2) - one;
+    if (avail <= one || plane <= 0) return 1;
+    return (int)MIN(1 + (avail - one) / plane, 1 << 16);
+}
+
+// Allocates plans and work buffers for batch planes of n0 x n1, NULL when the device is out of memory
+_export_ void* VSNR_2D_OPEN_BATCH(int n0, int n1, int batch, int nBlocks)
+{
+    int ok = 1;
     int n = n0*n1;
-    float *gu, *gu0, *gpsi;
+    int m = n0*(n1/2+1);
+    VsnrSession* s = (VsnrSession*)calloc(1, sizeof(VsnrSession));
+    if (s == NULL) return NULL;
 
-    int dimBlock = MIN(nBlocks, getMaxBlocks());
-    dimBlock = MAX(dimBlock, 1);
-    int dimGrid = MIN(n/dimBlock, getMaxGrid());
-    dimGrid = MAX(dimGrid, 1);
+    cudaGetDevice(&s->device);
+    if (s->device >= MAX_DEVICES) {
+        free(s);
+        return NULL;
+    }
 
-    // 1. Alloc memory
-    cudaMalloc((void**)&gu,   n*sizeof(float));
-    cudaMalloc((void**)&gpsi, n*sizeof(float));
-    cudaMalloc((void**)&gu0,  n*sizeof(float));
+    batch = MAX(batch, 1);
+    s->n0 = n0;
+    s->n1 = n1;
+    s->n  = n;
+    s->m  = m;
+    s->batch = batch;
+
+    s->dimBlock = MIN(nBlocks, getMaxBlocks());
+    s->dimBlock = MAX(s->dimBlock, 1);
+    s->dimGrid  = MIN(batch*n/s->dimBlock, getMaxGrid());
+    s->dimGrid  = MAX(s->dimGrid, 1);
+
+    s->plans = acquire_plans(s->device, n0, n1, 1);
+    s->many  = (batch == 1 ? s->plans : acquire_plans(s->device, n0, n1, batch));
+    if (s->plans == NULL || s->many == NULL) ok = 0;
+    if (cublasCreate(&s->handle) != CUBLAS_STATUS_SUCCESS) {
+        s->handle = NULL;
+        ok = 0;
+    }
+    s->norms = (float*)malloc(batch*sizeof(float));
+    s->hres  = (float*)malloc(4*batch*sizeof(float));
+    if (s->norms == NULL || s->hres == NULL) ok = 0;
+
+    s->scale   = (float*)session_alloc(batch*sizeof(float), &ok);
+    s->res     = (float*)session_alloc(4*batch*sizeof(float), &ok);
+    s->fw      = (CuR*)session_alloc(m*sizeof(CuR), &ok);
+    s->fpsi    = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+    s->fd1     = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+    s->fd2     = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+    s->fphi1   = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+    s->fphi2   = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+    s->gu      = (CuR*)session_alloc(batch*n*sizeof(CuR), &ok);
+    s->gu0     = (CuR*)session_alloc(batch*n*sizeof(CuR), &ok);
+    s->d1u0    = (CuR*)session_alloc(batch*n*sizeof(CuR), &ok);
+    s->d2u0    = (CuR*)session_alloc(batch*n*sizeof(CuR), &ok);
+    s->tmp1    = (CuR*)session_alloc(batch*n*sizeof(CuR), &ok);
+    s->tmp2    = (CuR*)session_alloc(batch*n*sizeof(CuR), &ok);
+    s->y1      = (CuR*)session_alloc(batch*n*sizeof(CuR), &ok);
+    s->y2      = (CuR*)session_alloc(batch*n*sizeof(CuR), &ok);
+    s->lambda1 = (CuR*)session_alloc(batch*n*sizeof(CuR), &ok);
+    s->lambda2 = (CuR*)session_alloc(batch*n*sizeof(CuR), &ok);
+    s->ftmp1   = (CuC*)session_alloc(batch*m*sizeof(CuC), &ok);
+    s->ftmp2   = (CuC*)session_alloc(batch*m*sizeof(CuC), &ok);
+    s->fx      = (CuC*)session_alloc(batch*m*sizeof(CuC), &ok);
+
+    if (!ok) {
+        VSNR_2D_CLOSE(s);
+        return NULL;
+    }
 
-    cudaMemcpy(gu0, u0, n*sizeof(float), cudaMemcpyHostToDevice);
-    divide<<<dimGrid, dimBlock>>>(gu0, n, max);
+    // Computes fd1 and fd2 once for all
+    setd1<<<s->dimGrid,s->dimBlock>>>(s->tmp1, n, n1);  // d1[0] = 1; d1[n1-1] = -1;
+    cufftExecR2C(s->plans->planR2C, s->tmp1, s->fd1); // fd1 = fftn(d1);
+    setd2<<<s->dimGrid,s->dimBlock>>>(s->tmp1, n, n1);  // d2[0] = 1; d2[n-n1] = -1;
+    cufftExecR2C(s->plans->planR2C, s->tmp1, s->fd2); // fd2 = fftn(d2)
 
-    // 2. Prepares filters
-    CREATE_FILTERS(psis, gu0, length, gpsi, n0, n1, dimGrid, dimBlock);
+    return s;
+}
 
-    // 3. Denoises the image
-    VSNR_ADMM_GPU(gu0, gpsi, n0, n1, nit, beta, gu, dimGrid, dimBlock);
+// -
+_export_ void* VSNR_2D_OPEN(int n0, int n1, int nBlocks)
+{
+    // -
+    return VSNR_2D_OPEN_BATCH(n0, n1, 1, nBlocks);
+}
+
+// Denoises count <= s->batch planes stored one after the other in u0, returns the number of iterations run,
+// -1 when the device is out of memory for the filters (u is left untouched)
+// when warm, plane p starts from the state plane p of the previous call ended with (if it had that many planes)
+int DENOISE_MANY(VsnrSession* s, float* psis, int length, float* u0, int count, int nit, float beta, float tol, float alpha, int adaptive, int warm, float* u, float* max)
+{
+    int n = s->n;
+    int p;
+
+    // 1. Copies u0 / max to the device, the planes above count are cleared
+    cudaMemcpy(s->gu0, u0, count*n*sizeof(float), cudaMemcpyHostToDevice);
+    if (count < s->batch) cudaMemset(s->gu0 + (long)count*n, 0, (s->batch-count)*n*sizeof(float));
+    for (p = 0 ; p < count ; p++)
+        divide<<<s->dimGrid, s->dimBlock>>>(s->gu0 + p*n, n, max[p]);
+
+    // 2. Prepares filters (cached across calls, scaled by sqrt(||u0||))
+    if (!GET_FILTERS(s, psis, length)) return -1;
+
+    // 3. Denoises the planes, the cleared planes above count start from zero (they converge at once)
+    warm = (warm && count <= s->state);
+    if (warm && count < s->batch) {
+        long rest = (long)(s->batch-count)*n;
+        cudaMemset(s->y1 + (long)count*n,      0, rest*sizeof(CuR));
+        cudaMemset(s->y2 + (long)count*n,      0, rest*sizeof(CuR));
+        cudaMemset(s->lambda1 + (long)count*n, 0, rest*sizeof(CuR));
+        cudaMemset(s->lambda2 + (long)count*n, 0, rest*sizeof(CuR));
+    }
+    s->state  = 0;
+    int iters = VSNR_ADMM_GPU(s, nit, beta, tol, alpha, adaptive, warm);
+    s->state  = count;
 
     // 4. Copies the result to u
-    multiply<<<dimGrid, dimBlock>>>(gu, n, max);
-    cudaMemcpy(u, gu, n*sizeof(float), cudaMemcpyDeviceToHost);
+    for (p = 0 ; p < count ; p++)
+        multiply<<<s->dimGrid, s->dimBlock>>>(s->gu + p*n, n, max[p]);
+    cudaMemcpy(u, s->gu, count*n*sizeof(float), cudaMemcpyDeviceToHost);
+    return iters;
+}
 
-    // 5. Frees memory
-    cudaFree(gu);
-    cudaFree(gu0);
-    cudaFree(gpsi);
+// Denoises count n0 x n1 planes stored one after the other in u0 (max[p] : maximum of plane p),
+// s->batch planes at a time, each batch stops once its planes have converged (see converged, tol = 0 : after
+// nit iterations), alpha is the over-relaxation and adaptive rebalances beta (see VSNR_ADMM_GPU),
+// iters[p] (if not NULL) is the number of iterations run for plane p
+// when warm, plane p starts from the ADMM state (y, lambda) plane p of the previous call ended with instead of zero,
+// e.g. the same plane of the previous frame of a time-lapse : the solution is the same, reached in fewer iterations
+// when the planes are alike (with tol > 0); the planes of a call larger than s->batch start from zero
+// when the device is out of memory for the filters, iters[p] is -1 for the planes left untouched
+_export_ void VSNR_2D_DENOISE_BATCH(void* session, float* psis, int length, float* u0, int count, int nit, float beta, float tol, float alpha, int adaptive, int warm, float* u, float* max, int* iters)
+{
+    VsnrSession* s = (VsnrSession*)session;
+    int n = s->n;
+    int previous = enter_device(s->device);
+
+    warm = (warm && count <= s->batch);
+    for (int done = 0 ; done < count ; done += s->batch) {
+        int size = MIN(s->batch, count-done);
+        int k = DENOISE_MANY(s, psis, length, u0 + (long)done*n, size, nit, beta, tol, alpha, adaptive, warm, u + (long)done*n, max + done);
+        if (k < 0) {
+            fprintf(stderr, "VSNR_2D_DENOISE_BATCH : can not allocate the filters of %d x %d on the device\n", s->n0, s->n1);
+            if (iters != NULL)
+                for (int p = done ; p < count ; p++) iters[p] = -1;
+            break;
+        }
+        if (iters != NULL)
+            for (int p = 0 ; p < size ; p++) iters[done+p] = k;
+    }
+    if (count > s->batch) s->state = 0;
+
+    leave_device(previous);
+}
+
+// Denoises one n0 x n1 plane with an open session (nit iterations, no over-relaxation, fixed beta, from zero)
+_export_ void VSNR_2D_DENOISE(void* session, float* psis, int length, float* u0, int nit, float beta, float* u, float max)
+{
+    // -
+    VSNR_2D_DENOISE_BATCH(session, psis, length, u0, 1, nit, beta, 0, 1, 0, 0, u, &max, NULL);
+}
+
+// One shot denoising (open, denoise, close)
+_export_ void VSNR_2D_FIJI_GPU(float* psis, int length, float* u0, int n0, int n1, int nit, float beta, float* u, int nBlocks, float max)
+{
+    void* s = VSNR_2D_OPEN(n0, n1, nBlocks);
+    if (s == NULL) {
+        fprintf(stderr, "VSNR_2D_FIJI_GPU : can not allocate %d x %d on the device\n", n0, n1);
+        return;
+    }
+    VSNR_2D_DENOISE(s, psis, length, u0, nit, beta, u, max);
+    VSNR_2D_CLOSE(s);
 }
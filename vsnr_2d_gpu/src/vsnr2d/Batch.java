@@ -0,0 +1,130 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 2D : COMMAND LINE BATCH           //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+
+// objectives : denoise a list of images (or folders of images) without any ImageJ window
+//     java -cp VSNR_GPU_2D.jar vsnr2d.Batch -p params.txt [-o folder] image_or_folder ...
+// params.txt is a #VSNR-2D text file (see Example_Parameters.txt), the results are written as vsnr_<name>.tif
+// next to each image (or into the -o folder)
+// one Denoiser is kept for the whole list : the backend, its sessions and the staging buffers are set up once
+// one line per image gives the denoising time and throughput, the exit code is 1 if an image failed
+public final class Batch {
+
+    private Batch()
+    {
+    }
+
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+
+        File paramFile = null, outDir = null;
+        ArrayList<File> names  = new ArrayList<File>();
+        ArrayList<File> inputs = new ArrayList<File>();
+        for (int i = 0 ; i < args.length ; i++) {
+            if (args[i].equals("-p") && i+1 < args.length)      paramFile = new File(args[++i]);
+            else if (args[i].equals("-o") && i+1 < args.length) outDir    = new File(args[++i]);
+            else if (args[i].startsWith("-"))                   usage("Unknown option " + args[i]);
+            else                                                names.add(new File(args[i]));
+        }
+        for (File f : names) addInputs(f, outDir, inputs);
+        if (paramFile == null) usage("No parameter file");
+        if (inputs.isEmpty())  usage("No input image");
+        if (outDir != null && !outDir.isDirectory() && !outDir.mkdirs()) usage("Cannot create " + outDir);
+
+        Parameters params = null;
+        try {
+            params = Parameters.read(paramFile);
+        } catch (Exception e) {
+            usage(e.getMessage());
+        }
+        if (params.filters.isEmpty()) usage("No filters in " + paramFile);
+
+        int failed = 0;
+        long planes = 0;
+        double seconds = 0;
+        long start = System.nanoTime();
+        Denoiser denoiser = new Denoiser(params);
+        try {
+            for (File in : inputs) {
+                File out = new File(outDir != null ? outDir : in.getAbsoluteFile().getParentFile(), "vsnr_" + baseName(in) + ".tif");
+                try {
+                    ImagePlus image = IJ.openImage(in.getPath());
+                    if (image == null) throw new IllegalArgumentException("cannot open the image");
+
+                    long t0 = System.nanoTime();
+                    ImagePlus result = denoiser.denoise(image);
+                    double s = (System.nanoTime() - t0) * 1e-9;
+
+                    FileSaver saver = new FileSaver(result);
+                    boolean saved = (result.getStackSize() > 1 ? saver.saveAsTiffStack(out.getPath()) : saver.saveAsTiff(out.getPath()));
+                    if (!saved) throw new IllegalStateException("cannot write " + out);
+
+                    int n = result.getStackSize();
+                    double mpix = (double)result.getWidth()*result.getHeight()*n*(result.getBitDepth() == 24 ? 3 : 1) / 1e6;
+                    System.out.println(String.format("%s : %dx%dx%d, %.2f s, %.1f planes/s, %.1f MPixel/s -> %s",
+                        in, result.getWidth(), result.getHeight(), n, s, n / s, mpix / s, out));
+                    planes  += n;
+                    seconds += s;
+                    image.close();
+                    result.close();
+                } catch (OutOfMemoryError | RuntimeException e) {
+                    failed++;
+                    System.err.println(in + " : FAILED (" + e.getMessage() + ")");
+                }
+            }
+        } finally {
+            denoiser.close();
+        }
+
+        double total = (System.nanoTime() - start) * 1e-9;
+        System.out.println(String.format("%d images (%d failed), %d planes, %.2f s denoising (%.1f planes/s), %.2f s in total",
+            inputs.size(), failed, planes, seconds, (seconds > 0 ? planes / seconds : 0), total));
+        System.exit(failed > 0 ? 1 : 0);
+    }
+
+    // a file, or the images of a folder sorted by name (as Watch takes them : no hidden file, parameter file, nor
+    // result of a previous run when the results are written into the folder)
+    private static void addInputs(File f, File outDir, ArrayList<File> inputs)
+    {
+        if (!f.isDirectory()) {
+            inputs.add(f);
+            return;
+        }
+        File[] files = f.listFiles();
+        if (files == null) return;
+        Arrays.sort(files);
+        boolean results = (outDir == null || outDir.getAbsoluteFile().toPath().normalize().equals(f.getAbsoluteFile().toPath().normalize()));
+        for (File g : files)
+            if (g.isFile() && Watch.isInput(g.toPath(), results)) inputs.add(g);
+    }
+
+    // the name of a file without its extension
+    private static String baseName(File f)
+    {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name);
+    }
+
+    // prints msg and the command line, then exits
+    private static void usage(String msg)
+    {
+        System.err.println("Error : " + msg);
+        System.err.println("usage : java -cp VSNR_GPU_2D.jar vsnr2d.Batch -p params.txt [-o folder] image_or_folder ...");
+        System.exit(2);
+    }
+
+}
@@ -0,0 +1,277 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 2D CPU : COMPLEX 1D FFT           //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+
+// objectives : unnormalized complex FFT of any length
+// data are interleaved (re, im) floats, as cufftComplex
+// small factors use a mixed radix Stockham scheme, large primes Bluestein
+// vsnr2d.ComplexFFT and vsnr3d.ComplexFFT are the same file but for their package and title, a fix goes into both
+public final class ComplexFFT {
+
+    // prime factors above this size go through Bluestein
+    private static final int MAX_RADIX = 61;
+
+    private final int n;
+    private final int[] radix;
+
+    // n-th roots of unity exp(2i.pi.k/n)
+    private final float[] cos;
+    private final float[] sin;
+
+    // Bluestein (null when the length is smooth)
+    private final ComplexFFT conv;
+    private final float[] chirp;
+    private final float[] fchirp;
+
+    public ComplexFFT(int n)
+    {
+        if (n < 1) throw new IllegalArgumentException("FFT length must be positive : " + n);
+        this.n = n;
+
+        int[] factors = factorize(n);
+        if (factors[factors.length-1] > MAX_RADIX) {
+            int m = 1;
+            while (m < 2*n-1) m <<= 1;
+            this.radix  = null;
+            this.cos    = null;
+            this.sin    = null;
+            this.conv   = new ComplexFFT(m);
+            this.chirp  = new float[2*n];
+            this.fchirp = new float[2*m];
+            // chirp[k] = exp(-i.pi.k^2/n)
+            for (int k = 0 ; k < n ; k++) {
+                double a = Math.PI * (double)(((long)k*k) % (2L*n)) / n;
+                chirp[2*k]   = (float)Math.cos(a);
+                chirp[2*k+1] = (float)-Math.sin(a);
+            }
+            // fchirp = fft(conj(chirp)) wrapped around m
+            for (int k = 0 ; k < n ; k++) {
+                fchirp[2*k]   =  chirp[2*k];
+                fchirp[2*k+1] = -chirp[2*k+1];
+                if (k > 0) {
+                    fchirp[2*(m-k)]   =  chirp[2*k];
+                    fchirp[2*(m-k)+1] = -chirp[2*k+1];
+                }
+            }
+            conv.transform(fchirp, new float[conv.workSize()], false);
+        } else {
+            this.radix  = factors;
+            this.conv   = null;
+            this.chirp  = null;
+            this.fchirp = null;
+            this.cos    = new float[n];
+            this.sin    = new float[n];
+            for (int k = 0 ; k < n ; k++) {
+                double a = 2.0 * Math.PI * k / n;
+                cos[k] = (float)Math.cos(a);
+                sin[k] = (float)Math.sin(a);
+            }
+        }
+    }
+
+    // -
+    public int length()
+    {
+        // -
+        return n;
+    }
+
+    // number of floats needed by the work array of transform
+    public int workSize()
+    {
+        // -
+        return (conv == null ? 2*n + 2*MAX_RADIX : 2*conv.n + conv.workSize());
+    }
+
+    // in place transform of data[off .. off+2n), exp(-2i.pi.jk/n) when forward
+    public void transform(float[] data, int off, float[] work, boolean inverse)
+    {
+        // -
+        transform(data, off, work, 0, inverse);
+    }
+
+    // -
+    public void transform(float[] data, float[] work, boolean inverse)
+    {
+        // -
+        transform(data, 0, work, 0, inverse);
+    }
+
+    private void transform(float[] data, int off, float[] work, int woff, boolean inverse)
+    {
+        if (conv != null) {
+            bluestein(data, off, work, woff, inverse);
+        } else if (n > 1) {
+            stockham(data, off, work, woff, (inverse ? 1 : -1));
+        }
+    }
+
+    // radices 4 first, then 2, 3, 5, ...
+    private static int[] factorize(int n)
+    {
+        int[] tmp = new int[32];
+        int k = 0;
+        while (n % 4 == 0) { tmp[k++] = 4; n /= 4; }
+        while (n % 2 == 0) { tmp[k++] = 2; n /= 2; }
+        for (int p = 3 ; (long)p*p <= n ; p += 2) {
+            while (n % p == 0) { tmp[k++] = p; n /= p; }
+        }
+        if (n > 1) tmp[k++] = n;
+        if (k == 0) tmp[k++] = 1;
+        int[] res = new int[k];
+        System.arraycopy(tmp, 0, res, 0, k);
+        return res;
+    }
+
+    // Stockham autosort, one pass per radix, ping-ponging between data and work
+    private void stockham(float[] data, int off, float[] work, int woff, int sign)
+    {
+        float[] src = data, dst = work, swap;
+        int so = off, dof = woff, tmp;
+        float[] v = work;
+        int vo = woff + 2*n;
+        int ns = 1;
+
+        for (int s = 0 ; s < radix.length ; s++) {
+            int r  = radix[s];
+            int q  = n / r;
+            int ts = n / (ns * r);
+            for (int j = 0 ; j < q ; j++) {
+                int k  = j % ns;
+                int dj = dof + 2*((j - k) * r + k);
+                int e  = k * ts;
+                // load and twiddle
+                for (int t = 0 ; t < r ; t++) {
+                    int ii = so + 2*(j + t*q);
+                    float re = src[ii], im = src[ii+1];
+                    if (t > 0 && e > 0) {
+                        int w = t * e;
+                        float c = cos[w], sn = sign * sin[w];
+                        float tr = re*c - im*sn;
+                        im = re*sn + im*c;
+                        re = tr;
+                    }
+                    v[vo+2*t]   = re;
+                    v[vo+2*t+1] = im;
+                }
+                // butterfly and store
+                switch (r) {
+                    case 2 :
+                        butterfly2(v, vo, dst, dj, 2*ns);
+                        break;
+                    case 3 :
+                        butterfly3(v, vo, dst, dj, 2*ns, sign);
+                        break;
+                    case 4 :
+                        butterfly4(v, vo, dst, dj, 2*ns, sign);
+                        break;
+                    default :
+                        butterfly(v, vo, r, dst, dj, 2*ns, sign);
+                        break;
+                }
+            }
+            swap = src; src = dst; dst = swap;
+            tmp  = so;  so  = dof; dof = tmp;
+            ns *= r;
+        }
+
+        // an odd number of passes leaves the result in work, or at woff when work is data (Bluestein)
+        if (src != data || so != off) System.arraycopy(src, so, data, off, 2*n);
+    }
+
+    private static void butterfly2(float[] v, int o, float[] dst, int d, int s)
+    {
+        dst[d]     = v[o]   + v[o+2];
+        dst[d+1]   = v[o+1] + v[o+3];
+        dst[d+s]   = v[o]   - v[o+2];
+        dst[d+s+1] = v[o+1] - v[o+3];
+    }
+
+    private static void butterfly3(float[] v, int o, float[] dst, int d, int s, int sign)
+    {
+        final float h = 0.8660254037844386f; // sqrt(3)/2
+        float t1r = v[o+2] + v[o+4], t1i = v[o+3] + v[o+5];
+        float t2r = v[o] - 0.5f*t1r, t2i = v[o+1] - 0.5f*t1i;
+        float t3r = sign * h * (v[o+2] - v[o+4]), t3i = sign * h * (v[o+3] - v[o+5]);
+        dst[d]       = v[o]   + t1r;
+        dst[d+1]     = v[o+1] + t1i;
+        dst[d+s]     = t2r - t3i;
+        dst[d+s+1]   = t2i + t3r;
+        dst[d+2*s]   = t2r + t3i;
+        dst[d+2*s+1] = t2i - t3r;
+    }
+
+    private static void butterfly4(float[] v, int o, float[] dst, int d, int s, int sign)
+    {
+        float ar = v[o]   + v[o+4], ai = v[o+1] + v[o+5];
+        float br = v[o]   - v[o+4], bi = v[o+1] - v[o+5];
+        float cr = v[o+2] + v[o+6], ci = v[o+3] + v[o+7];
+        // (v1 - v3) multiplied by sign.i
+        float dr = -sign * (v[o+3] - v[o+7]), di = sign * (v[o+2] - v[o+6]);
+        dst[d]       = ar + cr;
+        dst[d+1]     = ai + ci;
+        dst[d+s]     = br + dr;
+        dst[d+s+1]   = bi + di;
+        dst[d+2*s]   = ar - cr;
+        dst[d+2*s+1] = ai - ci;
+        dst[d+3*s]   = br - dr;
+        dst[d+3*s+1] = bi - di;
+    }
+
+    // plain DFT for the other (small) prime radices
+    private void butterfly(float[] v, int o, int r, float[] dst, int d, int s, int sign)
+    {
+        int stride = n / r;
+        for (int u = 0 ; u < r ; u++) {
+            float re = 0, im = 0;
+            for (int t = 0 ; t < r ; t++) {
+                int w = ((t * u) % r) * stride;
+                float c = cos[w], sn = sign * sin[w];
+                re += v[o+2*t]*c - v[o+2*t+1]*sn;
+                im += v[o+2*t]*sn + v[o+2*t+1]*c;
+            }
+            dst[d+u*s]   = re;
+            dst[d+u*s+1] = im;
+        }
+    }
+
+    // X_k = c_k sum_j (x_j c_j) conj(c_{k-j}), the convolution being done at a power of 2
+    // the inverse is conj(fft(conj(x)))
+    private void bluestein(float[] data, int off, float[] work, int woff, boolean inverse)
+    {
+        int m  = conv.n;
+        int cw = woff + 2*m;
+        float sg = (inverse ? -1 : 1);
+
+        // a = conj?(x) . chirp, zero padded
+        for (int k = 0 ; k < n ; k++) {
+            float xr = data[off+2*k], xi = sg * data[off+2*k+1];
+            float cr = chirp[2*k], ci = chirp[2*k+1];
+            work[woff+2*k]   = xr*cr - xi*ci;
+            work[woff+2*k+1] = xr*ci + xi*cr;
+        }
+        java.util.Arrays.fill(work, woff+2*n, woff+2*m, 0.0f);
+
+        conv.transform(work, woff, work, cw, false);
+        for (int k = 0 ; k < m ; k++) {
+            float ar = work[woff+2*k], ai = work[woff+2*k+1];
+            float br = fchirp[2*k], bi = fchirp[2*k+1];
+            work[woff+2*k]   = ar*br - ai*bi;
+            work[woff+2*k+1] = ar*bi + ai*br;
+        }
+        conv.transform(work, woff, work, cw, true);
+
+        for (int k = 0 ; k < n ; k++) {
+            float ar = work[woff+2*k] / m, ai = work[woff+2*k+1] / m;
+            float cr = chirp[2*k], ci = chirp[2*k+1];
+            data[off+2*k]   = ar*cr - ai*ci;
+            data[off+2*k+1] = sg * (ar*ci + ai*cr);
+        }
+    }
+
+}
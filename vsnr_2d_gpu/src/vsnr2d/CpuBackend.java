@@ -0,0 +1,184 @@
+// ------------------------------------------------- //
+//                                                   //
+//              VSNR 2D : CPU BACKEND                //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.nio.FloatBuffer;
+
+
+// objectives : VSNR 2D with the Java engine (VsnrCpu2D), always available
+public class CpuBackend implements VsnrBackend {
+
+    @Override
+    public String getName()
+    {
+        // -
+        return "cpu";
+    }
+
+    @Override
+    public String getDescription()
+    {
+        // -
+        return "Java CPU engine (" + Parallel.threads() + " worker threads)";
+    }
+
+    @Override
+    public boolean isAvailable()
+    {
+        // -
+        return true;
+    }
+
+    @Override
+    public int getPriority()
+    {
+        // -
+        return 10;
+    }
+
+    @Override
+    public int getMaxBlocks()
+    {
+        // -
+        return 256;
+    }
+
+    @Override
+    public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int n0, int n1, int nit, float beta, FloatBuffer u, int nBlock, float max)
+    {
+        try (VsnrSession s = open(n0, n1, nBlock)) {
+            s.denoise(psis, length, u0, nit, beta, u, max);
+        }
+    }
+
+    @Override
+    public long getSessionBytes(int n0, int n1)
+    {
+        // -
+        return VsnrCpu2D.Session.bytes(n0, n1);
+    }
+
+    // half of the free heap
+    @Override
+    public long getFreeMemory(int device)
+    {
+        Runtime rt = Runtime.getRuntime();
+        return (rt.maxMemory() - (rt.totalMemory() - rt.freeMemory())) / 2;
+    }
+
+    // one plane per worker thread, as long as half of the free heap can hold their work arrays
+    @Override
+    public int getMaxBatch(int n0, int n1)
+    {
+        Runtime rt = Runtime.getRuntime();
+        long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        long fit  = free / 2 / VsnrCpu2D.Session.bytes(n0, n1);
+        return (int)Math.max(1, Math.min(fit, Parallel.threads()));
+    }
+
+    @Override
+    public VsnrSession open(int n0, int n1, int nBlock)
+    {
+        // -
+        return open(n0, n1, 1, nBlock);
+    }
+
+    // one engine session per plane of the batch, the planes of a batch run in parallel
+    @Override
+    public VsnrSession open(int n0, int n1, int batch, int nBlock)
+    {
+        Slot[] slots = new Slot[Math.max(batch, 1)];
+        for (int p = 0 ; p < slots.length ; p++)
+            slots[p] = new Slot(n0, n1);
+        return new VsnrSession() {
+            @Override
+            public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int nit, float beta, FloatBuffer u, float max)
+            {
+                // -
+                slots[0].denoise(array(psis, length), length, u0, nit, beta, VsnrSession.Options.DEFAULT, u, max);
+            }
+
+            @Override
+            public void denoiseBatch(FloatBuffer psis, int length, FloatBuffer u0, int count, int nit, float beta, FloatBuffer u, float[] max)
+            {
+                // -
+                denoiseBatch(psis, length, u0, count, nit, beta, VsnrSession.Options.DEFAULT, u, max, new int[count]);
+            }
+
+            // every plane stops on its own residuals and adapts its own beta, plane p keeps its state in slot p : a
+            // warm start needs the planes of a call in the slots, the planes of a larger call start from zero
+            @Override
+            public void denoiseBatch(FloatBuffer psis, int length, FloatBuffer u0, int count, int nit, float beta, VsnrSession.Options opts, FloatBuffer u, float[] max, int[] iters)
+            {
+                VsnrSession.Options from = opts.warm(opts.warm && count <= slots.length);
+                float[] filters = array(psis, length);
+                int n = n0*n1;
+                for (int done = 0 ; done < count ; done += slots.length) {
+                    int first = done;
+                    Parallel.forRange(Math.min(slots.length, count - done), 1, (start, end) -> {
+                        for (int p = start ; p < end ; p++)
+                            iters[first+p] = slots[p].denoise(filters, length, VsnrSession.plane(u0, first+p, n), nit, beta, from, VsnrSession.plane(u, first+p, n), max[first+p]);
+                    });
+                }
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    // an engine session and its staging arrays, used when a buffer has no usable array (direct or sliced)
+    private static class Slot {
+
+        private final VsnrCpu2D.Session session;
+        private final int n;
+        private float[] in, out;
+
+        Slot(int n0, int n1)
+        {
+            this.session = new VsnrCpu2D.Session(n0, n1);
+            this.n       = n0*n1;
+        }
+
+        // returns the number of iterations run
+        int denoise(float[] psis, int length, FloatBuffer u0, int nit, float beta, VsnrSession.Options opts, FloatBuffer u, float max)
+        {
+            float[] src = backing(u0);
+            float[] dst = backing(u);
+            if (src == null) {
+                if (in == null) in = new float[n];
+                u0.duplicate().get(in, 0, n);
+                src = in;
+            }
+            if (dst == null) {
+                if (out == null) out = new float[n];
+                dst = out;
+            }
+            int iters = session.denoise(psis, length, src, nit, beta, opts, dst, max);
+            if (dst == out) u.duplicate().put(out, 0, n);
+            return iters;
+        }
+
+    }
+
+    // the backing array when it can be used as is, a copy otherwise
+    private static float[] array(FloatBuffer b, int n)
+    {
+        float[] a = backing(b);
+        if (a != null) return a;
+        a = new float[n];
+        b.duplicate().get(a, 0, n);
+        return a;
+    }
+
+    private static float[] backing(FloatBuffer b)
+    {
+        // -
+        return (b.hasArray() && b.arrayOffset() == 0 && b.position() == 0 ? b.array() : null);
+    }
+
+}
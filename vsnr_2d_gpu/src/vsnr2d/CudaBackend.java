@@ -0,0 +1,323 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 2D : CUDA LIBRARY BACKEND         //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.io.File;
+import java.net.URL;
+import java.lang.reflect.Method;
+import java.nio.FloatBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+import ij.IJ;
+
+
+// objectives : VSNR 2D on the GPU through libvsnr2d.so / libvsnr2d.dll (vsnr2d.cu)
+// the library is expected next to the plugin jar and loaded on first use
+public class CudaBackend implements VsnrBackend {
+
+    private final String path;
+
+    private VsnrDllLoader dll = null;
+    private boolean loaded = false;
+    private String  error  = null;
+    private int     devices = 0;
+    private boolean multiDevice = false;
+
+    // the functions of VsnrDllLoader the library exports, older builds miss the later ones
+    private final Set<String> symbols = new HashSet<>();
+
+    public CudaBackend()
+    {
+        // -
+        this(defaultPath());
+    }
+
+    public CudaBackend(String path)
+    {
+        // -
+        this.path = path;
+    }
+
+    // libvsnr2d next to the jar containing this class
+    public static String defaultPath()
+    {
+        URL location = CudaBackend.class.getProtectionDomain().getCodeSource().getLocation();
+        String dir   = (new File(location.getFile())).getParentFile().toString();
+        if (IJ.isWindows()) return dir + "\\libvsnr2d.dll";
+        return dir + "/libvsnr2d.so";
+    }
+
+    @Override
+    public String getName()
+    {
+        // -
+        return "cuda";
+    }
+
+    @Override
+    public String getDescription()
+    {
+        if (!isAvailable()) return "CUDA library unavailable (" + error + ")";
+        return "CUDA library " + path + " (" + devices + " device(s), " + dll.getMaxBlocks() + " threads per block)";
+    }
+
+    @Override
+    public synchronized boolean isAvailable()
+    {
+        if (!loaded) {
+            loaded = true;
+            load();
+        }
+        return (dll != null);
+    }
+
+    @Override
+    public int getPriority()
+    {
+        // -
+        return 100;
+    }
+
+    @Override
+    public int getMaxBlocks()
+    {
+        // -
+        return (isAvailable() ? dll.getMaxBlocks() : 256);
+    }
+
+    @Override
+    public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int n0, int n1, int nit, float beta, FloatBuffer u, int nBlock, float max)
+    {
+        if (!isAvailable()) throw new IllegalStateException(getDescription());
+        dll.VSNR_2D_FIJI_GPU(psis, length, u0, n0, n1, nit, beta, u, nBlock, max);
+    }
+
+    // JNA hands direct buffers to the library as they are
+    @Override
+    public boolean usesDirectBuffers()
+    {
+        // -
+        return true;
+    }
+
+    @Override
+    public int getDeviceCount()
+    {
+        // -
+        return (isAvailable() && multiDevice ? devices : 1);
+    }
+
+    @Override
+    public int getMaxBatch(int n0, int n1)
+    {
+        // -
+        return getMaxBatch(0, n0, n1);
+    }
+
+    @Override
+    public long getSessionBytes(int n0, int n1)
+    {
+        if (!isAvailable() || !has("VSNR_2D_BYTES")) return 0;
+        return dll.VSNR_2D_BYTES(n0, n1, 1);
+    }
+
+    // 90% of the free memory of the device
+    @Override
+    public long getFreeMemory(int device)
+    {
+        if (!isAvailable() || !has("getFreeMemory")) return Long.MAX_VALUE;
+        select(device);
+        return dll.getFreeMemory() / 10 * 9;
+    }
+
+    @Override
+    public int getMaxBatch(int device, int n0, int n1)
+    {
+        if (!isAvailable() || !has("VSNR_2D_MAX_BATCH")) return 1;
+        select(device);
+        return Math.max(1, dll.VSNR_2D_MAX_BATCH(n0, n1));
+    }
+
+    @Override
+    public VsnrSession open(int n0, int n1, int nBlock)
+    {
+        // -
+        return open(0, n0, n1, 1, nBlock);
+    }
+
+    @Override
+    public VsnrSession open(int n0, int n1, int batch, int nBlock)
+    {
+        // -
+        return open(0, n0, n1, batch, nBlock);
+    }
+
+    @Override
+    public VsnrSession open(int device, int n0, int n1, int batch, int nBlock)
+    {
+        if (!isAvailable()) throw new IllegalStateException(getDescription());
+        // libraries built before the batch (or the session) API
+        if (batch > 1 && !has("VSNR_2D_OPEN_BATCH")) return open(device, n0, n1, 1, nBlock);
+        if (batch <= 1 && !has("VSNR_2D_OPEN")) return VsnrBackend.super.open(n0, n1, nBlock);
+        select(device);
+        Pointer p = (batch <= 1 ? dll.VSNR_2D_OPEN(n0, n1, nBlock) : dll.VSNR_2D_OPEN_BATCH(n0, n1, batch, nBlock));
+        if (p == null) throw new OutOfMemoryError("Can not allocate " + Math.max(batch, 1) + " plane(s) of " + n0 + " x " + n1 + " on device " + device);
+        return new Session(p, Math.max(batch, 1));
+    }
+
+    // makes device the current one of the calling thread for the next library call
+    private void select(int device)
+    {
+        if (multiDevice) {
+            if (dll.setDevice(device) == 0) throw new IllegalStateException("Can not use CUDA device " + device);
+        } else if (device != 0) {
+            throw new IllegalStateException("The CUDA library only drives device 0");
+        }
+    }
+
+    // a VSNR_2D_OPEN / VSNR_2D_OPEN_BATCH handle
+    private class Session implements VsnrSession {
+
+        private Pointer handle;
+        private final int batch;
+
+        Session(Pointer handle, int batch)
+        {
+            this.handle = handle;
+            this.batch  = batch;
+        }
+
+        @Override
+        public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int nit, float beta, FloatBuffer u, float max)
+        {
+            if (handle == null) throw new IllegalStateException("Session closed");
+            dll.VSNR_2D_DENOISE(handle, psis, length, u0, nit, beta, u, max);
+        }
+
+        @Override
+        public void denoiseBatch(FloatBuffer psis, int length, FloatBuffer u0, int count, int nit, float beta, FloatBuffer u, float[] max)
+        {
+            if (handle == null) throw new IllegalStateException("Session closed");
+            if (batch == 1) VsnrSession.super.denoiseBatch(psis, length, u0, count, nit, beta, u, max);
+            else dll.VSNR_2D_DENOISE_BATCH(handle, psis, length, u0, count, nit, beta, 0, 1, 0, 0, u, max, null);
+        }
+
+        // OutOfMemoryError when the device has no room left for the filters (iters at -1)
+        @Override
+        public void denoiseBatch(FloatBuffer psis, int length, FloatBuffer u0, int count, int nit, float beta, Options opts, FloatBuffer u, float[] max, int[] iters)
+        {
+            if (handle == null) throw new IllegalStateException("Session closed");
+            dll.VSNR_2D_DENOISE_BATCH(handle, psis, length, u0, count, nit, beta, opts.tol, opts.alpha, (opts.adaptive ? 1 : 0), (opts.warm ? 1 : 0), u, max, iters);
+            if (count > 0 && iters[count-1] < 0) throw new OutOfMemoryError("Can not allocate the filters on the device");
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            if (handle != null) dll.VSNR_2D_CLOSE(handle);
+            handle = null;
+        }
+
+    }
+
+    // loads the library and checks that a device answers
+    private void load()
+    {
+        if (!IJ.isLinux() && !IJ.isWindows()) {
+            error = "unsupported OS";
+            return;
+        }
+        File f = new File(path);
+        if (!f.exists() || f.isDirectory()) {
+            error = "can not find " + path;
+            return;
+        }
+        try {
+            VsnrDllLoader lib = (VsnrDllLoader)Native.loadLibrary(path, VsnrDllLoader.class);
+            probe(NativeLibrary.getInstance(path));
+            // libraries built before getDeviceCount
+            devices = (has("getDeviceCount") ? lib.getDeviceCount() : (lib.getMaxBlocks() > 0 ? 1 : 0));
+            // libraries built before setDevice drive the default device only
+            multiDevice = (has("setDevice") && lib.setDevice(0) != 0);
+            if (devices > 0) dll = lib;
+            else error = "no CUDA device";
+        } catch (Throwable e) {
+            error = "can not load " + path + " : " + e.getMessage();
+        }
+    }
+
+    // looks the functions of VsnrDllLoader up once, instead of catching UnsatisfiedLinkError on every call
+    private void probe(NativeLibrary lib)
+    {
+        for (Method m : VsnrDllLoader.class.getMethods()) {
+            try {
+                lib.getFunction(m.getName());
+                symbols.add(m.getName());
+            } catch (UnsatisfiedLinkError e) {
+                // built before this function
+            }
+        }
+    }
+
+    // true when the library exports the function
+    private boolean has(String name)
+    {
+        // -
+        return symbols.contains(name);
+    }
+
+    // dll interface
+    private interface VsnrDllLoader extends Library {
+
+        // CUDA denoise function
+        public void VSNR_2D_FIJI_GPU(FloatBuffer psis, int length, FloatBuffer u0, int n0, int n1, int nit, float beta, FloatBuffer u, int nBlock, float max);
+
+        // return dimBlocks max
+        public int getMaxBlocks();
+
+        // return dimGrid max
+        public int getMaxGrid();
+
+        // return the number of CUDA devices
+        public int getDeviceCount();
+
+        // makes device the current one of the calling thread, 0 on failure
+        public int setDevice(int device);
+
+        // plans and work buffers for n0 x n1 planes, null when the device is out of memory
+        public Pointer VSNR_2D_OPEN(int n0, int n1, int nBlock);
+
+        // denoises one plane with an open session
+        public void VSNR_2D_DENOISE(Pointer session, FloatBuffer psis, int length, FloatBuffer u0, int nit, float beta, FloatBuffer u, float max);
+
+        // frees a session
+        public void VSNR_2D_CLOSE(Pointer session);
+
+        // free memory of the current device
+        public long getFreeMemory();
+
+        // device memory of a session of batch planes of n0 x n1
+        public long VSNR_2D_BYTES(int n0, int n1, int batch);
+
+        // number of n0 x n1 planes that fit together in the free device memory
+        public int VSNR_2D_MAX_BATCH(int n0, int n1);
+
+        // plans and work buffers for batch planes of n0 x n1, null when the device is out of memory
+        public Pointer VSNR_2D_OPEN_BATCH(int n0, int n1, int batch, int nBlock);
+
+        // denoises count planes stored one after the other with an open session, stopping once the residuals are
+        // below tol (0 : after nit iterations), with the over-relaxation alpha, adaptive beta (0 / 1), starting from
+        // the state of the previous call when warm (0 / 1), iters (or null) gets the iterations run for each plane
+        public void VSNR_2D_DENOISE_BATCH(Pointer session, FloatBuffer psis, int length, FloatBuffer u0, int count, int nit, float beta, float tol, float alpha, int adaptive, int warm, FloatBuffer u, float[] max, int[] iters);
+
+    }
+
+}
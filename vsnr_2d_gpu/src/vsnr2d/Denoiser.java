@@ -0,0 +1,507 @@
+// ------------------------------------------------- //
+//                                                   //
+//          VSNR 2D : IMAGE DENOISING ENGINE         //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+
+// objectives : denoise every plane (z, c, t) of images with one set of parameters, without any dialog
+// (used by the plugin and by the command line)
+// the workers, their sessions (plans, work buffers, filters) and the staging buffers are kept from one
+// image to the next, a session is only reopened when the plane size changes : close frees them
+// planes that do not fit the memory of the workers or the memory limit are denoised as overlapping tiles (see Tiling)
+// failures are thrown (IllegalStateException when every backend failed, OutOfMemoryError for the staging buffers)
+public final class Denoiser {
+
+    private final Parameters params;
+    private final VsnrBackend backend;
+    private final BufferPool pool;
+    private final FloatBuffer buffPsis;
+    private final int length;
+    private final int nBlock;
+
+    private ArrayList<Worker> workers = null;
+
+    // tiles of the planes of the image being denoised (a single one when they fit)
+    private Tiling tiling;
+
+    // sizes of the planes (or tiles) of the image being denoised, solved at the padded ones
+    private Padding padding;
+
+    // size of the image being denoised, for the status line
+    private int slice, chan, frame;
+
+    // iterations run for each plane of the last image, in stack order
+    private int[] iterations = new int[0];
+
+    // timers and counters of the image being denoised
+    private Metrics.Run run;
+
+    public Denoiser(Parameters params)
+    {
+        this.params   = params;
+        this.backend  = select(params.backendName);
+        this.pool     = new BufferPool(backend.usesDirectBuffers());
+        this.buffPsis = params.getBuffPsi();
+        this.length   = params.filters.size();
+        this.nBlock   = (params.nBlock > 0 ? params.nBlock : backend.getMaxBlocks());
+    }
+
+    // the backend asked for (or the fastest available one)
+    public VsnrBackend getBackend()
+    {
+        // -
+        return backend;
+    }
+
+    // a denoised copy of image, named vsnr_<title>
+    public ImagePlus denoise(ImagePlus image)
+    {
+        if (params.filters.isEmpty()) throw new IllegalStateException("No filters set");
+
+        int[] data = image.getDimensions();
+        chan  = data[2];
+        slice = data[3];
+        frame = data[4];
+
+        IJ.showProgress(0, slice*chan*frame-1);
+        IJ.showStatus("Starting denoising ...");
+
+        run = Metrics.begin(image.getTitle());
+        long allocated = pool.getAllocatedBytes();
+
+        ImagePlus result = image.duplicate();
+        result.setTitle("vsnr_" + image.getTitle());
+
+        // one worker per device of the backend, plus the CPU workers asked for
+        if (workers == null) {
+            workers = new ArrayList<Worker>();
+            for (int d = 0 ; d < backend.getDeviceCount() ; d++)
+                workers.add(new Worker(backend, d));
+            for (int i = 0 ; i < params.cpuWorkers ; i++)
+                workers.add(new Worker(Backends.select("cpu"), 0));
+            IJ.log("Workers : " + workers);
+        }
+
+        // the groups between read and write hold at most limit bytes of staging buffers (padded planes)
+        long limit = (params.memoryLimit > 0 ? params.memoryLimit*1024L*1024L : Runtime.getRuntime().maxMemory() / 2);
+        IJ.log("Memory limit : " + (limit >> 20) + " MB");
+
+        // planes too large for a worker or the limit (or than tileSize) are cut into tiles, all of the same size
+        int dim  = (image.getBitDepth() == 24 ? 3 : 1);
+        int halo = getHalo();
+        tiling  = Tiling.plan(image.getHeight(), image.getWidth(), params.tileSize, halo, (h, w) -> fits(dim, h, w, limit));
+        padding = new Padding(tiling.tileHeight, tiling.tileWidth, params.padding);
+        if (tiling.count() > 1) IJ.log("Tiles : " + tiling + " (" + halo + " overlapping pixels at least)");
+        IJ.log("Padding : " + padding);
+
+        // the planes (tiles) are denoised in groups that fit the memory of every device (one plane per RGB channel),
+        // several workers get a few groups each so that the faster ones can take more
+        // a warm start needs the groups of a series in the order of the frames on the same session : a single worker
+        boolean warm = (params.warmStart && frame > 1);
+        List<Worker> active = (warm ? workers.subList(0, 1) : workers);
+        if (warm) {
+            IJ.log("Warm start across frames : " + active.get(0) + " only");
+            if (params.tolerance <= 0) IJ.log("Warm start without tolerance : always " + params.nit + " iterations");
+        }
+        int tiles = tiling.count();
+        int total = slice*chan*frame*tiles;
+        int group = total;
+        for (int d = 0 ; d < backend.getDeviceCount() ; d++)
+            group = Math.min(group, backend.getMaxBatch(d, padding.paddedHeight, padding.paddedWidth) / dim);
+        if (active.size() > 1) group = Math.min(group, total / (4*active.size()));
+        group = Math.max(group, 1);
+        IJ.log("Planes per batch : " + group);
+
+        // the stack and the table are fetched once, the stages run on their own threads
+        ImageStack stack  = result.getStack();
+        float[]    cTable = Image2D.getCTable(result);
+        iterations = new int[stack.getSize()];
+
+        ArrayList<Group> groups = (warm ? series(result, dim, group) : new ArrayList<Group>());
+        Group current = null;
+        for (int z = 0 ; z < slice && !warm ; z++) {
+            for (int c = 0 ; c < chan ; c++) {
+                for (int t = 0 ; t < frame ; t++) {
+                    Tiling.Blender blender = (tiles > 1 ? tiling.new Blender(dim) : null);
+                    for (int k = 0 ; k < tiles ; k++) {
+                        if (current == null || current.planes.size() == group) {
+                            current = new Group();
+                            groups.add(current);
+                        }
+                        current.planes.add(new Image2D(result, z, c, t, blender, k));
+                    }
+                }
+            }
+        }
+
+        // the next groups are read and the previous ones written back while the workers denoise
+        int n = padding.paddedSize();
+        int[] done = new int[1];
+        for (Worker w : workers) w.setup(group*dim);
+        try {
+            new Pipeline<Group>(params.depth, limit, g -> 8L*g.planes.size()*dim*n).run(groups,
+                g -> readGroup(g, stack, cTable),
+                active,
+                g -> {
+                    writeGroup(g, stack, cTable);
+                    done[0] += g.planes.size();
+                    IJ.showProgress(done[0], total);
+                });
+        } finally {
+            for (Group g : groups) g.release();
+        }
+        if (params.tolerance > 0) IJ.log("Iterations : " + summary(iterations));
+
+        run.allocated(pool.getAllocatedBytes() - allocated);
+        String line = run.end(slice*chan*frame, (long)slice*chan*frame*image.getWidth()*image.getHeight());
+        if (params.metricsLine) IJ.log("Metrics : " + line);
+
+        return result;
+    }
+
+    // iterations run for each plane (stack index - 1) of the last denoised image
+    public int[] getIterations()
+    {
+        // -
+        return iterations.clone();
+    }
+
+    // min / mean / max of the iterations, then the iterations of every plane
+    private static String summary(int[] iters)
+    {
+        if (iters.length == 0) return "none";
+        int min = Integer.MAX_VALUE, max = 0;
+        long sum = 0;
+        for (int k : iters) {
+            min = Math.min(min, k);
+            max = Math.max(max, k);
+            sum += k;
+        }
+        StringBuilder res = new StringBuilder(String.format("%d to %d, %.1f per plane on average (", min, max, (double)sum / iters.length));
+        for (int i = 0 ; i < iters.length ; i++)
+            res.append(i > 0 ? " " : "").append(iters[i]);
+        return res.append(")").toString();
+    }
+
+    // closes the sessions and drops the staging buffers
+    public void close()
+    {
+        if (workers != null) {
+            for (Worker w : workers) w.close();
+            workers = null;
+        }
+        IJ.log("Staging " + pool.getStats());
+        pool.clear();
+    }
+
+    // the groups of a warm start : the series (z, c, tile) cut in chunks of group, every chunk frame after frame, so that
+    // plane p of a group is plane p of the previous group at the previous frame (its ADMM state is still in the session)
+    private ArrayList<Group> series(ImagePlus result, int dim, int group)
+    {
+        int tiles = tiling.count();
+        int count = slice*chan*tiles;
+        Tiling.Blender[] blenders = new Tiling.Blender[slice*chan*frame];
+        for (int i = 0 ; i < blenders.length && tiles > 1 ; i++) blenders[i] = tiling.new Blender(dim);
+
+        ArrayList<Group> res = new ArrayList<Group>();
+        for (int from = 0 ; from < count ; from += group) {
+            for (int t = 0 ; t < frame ; t++) {
+                Group g = new Group();
+                g.warm = (t > 0);
+                for (int s = from ; s < Math.min(from + group, count) ; s++) {
+                    int k = s % tiles, c = (s / tiles) % chan, z = s / (tiles*chan);
+                    g.planes.add(new Image2D(result, z, c, t, blenders[(z*chan + c)*frame + t], k));
+                }
+                res.add(g);
+            }
+        }
+        return res;
+    }
+
+    // true when planes (or tiles) of height x width fit the sessions of every worker and the limit at their padded size
+    private boolean fits(int dim, int height, int width, long limit)
+    {
+        Padding p = new Padding(height, width, params.padding);
+        long n = (long)dim*p.paddedHeight*p.paddedWidth;
+        if (n > Integer.MAX_VALUE || 8L*n > limit) return false;
+        for (Worker w : workers) {
+            int share = 0;
+            for (Worker o : workers)
+                if (o.backend == w.backend && o.device == w.device) share++;
+            long free = w.backend.getFreeMemory(w.device);
+            if (free != Long.MAX_VALUE && share*w.backend.getSessionBytes(p.paddedHeight, p.paddedWidth) > free) return false;
+        }
+        return true;
+    }
+
+    // pixels a tile extends beyond its inner part : tileOverlap, or three times the largest sigma of the Gabor filters (8 at least)
+    private int getHalo()
+    {
+        if (params.tileOverlap >= 0) return params.tileOverlap;
+        float sigma = 0;
+        for (int k = 0 ; k < length ; k += (params.filters.get(k) == 0 ? 2 : 5))
+            if (params.filters.get(k) == 1) sigma = Math.max(sigma, Math.max(params.filters.get(k+2), params.filters.get(k+3)));
+        return Math.max(8, (int)Math.ceil(3*sigma));
+    }
+
+    // internal use, pick the backend asked for (or the fastest available one)
+    private static VsnrBackend select(String backendName)
+    {
+        VsnrBackend b = Backends.select(backendName);
+        if (!b.getName().equalsIgnoreCase(backendName) && !backendName.equalsIgnoreCase(Backends.AUTO))
+            IJ.log("Backend " + backendName + " is not available, falling back to " + b.getName());
+        IJ.log("Backend : " + b.getDescription());
+        return b;
+    }
+
+    // reads the planes of a group into one staging buffer, padded planes when padding is needed
+    private void readGroup(Group g, ImageStack stack, float[] cTable)
+    {
+        long start = System.nanoTime();
+        Image2D first = g.planes.get(0);
+        int dim = (first.bColor ? 3 : 1);
+        int n   = padding.size();
+        g.count = g.planes.size()*dim;
+        g.u0    = pool.acquire((long)g.count*padding.paddedSize());
+        g.u     = pool.acquire((long)g.count*padding.paddedSize());
+        g.max   = new float[g.count];
+        g.iters = new int[g.count];
+        FloatBuffer raw = (padding.isNeeded() ? pool.acquire((long)g.count*n) : g.u0);
+        try {
+            for (int i = 0 ; i < g.planes.size() ; i++)
+                g.planes.get(i).read(stack, cTable, raw, i*dim*n, g.max, i*dim, params.bLog);
+            if (padding.isNeeded()) padding.pad(raw, 0, g.u0, 0, g.count);
+        } finally {
+            if (raw != g.u0) pool.release(raw);
+        }
+        run.converted(4L*g.count*n);
+        run.add(Metrics.Phase.READ, start);
+    }
+
+    // writes the denoised planes of a group back (cropped) and keeps their iterations, then gives its buffers back to the pool
+    private void writeGroup(Group g, ImageStack stack, float[] cTable)
+    {
+        long start = System.nanoTime();
+        Image2D first = g.planes.get(0);
+        int dim = (first.bColor ? 3 : 1);
+        int n   = padding.size();
+        FloatBuffer raw = (padding.isNeeded() ? pool.acquire((long)g.count*n) : g.u);
+        try {
+            if (padding.isNeeded()) padding.crop(g.u, 0, raw, 0, g.count);
+            for (int i = 0 ; i < g.planes.size() ; i++) {
+                Image2D p = g.planes.get(i);
+                p.agregate(stack, cTable, raw, i*dim*n, params.bLog);
+                for (int k = 0 ; k < dim ; k++)
+                    iterations[p.index-1] = Math.max(iterations[p.index-1], g.iters[i*dim+k]);
+            }
+        } finally {
+            if (raw != g.u) pool.release(raw);
+        }
+        g.release();
+        run.converted(4L*g.count*n);
+        run.add(Metrics.Phase.WRITE, start);
+    }
+
+    // one compute worker : a backend on one of its devices, with its session
+    private class Worker implements Pipeline.Stage<Group> {
+
+        private VsnrBackend backend;
+        private int         device;
+        private VsnrSession session = null;
+
+        private int         batch;
+        private int         sessionWidth, sessionHeight, sessionBatch;
+
+        // planes of the largest session that did not run out of memory (halved by each failure) and of the last one opened
+        private int         limit = Integer.MAX_VALUE, size;
+
+        public Worker(VsnrBackend backend, int device)
+        {
+            this.backend = backend;
+            this.device  = device;
+        }
+
+        // groups of batch planes (at most)
+        public void setup(int batch)
+        {
+            // -
+            this.batch = batch;
+        }
+
+        // runs the backend, falls back to the next available one if it fails
+        // the session (plans and work buffers) is opened on the first group and reused while the padded size does not change
+        // a session out of memory is opened again for half as many planes (the group goes through it in several
+        // batches), the next backend is only taken when a single plane does not fit or on any other failure
+        @Override
+        public void run(Group g)
+        {
+            Image2D first = g.planes.get(0);
+            IJ.showStatus("Denoising slice "+(first.slice+1)+"/"+slice+" - chan "+(first.chan+1)+"/"+chan+" - frame "+(first.frame+1)+"/"+frame);
+            while (true) {
+                try {
+                    int width = padding.paddedWidth, height = padding.paddedHeight;
+                    if (session != null && (sessionWidth != width || sessionHeight != height || sessionBatch != batch)) {
+                        close();
+                        limit = Integer.MAX_VALUE;
+                    }
+                    if (session == null) {
+                        long start = System.nanoTime();
+                        size     = Math.min(Math.min(batch, backend.getMaxBatch(device, height, width)), limit);
+                        session  = backend.open(device, height, width, size, nBlock);
+                        sessionWidth  = width;
+                        sessionHeight = height;
+                        sessionBatch  = batch;
+                        run.allocated(size*backend.getSessionBytes(height, width));
+                        run.add(Metrics.Phase.OPEN, start);
+                    }
+                    long start = System.nanoTime();
+                    session.denoiseBatch(buffPsis, length, g.u0, g.count, params.nit, params.beta, params.options().warm(g.warm), g.u, g.max, g.iters);
+                    run.add(Metrics.Phase.SOLVE, start);
+                    long iters = 0;
+                    for (int i = 0 ; i < g.count ; i++) iters += g.iters[i];
+                    run.iterations(iters);
+                    return;
+                } catch (OutOfMemoryError e) {
+                    close();
+                    if (size <= 1) {
+                        fallback(e);
+                    } else {
+                        limit = size / 2;
+                        IJ.log("The " + this + " backend is out of memory for " + size + " planes (" + e.getMessage() + "), trying " + limit);
+                    }
+                } catch (Exception e) {
+                    close();
+                    fallback(e);
+                }
+            }
+        }
+
+        // the next available backend after a failure of this one, thrown when there is none
+        private void fallback(Throwable e)
+        {
+            VsnrBackend next = Backends.fallback(backend);
+            if (next == null) {
+                e.printStackTrace();
+                throw new IllegalStateException("The " + this + " backend failed : " + e, e);
+            }
+            IJ.log("The " + this + " backend failed (" + e + "), switching to " + next.getName());
+            backend = next;
+            device  = 0;
+            limit   = Integer.MAX_VALUE;
+        }
+
+        // -
+        public void close()
+        {
+            if (session != null) {
+                try {
+                    session.close();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+                session = null;
+            }
+        }
+
+        // backend name, with the device when it has several
+        @Override
+        public String toString()
+        {
+            // -
+            return backend.getName() + (backend.getDeviceCount() > 1 ? ":" + device : "");
+        }
+
+    }
+
+    // planes denoised together, with their staging buffers while they go through the pipeline
+    private class Group {
+
+        private ArrayList<Image2D> planes = new ArrayList<Image2D>();
+
+        private FloatBuffer u0;
+        private FloatBuffer u;
+        private float[]     max;
+        private int[]       iters;
+        private int         count;
+        private boolean     warm = false; // starts from the state the previous group left in the session (see series)
+
+        // gives the buffers back to the pool (nothing if already done)
+        public void release()
+        {
+            pool.release(u0);
+            pool.release(u);
+            u0 = null;
+            u  = null;
+        }
+
+    }
+
+    // wraping image manipulation, one plane (z, c, t) of an image, or one of its tiles when it has a blender
+    // the pixels go to / come from a float buffer, one block of width*height (of the tile) per RGB channel
+    private static class Image2D {
+
+        private int width;
+        private int height;
+        private int chan;
+        private int frame;
+        private int slice;
+        private int index;
+
+        private Boolean bColor;
+
+        private Tiling.Blender blender;
+        private int tile;
+
+        public Image2D(ImagePlus img, int slice, int channel, int frame, Tiling.Blender blender, int tile)
+        {
+            this.blender = blender;
+            this.tile    = tile;
+            this.width  = img.getWidth();
+            this.height = img.getHeight();
+            this.chan   = channel;
+            this.frame  = frame;
+            this.slice  = slice;
+            this.index  = img.getStackIndex(channel+1, slice+1, frame+1);
+            this.bColor = (img.getBitDepth() == 24);
+        }
+
+        // u[offset..] = the plane (tile), max[k..] = the maximum of each channel (of the whole plane)
+        public void read(ImageStack stack, float[] cTable, FloatBuffer u, int offset, float[] max, int k, Boolean bLog)
+        {
+            if (blender != null) {
+                blender.read(tile, stack.getPixels(index), cTable, bLog, u, offset, max, k);
+                return;
+            }
+            Arrays.fill(max, k, k + (bColor ? 3 : 1), Float.NEGATIVE_INFINITY);
+            PixelIO.read(new Object[] {stack.getPixels(index)}, width, height, cTable, bLog, u, offset, max, k);
+        }
+
+        // the plane = u[offset..] (the tile blended into it)
+        public void agregate(ImageStack stack, float[] cTable, FloatBuffer u, int offset, Boolean bLog)
+        {
+            if (blender != null) blender.write(tile, stack.getPixels(index), cTable, bLog, u, offset);
+            else PixelIO.write(u, offset, 0, 1, new Object[] {stack.getPixels(index)}, width, height, cTable, bLog);
+        }
+
+        // the table getProcessor would give to the planes of img
+        public static float[] getCTable(ImagePlus img)
+        {
+            Calibration cal = img.getCalibration();
+            return (cal.calibrated() ? cal.getCTable() : null);
+        }
+
+    }
+
+}
@@ -0,0 +1,196 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 2D CPU : FILTER BANK CACHE        //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// objectives : the part of the filters of VSNR 2D that does not depend on the image
+// alpha_i = sqrt(n).n^2.max_i / (||u0||.eta_i) so fsum = ||u0||.fsum(1) and fftn(psi) = sqrt(||u0||).fftn(psi(1))
+// the banks of the last few (filter list, n0, n1) are kept process-wide, a stack pays once for its filters
+final class FilterBank {
+
+    // number of banks kept, one per (filter list, plane size) in use
+    private static final int CAPACITY = 4;
+
+    // the bank of every key is built once by the first thread asking for it, outside of any lock, the others
+    // asking for the same key wait for it, the ones asking for other keys do not
+    private static final ConcurrentHashMap<Key, Entry> cache = new ConcurrentHashMap<Key, Entry>();
+
+    // stamps the last use of the entries, the least recently used one goes first
+    private static final AtomicLong clock = new AtomicLong();
+
+    final float[] fpsi; // fftn(psi) for ||u0|| = 1
+
+    // the bank of (psis, n0, n1), built on the first request only
+    static FilterBank get(float[] psis, int length, int n0, int n1)
+    {
+        Key key = new Key(Arrays.copyOf(psis, length), n0, n1);
+        Entry e = cache.computeIfAbsent(key, k -> new Entry(new FutureTask<FilterBank>(() -> {
+            long start = System.nanoTime();
+            FilterBank bank = new FilterBank(k.psis, k.n0, k.n1);
+            Metrics.filters(start);
+            return bank;
+        })));
+        e.used = clock.incrementAndGet();
+        e.task.run(); // builds the bank on the first call, returns at once on the others
+        try {
+            FilterBank bank = e.task.get();
+            evict();
+            return bank;
+        } catch (ExecutionException x) {
+            // out of memory or bad filters : the next request tries again
+            cache.remove(key, e);
+            Throwable cause = x.getCause();
+            if (cause instanceof Error) throw (Error)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while the filters are built", x);
+        }
+    }
+
+    // drops the least recently used entries beyond CAPACITY
+    private static void evict()
+    {
+        while (cache.size() > CAPACITY) {
+            Map.Entry<Key, Entry> eldest = null;
+            for (Map.Entry<Key, Entry> e : cache.entrySet())
+                if (eldest == null || e.getValue().used < eldest.getValue().used) eldest = e;
+            if (eldest == null || !cache.remove(eldest.getKey(), eldest.getValue())) return;
+        }
+    }
+
+    // drops every cached bank
+    static void clear()
+    {
+        // -
+        cache.clear();
+    }
+
+    private FilterBank(float[] psis, int n0, int n1)
+    {
+        int n = n0*n1;
+        int m = n0*(n1/2+1);
+
+        RealFFT2D fft = RealFFT2D.get(n0, n1);
+        fpsi = new float[2*m];
+
+        float[] psi = new float[n];
+        createFilters(psis, psi, n0, n1, fft);
+        fft.forward(psi, fpsi); // fpsi = fftn(psi);
+    }
+
+    // creates the filter of a unit norm image from a Java list of filters, see CREATE_FILTERS
+    private static void createFilters(float[] psis, float[] gpsi, int n0, int n1, RealFFT2D fft)
+    {
+        int i = 0;
+        int n = n0*n1;
+        int m = n0*(n1/2+1);
+        int length = psis.length;
+
+        float eta = 0, alpha, max1, max2, mmax;
+        float[] psitemp  = new float[n];
+        float[] fpsitemp = new float[2*m];
+        float[] fsum     = new float[2*m];
+        float[] fd1      = new float[2*m];
+        float[] fd2      = new float[2*m];
+
+        // fd1 = |fftn(d1)|, fd2 = |fftn(d2)|
+        VsnrCpu2D.setfd1(fd1, n0, n1);
+        VsnrCpu2D.setfd2(fd2, n0, n1);
+        VsnrCpu2D.computeNorm(fd1, m);
+        VsnrCpu2D.computeNorm(fd2, m);
+
+        // Computes PSI = sum_{i=1}^m |PSI_i|^2/alpha_i, where alpha_i is defined in the paper (with ||u0|| = 1).
+        while (i < length) {
+
+            if (psis[i] == 0) {
+                VsnrCpu2D.createDirac(psitemp, 1, n);
+                eta = psis[i+1];
+                i += 2;
+            } else if (psis[i] == 1) {
+                VsnrCpu2D.createGabor(psitemp, n0, n1, 1, psis[i+2], psis[i+3], psis[i+4], 0, 0);
+                eta = psis[i+1];
+                i += 5;
+            } else {
+                throw new IllegalArgumentException("Unknown filter type : " + psis[i]);
+            }
+
+            fft.forward(psitemp, fpsitemp);
+
+            VsnrCpu2D.computeSquaredNorm(fpsitemp, m); // fpsitemp = |fpsitemp|^2;
+
+            max1 = VsnrCpu2D.maxProduct(fpsitemp, fd1, m); // max(|fd1|*|fpsitemp|)
+            max2 = VsnrCpu2D.maxProduct(fpsitemp, fd2, m); // max(|fd2|*|fpsitemp|)
+
+            mmax = Math.max(max1, max2);
+
+            alpha = (float)(Math.sqrt((double)n) * ((double)n * n) * mmax / eta);
+
+            VsnrCpu2D.updatePsi(fpsitemp, fsum, alpha, m); // fsum += |fpsitemp|^2 / alpha_i;
+
+        }
+
+        VsnrCpu2D.computeSqrtf(fsum, m); // fsum = sqrtf(fsum);
+
+        fft.inverse(fsum, gpsi);
+    }
+
+    // a bank being built or built, and its last use
+    private static final class Entry {
+
+        final FutureTask<FilterBank> task;
+        volatile long used;
+
+        Entry(FutureTask<FilterBank> task)
+        {
+            // -
+            this.task = task;
+        }
+
+    }
+
+    // (filter list, plane size)
+    private static final class Key {
+
+        final float[] psis;
+        final int n0, n1;
+        final int hash;
+
+        Key(float[] psis, int n0, int n1)
+        {
+            this.psis = psis;
+            this.n0   = n0;
+            this.n1   = n1;
+            this.hash = 31*(31*Arrays.hashCode(psis) + n0) + n1;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            // -
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key)o;
+            return n0 == k.n0 && n1 == k.n1 && Arrays.equals(psis, k.psis);
+        }
+
+    }
+
+}
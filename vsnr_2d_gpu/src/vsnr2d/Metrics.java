@@ -0,0 +1,306 @@
+// ------------------------------------------------- //
+//                                                   //
+//         VSNR 2D : TIMERS AND THROUGHPUT           //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+// objectives : where the time of a run goes (read, open, solve, write) and its throughput, process-wide totals
+// published as the MXBean vsnr2d:type=Metrics (jconsole, VisualVM, a JMX exporter), and one JSON line per image
+// (Run.end, logged with "Metrics_Line: true")
+// the phases of a run overlap (the read, worker and write threads run together) : their sum exceeds the wall time
+// the filter banks are built inside the solve, on the threads of the CPU engine : their time is known process-wide
+// only, a run gets what was added while it ran (runs overlapping in time share it)
+public final class Metrics implements MetricsMXBean {
+
+    public enum Phase { READ, OPEN, SOLVE, FILTERS, WRITE }
+
+    public static final String NAME = "vsnr2d:type=Metrics";
+
+    private static final Metrics TOTAL = new Metrics();
+
+    private static boolean registered = false;
+
+    private final LongAdder[] nanos = adders(Phase.values().length);
+    private final LongAdder runs = new LongAdder(), planes = new LongAdder(), pixels = new LongAdder();
+    private final LongAdder iterations = new LongAdder(), converted = new LongAdder(), allocated = new LongAdder();
+    private final LongAdder wall = new LongAdder();
+
+    private volatile String last = "";
+
+    private Metrics() {}
+
+    // the totals (registered as the MXBean on the first call)
+    public static Metrics get()
+    {
+        synchronized (TOTAL) {
+            if (!registered) {
+                registered = true;
+                register();
+            }
+        }
+        return TOTAL;
+    }
+
+    // a run of the image name starting now
+    public static Run begin(String name)
+    {
+        // -
+        return get().new Run(name);
+    }
+
+    // adds the time of a filter bank built since start (System.nanoTime)
+    static void filters(long start)
+    {
+        // -
+        TOTAL.nanos[Phase.FILTERS.ordinal()].add(System.nanoTime() - start);
+    }
+
+    // the MXBean of a previous class loader of the plugin (Fiji reloading it) is replaced, JMX failures are ignored
+    private static void register()
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(NAME);
+            try {
+                server.registerMBean(TOTAL, name);
+            } catch (InstanceAlreadyExistsException e) {
+                server.unregisterMBean(name);
+                server.registerMBean(TOTAL, name);
+            }
+        } catch (Exception e) {
+            System.err.println("The metrics are not published : " + e);
+        }
+    }
+
+    @Override
+    public long getRuns()
+    {
+        // -
+        return runs.sum();
+    }
+
+    @Override
+    public long getPlanes()
+    {
+        // -
+        return planes.sum();
+    }
+
+    @Override
+    public long getPixels()
+    {
+        // -
+        return pixels.sum();
+    }
+
+    @Override
+    public long getIterations()
+    {
+        // -
+        return iterations.sum();
+    }
+
+    @Override
+    public long getBytesConverted()
+    {
+        // -
+        return converted.sum();
+    }
+
+    @Override
+    public long getBytesAllocated()
+    {
+        // -
+        return allocated.sum();
+    }
+
+    @Override
+    public double getReadSeconds()
+    {
+        // -
+        return seconds(nanos[Phase.READ.ordinal()].sum());
+    }
+
+    @Override
+    public double getOpenSeconds()
+    {
+        // -
+        return seconds(nanos[Phase.OPEN.ordinal()].sum());
+    }
+
+    @Override
+    public double getSolveSeconds()
+    {
+        // -
+        return seconds(nanos[Phase.SOLVE.ordinal()].sum());
+    }
+
+    @Override
+    public double getFilterSeconds()
+    {
+        // -
+        return seconds(nanos[Phase.FILTERS.ordinal()].sum());
+    }
+
+    @Override
+    public double getWriteSeconds()
+    {
+        // -
+        return seconds(nanos[Phase.WRITE.ordinal()].sum());
+    }
+
+    @Override
+    public double getWallSeconds()
+    {
+        // -
+        return seconds(wall.sum());
+    }
+
+    @Override
+    public String getLastRun()
+    {
+        // -
+        return last;
+    }
+
+    @Override
+    public double getPlanesPerSecond()
+    {
+        // -
+        return rate(planes.sum(), wall.sum());
+    }
+
+    @Override
+    public double getPixelsPerSecond()
+    {
+        // -
+        return rate(pixels.sum(), wall.sum());
+    }
+
+    @Override
+    public void reset()
+    {
+        for (LongAdder a : nanos) a.reset();
+        for (LongAdder a : new LongAdder[] {runs, planes, pixels, iterations, converted, allocated, wall}) a.reset();
+        last = "";
+    }
+
+    // one image : its phases and counters, added to the totals as they go
+    public final class Run {
+
+        private final String name;
+        private final long start   = System.nanoTime();
+        private final long filters = nanos[Phase.FILTERS.ordinal()].sum();
+
+        private final LongAdder[] times = adders(Phase.values().length);
+        private final LongAdder iters = new LongAdder(), bytes = new LongAdder(), alloc = new LongAdder();
+
+        private Run(String name)
+        {
+            // -
+            this.name = name;
+        }
+
+        // adds the time of phase since start (System.nanoTime)
+        public void add(Phase phase, long start)
+        {
+            long t = System.nanoTime() - start;
+            times[phase.ordinal()].add(t);
+            nanos[phase.ordinal()].add(t);
+        }
+
+        // -
+        public void iterations(long count)
+        {
+            iters.add(count);
+            iterations.add(count);
+        }
+
+        // bytes of floats read or written
+        public void converted(long count)
+        {
+            bytes.add(count);
+            converted.add(count);
+        }
+
+        // bytes of buffers or sessions allocated
+        public void allocated(long count)
+        {
+            alloc.add(count);
+            allocated.add(count);
+        }
+
+        // the run is over, planes of pixels in all were denoised : returns its summary line
+        public String end(long planeCount, long pixelCount)
+        {
+            long t = System.nanoTime() - start;
+            times[Phase.FILTERS.ordinal()].add(Math.max(nanos[Phase.FILTERS.ordinal()].sum() - filters, 0));
+            runs.increment();
+            planes.add(planeCount);
+            pixels.add(pixelCount);
+            wall.add(t);
+
+            StringBuilder res = new StringBuilder("{\"image\":").append(quote(name));
+            res.append(",\"planes\":").append(planeCount).append(",\"pixels\":").append(pixelCount);
+            res.append(",\"iterations\":").append(iters.sum());
+            res.append(",\"wall_s\":").append(format(seconds(t)));
+            res.append(",\"planes_per_s\":").append(format(rate(planeCount, t)));
+            res.append(",\"pixels_per_s\":").append(format(rate(pixelCount, t)));
+            for (Phase p : Phase.values())
+                res.append(",\"").append(p.name().toLowerCase(Locale.ROOT)).append("_s\":").append(format(seconds(times[p.ordinal()].sum())));
+            res.append(",\"bytes_converted\":").append(bytes.sum()).append(",\"bytes_allocated\":").append(alloc.sum());
+            last = res.append("}").toString();
+            return last;
+        }
+
+    }
+
+    private static LongAdder[] adders(int count)
+    {
+        LongAdder[] res = new LongAdder[count];
+        for (int i = 0 ; i < count ; i++) res[i] = new LongAdder();
+        return res;
+    }
+
+    private static double seconds(long nanos)
+    {
+        // -
+        return nanos / 1e9;
+    }
+
+    // per second
+    private static double rate(long count, long nanos)
+    {
+        // -
+        return (nanos > 0 ? count / seconds(nanos) : 0);
+    }
+
+    private static String format(double v)
+    {
+        // -
+        return String.format(Locale.ROOT, "%.3f", v);
+    }
+
+    // a JSON string
+    private static String quote(String s)
+    {
+        StringBuilder res = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') res.append('\\').append(c);
+            else if (c < 0x20) res.append(String.format("\\u%04x", (int)c));
+            else res.append(c);
+        }
+        return res.append('"').toString();
+    }
+
+}
@@ -0,0 +1,62 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 2D : METRICS MANAGEMENT           //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+
+// objectives : the attributes of the MXBean vsnr2d:type=Metrics (see Metrics), totals since the JVM started (or
+// since reset), times in seconds summed over the threads running a phase
+public interface MetricsMXBean {
+
+    // images denoised
+    long getRuns();
+
+    // planes (z, c, t) denoised
+    long getPlanes();
+
+    // pixels of these planes
+    long getPixels();
+
+    // ADMM iterations run, every plane (tile, RGB channel) counts its own
+    long getIterations();
+
+    // bytes of floats read from the images and written back into them
+    long getBytesConverted();
+
+    // bytes of the staging buffers and of the sessions allocated
+    long getBytesAllocated();
+
+    // pixels to floats (and padding)
+    double getReadSeconds();
+
+    // sessions opened (plans, work buffers)
+    double getOpenSeconds();
+
+    // backend calls : the ADMM, with the CUDA library also the transfers and the filters
+    double getSolveSeconds();
+
+    // filter banks of the CPU engine, part of the solve
+    double getFilterSeconds();
+
+    // floats back to pixels (and cropping, blending)
+    double getWriteSeconds();
+
+    // wall time of the runs
+    double getWallSeconds();
+
+    // planes per second of wall time
+    double getPlanesPerSecond();
+
+    // pixels per second of wall time
+    double getPixelsPerSecond();
+
+    // the summary line of the last run
+    String getLastRun();
+
+    // sets the totals back to 0
+    void reset();
+
+}
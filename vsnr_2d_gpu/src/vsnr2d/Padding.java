@@ -0,0 +1,138 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 2D : FFT-FRIENDLY PADDING         //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.nio.FloatBuffer;
+
+
+// objectives : solve the planes at a size whose FFT is fast (only factors 2, 3, 5 and 7)
+// a plane of height x width is centred in a plane of paddedHeight x paddedWidth and extended by mirror reflection
+// (the pixels next to an edge are repeated in reverse order), so that the periodic boundary of the FFT does not
+// join the opposite edges of the image, the solved plane is cropped back afterwards
+// the planes are stored row after row (index = i*width + j) as everywhere else
+public final class Padding {
+
+    public final int height, width;
+    public final int paddedHeight, paddedWidth;
+
+    // the image starts at row top and column left of the padded plane
+    private final int top, left;
+
+    // row / column of the image for every row / column of the padded plane
+    private final int[] rows, cols;
+
+    // padded sizes when enabled, the sizes themselves otherwise
+    public Padding(int height, int width, boolean enabled)
+    {
+        this.height       = height;
+        this.width        = width;
+        this.paddedHeight = (enabled ? nextSmooth(height) : height);
+        this.paddedWidth  = (enabled ? nextSmooth(width)  : width);
+        this.top          = (paddedHeight - height) / 2;
+        this.left         = (paddedWidth  - width)  / 2;
+        this.rows         = mirror(height, paddedHeight, top);
+        this.cols         = mirror(width,  paddedWidth,  left);
+    }
+
+    // true when the padded plane differs from the plane
+    public boolean isNeeded()
+    {
+        // -
+        return (paddedHeight != height || paddedWidth != width);
+    }
+
+    // pixels of a plane
+    public int size()
+    {
+        // -
+        return height*width;
+    }
+
+    // pixels of a padded plane
+    public int paddedSize()
+    {
+        // -
+        return paddedHeight*paddedWidth;
+    }
+
+    // dst[dstOffset..] = the count planes of src[srcOffset..] padded
+    public void pad(FloatBuffer src, int srcOffset, FloatBuffer dst, int dstOffset, int count)
+    {
+        int n = size(), m = paddedSize();
+        Parallel.forRange(count*paddedHeight, Math.max(1, Parallel.GRAIN / paddedWidth), (start, end) -> {
+            float[] in  = new float[width];
+            float[] out = new float[paddedWidth];
+            FloatBuffer s = src.duplicate();
+            FloatBuffer d = dst.duplicate();
+            for (int r = start ; r < end ; r++) {
+                int k = r / paddedHeight, i = r % paddedHeight;
+                s.position(srcOffset + k*n + rows[i]*width);
+                s.get(in);
+                for (int j = 0 ; j < paddedWidth ; j++)
+                    out[j] = in[cols[j]];
+                d.position(dstOffset + k*m + i*paddedWidth);
+                d.put(out);
+            }
+        });
+    }
+
+    // dst[dstOffset..] = the count padded planes of src[srcOffset..] cropped
+    public void crop(FloatBuffer src, int srcOffset, FloatBuffer dst, int dstOffset, int count)
+    {
+        int n = size(), m = paddedSize();
+        Parallel.forRange(count*height, Math.max(1, Parallel.GRAIN / width), (start, end) -> {
+            float[] row = new float[width];
+            FloatBuffer s = src.duplicate();
+            FloatBuffer d = dst.duplicate();
+            for (int r = start ; r < end ; r++) {
+                int k = r / height, i = r % height;
+                s.position(srcOffset + k*m + (i + top)*paddedWidth + left);
+                s.get(row);
+                d.position(dstOffset + k*n + i*width);
+                d.put(row);
+            }
+        });
+    }
+
+    // true when n has no prime factor above 7
+    public static boolean isSmooth(int n)
+    {
+        if (n < 1) return false;
+        for (int p : new int[] {2, 3, 5, 7})
+            while (n % p == 0) n /= p;
+        return (n == 1);
+    }
+
+    // smallest n' >= n with no prime factor above 7
+    public static int nextSmooth(int n)
+    {
+        int m = Math.max(n, 1);
+        while (!isSmooth(m)) m++;
+        return m;
+    }
+
+    // for the log window
+    @Override
+    public String toString()
+    {
+        // -
+        return width + "x" + height + (isNeeded() ? " -> " + paddedWidth + "x" + paddedHeight : " (no padding)");
+    }
+
+    // index in [0, n) of every index of [0, padded) when [0, n) starts at offset, mirrored on both sides
+    // (period 2n : ..., 1, 0 | 0, 1, ..., n-1 | n-1, n-2, ...)
+    private static int[] mirror(int n, int padded, int offset)
+    {
+        int[] res = new int[padded];
+        for (int i = 0 ; i < padded ; i++) {
+            int x = Math.floorMod(i - offset, 2*n);
+            res[i] = (x < n ? x : 2*n - 1 - x);
+        }
+        return res;
+    }
+
+}
@@ -0,0 +1,121 @@
+// ------------------------------------------------- //
+//                                                   //
+//          VSNR 2D CPU : FORK-JOIN HELPERS          //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+
+// objectives : split index ranges across the common fork-join pool
+public final class Parallel {
+
+    // minimal number of elements handled by one task for element-wise passes
+    public static final int GRAIN = 1 << 14;
+
+    private Parallel() {}
+
+    // body of a parallel loop over [start, end)
+    public interface Range {
+        void run(int start, int end);
+    }
+
+    // body of a parallel reduction over [start, end)
+    public interface RangeSum {
+        double run(int start, int end);
+    }
+
+    // number of workers of the pool
+    public static int threads()
+    {
+        // -
+        return ForkJoinPool.getCommonPoolParallelism();
+    }
+
+    // runs body over [0, n) split in chunks of at least grain elements
+    public static void forRange(int n, int grain, Range body)
+    {
+        int chunk = chunkSize(n, grain);
+        if (n <= chunk) {
+            if (n > 0) body.run(0, n);
+        } else {
+            ForkJoinPool.commonPool().invoke(new RangeAction(body, 0, n, chunk));
+        }
+    }
+
+    // runs body over [0, n) and returns the sum of the partial results
+    public static double sum(int n, int grain, RangeSum body)
+    {
+        int chunk = chunkSize(n, grain);
+        if (n <= chunk) return (n > 0 ? body.run(0, n) : 0.0);
+        return ForkJoinPool.commonPool().invoke(new SumTask(body, 0, n, chunk));
+    }
+
+    // a few chunks per worker so that faster workers can steal the others
+    private static int chunkSize(int n, int grain)
+    {
+        int parts = 4 * Math.max(threads(), 1);
+        return Math.max(Math.max(grain, 1), (n + parts - 1) / parts);
+    }
+
+    private static class RangeAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Range body;
+        private final int start, end, chunk;
+
+        RangeAction(Range body, int start, int end, int chunk)
+        {
+            this.body  = body;
+            this.start = start;
+            this.end   = end;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (end - start <= chunk) {
+                body.run(start, end);
+            } else {
+                int mid = (start + end) >>> 1;
+                invokeAll(new RangeAction(body, start, mid, chunk), new RangeAction(body, mid, end, chunk));
+            }
+        }
+
+    }
+
+    private static class SumTask extends RecursiveTask<Double> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RangeSum body;
+        private final int start, end, chunk;
+
+        SumTask(RangeSum body, int start, int end, int chunk)
+        {
+            this.body  = body;
+            this.start = start;
+            this.end   = end;
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected Double compute()
+        {
+            if (end - start <= chunk) return body.run(start, end);
+            int mid = (start + end) >>> 1;
+            SumTask left = new SumTask(body, start, mid, chunk);
+            left.fork();
+            double right = new SumTask(body, mid, end, chunk).compute();
+            return right + left.join();
+        }
+
+    }
+
+}
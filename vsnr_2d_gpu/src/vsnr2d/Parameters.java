@@ -0,0 +1,254 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 2D : DENOISING PARAMETERS         //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+
+
+// objectives : the parameters of a run and the #VSNR-2D text file holding them (see Example_Parameters.txt),
+// shared by the plugin (dialogs or text file) and the command line (Batch)
+// filters is the flat list handed to the backends : 0, level for a Dirac, 1, level, sigmax, sigmay, angle for a Gabor
+public final class Parameters {
+
+    public int     nit         = 20;
+    public float   tolerance   = 0;    // relative residuals stopping the iterations, 0 : always nit iterations
+    public float   beta        = 10;   // ADMM penalty, the initial one when adaptive
+    public boolean adaptive    = false; // beta rebalanced from the primal and dual residuals
+    public float   relaxation  = 1;    // over-relaxation alpha in (0, 2), 1 : none
+    public boolean warmStart   = false; // the planes of frame t start from the state frame t-1 ended with (see Denoiser)
+    public int     nBlock      = 0;    // 0 : auto, the dimBlocks max of the backend
+    public boolean bLog        = false;
+    public String  backendName = Backends.AUTO;
+    public int     depth       = 2;
+    public int     cpuWorkers  = 0;
+    public int     memoryLimit = 0;    // MB, 0 : auto
+    public boolean padding     = true; // mirror padding to FFT-friendly sizes
+    public int     tileSize    = 0;    // largest side of the tiles of a plane, 0 : auto (tiles only when it does not fit)
+    public int     tileOverlap = -1;   // pixels a tile extends beyond its inner part, -1 : auto (3 sigma)
+    public boolean metricsLine = false; // one JSON line of timings and throughput per image (see Metrics)
+
+    public final ArrayList<Float> filters = new ArrayList<Float>();
+
+    // adds a Dirac filter
+    public void addDirac(float level)
+    {
+        filters.add(0.0f);
+        filters.add(level);
+    }
+
+    // adds a Gabor filter
+    public void addGabor(float level, float sigmax, float sigmay, float angle)
+    {
+        filters.add(1.0f);
+        filters.add(level);
+        filters.add(sigmax);
+        filters.add(sigmay);
+        filters.add(angle);
+    }
+
+    // the filters as handed to the backends
+    public FloatBuffer getBuffPsi()
+    {
+        int length = filters.size();
+        float[] arrPsis = new float[length];
+        for (int i = 0 ; i < length ; i++)
+            arrPsis[i] = filters.get(i);
+        return FloatBuffer.wrap(arrPsis);
+    }
+
+    // reads a text file, IllegalArgumentException when it is not conform
+    public static Parameters read(File file) throws IOException
+    {
+        Parameters p = new Parameters();
+        String tmp, filterType = null;
+        float level = 1, sigmax = 3, sigmay = 1;
+        boolean error = false;
+        try (Scanner scanFile = new Scanner(file)) {
+            while (scanFile.hasNextLine() && !error) {
+                Scanner scanLine = new Scanner(scanFile.nextLine());
+                if (!scanLine.hasNext()) {
+                    scanLine.close();
+                    continue;
+                }
+                switch (getStringFlag(scanLine.next())) {
+                    case 1 :
+                        p.nit = Integer.parseInt(scanLine.next());
+                        break;
+                    case 2 :
+                        tmp = scanLine.next();
+                        p.nBlock = (tmp.equals("auto") ? 0 : Integer.parseInt(tmp));
+                        break;
+                    case 3 :
+                        p.bLog = Boolean.parseBoolean(scanLine.next());
+                        break;
+                    case 4 :
+                        filterType = scanLine.next();
+                        error = (!(filterType.equals("Dirac")) && !(filterType.equals("Gabor")));
+                        break;
+                    case 5 :
+                        level = Float.parseFloat(scanLine.next());
+                        if (filterType.equals("Dirac")) p.addDirac(level);
+                        break;
+                    case 6 :
+                        sigmax = Float.parseFloat(scanLine.next());
+                        break;
+                    case 7 :
+                        sigmay = Float.parseFloat(scanLine.next());
+                        break;
+                    case 8 :
+                        float angle = Float.parseFloat(scanLine.next());
+                        if (filterType.equals("Gabor")) p.addGabor(level, sigmax, sigmay, angle);
+                        break;
+                    case 9 :
+                        p.backendName = scanLine.next();
+                        break;
+                    case 10 :
+                        p.depth = Integer.parseInt(scanLine.next());
+                        error = (p.depth < 0);
+                        break;
+                    case 11 :
+                        p.cpuWorkers = Integer.parseInt(scanLine.next());
+                        error = (p.cpuWorkers < 0);
+                        break;
+                    case 12 :
+                        tmp = scanLine.next();
+                        p.memoryLimit = (tmp.equals("auto") ? 0 : Integer.parseInt(tmp));
+                        error = (p.memoryLimit < 0);
+                        break;
+                    case 13 :
+                        p.padding = Boolean.parseBoolean(scanLine.next());
+                        break;
+                    case 14 :
+                        p.tolerance = Float.parseFloat(scanLine.next());
+                        error = (p.tolerance < 0);
+                        break;
+                    case 15 :
+                        p.beta = Float.parseFloat(scanLine.next());
+                        error = (p.beta <= 0);
+                        break;
+                    case 16 :
+                        p.adaptive = Boolean.parseBoolean(scanLine.next());
+                        break;
+                    case 17 :
+                        p.relaxation = Float.parseFloat(scanLine.next());
+                        error = (p.relaxation <= 0 || p.relaxation >= 2);
+                        break;
+                    case 18 :
+                        tmp = scanLine.next();
+                        p.tileSize = (tmp.equals("auto") ? 0 : Integer.parseInt(tmp));
+                        error = (p.tileSize < 0);
+                        break;
+                    case 19 :
+                        tmp = scanLine.next();
+                        p.tileOverlap = (tmp.equals("auto") ? -1 : Integer.parseInt(tmp));
+                        error = (p.tileOverlap < -1);
+                        break;
+                    case 20 :
+                        p.metricsLine = Boolean.parseBoolean(scanLine.next());
+                        break;
+                    case 21 :
+                        p.warmStart = Boolean.parseBoolean(scanLine.next());
+                        break;
+                    case 0 :
+                    default :
+                        break;
+                }
+                scanLine.close();
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("The text file " + file + " is not conform (" + e + ")", e);
+        }
+        if (error) throw new IllegalArgumentException("The text file " + file + " is not conform");
+        return p;
+    }
+
+    // to avoid switch(String) for Java 1.6
+    private static int getStringFlag(String str)
+    {
+        if (str.equals("Iteration_Number:")) return 1;
+        else if (str.equals("Num_Block:"))   return 2;
+        else if (str.equals("Log:"))         return 3;
+        else if (str.equals("Filter_Type:")) return 4;
+        else if (str.equals("Noise_Level:")) return 5;
+        else if (str.equals("sigmax:"))      return 6;
+        else if (str.equals("sigmay:"))      return 7;
+        else if (str.equals("Angle:"))       return 8;
+        else if (str.equals("Backend:"))     return 9;
+        else if (str.equals("Queue_Depth:")) return 10;
+        else if (str.equals("Cpu_Workers:")) return 11;
+        else if (str.equals("Memory_Limit:")) return 12;
+        else if (str.equals("Padding:"))     return 13;
+        else if (str.equals("Tolerance:"))   return 14;
+        else if (str.equals("Beta:"))        return 15;
+        else if (str.equals("Adaptive_Beta:")) return 16;
+        else if (str.equals("Relaxation:"))  return 17;
+        else if (str.equals("Tile_Size:"))   return 18;
+        else if (str.equals("Tile_Overlap:")) return 19;
+        else if (str.equals("Metrics_Line:")) return 20;
+        else if (str.equals("Warm_Start:"))  return 21;
+        else if (str.equals("***"))          return 0;
+        else return (-1);
+    }
+
+    // the solver options of these parameters, without the warm start (decided per group, see Denoiser.series)
+    public VsnrSession.Options options()
+    {
+        // -
+        return new VsnrSession.Options(tolerance, relaxation, adaptive, false);
+    }
+
+    // the text file of these parameters, one line per item
+    public List<String> lines()
+    {
+        ArrayList<String> res = new ArrayList<String>();
+        int k = 0;
+        res.add("#VSNR-2D");
+        res.add("Iteration_Number: " + nit);
+        res.add("Tolerance: " + tolerance);
+        res.add("Beta: " + beta);
+        res.add("Adaptive_Beta: " + adaptive);
+        res.add("Relaxation: " + relaxation);
+        res.add("Warm_Start: " + warmStart);
+        res.add("Num_Block: " + (nBlock == 0 ? "auto" : String.valueOf(nBlock)));
+        res.add("Log: " + bLog);
+        res.add("Backend: " + backendName);
+        res.add("Queue_Depth: " + depth);
+        res.add("Cpu_Workers: " + cpuWorkers);
+        res.add("Memory_Limit: " + (memoryLimit == 0 ? "auto" : String.valueOf(memoryLimit)));
+        res.add("Padding: " + padding);
+        res.add("Tile_Size: " + (tileSize == 0 ? "auto" : String.valueOf(tileSize)));
+        res.add("Tile_Overlap: " + (tileOverlap < 0 ? "auto" : String.valueOf(tileOverlap)));
+        res.add("Metrics_Line: " + metricsLine);
+        res.add("***");
+        while (k < filters.size()) {
+            if (filters.get(k) == 0) {
+                res.add("Filter_Type: Dirac");
+                res.add("Noise_Level: " + filters.get(k+1));
+                res.add("***");
+                k += 2;
+            } else if (filters.get(k) == 1) {
+                res.add("Filter_Type: Gabor");
+                res.add("Noise_Level: " + filters.get(k+1));
+                res.add("sigmax: " + filters.get(k+2));
+                res.add("sigmay: " + filters.get(k+3));
+                res.add("Angle: " + filters.get(k+4));
+                res.add("***");
+                k += 5;
+            } else {
+                res.add("ERROR !");
+                break;
+            }
+        }
+        return res;
+    }
+
+}
@@ -0,0 +1,261 @@
+// ------------------------------------------------- //
+//                                                   //
+//          VSNR 2D : READ / DENOISE / WRITE         //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToLongFunction;
+
+
+// objectives : overlap the pixel conversion of the next items and the write-back of the previous ones
+// with the denoising of the current ones : read runs on a producer thread, compute on one or several
+// workers (each owning its backend session, the first one runs on the calling thread), write on a consumer thread
+// the workers take the items from a shared queue, so that a faster worker (a GPU next to CPU workers) takes more
+// the queues between the stages hold at most depth items, a stage ahead of the others blocks (back-pressure),
+// the items between read and write also hold at most limit bytes (memory admission)
+// write sees the items in their order, whatever the worker that denoised them
+// depth 0 with a single worker runs the three stages one after the other on the calling thread
+// the first failure of a stage stops the pipeline and is thrown again by run
+public final class Pipeline<T> {
+
+    // one stage, called once per item
+    public interface Stage<T> {
+        void run(T item);
+    }
+
+    // end of the items
+    private static final Object END = new Object();
+
+    // an item, its rank in the input and the bytes it was admitted with
+    private static final class Ticket {
+
+        private final Object item;
+        private final long   rank;
+        private final long   bytes;
+
+        Ticket(Object item, long rank, long bytes)
+        {
+            this.item  = item;
+            this.rank  = rank;
+            this.bytes = bytes;
+        }
+
+    }
+
+    private final int depth;
+    private final long limit;
+    private final ToLongFunction<T> bytes;
+
+    // bytes of the items between read and write
+    private long admitted = 0;
+
+    public Pipeline(int depth)
+    {
+        // -
+        this(depth, 0, null);
+    }
+
+    // limit : bytes the items between read and write may hold (0 : no limit), bytes : size of an item
+    public Pipeline(int depth, long limit, ToLongFunction<T> bytes)
+    {
+        this.depth = Math.max(depth, 0);
+        this.limit = (bytes == null ? 0 : Math.max(limit, 0));
+        this.bytes = bytes;
+    }
+
+    // -
+    public int getDepth()
+    {
+        // -
+        return depth;
+    }
+
+    // read, compute then write every item, in the order of items
+    public void run(Iterable<T> items, Stage<T> read, Stage<T> compute, Stage<T> write)
+    {
+        // -
+        run(items, read, Collections.singletonList(compute), write);
+    }
+
+    // same with several compute workers, every item is denoised by one of them
+    @SuppressWarnings("unchecked")
+    public void run(Iterable<T> items, Stage<T> read, List<? extends Stage<T>> workers, Stage<T> write)
+    {
+        if (workers.isEmpty()) throw new IllegalArgumentException("No worker");
+        if (depth == 0 && workers.size() == 1) {
+            Stage<T> compute = workers.get(0);
+            for (T item : items) {
+                read.run(item);
+                compute.run(item);
+                write.run(item);
+            }
+            return;
+        }
+
+        int size = Math.max(depth, 1);
+        BlockingQueue<Object> toCompute = new ArrayBlockingQueue<Object>(size);
+        BlockingQueue<Object> toWrite   = new ArrayBlockingQueue<Object>(size);
+        AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        admitted = 0;
+
+        // the reader always ends with END, the workers and the writer drain their queue up to END
+        // (without running their stage after a failure) so that no stage can block for ever
+        Thread reader = new Thread(() -> {
+            long rank = 0;
+            try {
+                for (T item : items) {
+                    if (failure.get() != null) break;
+                    long b = admit(item);
+                    read.run(item);
+                    putQuietly(toCompute, new Ticket(item, rank++, b));
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                putQuietly(toCompute, END);
+            }
+        }, "vsnr-read");
+
+        Thread writer = new Thread(() -> {
+            HashMap<Long, Ticket> waiting = new HashMap<Long, Ticket>();
+            long next = 0;
+            Object o;
+            while ((o = takeQuietly(toWrite)) != END) {
+                Ticket t = (Ticket)o;
+                waiting.put(t.rank, t);
+                while ((t = waiting.remove(next)) != null) {
+                    next++;
+                    if (failure.get() == null) {
+                        try {
+                            write.run((T)t.item);
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                    release(t.bytes);
+                }
+            }
+        }, "vsnr-write");
+
+        ArrayList<Runnable> loops = new ArrayList<Runnable>();
+        for (Stage<T> compute : workers) {
+            loops.add(() -> {
+                Object o;
+                while ((o = takeQuietly(toCompute)) != END) {
+                    Ticket t = (Ticket)o;
+                    if (failure.get() == null) {
+                        try {
+                            compute.run((T)t.item);
+                        } catch (Throwable e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                    putQuietly(toWrite, t);
+                }
+                // END again for the other workers, there is room since it was just taken
+                putQuietly(toCompute, END);
+            });
+        }
+
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        for (int i = 1 ; i < loops.size() ; i++)
+            threads.add(new Thread(loops.get(i), "vsnr-worker-" + i));
+
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+        for (Thread t : threads) {
+            t.setDaemon(true);
+            t.start();
+        }
+
+        // the first worker runs on the calling thread
+        try {
+            loops.get(0).run();
+        } finally {
+            for (Thread t : threads) joinQuietly(t);
+            putQuietly(toWrite, END);
+            joinQuietly(reader);
+            joinQuietly(writer);
+        }
+
+        Throwable e = failure.get();
+        if (e instanceof RuntimeException) throw (RuntimeException)e;
+        if (e instanceof Error) throw (Error)e;
+        if (e != null) throw new RuntimeException(e);
+    }
+
+    // waits until item fits in the limit (an item larger than the limit goes alone), returns its bytes
+    private synchronized long admit(T item) throws InterruptedException
+    {
+        if (limit == 0) return 0;
+        long b = Math.min(bytes.applyAsLong(item), limit);
+        while (admitted > 0 && admitted + b > limit)
+            wait();
+        admitted += b;
+        return b;
+    }
+
+    // -
+    private synchronized void release(long b)
+    {
+        admitted -= b;
+        notifyAll();
+    }
+
+    // put which ignores interrupts, the other side is known to be consuming
+    private static void putQuietly(BlockingQueue<Object> queue, Object item)
+    {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(item);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    // take which ignores interrupts, the other side always ends with END
+    private static Object takeQuietly(BlockingQueue<Object> queue)
+    {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void joinQuietly(Thread t)
+    {
+        boolean interrupted = false;
+        while (t.isAlive()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+}
@@ -0,0 +1,215 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 2D CPU : REAL 2D FFT              //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// objectives : R2C / C2R transforms with the layout of cufftPlan2d(n0, n1)
+// real arrays are n0 rows of n1 floats, spectra n0 rows of (n1/2+1) complex
+// both transforms are unnormalized, rows then columns run on the fork-join pool
+public final class RealFFT2D {
+
+    // number of sizes kept by get
+    private static final int CAPACITY = 8;
+
+    // process-wide plans, the transforms only read their tables so they can be shared
+    private static final Map<Long, RealFFT2D> plans = new LinkedHashMap<Long, RealFFT2D>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, RealFFT2D> eldest)
+        {
+            // -
+            return size() > CAPACITY;
+        }
+    };
+
+    private final int n0;
+    private final int n1;
+    private final int h;
+
+    // rows : half length complex FFT when n1 is even, full length otherwise
+    private final ComplexFFT row;
+    private final ComplexFFT col;
+
+    // exp(-2i.pi.k/n1) for the even/odd split of real rows
+    private final float[] wr;
+    private final float[] wi;
+
+    // work arrays of the transforms, one set per thread : a task only uses them between the start and the end of
+    // its range, during which the thread runs no other task, so the transforms allocate nothing once warm
+    private final ThreadLocal<Scratch> scratch;
+
+    public RealFFT2D(int n0, int n1)
+    {
+        this.n0  = n0;
+        this.n1  = n1;
+        this.h   = n1/2 + 1;
+        this.row = new ComplexFFT(n1 % 2 == 0 ? n1/2 : n1);
+        this.col = new ComplexFFT(n0);
+        this.wr  = new float[h];
+        this.wi  = new float[h];
+        for (int k = 0 ; k < h ; k++) {
+            double a = 2.0 * Math.PI * k / n1;
+            wr[k] = (float)Math.cos(a);
+            wi[k] = (float)-Math.sin(a);
+        }
+        this.scratch = ThreadLocal.withInitial(Scratch::new);
+    }
+
+    // the shared plan of n0 x n1, created on the first request only
+    public static RealFFT2D get(int n0, int n1)
+    {
+        Long key = ((long)n0 << 32) | n1;
+        synchronized (plans) {
+            RealFFT2D fft = plans.get(key);
+            if (fft == null) {
+                fft = new RealFFT2D(n0, n1);
+                plans.put(key, fft);
+            }
+            return fft;
+        }
+    }
+
+    // number of floats of a real array
+    public int realSize()
+    {
+        // -
+        return n0*n1;
+    }
+
+    // number of floats of a complex (interleaved) spectrum
+    public int complexSize()
+    {
+        // -
+        return 2*n0*h;
+    }
+
+    // out = fftn(in), in is left untouched
+    public void forward(float[] in, float[] out)
+    {
+        Parallel.forRange(n0, rowGrain(), (start, end) -> {
+            Scratch s = scratch.get();
+            for (int j = start ; j < end ; j++)
+                forwardRow(in, j*n1, out, 2*j*h, s.rbuf, s.rwork);
+        });
+        columns(out, false);
+    }
+
+    // out = ifftn(in) without the 1/n factor, in is overwritten (as with cufftExecC2R)
+    public void inverse(float[] in, float[] out)
+    {
+        columns(in, true);
+        Parallel.forRange(n0, rowGrain(), (start, end) -> {
+            Scratch s = scratch.get();
+            for (int j = start ; j < end ; j++)
+                inverseRow(in, 2*j*h, out, j*n1, s.rbuf, s.rwork);
+        });
+    }
+
+    // per thread work arrays
+    private class Scratch {
+        float[] rbuf  = new float[2*row.length()];
+        float[] rwork = new float[row.workSize()];
+        float[] cbuf  = new float[2*n0];
+        float[] cwork = new float[col.workSize()];
+    }
+
+    // a task should hold at least a few thousand samples
+    private int rowGrain()
+    {
+        // -
+        return Math.max(1, 8192 / Math.max(n1, 1));
+    }
+
+    // complex transforms along n0 for every one of the h columns
+    private void columns(float[] spec, boolean inverse)
+    {
+        if (n0 == 1) return;
+        Parallel.forRange(h, Math.max(1, 8192 / n0), (start, end) -> {
+            Scratch s = scratch.get();
+            float[] buf  = s.cbuf;
+            float[] work = s.cwork;
+            for (int c = start ; c < end ; c++) {
+                for (int j = 0 ; j < n0 ; j++) {
+                    buf[2*j]   = spec[2*(j*h+c)];
+                    buf[2*j+1] = spec[2*(j*h+c)+1];
+                }
+                col.transform(buf, work, inverse);
+                for (int j = 0 ; j < n0 ; j++) {
+                    spec[2*(j*h+c)]   = buf[2*j];
+                    spec[2*(j*h+c)+1] = buf[2*j+1];
+                }
+            }
+        });
+    }
+
+    // one real row to its half spectrum
+    private void forwardRow(float[] in, int ri, float[] out, int co, float[] buf, float[] work)
+    {
+        if (n1 % 2 != 0) {
+            for (int i = 0 ; i < n1 ; i++) {
+                buf[2*i]   = in[ri+i];
+                buf[2*i+1] = 0.0f;
+            }
+            row.transform(buf, work, false);
+            System.arraycopy(buf, 0, out, co, 2*h);
+            return;
+        }
+
+        // z[k] = x[2k] + i.x[2k+1] is the row itself
+        int hh = n1/2;
+        System.arraycopy(in, ri, buf, 0, n1);
+        row.transform(buf, work, false);
+
+        // X[k] = E[k] + W^k O[k] with E = (Z[k]+conj(Z[-k]))/2 and O = (Z[k]-conj(Z[-k]))/2i
+        for (int k = 0 ; k < h ; k++) {
+            int a = (k == hh ? 0 : k), b = (k == 0 ? 0 : hh-k);
+            float zr = buf[2*a], zi = buf[2*a+1];
+            float cr = buf[2*b], ci = -buf[2*b+1];
+            float er = 0.5f*(zr + cr), ei = 0.5f*(zi + ci);
+            float or = 0.5f*(zi - ci), oi = -0.5f*(zr - cr);
+            out[co+2*k]   = er + (wr[k]*or - wi[k]*oi);
+            out[co+2*k+1] = ei + (wr[k]*oi + wi[k]*or);
+        }
+    }
+
+    // one half spectrum to its real row, imaginary parts of DC and Nyquist are ignored
+    private void inverseRow(float[] in, int co, float[] out, int ri, float[] buf, float[] work)
+    {
+        if (n1 % 2 != 0) {
+            buf[0] = in[co];
+            buf[1] = 0.0f;
+            for (int k = 1 ; k < h ; k++) {
+                buf[2*k]        =  in[co+2*k];
+                buf[2*k+1]      =  in[co+2*k+1];
+                buf[2*(n1-k)]   =  in[co+2*k];
+                buf[2*(n1-k)+1] = -in[co+2*k+1];
+            }
+            row.transform(buf, work, true);
+            for (int i = 0 ; i < n1 ; i++)
+                out[ri+i] = buf[2*i];
+            return;
+        }
+
+        // Z[k] = 2E[k] + 2i.O[k], 2E = X[k]+conj(X[h-k]), 2O = (X[k]-conj(X[h-k])).W^-k
+        int hh = n1/2;
+        for (int k = 0 ; k < hh ; k++) {
+            int b = hh - k;
+            float xr = in[co+2*k], xi = (k == 0 ? 0.0f : in[co+2*k+1]);
+            float cr = in[co+2*b], ci = (b == hh ? 0.0f : -in[co+2*b+1]);
+            float er = xr + cr, ei = xi + ci;
+            float dr = xr - cr, di = xi - ci;
+            // multiply by conj(W^k)
+            float or = dr*wr[k] + di*wi[k], oi = di*wr[k] - dr*wi[k];
+            buf[2*k]   = er - oi;
+            buf[2*k+1] = ei + or;
+        }
+        row.transform(buf, work, true);
+        System.arraycopy(buf, 0, out, ri, n1);
+    }
+
+}
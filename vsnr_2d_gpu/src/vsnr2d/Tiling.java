@@ -0,0 +1,275 @@
+// ------------------------------------------------- //
+//                                                   //
+//         VSNR 2D : OVERLAPPING TILES OF PLANES     //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.function.BiPredicate;
+
+
+// objectives : denoise planes too large for the memory as tiles denoised independently and blended back
+// every tile has the same size (one session, one set of plans and filters for all of them), sides whose FFT is
+// fast (only factors 2, 3, 5 and 7) and as large as the memory allows (fits)
+// the tiles of a row (column) are spread evenly and overlap their neighbours by 2*halo pixels at least, never the
+// tiles beyond, across the overlap of two tiles the weight of one goes from 1 to 0 and the one of the other from
+// 0 to 1 (raised cosine) : the weights of a pixel sum to 1 and the periodic boundary of the FFT of a tile fades out
+// before its seam
+// tiles are numbered row after row (index = r*columns + c), the order in which a Blender expects them
+public final class Tiling {
+
+    public final int height, width;
+    public final int tileHeight, tileWidth;
+
+    // first row / column of every row / column of tiles
+    private final int[] ys, xs;
+
+    // weights of the rows / columns of every row / column of tiles
+    private final float[][] wy, wx;
+
+    // tiles of at most side x side pixels
+    private Tiling(int height, int width, int side, int halo)
+    {
+        this.height     = height;
+        this.width      = width;
+        this.tileHeight = side(height, side, halo);
+        this.tileWidth  = side(width,  side, halo);
+        this.ys         = starts(height, tileHeight, halo);
+        this.xs         = starts(width,  tileWidth,  halo);
+        this.wy         = weights(ys, tileHeight);
+        this.wx         = weights(xs, tileWidth);
+    }
+
+    // tiles of height x width planes at most size pixels a side (0 : no limit) and halo overlapping pixels,
+    // the largest ones whose size fits (the smallest ones when none does), the whole plane when it fits
+    public static Tiling plan(int height, int width, int size, int halo, BiPredicate<Integer, Integer> fits)
+    {
+        int longest = Math.max(height, width);
+        Tiling res = new Tiling(height, width, longest, halo);
+        if ((size <= 0 || size >= longest) && fits.test(height, width)) return res;
+        int last = longest;
+        for (int count = 2 ; count <= longest ; count++) {
+            int side = Padding.nextSmooth((longest + count - 1) / count + 2*halo);
+            if (side >= last) continue;
+            last = side;
+            Tiling t = new Tiling(height, width, side, halo);
+            if (!t.isValid()) break;
+            res = t;
+            if (size > 0 && Math.max(t.tileHeight, t.tileWidth) > size) continue;
+            if (fits.test(t.tileHeight, t.tileWidth)) return t;
+        }
+        return res;
+    }
+
+    // number of tiles
+    public int count()
+    {
+        // -
+        return ys.length*xs.length;
+    }
+
+    // first row of tile k
+    public int top(int k)
+    {
+        // -
+        return ys[k / xs.length];
+    }
+
+    // first column of tile k
+    public int left(int k)
+    {
+        // -
+        return xs[k % xs.length];
+    }
+
+    // for the log window
+    @Override
+    public String toString()
+    {
+        // -
+        return xs.length + "x" + ys.length + " tiles of " + tileWidth + "x" + tileHeight;
+    }
+
+    // true when a tile only overlaps its direct neighbours (the Blender keeps the overlaps of two tiles at most)
+    private boolean isValid()
+    {
+        // -
+        return isValid(ys, tileHeight) && isValid(xs, tileWidth);
+    }
+
+    // -
+    private static boolean isValid(int[] starts, int side)
+    {
+        for (int k = 1 ; k < starts.length ; k++)
+            if (starts[k] <= starts[k-1] || (k > 1 && starts[k] < starts[k-2] + side)) return false;
+        return true;
+    }
+
+    // size of the tiles along an axis of n pixels : the smallest one (with a fast FFT) covering it with as many
+    // tiles of at most max pixels, the whole axis for a single tile
+    private static int side(int n, int max, int halo)
+    {
+        if (max >= n) return n;
+        if (max <= 2*halo) return max;
+        int count = tiles(n, max, halo);
+        return Math.min(Padding.nextSmooth((n + (count-1)*2*halo + count - 1) / count), max);
+    }
+
+    // number of tiles of side pixels overlapping by 2*halo covering an axis of n pixels
+    private static int tiles(int n, int side, int halo)
+    {
+        if (side >= n) return 1;
+        return 1 + (n - side + side - 2*halo - 1) / (side - 2*halo);
+    }
+
+    // first pixel of the tiles along an axis of n pixels, evenly spread
+    private static int[] starts(int n, int side, int halo)
+    {
+        if (side >= n) return new int[] {0};
+        if (side <= 2*halo) return new int[] {0, 0};
+        int[] res = new int[tiles(n, side, halo)];
+        for (int k = 0 ; k < res.length ; k++)
+            res[k] = (int)((long)k*(n - side) / (res.length - 1));
+        return res;
+    }
+
+    // pixels shared by tiles k and k+1 along an axis, 0 when there is no tile k or k+1
+    private static int overlap(int[] starts, int side, int k)
+    {
+        if (k < 0 || k+1 >= starts.length) return 0;
+        return starts[k] + side - starts[k+1];
+    }
+
+    // weights of the pixels of every tile along an axis, raised cosine ramps across the overlaps
+    private static float[][] weights(int[] starts, int side)
+    {
+        float[][] res = new float[starts.length][side];
+        for (int k = 0 ; k < starts.length ; k++) {
+            int before = overlap(starts, side, k-1), after = overlap(starts, side, k);
+            for (int j = 0 ; j < side ; j++) {
+                double w = 1;
+                if (j < before) w *= ramp((j + 0.5) / before);
+                if (j >= side - after) w *= 1 - ramp((j - side + after + 0.5) / after);
+                res[k][j] = (float)w;
+            }
+        }
+        return res;
+    }
+
+    // from 0 to 1 for t from 0 to 1, ramp(t) + ramp(1-t) = 1
+    private static double ramp(double t)
+    {
+        double s = Math.sin(0.5*Math.PI*t);
+        return s*s;
+    }
+
+    // the tiles of one plane : reads them and blends them back into its pixels, tiles must be written in order
+    // the parts of a tile overlapping the next ones wait in below (rows shared with the next row of tiles, whole
+    // width) and beside (columns shared with the next tile of the row) until these tiles add theirs
+    public final class Blender {
+
+        private final int dim;
+
+        // maximum of each channel of the whole plane, every tile is normalised by it
+        private float[] max = null;
+
+        private float[][] above, below, beside, next;
+
+        public Blender(int dim)
+        {
+            // -
+            this.dim = dim;
+        }
+
+        // number of tiles
+        public int count()
+        {
+            // -
+            return Tiling.this.count();
+        }
+
+        // u[offset..] = tile k of pixels (as PixelIO.read, one block of tileWidth*tileHeight per channel),
+        // max[maxOffset..] = the maximum of each channel of the whole plane
+        public void read(int k, Object pixels, float[] cTable, boolean bLog, FloatBuffer u, int offset, float[] max, int maxOffset)
+        {
+            if (this.max == null) {
+                this.max = new float[dim];
+                Arrays.fill(this.max, Float.NEGATIVE_INFINITY);
+                PixelIO.readRegion(pixels, width, 0, 0, width, height, cTable, bLog, null, 0, this.max, 0);
+            }
+            System.arraycopy(this.max, 0, max, maxOffset, dim);
+            PixelIO.readRegion(pixels, width, left(k), top(k), tileWidth, tileHeight, cTable, bLog, u, offset, new float[dim], 0);
+        }
+
+        // adds tile k of u[offset..] with its weights, the pixels no later tile overlaps are written into pixels
+        public void write(int k, Object pixels, float[] cTable, boolean bLog, FloatBuffer u, int offset)
+        {
+            int r = k / xs.length, c = k % xs.length;
+            int th = tileHeight, tw = tileWidth, size = th*tw;
+            if (k == 0) {
+                int rows = 0;
+                for (int i = 0 ; i+1 < ys.length ; i++) rows = Math.max(rows, overlap(ys, th, i));
+                above  = new float[dim][rows*width];
+                below  = new float[dim][rows*width];
+                beside = new float[dim][size];
+                next   = new float[dim][size];
+            } else if (c == 0) {
+                float[][] tmp = above;
+                above = below;
+                below = tmp;
+                for (float[] b : below) Arrays.fill(b, 0);
+            }
+            float[][] tmp = beside;
+            beside = next;
+            next   = tmp;
+
+            int top = overlap(ys, th, r-1), bottom = overlap(ys, th, r);
+            int lft = overlap(xs, tw, c-1), rgt = overlap(xs, tw, c);
+            int x0 = xs[c], y0 = ys[r];
+            float[] wr = wy[r], wc = wx[c];
+            float[][] a = above, b = below, h = beside, n = next;
+            Parallel.forRange(th, Math.max(1, Parallel.GRAIN / tw), (start, end) -> {
+                FloatBuffer s = u.duplicate();
+                float[][] row = new float[dim][tw];
+                for (int i = start ; i < end ; i++) {
+                    boolean shared = (i >= th - bottom);
+                    for (int m = 0 ; m < dim ; m++) {
+                        float[] v = row[m];
+                        s.position(offset + m*size + i*tw);
+                        s.get(v);
+                        for (int j = 0 ; j < tw ; j++)
+                            v[j] *= wr[i]*wc[j];
+                        if (i < top) {
+                            float[] p = a[m];
+                            int o = i*width + x0;
+                            for (int j = 0 ; j < tw ; j++) {
+                                v[j] += p[o+j];
+                                p[o+j] = 0;
+                            }
+                        }
+                        if (shared) {
+                            float[] p = b[m];
+                            int o = (i - th + bottom)*width + x0;
+                            for (int j = 0 ; j < tw ; j++)
+                                p[o+j] += v[j];
+                        } else {
+                            float[] p = h[m], q = n[m];
+                            for (int j = 0 ; j < lft ; j++)
+                                v[j] += p[i*tw + j];
+                            for (int j = tw - rgt ; j < tw ; j++)
+                                q[i*tw + j - tw + rgt] = v[j];
+                        }
+                    }
+                    if (!shared) PixelIO.writeRow(row, tw - rgt, pixels, width, x0, y0 + i, cTable, bLog);
+                }
+            });
+
+            if (k == count() - 1) above = below = beside = next = null;
+        }
+
+    }
+
+}
@@ -0,0 +1,108 @@
+// ------------------------------------------------- //
+//                                                   //
+//           VSNR 2D : DENOISING BACKEND SPI         //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.nio.FloatBuffer;
+
+
+// objectives : a place where VSNR 2D can run (CUDA library, Java CPU engine, ...)
+// implementations are listed by Backends, other jars can add theirs through
+// META-INF/services/vsnr2d.VsnrBackend
+public interface VsnrBackend {
+
+    // short name used in the parameter file (Backend: cuda)
+    public String getName();
+
+    // human readable capabilities (device, cores, ...)
+    public String getDescription();
+
+    // true when the backend can actually run on this machine
+    public boolean isAvailable();
+
+    // the higher the faster, used to pick a backend automatically
+    public int getPriority();
+
+    // return dimBlocks max (meaningless but positive for non CUDA backends)
+    public int getMaxBlocks();
+
+    // same contract as VSNR_2D_FIJI_GPU : u = denoised(u0), psis is the flat list of filters
+    public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int n0, int n1, int nit, float beta, FloatBuffer u, int nBlock, float max);
+
+    // true when direct (off-heap) buffers avoid a copy, false when heap arrays are preferred
+    public default boolean usesDirectBuffers()
+    {
+        // -
+        return false;
+    }
+
+    // number of n0 x n1 planes one session can denoise together in the available memory
+    public default int getMaxBatch(int n0, int n1)
+    {
+        // -
+        return 1;
+    }
+
+    // bytes of an n0 x n1 session of one plane (work arrays and plans), 0 when unknown
+    public default long getSessionBytes(int n0, int n1)
+    {
+        // -
+        return 0;
+    }
+
+    // bytes the sessions can use on one of the getDeviceCount devices, Long.MAX_VALUE when unknown
+    public default long getFreeMemory(int device)
+    {
+        // -
+        return Long.MAX_VALUE;
+    }
+
+    // number of devices the backend can drive at the same time (one worker each), 1 without devices
+    public default int getDeviceCount()
+    {
+        // -
+        return 1;
+    }
+
+    // getMaxBatch on one of the getDeviceCount devices
+    public default int getMaxBatch(int device, int n0, int n1)
+    {
+        // -
+        return getMaxBatch(n0, n1);
+    }
+
+    // open on one of the getDeviceCount devices, the session keeps it whatever the thread calling it
+    public default VsnrSession open(int device, int n0, int n1, int batch, int nBlock)
+    {
+        // -
+        return open(n0, n1, batch, nBlock);
+    }
+
+    // a session for up to batch n0 x n1 planes per denoiseBatch call, by default one plane at a time
+    public default VsnrSession open(int n0, int n1, int batch, int nBlock)
+    {
+        // -
+        return open(n0, n1, nBlock);
+    }
+
+    // a session for n0 x n1 planes, by default every call goes through denoise
+    public default VsnrSession open(int n0, int n1, int nBlock)
+    {
+        VsnrBackend backend = this;
+        return new VsnrSession() {
+            @Override
+            public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int nit, float beta, FloatBuffer u, float max)
+            {
+                // -
+                backend.denoise(psis, length, u0, n0, n1, nit, beta, u, nBlock, max);
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+}
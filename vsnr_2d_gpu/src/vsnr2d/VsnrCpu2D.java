@@ -0,0 +1,490 @@
+// ------------------------------------------------- //
+//                                                   //
+//              VSNR 2D CPU ENGINE (JAVA)            //
+//                                                   //
+// ------------------------------------------------- //
+// Original algorithm :                              //
+//   Jerome FEHRENBACH, Pierre WEISS                 //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.util.Arrays;
+
+
+// objectives : pure Java port of vsnr2d.cu for machines without a CUDA device
+// every pass is split over the fork-join pool, arrays follow the cuFFT layouts
+public class VsnrCpu2D {
+
+    // same contract as VSNR_2D_FIJI_GPU
+    public void denoise(float[] psis, int length, float[] u0, int n0, int n1, int nit, float beta, float[] u, float max)
+    {
+        // -
+        new Session(n0, n1).denoise(psis, length, u0, nit, beta, u, max);
+    }
+
+    // plans, fd1 / fd2 and work buffers of one plane size, see VSNR_2D_OPEN
+    // a session is not thread safe, open one per thread
+    public static class Session {
+
+        private final int n0, n1, n, m;
+        private final RealFFT2D fft;
+
+        private final float[] fd1, fd2;
+        private final float[] gu0, fpsi, fphi1, fphi2, fphi, ftmp1, ftmp2, fx;
+        private final float[] d1u0, d2u0, tmp1, tmp2, y1, y2, lambda1, lambda2;
+
+        // true once y1, y2, lambda1 and lambda2 hold the state the last plane ended with
+        private boolean state = false;
+
+        public Session(int n0, int n1)
+        {
+            this.n0 = n0;
+            this.n1 = n1;
+            this.n  = n0*n1;
+            this.m  = n0*(n1/2+1);
+
+            fft = RealFFT2D.get(n0, n1);
+
+            fd1 = new float[2*m];
+            fd2 = new float[2*m];
+            setfd1(fd1, n0, n1); // fd1 = fftn(d1);
+            setfd2(fd2, n0, n1); // fd2 = fftn(d2);
+
+            gu0     = new float[n];
+            fpsi    = new float[2*m];
+            fphi1   = new float[2*m];
+            fphi2   = new float[2*m];
+            fphi    = new float[m];
+            ftmp1   = new float[2*m];
+            ftmp2   = new float[2*m];
+            fx      = new float[2*m];
+            d1u0    = new float[n];
+            d2u0    = new float[n];
+            tmp1    = new float[n];
+            tmp2    = new float[n];
+            y1      = new float[n];
+            y2      = new float[n];
+            lambda1 = new float[n];
+            lambda2 = new float[n];
+        }
+
+        // bytes of the work arrays of an n0 x n1 session
+        public static long bytes(int n0, int n1)
+        {
+            long n = (long)n0*n1;
+            long m = (long)n0*(n1/2+1);
+            return 4*(9*n + 17*m);
+        }
+
+        // see VSNR_2D_DENOISE
+        public void denoise(float[] psis, int length, float[] u0, int nit, float beta, float[] u, float max)
+        {
+            // -
+            denoise(psis, length, u0, nit, beta, VsnrSession.Options.DEFAULT, u, max);
+        }
+
+        // see VSNR_2D_DENOISE_BATCH : with opts.warm, the ADMM starts from the state the last plane of the session
+        // ended with (the same plane of the previous frame), returns the number of iterations run
+        public int denoise(float[] psis, int length, float[] u0, int nit, float beta, VsnrSession.Options opts, float[] u, float max)
+        {
+            // filters of (psis, n0, n1), cached across planes
+            FilterBank bank = FilterBank.get(psis, length, n0, n1);
+
+            // 1. u0 / max, and its norm in the same pass
+            float norm = divide(u0, gu0, n, max);
+
+            // 2. Prepares filters : fftn(psi) = sqrt(||u0||).fftn(psi(1))
+            scale(bank.fpsi, fpsi, 2*m, (float)Math.sqrt(norm));
+
+            // 3. Denoises the image, 4. u * max (the last pass of admm)
+            return admm(gu0, nit, beta, opts.tol, opts.alpha, opts.adaptive, opts.warm && state, u, max);
+        }
+
+        // Main function, see VSNR_ADMM_GPU, returns the number of iterations run
+        private int admm(float[] u0, int nit, float beta, float tol, float alpha, boolean adaptive, boolean warm, float[] u, float max)
+        {
+            float[] fu0 = fx; // fx is unused before the main loop
+
+            fft.forward(u0, fu0); // fu0 = fftn(u0);
+
+            // Computes d1u0 and d2u0
+            productCarray(fd1, fu0, ftmp1, m);
+            fft.inverse(ftmp1, d1u0); // d1u0 = ifftn(fd1.*fu0);
+            normalize(d1u0, n);
+
+            productCarray(fd2, fu0, ftmp2, m);
+            fft.inverse(ftmp2, d2u0); // d2u0 = ifftn(fd2.*fu0);
+            normalize(d2u0, n);
+
+            // Computes fphi1, fphi2 and fphi
+            productCarray(fd1, fpsi, fphi1, m); // fphi1 = fpsi.*fd1;
+            productCarray(fd2, fpsi, fphi2, m); // fphi2 = fpsi.*fd2;
+            computePhi(fphi1, fphi2, fphi, beta, m);
+
+            // Initialization, tmp = beta*y - lambda = 0, or y and lambda kept from the previous plane (warm start)
+            state = false;
+            if (warm) {
+                betayMLambda(lambda1, lambda2, y1, y2, tmp1, tmp2, beta, n);
+            } else {
+                Arrays.fill(y1, 0.0f);
+                Arrays.fill(y2, 0.0f);
+                Arrays.fill(lambda1, 0.0f);
+                Arrays.fill(lambda2, 0.0f);
+                Arrays.fill(tmp1, 0.0f);
+                Arrays.fill(tmp2, 0.0f);
+            }
+            Arrays.fill(fx, 0.0f);
+
+            // Main algorithm, three passes over the arrays besides the FFTs
+            int k;
+            for (k = 0 ; k < nit ; ++k) {
+
+                // -------------------------------------------------------------
+                // First step, x update : (I+beta ATA)x = AT (-lambda+beta*ATy)
+                // -------------------------------------------------------------
+                // fx = (conj(fphi1).*fftn(tmp1) + conj(fphi2).*fftn(tmp2)) ./ fphi;
+                fft.forward(tmp1, ftmp1);
+                fft.forward(tmp2, ftmp2);
+                updateFx(fphi1, fphi2, ftmp1, ftmp2, fphi, fx, m);
+
+                // ---------------------------------------------------------------------
+                // Second and third steps, y = prox_{f1/beta}(Ax+lambda/beta) and lambda
+                // ---------------------------------------------------------------------
+                productPhi(fphi1, fphi2, fx, ftmp1, ftmp2, n, m);
+                fft.inverse(ftmp1, tmp1); // tmp1 = Ax1
+                fft.inverse(ftmp2, tmp2); // tmp2 = Ax2
+                double[] res = updateYLambda(d1u0, d2u0, tmp1, tmp2, lambda1, lambda2, y1, y2, beta, alpha, tol > 0 || adaptive, n);
+
+                // ----------------------------------------------------
+                // Stops once the plane has converged, rebalances beta
+                // ----------------------------------------------------
+                if (tol > 0 && converged(res, tol)) {
+                    k++;
+                    break;
+                }
+                if (adaptive && 2*(k+1) <= nit) {
+                    float next = adaptBeta(res, beta);
+                    if (next != beta) {
+                        beta = next;
+                        computePhi(fphi1, fphi2, fphi, beta, m);
+                        betayMLambda(lambda1, lambda2, y1, y2, tmp1, tmp2, beta, n);
+                    }
+                }
+
+            }
+
+            // Last but not the least : u = (u0 - (psi * x)).max
+            productCarray(fx, fpsi, ftmp1, m);
+            fft.inverse(ftmp1, u);
+            restore(u0, u, n, max);
+            state = true;
+            return k;
+        }
+
+    }
+
+    // -------------------------------------------------------------------------
+
+    // fftn of d1 (d1[0] = 1; d1[n1-1] = -1) : 1 - exp(2i.pi.k1/n1)
+    // (setd1 leaves a single 1 when n1 == 1)
+    static void setfd1(float[] fd1, int n0, int n1)
+    {
+        int h = n1/2+1;
+        for (int j = 0 ; j < n0 ; j++) {
+            for (int k = 0 ; k < h ; k++) {
+                double a = 2.0 * Math.PI * k / n1;
+                fd1[2*(j*h+k)]   = (float)(n1 == 1 ? 1.0 : 1.0 - Math.cos(a));
+                fd1[2*(j*h+k)+1] = (float)(-Math.sin(a));
+            }
+        }
+    }
+
+    // fftn of d2 (d2[0] = 1; d2[n-n1] = -1) : 1 - exp(2i.pi.k0/n0)
+    static void setfd2(float[] fd2, int n0, int n1)
+    {
+        int h = n1/2+1;
+        for (int j = 0 ; j < n0 ; j++) {
+            double a = 2.0 * Math.PI * j / n0;
+            float re = (float)(n0 == 1 ? 1.0 : 1.0 - Math.cos(a)), im = (float)(-Math.sin(a));
+            for (int k = 0 ; k < h ; k++) {
+                fd2[2*(j*h+k)]   = re;
+                fd2[2*(j*h+k)+1] = im;
+            }
+        }
+    }
+
+    // Sets Gabor
+    static void createGabor(float[] psi, int n0, int n1, float level, float sigmax, float sigmay, float angle, float phase, float lambda)
+    {
+        int n = n0*n1;
+        float theta    = (float)(angle * Math.PI / 180.0);
+        float offset_x = (float)((n1 / 2.0) + 1.0);
+        float offset_y = (float)((n0 / 2.0) + 1.0);
+        float ct = (float)Math.cos(theta);
+        float st = (float)Math.sin(theta);
+        float ph = (float)(phase * Math.PI / 180.0);
+        float nn = (float)(Math.PI / Math.sqrt(sigmax*sigmay));
+
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            for (int k = start ; k < end ; k++) {
+                int i = k % n1;
+                int j = k / n1;
+                float x = offset_x - i;
+                float y = offset_y - j;
+                float x_theta = (x * ct) + (y * st);
+                float y_theta = (y * ct) - (x * st);
+                double val = Math.exp(-0.5*((x_theta/sigmax)*(x_theta/sigmax) + (y_theta/sigmay)*(y_theta/sigmay)))
+                           * Math.cos((x_theta*lambda/sigmax)+ph);
+                psi[k] = (float)(level * val / nn);
+            }
+        });
+    }
+
+    // Sets dirac
+    static void createDirac(float[] psi, float val, int n)
+    {
+        Arrays.fill(psi, 0, n, 0.0f);
+        psi[0] = val;
+    }
+
+    // u = u0 / val, returns the l2 norm of u (accumulated in double)
+    static float divide(float[] u0, float[] u, int n, float val)
+    {
+        double s = Parallel.sum(n, Parallel.GRAIN, (start, end) -> {
+            double acc = 0;
+            for (int i = start ; i < end ; i++) {
+                float tmp = u0[i] / val;
+                u[i] = tmp;
+                acc += (double)tmp * tmp;
+            }
+            return acc;
+        });
+        return (float)Math.sqrt(s);
+    }
+
+    // out = in*val
+    static void scale(float[] in, float[] out, int n, float val)
+    {
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++)
+                out[i] = in[i] * val;
+        });
+    }
+
+    // u = (u0 - u/n)*val, u an inverse FFT not normalized yet
+    static void restore(float[] u0, float[] u, int n, float val)
+    {
+        float fn = (float)n;
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++)
+                u[i] = (u0[i] - u[i] / fn) * val;
+        });
+    }
+
+    // Normalize an array
+    static void normalize(float[] u, int n)
+    {
+        float fn = (float)n;
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++)
+                u[i] = u[i] / fn;
+        });
+    }
+
+    // Computes out = u1.*u2
+    static void productCarray(float[] u1, float[] u2, float[] out, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                float a1 = u1[2*i], b1 = u1[2*i+1];
+                float a2 = u2[2*i], b2 = u2[2*i+1];
+                out[2*i]   = (a1 * a2) - (b1 * b2);
+                out[2*i+1] = (b1 * a2) + (a1 * b2);
+            }
+        });
+    }
+
+    // Compute Phi (real part only, the imaginary part is 0)
+    static void computePhi(float[] fphi1, float[] fphi2, float[] fphi, float beta, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                float a1 = fphi1[2*i], b1 = fphi1[2*i+1];
+                float a2 = fphi2[2*i], b2 = fphi2[2*i+1];
+                fphi[i] = 1 + beta*(a1*a1 + b1*b1 + a2*a2 + b2*b2);
+            }
+        });
+    }
+
+    // Computes tmpi = -lambdai + beta * yi
+    static void betayMLambda(float[] lambda1, float[] lambda2, float[] y1, float[] y2, float[] tmp1, float[] tmp2, float beta, int n)
+    {
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                tmp1[i] = (beta * y1[i]) - lambda1[i];
+                tmp2[i] = (beta * y2[i]) - lambda2[i];
+            }
+        });
+    }
+
+    // x update in one pass : fx = (conj(fphi1).ftmp1 + conj(fphi2).ftmp2) / fphi
+    static void updateFx(float[] fphi1, float[] fphi2, float[] ftmp1, float[] ftmp2, float[] fphi, float[] fx, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                float a1 = fphi1[2*i], b1 = fphi1[2*i+1], c1 = ftmp1[2*i], d1 = ftmp1[2*i+1];
+                float a2 = fphi2[2*i], b2 = fphi2[2*i+1], c2 = ftmp2[2*i], d2 = ftmp2[2*i+1];
+                float f = 1 / fphi[i];
+                fx[2*i]   = ((a1 * c1) + (b1 * d1) + (a2 * c2) + (b2 * d2)) * f;
+                fx[2*i+1] = ((a1 * d1) - (b1 * c1) + (a2 * d2) - (b2 * c2)) * f;
+            }
+        });
+    }
+
+    // spectra of Ax in one pass : ftmpi = fphii.fx / n, the 1/n of the inverse FFTs (normalize) folded in
+    static void productPhi(float[] fphi1, float[] fphi2, float[] fx, float[] ftmp1, float[] ftmp2, int n, int m)
+    {
+        float f = 1.0f / n;
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                float a = fx[2*i] * f, b = fx[2*i+1] * f;
+                float a1 = fphi1[2*i], b1 = fphi1[2*i+1];
+                float a2 = fphi2[2*i], b2 = fphi2[2*i+1];
+                ftmp1[2*i]   = (a1 * a) - (b1 * b);
+                ftmp1[2*i+1] = (b1 * a) + (a1 * b);
+                ftmp2[2*i]   = (a2 * a) - (b2 * b);
+                ftmp2[2*i+1] = (b2 * a) + (a2 * b);
+            }
+        });
+    }
+
+    // y and lambda updates in one pass, tmp = Ax on entry (see update_y_res and update_lambda) :
+    // r = alpha.Ax + (1-alpha).y (over-relaxation), y = prox_{f1/beta}(r+lambda/beta), lambda = lambda + beta*(r - y)
+    // and tmp = beta*y - lambda for the next x update (betayMLambda), the prox has no branch so that the loop can be
+    // vectorized by the JIT
+    // returns the sums ||Ax - y||^2 (primal residual), ||y - previous y||^2 (dual residual), ||Ax||^2 and ||y||^2
+    // when sums (they cost as much as the rest of the pass), null otherwise
+    static double[] updateYLambda(float[] d1u0, float[] d2u0, float[] tmp1, float[] tmp2, float[] lambda1, float[] lambda2, float[] y1, float[] y2, float beta, float alpha, boolean sums, int n)
+    {
+        double[] res = new double[4];
+        float ib = 1 / beta;
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            double rp = 0, rd = 0, ax = 0, ny = 0;
+            for (int i = start ; i < end ; i++) {
+                float x1 = tmp1[i], x2 = tmp2[i];
+                float p1 = y1[i], p2 = y2[i];
+                float l1 = lambda1[i], l2 = lambda2[i];
+                float r1 = alpha * x1 + (1 - alpha) * p1;
+                float r2 = alpha * x2 + (1 - alpha) * p2;
+                float t1 = d1u0[i] - (r1 + (l1 * ib));
+                float t2 = d2u0[i] - (r2 + (l2 * ib));
+                float ng = (float)Math.sqrt((t1 * t1) + (t2 * t2));
+                float s  = (ng > ib ? 1.0f - ib / ng : 0.0f);
+                float z1 = d1u0[i] - t1 * s;
+                float z2 = d2u0[i] - t2 * s;
+
+                if (sums) {
+                    rp += (x1 - z1) * (x1 - z1) + (x2 - z2) * (x2 - z2);
+                    rd += (z1 - p1) * (z1 - p1) + (z2 - p2) * (z2 - p2);
+                    ax += (x1 * x1) + (x2 * x2);
+                    ny += (z1 * z1) + (z2 * z2);
+                }
+                l1 += beta * (r1 - z1);
+                l2 += beta * (r2 - z2);
+                y1[i] = z1;
+                y2[i] = z2;
+                lambda1[i] = l1;
+                lambda2[i] = l2;
+                tmp1[i] = (beta * z1) - l1;
+                tmp2[i] = (beta * z2) - l2;
+            }
+            synchronized (res) {
+                res[0] += rp;
+                res[1] += rd;
+                res[2] += ax;
+                res[3] += ny;
+            }
+        });
+        return (sums ? res : null);
+    }
+
+    // true when the residuals summed by updateYLambda are below tol, relative to the size of Ax and y :
+    // ||Ax - y|| <= tol.max(||Ax||, ||y||) and ||y - previous y|| <= tol.||y|| (see converged)
+    static boolean converged(double[] res, float tol)
+    {
+        double primal = Math.sqrt(res[0]), dual = Math.sqrt(res[1]);
+        double ax = Math.sqrt(res[2]), y = Math.sqrt(res[3]);
+        return (primal <= tol * Math.max(ax, y) && dual <= tol * y);
+    }
+
+    // residual balancing : beta doubled when the relative primal residual ||Ax - y|| / max(||Ax||, ||y||) is 10 times
+    // the relative dual residual ||y - previous y|| / ||y|| (the two ratios of converged), halved in the opposite case
+    // (see adapt_beta)
+    static float adaptBeta(double[] res, float beta)
+    {
+        double primal = Math.sqrt(res[0] / Math.max(Math.max(res[2], res[3]), Double.MIN_NORMAL));
+        double dual = Math.sqrt(res[1] / Math.max(res[3], Double.MIN_NORMAL));
+        if (primal > 10 * dual) return 2 * beta;
+        if (dual > 10 * primal) return beta / 2;
+        return beta;
+    }
+
+    // Sets Psi = |Psi|^2
+    static void computeSquaredNorm(float[] fpsi, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                fpsi[2*i]   = fpsi[2*i]*fpsi[2*i] + fpsi[2*i+1]*fpsi[2*i+1];
+                fpsi[2*i+1] = 0.0f;
+            }
+        });
+    }
+
+    // Sets Psi = sqrtf(|Psi|^2)
+    static void computeNorm(float[] fpsi, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                fpsi[2*i]   = (float)Math.sqrt(fpsi[2*i]*fpsi[2*i] + fpsi[2*i+1]*fpsi[2*i+1]);
+                fpsi[2*i+1] = 0.0f;
+            }
+        });
+    }
+
+    // Sets fsum = sqrtf(fsum)
+    static void computeSqrtf(float[] fsum, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                fsum[2*i]   = (float)Math.sqrt(fsum[2*i]);
+                fsum[2*i+1] = 0.0f;
+            }
+        });
+    }
+
+    // max(fpsi * fd), both real parts are non negative
+    static float maxProduct(float[] fpsi, float[] fd, int m)
+    {
+        float[] res = new float[1];
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            float mx = 0.0f;
+            for (int i = start ; i < end ; i++)
+                mx = Math.max(mx, Math.abs(fpsi[2*i] * fd[2*i]));
+            synchronized (res) {
+                res[0] = Math.max(res[0], mx);
+            }
+        });
+        return res[0];
+    }
+
+    // Sets fsum += fpsitemp / alpha
+    static void updatePsi(float[] fpsitemp, float[] fsum, float alpha, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++)
+                fsum[2*i] += fpsitemp[2*i] / alpha;
+        });
+    }
+
+}
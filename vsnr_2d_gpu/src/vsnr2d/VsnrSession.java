@@ -0,0 +1,89 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 2D : DENOISING SESSION            //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+
+// objectives : plans and work memory of one plane size, kept alive between planes
+// opened by VsnrBackend.open, a session is used by one thread at a time
+public interface VsnrSession extends AutoCloseable {
+
+    // same contract as VSNR_2D_FIJI_GPU for the plane size of the session
+    public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int nit, float beta, FloatBuffer u, float max);
+
+    // denoises count planes stored one after the other in u0 into u, max[p] is the maximum of plane p
+    // by default the planes go through denoise one at a time
+    public default void denoiseBatch(FloatBuffer psis, int length, FloatBuffer u0, int count, int nit, float beta, FloatBuffer u, float[] max)
+    {
+        int n = u0.remaining() / count;
+        for (int p = 0 ; p < count ; p++)
+            denoise(psis, length, plane(u0, p, n), nit, beta, plane(u, p, n), max[p]);
+    }
+
+    // denoiseBatch with the solver options (stopping tolerance, over-relaxation, adaptive beta, warm start),
+    // iters[p] = iterations run for plane p
+    // by default the backend ignores them and runs nit iterations from zero
+    public default void denoiseBatch(FloatBuffer psis, int length, FloatBuffer u0, int count, int nit, float beta, Options opts, FloatBuffer u, float[] max, int[] iters)
+    {
+        denoiseBatch(psis, length, u0, count, nit, beta, u, max);
+        Arrays.fill(iters, 0, count, nit);
+    }
+
+    // releases the work memory, the plans stay in the process-wide cache
+    @Override
+    public void close();
+
+    // plane p of n floats of a batch buffer
+    public static FloatBuffer plane(FloatBuffer b, int p, int n)
+    {
+        FloatBuffer d = b.duplicate();
+        d.position(b.position() + p*n);
+        d.limit(d.position() + n);
+        return d.slice();
+    }
+
+    // objectives : the ADMM options on top of nit and beta, immutable
+    public static final class Options {
+
+        // nit iterations, no over-relaxation, beta kept, from zero
+        public static final Options DEFAULT = new Options(0, 1, false, false);
+
+        // stop before nit iterations once the primal and dual residuals of a plane are below tol
+        // (see VsnrCpu2D.converged, 0 : always nit iterations)
+        public final float tol;
+
+        // over-relaxation of the y and lambda updates (1 : none)
+        public final float alpha;
+
+        // beta rebalanced from the residuals during the first half of the iterations (see VsnrCpu2D.adaptBeta)
+        public final boolean adaptive;
+
+        // plane p starts from the ADMM state (y and lambda) plane p of the previous call ended with, e.g. the same
+        // plane of the previous frame of a time-lapse (from zero otherwise), the solution is the same, it is
+        // reached in fewer iterations when the planes are alike (see VSNR_2D_DENOISE_BATCH)
+        public final boolean warm;
+
+        public Options(float tol, float alpha, boolean adaptive, boolean warm)
+        {
+            this.tol      = tol;
+            this.alpha    = alpha;
+            this.adaptive = adaptive;
+            this.warm     = warm;
+        }
+
+        // the same options with or without the warm start
+        public Options warm(boolean warm)
+        {
+            // -
+            return (warm == this.warm ? this : new Options(tol, alpha, adaptive, warm));
+        }
+
+    }
+
+}
@@ -0,0 +1,68 @@
+// ------------------------------------------------- //
+//                                                   //
+//          VSNR 2D CPU : COMPLEX 1D FFT TEST        //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.util.Random;
+import junit.framework.TestCase;
+
+
+// objectives : ComplexFFT against a naive DFT, forward and inverse
+// the lengths cover the Stockham radices and Bluestein with an odd and an even number of passes
+public class ComplexFFTTest extends TestCase {
+
+    private static final int[] LENGTHS = { 1, 2, 3, 8, 12, 60, 61, 67, 128, 131, 134, 137, 139, 142, 262, 509, 511, 1000 };
+
+    public void testForward()
+    {
+        // -
+        for (int n : LENGTHS) check(n, false);
+    }
+
+    public void testInverse()
+    {
+        // -
+        for (int n : LENGTHS) check(n, true);
+    }
+
+    // the result is relative to the largest coefficient (the sums grow as n)
+    private static void check(int n, boolean inverse)
+    {
+        Random rnd = new Random(n);
+        float[] data = new float[2*n];
+        for (int k = 0 ; k < 2*n ; k++) data[k] = rnd.nextFloat() - 0.5f;
+        double[] ref = dft(data, n, inverse);
+
+        ComplexFFT fft = new ComplexFFT(n);
+        fft.transform(data, new float[fft.workSize()], inverse);
+
+        double err = 0, max = 0;
+        for (int k = 0 ; k < 2*n ; k++) {
+            err = Math.max(err, Math.abs(data[k] - ref[k]));
+            max = Math.max(max, Math.abs(ref[k]));
+        }
+        assertTrue("length " + n + (inverse ? " inverse" : " forward") + " : error " + err, err <= 1e-4 * max);
+    }
+
+    private static double[] dft(float[] x, int n, boolean inverse)
+    {
+        double[] y = new double[2*n];
+        double sign = (inverse ? 1 : -1);
+        for (int k = 0 ; k < n ; k++) {
+            double re = 0, im = 0;
+            for (int j = 0 ; j < n ; j++) {
+                double a = sign * 2.0 * Math.PI * (((long)j*k) % n) / n;
+                double c = Math.cos(a), s = Math.sin(a);
+                re += x[2*j]*c - x[2*j+1]*s;
+                im += x[2*j]*s + x[2*j+1]*c;
+            }
+            y[2*k]   = re;
+            y[2*k+1] = im;
+        }
+        return y;
+    }
+
+}
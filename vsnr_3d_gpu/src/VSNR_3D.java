@@ -25,10 +25,10 @@ import java.awt.Checkbox;
 import java.awt.CheckboxGroup;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Scanner;
 import java.util.Vector;
-import com.sun.jna.Library;
-import com.sun.jna.Native;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
@@ -37,9 +37,22 @@ import ij.gui.GenericDialog;
 import ij.gui.StackWindow;
 import ij.gui.DialogListener;
 import ij.io.OpenDialog;
+import ij.io.SaveDialog;
+import ij.plugin.FileInfoVirtualStack;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 import ij.measure.Calibration;
+import vsnr3d.Backends;
+import vsnr3d.BufferPool;
+import vsnr3d.MappedStack;
+import vsnr3d.Metrics;
+import vsnr3d.Padding;
+import vsnr3d.Pipeline;
+import vsnr3d.SlabPlanner;
+import vsnr3d.PixelIO;
+import vsnr3d.VsnrBackend;
+import vsnr3d.VsnrSession;
+import vsnr3d.Watch;
 
 
 // objectives : denoising 3D Images
@@ -53,8 +66,8 @@ public class VSNR_3D implements PlugInFilter {
     private int frame;
     private int chan;
 
-    private int sBlock;
-    private int dBlock;
+    private int sBlock = 0;     // inner slices of the blocks, 0 : auto (see SlabPlanner)
+    private int dBlock = -1;    // overlapping slices, -1 : auto (see getHalo)
 
     private ArrayList<Float> listFilters = new ArrayList<Float>();
 
@@ -68,13 +81,33 @@ public class VSNR_3D implements PlugInFilter {
     private float thetaY = 0;
     private float thetaZ = 0;
 
-    private float beta   = 10;
+    private float beta   = 10;    // ADMM penalty, the initial one when adaptive
+    private boolean adaptive = false; // beta rebalanced from the primal and dual residuals
+    private float relaxation = 1;  // over-relaxation alpha in (0, 2), 1 : none
+    private boolean warmStart = false; // the blocks of frame t start from the state frame t-1 ended with (see Worker)
+    private boolean halfPrecision = false; // d.u0, y and lambda stored in half precision by the backends supporting it
+    private boolean metricsLine = false; // one JSON line of timings and throughput per run (see Metrics)
     private int   nit    = 20;
+    private float tolerance = 0; // relative residuals stopping the iterations, 0 : always nit iterations
     private int   nBlock;
+    private int   depth  = 2;
+
+    private int   cpuWorkers  = 0;
+    private int   memoryLimit = 0;
 
     private boolean bLog  = false;
 
-    private VsnrDllLoader dll = null;
+    // denoise into the image itself instead of a copy (see Halos)
+    private boolean inPlace = false;
+
+    // solve the blocks at FFT-friendly sizes, extended by mirror reflection (see Padding)
+    private boolean padding = true;
+    private Padding padded  = null;
+
+    private VsnrBackend backend     = null;
+    private String      backendName = Backends.AUTO;
+    private BufferPool  pool        = null;
+    private Metrics.Run run         = null; // timers and counters of the image being denoised
 
     // --------------------------------------------------------------------
 
@@ -84,18 +117,21 @@ public class VSNR_3D implements PlugInFilter {
         // exit if trying to treate a 2D image
         if (slice == 1) exitWindow("Use VSNR 2D for 2D images !");
 
-        // initialize the dll
-        initDll();
-        nBlock = dll.getMaxBlocks();
+        // pick the fastest available backend
+        initBackend();
+        nBlock = getMaxBlocks();
 
         // check if an image is open
         if (ip.equals(null)) {
             exitWindow("Open an image please !");
         } else {
             if (configuration()) {
+                initBackend();
                 //if (inputMethod == 0) printParams();
                 printParams();
-                new StackWindow(denoiseCuda3D());
+                ImagePlus result = denoiseCuda3D();
+                if (result == image) image.updateAndDraw();
+                else new StackWindow(result);
             }
         }
     }
@@ -109,11 +145,41 @@ public class VSNR_3D implements PlugInFilter {
         this.chan   = data[2];
         this.slice  = data[3];
         this.frame  = data[4];
-        this.sBlock = this.slice;
-        this.dBlock = 0;
         return DOES_ALL;
     }
 
+    // command line : the watch-folder daemon (see vsnr3d.Watch), an engine per parameter file
+    // the backend is selected once per engine, the sessions are opened for every volume (their size depends on it)
+    public static void main(String[] args)
+    {
+        Watch.run(args, "VSNR_GPU_3D.jar VSNR_3D", file -> {
+            VSNR_3D plugin = new VSNR_3D();
+            plugin.initBackend();
+            plugin.nBlock = plugin.getMaxBlocks();
+            if (!plugin.readFile(file)) throw new IllegalArgumentException(file + " is not conform");
+            plugin.initBackend();
+            plugin.printParams();
+            return new Watch.Engine() {
+
+                @Override
+                public ImagePlus denoise(ImagePlus img)
+                {
+                    plugin.setup(null, img);
+                    if (plugin.slice == 1) throw new IllegalArgumentException("a 2D image, use VSNR 2D");
+                    return plugin.denoiseCuda3D();
+                }
+
+                @Override
+                public void close()
+                {
+                    // -
+                    plugin.image = null;
+                }
+
+            };
+        });
+    }
+
     // refactor config operations
     private boolean configuration()
     {
@@ -167,10 +233,16 @@ public class VSNR_3D implements PlugInFilter {
     private boolean readFile()
     {
         OpenDialog od = new OpenDialog("Choose the file to read", "");
-        String tmp, path = od.getDirectory() + od.getFileName();
+        return readFile(new File(od.getDirectory() + od.getFileName()));
+    }
+
+    // reads a text file (see readFile), false when it is not conform
+    private boolean readFile(File file)
+    {
+        String tmp;
         Boolean error = false;
         try {
-            Scanner scanFile = new Scanner(new File(path));
+            Scanner scanFile = new Scanner(file);
             while (scanFile.hasNextLine() && !error) {
                 Scanner scanLine = new Scanner(scanFile.nextLine());
                 switch (getStringFlag(scanLine.next())) {
@@ -179,19 +251,20 @@ public class VSNR_3D implements PlugInFilter {
                         break;
                     case 2 :
                         tmp = scanLine.next();
-                        nBlock = (tmp.equals("auto") ? dll.getMaxBlocks() : Integer.parseInt(tmp));
+                        nBlock = (tmp.equals("auto") ? getMaxBlocks() : Integer.parseInt(tmp));
                         break;
                     case 3 :
                         bLog = Boolean.parseBoolean(scanLine.next());
                         break;
                     case 4 :
                         tmp = scanLine.next();
-                        sBlock = (tmp.equals("auto") ? slice : Integer.parseInt(tmp));
+                        sBlock = (tmp.equals("auto") ? 0 : Integer.parseInt(tmp));
+                        error = (sBlock < 0);
                         break;
                     case 5 :
                         tmp = scanLine.next();
-                        if (tmp.equals("auto")) dBlock = 0;
-                        else dBlock = (sBlock == slice ? 0 : Integer.parseInt(tmp));
+                        dBlock = (tmp.equals("auto") ? -1 : Integer.parseInt(tmp));
+                        error = (dBlock < -1);
                         break;
                     case 6 :
                         filterType = scanLine.next();
@@ -233,6 +306,52 @@ public class VSNR_3D implements PlugInFilter {
                             listFilters.add((float)thetaZ);
                         }
                         break;
+                    case 14 :
+                        backendName = scanLine.next();
+                        break;
+                    case 15 :
+                        depth = Integer.parseInt(scanLine.next());
+                        error = (depth < 0);
+                        break;
+                    case 16 :
+                        cpuWorkers = Integer.parseInt(scanLine.next());
+                        error = (cpuWorkers < 0);
+                        break;
+                    case 17 :
+                        tmp = scanLine.next();
+                        memoryLimit = (tmp.equals("auto") ? 0 : Integer.parseInt(tmp));
+                        error = (memoryLimit < 0);
+                        break;
+                    case 18 :
+                        inPlace = Boolean.parseBoolean(scanLine.next());
+                        break;
+                    case 19 :
+                        padding = Boolean.parseBoolean(scanLine.next());
+                        break;
+                    case 20 :
+                        tolerance = Float.parseFloat(scanLine.next());
+                        error = (tolerance < 0);
+                        break;
+                    case 21 :
+                        beta = Float.parseFloat(scanLine.next());
+                        error = (beta <= 0);
+                        break;
+                    case 22 :
+                        adaptive = Boolean.parseBoolean(scanLine.next());
+                        break;
+                    case 23 :
+                        relaxation = Float.parseFloat(scanLine.next());
+                        error = (relaxation <= 0 || relaxation >= 2);
+                        break;
+                    case 24 :
+                        halfPrecision = Boolean.parseBoolean(scanLine.next());
+                        break;
+                    case 25 :
+                        metricsLine = Boolean.parseBoolean(scanLine.next());
+                        break;
+                    case 26 :
+                        warmStart = Boolean.parseBoolean(scanLine.next());
+                        break;
                     case 0 :
                     default :
                         break;
@@ -268,6 +387,19 @@ public class VSNR_3D implements PlugInFilter {
         else if (str.equals("thetaX:"))      return 11;
         else if (str.equals("thetaY:"))      return 12;
         else if (str.equals("thetaZ:"))      return 13;
+        else if (str.equals("Backend:"))     return 14;
+        else if (str.equals("Queue_Depth:")) return 15;
+        else if (str.equals("Cpu_Workers:")) return 16;
+        else if (str.equals("Memory_Limit:")) return 17;
+        else if (str.equals("In_Place:"))     return 18;
+        else if (str.equals("Padding:"))      return 19;
+        else if (str.equals("Tolerance:"))    return 20;
+        else if (str.equals("Beta:"))         return 21;
+        else if (str.equals("Adaptive_Beta:")) return 22;
+        else if (str.equals("Relaxation:"))   return 23;
+        else if (str.equals("Half_Precision:")) return 24;
+        else if (str.equals("Metrics_Line:")) return 25;
+        else if (str.equals("Warm_Start:"))   return 26;
         else if (str.equals("***"))          return 0;
         else return (-1);
     }
@@ -278,18 +410,26 @@ public class VSNR_3D implements PlugInFilter {
         int k = 0;
         IJ.log("#VSNR-3D");
         IJ.log("Iteration_Number: " + nit);
-        if (nBlock == dll.getMaxBlocks())
+        IJ.log("Tolerance: " + tolerance);
+        IJ.log("Beta: " + beta);
+        IJ.log("Adaptive_Beta: " + adaptive);
+        IJ.log("Relaxation: " + relaxation);
+        IJ.log("Warm_Start: " + warmStart);
+        if (nBlock == getMaxBlocks())
             IJ.log("Num_Block: auto");
         else
             IJ.log("Num_Block: " + nBlock);
         IJ.log("Log: " + bLog);
-        if (sBlock == slice) {
-            IJ.log("sBlock: auto");
-            IJ.log("dBlock: auto");
-        } else {
-            IJ.log("sBlock: " + sBlock);
-            IJ.log("dBlock: " + dBlock);
-        }
+        IJ.log("Backend: " + backendName);
+        IJ.log("Queue_Depth: " + depth);
+        IJ.log("Cpu_Workers: " + cpuWorkers);
+        IJ.log("Memory_Limit: " + (memoryLimit == 0 ? "auto" : String.valueOf(memoryLimit)));
+        IJ.log("In_Place: " + inPlace);
+        IJ.log("Padding: " + padding);
+        IJ.log("Half_Precision: " + halfPrecision);
+        IJ.log("Metrics_Line: " + metricsLine);
+        IJ.log("sBlock: " + (sBlock == 0 ? "auto" : String.valueOf(sBlock)));
+        IJ.log("dBlock: " + (dBlock < 0 ? "auto" : String.valueOf(dBlock)));
         IJ.log("***");
         while (k < listFilters.size()) {
             if (listFilters.get(k) == 0) {
@@ -322,16 +462,40 @@ public class VSNR_3D implements PlugInFilter {
         GenericDialog g = new GenericDialog("Setting the number of iterations.");
 
         g.addNumericField("Iterations :", nit, 0);
-        g.addNumericField("Blocks :", sBlock, 0);
-        g.addNumericField("Add :", dBlock, 0);
+        g.addNumericField("Tolerance (0 : off) :", tolerance, 4);
+        g.addNumericField("Beta :", beta, 2);
+        g.addCheckbox("Adaptive beta", adaptive);
+        g.addNumericField("Relaxation (1 : off) :", relaxation, 2);
+        g.addCheckbox("Warm start across frames", warmStart);
+        g.addNumericField("Blocks (0 : auto) :", sBlock, 0);
+        g.addNumericField("Add (-1 : auto) :", dBlock, 0);
         g.addCheckbox("Multiplicative noise", false);
+        g.addChoice("Backend :", Backends.names(), backendName);
+        g.addNumericField("Queue depth :", depth, 0);
+        g.addNumericField("CPU workers :", cpuWorkers, 0);
+        g.addCheckbox("Denoise in place", inPlace);
+        g.addCheckbox("FFT-friendly padding", padding);
+        g.addCheckbox("Half precision state (cpu)", halfPrecision);
         g.pack();
         g.showDialog();
 
         nit    = (int)(g.getNextNumber());
-        sBlock = (int)(g.getNextNumber());
-        dBlock = (int)(g.getNextNumber());
+        tolerance = (float)Math.max(0, g.getNextNumber());
+        beta   = (float)g.getNextNumber();
+        adaptive = g.getNextBoolean();
+        relaxation = (float)g.getNextNumber();
+        warmStart = g.getNextBoolean();
+        if (!(beta > 0)) beta = 10;
+        if (!(relaxation > 0 && relaxation < 2)) relaxation = 1;
+        sBlock = Math.max(0, (int)(g.getNextNumber()));
+        dBlock = Math.max(-1, (int)(g.getNextNumber()));
         bLog   = g.getNextBoolean();
+        backendName = g.getNextChoice();
+        depth  = Math.max(0, (int)(g.getNextNumber()));
+        cpuWorkers = Math.max(0, (int)(g.getNextNumber()));
+        inPlace = g.getNextBoolean();
+        padding = g.getNextBoolean();
+        halfPrecision = g.getNextBoolean();
 
         return !(g.wasCanceled());
     }
@@ -407,89 +571,279 @@ public class VSNR_3D implements PlugInFilter {
 
         IJ.showProgress(0, slice*chan*frame-1);
         IJ.showStatus("Starting denoising ...");
-
-        ImagePlus tmpImage = image.duplicate();
-        ImagePlus result   = image.duplicate();
-        result.setTitle("vsnr_" + image.getTitle());
-
-        Image3D input, output;
-
-        int step  = Math.min(sBlock, slice);
-        int lStep = step;
-        int mod   = slice % step;
-        int inc   = Math.max(mod / (slice / step), 1);
-        int count = 0;
-        int dLeft, dRight, timer = 0;
+        run = Metrics.begin(image.getTitle());
+
+        // the blocks between read and write hold at most limit bytes of staging buffers
+        long limit = (memoryLimit > 0 ? memoryLimit*1024L*1024L : Runtime.getRuntime().maxMemory() / 2);
+        IJ.log("Memory limit : " + (limit >> 20) + " MB");
+
+        // a virtual stack is streamed from its file when it can be mapped (see openStream) : the blocks are read
+        // from the file and written into a copy of it, the volume is never loaded nor duplicated
+        // otherwise the blocks are read from the image and written into one copy of it, or into the image itself
+        // when in place, the original slices of the overlaps being kept aside until the blocks reading them are
+        // read (see Halos)
+        int dim = (image.getBitDepth() == 24 ? 3 : 1);
+        MappedStack[] stream = openStream();
+        ImagePlus result = null;
+        if (stream == null && inPlace && !image.getStack().isVirtual()) {
+            result = image;
+            result.changes = true;
+        } else if (stream == null) {
+            result = image.duplicate();
+            result.setTitle("vsnr_" + image.getTitle());
+        }
 
         FloatBuffer buff = getBuffPsi(listFilters);
         float[] d = getDeltas(image);
         int length = listFilters.size();
 
-        for (int k = 0 ; k < slice ; k += lStep) {
-
-            lStep = (count++ < mod ? step + inc : step);
-            
-            if (k == 0) {
-                dLeft  = 0;
-                dRight = 2*dBlock;
-            } else if (k+lStep > slice-1) {
-                dLeft  = 2*dBlock;
-                dRight = 0;
-            } else {
-                dLeft  = dBlock;
-                dRight = dBlock;
-            }
+        // the stacks and the table are fetched once, the stages run on their own threads
+        ImageStack source = (stream == null ? image.getStack() : stream[0]);
+        ImageStack target = (stream == null ? result.getStack() : stream[1]);
+        float[]    cTable = Image3D.getCTable(image);
+
+        // one worker per device of the backend, plus the CPU workers asked for
+        ArrayList<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0 ; i < backend.getDeviceCount() ; i++)
+            workers.add(new Worker(backend, i, buff, length, d));
+        for (int i = 0 ; i < cpuWorkers ; i++)
+            workers.add(new Worker(Backends.select("cpu"), 0, buff, length, d));
+        IJ.log("Workers : " + workers);
+
+        // a warm start needs the blocks of a slab and channel in the order of the frames on the same session : a
+        // single worker (the blocks below are in that order)
+        if (warmStart && frame > 1) {
+            workers.subList(1, workers.size()).clear();
+            IJ.log("Warm start across frames : " + workers.get(0) + " only");
+            if (tolerance <= 0) IJ.log("Warm start without tolerance : always " + nit + " iterations");
+        }
 
-            for (int c = 0 ; c < chan ; c++) {
+        // the blocks : slabs of the same depth, as deep as the memory of every worker and the memory limit allow
+        // at their padded size, the sessions are opened before the pipeline and thinner slabs planned when one of
+        // them can not be allocated, or when memory runs out while they are denoised (the blocks are then denoised
+        // again from the start, except in place where the first ones already replaced their source)
+        int width  = image.getWidth();
+        int height = image.getHeight();
+        int halo   = getHalo();
+        int[] maxDepth = {slice};
+        ArrayList<Block> blocks = null;
 
-                for (int t = 0 ; t < frame ; t++) {
+        // staging buffers reused from one block to the next
+        pool = new BufferPool(backend.usesDirectBuffers());
 
-                    IJ.showStatus("Denoising slices "+(k+1)+"-"+(k+lStep)+"/"+slice+", chan "+(c+1)+"/"+chan+", frame "+(t+1)+"/"+frame);
+        try {
+            while (true) {
+                ArrayList<SlabPlanner.Slab> slabs = SlabPlanner.plan(slice, sBlock, halo, n2 -> {
+                    Padding p = new Padding(height, width, n2, padding);
+                    return n2 <= maxDepth[0] && 8L*dim*p.paddedSize() <= limit && fits(workers, p.paddedHeight, p.paddedWidth, p.paddedDepth);
+                });
+                int n2 = slabs.get(0).depth;
+                padded = new Padding(height, width, n2, padding);
+                blocks = null;
+                boolean prepared = false;
+                try {
+                    for (Worker w : workers) w.prepare(padded.paddedHeight, padded.paddedWidth, padded.paddedDepth);
+                    prepared = true;
+                    IJ.log("Blocks : " + slabs.size() + " x " + n2 + " slices" + (slabs.size() > 1 ? " (" + halo + " overlapping at least)" : ""));
+                    IJ.log("Padding : " + padded);
+
+                    blocks = new ArrayList<Block>();
+                    for (SlabPlanner.Slab sl : slabs)
+                        for (int c = 0 ; c < chan ; c++)
+                            for (int t = 0 ; t < frame ; t++)
+                                blocks.add(new Block(new Image3D(image, sl.start, sl.depth, c, t), sl.first, sl.size, sl.left(), sl.right()));
+
+                    Halos halos = (result == image ? new Halos(blocks) : null);
+
+                    // the next blocks are read and the previous ones written back while the workers denoise
+                    int[] timer = new int[1];
+                    new Pipeline<Block>(depth, limit, b -> 8L*dim*padded.paddedSize()).run(blocks,
+                        b -> readBlock(b, source, halos, cTable),
+                        workers,
+                        b -> {
+                            writeBlock(b, target, cTable);
+                            timer[0] += b.size;
+                            IJ.showProgress(timer[0], slice*chan*frame-1);
+                        });
+                    break;
+                } catch (OutOfMemoryError e) {
+                    if (n2 <= SlabPlanner.thinnest(slice, halo) || (prepared && result == image)) {
+                        e.printStackTrace();
+                        exitWindow("Can not " + (prepared ? "denoise" : "allocate") + " blocks of " + n2 + " slices : " + e.getMessage());
+                    }
+                    IJ.log("Can not " + (prepared ? "denoise" : "allocate") + " blocks of " + n2 + " slices (" + e.getMessage() + "), trying thinner ones");
+                    maxDepth[0] = n2 - 1;
+                } finally {
+                    if (blocks != null) for (Block b : blocks) b.release();
+                    for (Worker w : workers) w.close();
+                }
+            }
+        } finally {
+            IJ.log("Staging " + pool.getStats());
+            pool.clear();
+            if (stream != null) {
+                stream[0].close();
+                stream[1].close();
+            }
+        }
+        if (tolerance > 0) IJ.log("Iterations : " + getIterations(blocks));
 
-                    input  = new Image3D(tmpImage, k-dLeft, lStep+dLeft+dRight, c, t, bLog);
-                    output = input.denoise(buff, length, nit, beta, nBlock, dll, d[0], d[1], d[2]);
+        run.allocated(pool.getAllocatedBytes());
+        String line = run.end((long)slice*chan*frame, (long)slice*chan*frame*width*height);
+        if (metricsLine) IJ.log("Metrics : " + line);
 
-                    output.agregate(result, dLeft, dRight, bLog);
+        // the denoised file is opened as a virtual stack too
+        if (stream != null) {
+            result = FileInfoVirtualStack.openVirtual(stream[1].getFile().getPath());
+            if (result == null) exitWindow("Can not open " + stream[1].getFile());
+        }
 
-                    timer += lStep;
-                    IJ.showProgress(timer, slice*chan*frame-1);
+        return result;
+    }
 
-                }
+    // the file of a virtual stack (read) and the copy the denoised blocks go to (write), null to work in memory
+    // (not a virtual stack, compressed or unsupported file, no output file chosen)
+    private MappedStack[] openStream()
+    {
+        if (!image.getStack().isVirtual()) return null;
+        MappedStack input;
+        try {
+            input = MappedStack.open(image.getOriginalFileInfo());
+        } catch (Exception e) {
+            IJ.log("The virtual stack can not be streamed (" + e.getMessage() + "), it is loaded in memory");
+            return null;
+        }
 
-            }
+        SaveDialog sd = new SaveDialog("Save the denoised stack", "vsnr_" + image.getTitle(), ".tif");
+        if (sd.getFileName() == null) {
+            input.close();
+            exitWindow("No file to write the denoised stack into !");
+        }
+        File out = new File(sd.getDirectory(), sd.getFileName());
+        if (out.getAbsoluteFile().equals(input.getFile().getAbsoluteFile())) {
+            input.close();
+            exitWindow("The denoised stack can not overwrite its source !");
+        }
 
+        try {
+            MappedStack output = input.copyTo(out);
+            IJ.log("Streaming " + (input.getBytes() >> 20) + " MB from " + input.getFile() + " to " + out);
+            return new MappedStack[] {input, output};
+        } catch (Exception e) {
+            input.close();
+            exitWindow("Can not write " + out + " : " + e.getMessage());
+            return null;
         }
+    }
 
-        input    = null;
-        output   = null;
-        tmpImage = null;
+    // min / mean / max of the iterations run for the blocks, then the iterations of every block
+    private static String getIterations(ArrayList<Block> blocks)
+    {
+        int min = Integer.MAX_VALUE, max = 0;
+        long sum = 0;
+        for (Block b : blocks) {
+            min = Math.min(min, b.iters);
+            max = Math.max(max, b.iters);
+            sum += b.iters;
+        }
+        StringBuilder res = new StringBuilder(String.format("%d to %d, %.1f per block on average (", min, max, (double)sum / blocks.size()));
+        for (int i = 0 ; i < blocks.size() ; i++)
+            res.append(i > 0 ? " " : "").append(blocks.get(i).iters);
+        return res.append(")").toString();
+    }
 
-        return result;
+    // true when a session of n0 x n1 x n2 blocks fits in the memory of every worker (the workers on the same
+    // device share it)
+    private boolean fits(ArrayList<Worker> workers, int n0, int n1, int n2)
+    {
+        for (Worker w : workers) {
+            int share = 0;
+            for (Worker o : workers)
+                if (o.backend == w.backend && o.device == w.device) share++;
+            long free = w.backend.getFreeMemory(w.device);
+            if (free != Long.MAX_VALUE && share*w.backend.getSessionBytes(n0, n1, n2) > free) return false;
+        }
+        return true;
     }
 
-    // internal use, init the dll
-    private void initDll()
+    // overlapping slices of the blocks : dBlock, or three times the largest sigma of the Gabor filters (2 at least)
+    private int getHalo()
     {
-        if (dll == null) {
+        if (dBlock >= 0) return dBlock;
+        float sigma = 0;
+        for (int k = 0 ; k < listFilters.size() ; k += (listFilters.get(k) == 0 ? 2 : 8))
+            if (listFilters.get(k) == 1) sigma = Math.max(sigma, Math.max(listFilters.get(k+2), Math.max(listFilters.get(k+3), listFilters.get(k+4))));
+        return Math.max(2, (int)Math.ceil(3*sigma));
+    }
 
-            URL location = VSNR_3D.class.getProtectionDomain().getCodeSource().getLocation();
-            String path  = (new File(location.getFile())).getParentFile().toString();
+    // reads a block of source (the slices halos keeps, if any) into a staging buffer, padded when padding is needed
+    private void readBlock(Block b, ImageStack source, Halos halos, float[] cTable)
+    {
+        long start = System.nanoTime();
+        int dim = (b.image.bColor ? 3 : 1);
+        b.u0  = acquire((long)dim*padded.paddedSize());
+        b.u   = acquire((long)dim*padded.paddedSize());
+        b.max = new float[dim];
+        FloatBuffer raw = (padded.isNeeded() ? acquire((long)dim*padded.size()) : b.u0);
+        try {
+            b.image.read(halos == null ? b.image.getPixels(source) : halos.getPixels(b, source), cTable, raw, b.max, bLog);
+            if (padded.isNeeded()) padded.pad(raw, 0, b.u0, 0, dim);
+        } finally {
+            if (raw != b.u0) pool.release(raw);
+        }
+        run.converted(4L*dim*padded.size());
+        run.add(Metrics.Phase.READ, start);
+    }
 
-            if (IJ.isLinux()) path += "/libvsnr3d.so";
-            else if (IJ.isWindows()) path += "\\libvsnr3d.dll";
-            else exitWindow("Unsuported OS !");
+    // writes the inner slices of a denoised block (cropped) into target, then gives its buffers back to the pool
+    private void writeBlock(Block b, ImageStack target, float[] cTable)
+    {
+        long start = System.nanoTime();
+        int dim = (b.image.bColor ? 3 : 1);
+        FloatBuffer raw = (padded.isNeeded() ? acquire((long)dim*padded.size()) : b.u);
+        try {
+            if (padded.isNeeded()) padded.crop(b.u, 0, raw, 0, dim);
+            b.image.agregate(target, cTable, raw, b.dLeft, b.dRight, bLog);
+        } finally {
+            if (raw != b.u) pool.release(raw);
+        }
+        b.release();
+        run.converted(4L*dim*padded.size());
+        run.add(Metrics.Phase.WRITE, start);
+    }
 
-            if (!checkFile(path)) exitWindow("Can not find the dll !\nExpecting :\n" + path);
-            dll = (VsnrDllLoader)Native.loadLibrary(path, VsnrDllLoader.class);
+    // a staging buffer of n floats from the pool
+    private FloatBuffer acquire(long n)
+    {
+        try {
+            return pool.acquire(n);
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            IJ.log("Can not stage a block : " + e.getMessage());
+            String str = "Error :\nProbably running out of memory !\nLaunch IJ in command line to get the stack trace ...";
+            IJ.log(str);
+            exitWindow(str);
+            return null;
+        }
+    }
 
+    // internal use, pick the backend asked for (or the fastest available one)
+    private void initBackend()
+    {
+        VsnrBackend b = Backends.select(backendName);
+        if (b != backend) {
+            if (!b.getName().equalsIgnoreCase(backendName) && !backendName.equalsIgnoreCase(Backends.AUTO))
+                IJ.log("Backend " + backendName + " is not available, falling back to " + b.getName());
+            IJ.log("Backend : " + b.getDescription());
+            backend = b;
         }
     }
 
-    // check if the file specified by path exist and is not a directory
-    private Boolean checkFile(String path)
+    // dimBlocks max of the current backend
+    private int getMaxBlocks()
     {
-        File f = new File(path);
-        return (f.exists() && !(f.isDirectory()));
+        // -
+        return backend.getMaxBlocks();
     }
 
     // -
@@ -517,186 +871,269 @@ public class VSNR_3D implements PlugInFilter {
         return res;
     }
 
-    // wraping image manipulation
-    private class Image3D {
+    // one compute worker : a backend on one of its devices, with its session
+    private class Worker implements Pipeline.Stage<Block> {
 
-        private int width;
-        private int height;
-        private int depth;
-        private int chan;
-        private int frame;
-        private int start;
+        private VsnrBackend backend;
+        private int         device;
+        private VsnrSession session = null;
+        private int         sessionDepth;
 
-        private Boolean bColor;
+        private FloatBuffer buff;
+        private int         length;
+        private float[]     d;
 
-        private float[][] arr;
-        private float[]   max;
+        public Worker(VsnrBackend backend, int device, FloatBuffer buff, int length, float[] d)
+        {
+            this.backend = (halfPrecision ? backend.withHalfPrecision() : backend);
+            this.device  = device;
+            this.buff    = buff;
+            this.length  = length;
+            this.d       = d;
+        }
 
-        public Image3D(ImagePlus img, int start, int size, int channel, int frame, Boolean bLog)
+        // opens the session of n0 x n1 x n2 blocks, OutOfMemoryError when it can not be allocated
+        // (the other failures are left to run, which falls back to the next backend)
+        public void prepare(int n0, int n1, int n2)
         {
-            this.width  = img.getWidth();
-            this.height = img.getHeight();
-            this.depth  = size;
-            this.chan   = channel;
-            this.frame  = frame;
-            this.start  = start;
-            this.bColor = (img.getBitDepth() == 24);
+            close();
+            try {
+                open(n0, n1, n2);
+            } catch (Exception e) {
+                session = null;
+            }
+        }
 
-            ImageProcessor ip;
-            float tmp;
-
-            if (bColor) {
-
-                this.allocate(3, width*height*depth);
-
-                int[] pixel = new int[3];
-                for (int k = 0 ; k < size ; k++) {
-                    ip = getIP(img,k);
-                    for (int j = 0 ; j < height ; j++) {
-                        for (int i = 0 ; i < width ; i++) {
-                            ip.getPixel(i,j,pixel);
-                            for (int m = 0 ; m < 3 ; m++) {
-                                tmp = itof(pixel[m]);
-                                if (bLog) tmp = logf(tmp);
-                                max[m] = Math.max(max[m], tmp);
-                                arr[m][i+width*(j+height*k)] = tmp;
-                            }
-                        }
+        // runs the backend, falls back to the next available one if it fails
+        // out of memory, the block is not given to the next backend : the error goes up to the planning of the slabs,
+        // which denoises thinner ones
+        // the session (plans and work buffers) is kept while the padded block depth does not change
+        // with a warm start, a block starts from the state the previous one (the same slab and channel at the previous
+        // frame) left in the session, except the RGB ones whose channels go through the session one after the other
+        @Override
+        public void run(Block b)
+        {
+            IJ.showStatus("Denoising slices "+(b.first+1)+"-"+(b.first+b.size)+"/"+slice+", chan "+(b.image.chan+1)+"/"+chan+", frame "+(b.image.frame+1)+"/"+frame);
+            int n = padded.paddedSize();
+            while (true) {
+                try {
+                    if (session != null && sessionDepth != padded.paddedDepth) close();
+                    if (session == null) open(padded.paddedHeight, padded.paddedWidth, padded.paddedDepth);
+                    long start = System.nanoTime();
+                    b.iters = 0;
+                    VsnrSession.Options opts = new VsnrSession.Options(tolerance, relaxation, adaptive, warmStart && b.image.frame > 0 && b.max.length == 1);
+                    for (int m = 0 ; m < b.max.length ; m++) {
+                        int k = session.denoise(buff, length, VsnrSession.plane(b.u0, m, n), nit, beta, opts, VsnrSession.plane(b.u, m, n), b.max[m]);
+                        b.iters = Math.max(b.iters, k);
+                        run.iterations(k);
                     }
+                    run.add(Metrics.Phase.SOLVE, start);
+                    return;
+                } catch (OutOfMemoryError e) {
+                    close();
+                    throw e;
+                } catch (Exception e) {
+                    if (Macro.MACRO_CANCELED.equals(e.getMessage())) throw (RuntimeException)e;
+                    close();
+                    VsnrBackend next = Backends.fallback(backend);
+                    if (next == null) {
+                        e.printStackTrace();
+                        exitWindow("The " + this + " backend failed : " + e);
+                    }
+                    IJ.log("The " + this + " backend failed (" + e + "), switching to " + next.getName());
+                    backend = (halfPrecision ? next.withHalfPrecision() : next);
+                    device  = 0;
                 }
+            }
+        }
 
-            } else {
+        // the session of n0 x n1 x n2 blocks
+        private void open(int n0, int n1, int n2)
+        {
+            long start = System.nanoTime();
+            session      = backend.open(device, n0, n1, n2, nBlock, d[0], d[1], d[2]);
+            sessionDepth = n2;
+            run.allocated(backend.getSessionBytes(n0, n1, n2));
+            run.add(Metrics.Phase.OPEN, start);
+        }
 
-                this.allocate(1, width*height*depth);
-                
-                for (int k = 0 ; k < size ; k++) {
-                    ip = getIP(img,k);
-                    for (int j = 0 ; j < height ; j++) {
-                        for (int i = 0 ; i < width ; i++) {
-                            tmp = ip.getPixelValue(i,j)+1.0f;
-                            if (bLog) tmp = logf(tmp);
-                            max[0] = Math.max(max[0], tmp);
-                            arr[0][i+width*(j+height*k)] = tmp;
-                        }
-                    }
+        // -
+        public void close()
+        {
+            if (session != null) {
+                try {
+                    session.close();
+                } catch (Throwable e) {
+                    e.printStackTrace();
                 }
-
+                session = null;
             }
         }
 
-        public Image3D(int width, int height, int depth, int chan, int frame, int start, Boolean bColor)
+        // backend name, with the device when it has several
+        @Override
+        public String toString()
         {
-            this.width  = width;
-            this.height = height;
-            this.depth  = depth;
-            this.bColor = bColor;
-            this.chan   = chan;
-            this.frame  = frame;
-            this.start  = start;
+            // -
+            return backend.getName() + (backend.getDeviceCount() > 1 ? ":" + device : "");
+        }
 
-            int dim = (bColor ? 3 : 1);
+    }
 
-            this.allocate(dim, width*height*depth);
-        }
+    // one block of the image with its staging buffers while it goes through the pipeline
+    // slices first to first+size are written back, dLeft and dRight are the overlapping slices around them
+    private class Block {
+
+        private Image3D image;
+        private int     first;
+        private int     size;
+        private int     dLeft;
+        private int     dRight;
+
+        private FloatBuffer u0;
+        private FloatBuffer u;
+        private float[]     max;
+        private int         iters;      // iterations run (the most of its RGB channels)
 
-        private void allocate(int dim, int size)
+        public Block(Image3D image, int first, int size, int dLeft, int dRight)
         {
-            try {
-                arr = new float[dim][size];
-                max = new float[dim];
-                Arrays.fill(max, Float.NEGATIVE_INFINITY);
-            } catch (Throwable e) {
-                e.printStackTrace();
-                String str = "Error :\nProbably running out of memory !\nLaunch IJ in command line to get the stack trace ...";
-                IJ.log(str);
-                exitWindow(str);
-            }
+            this.image  = image;
+            this.first  = first;
+            this.size   = size;
+            this.dLeft  = dLeft;
+            this.dRight = dRight;
         }
 
-        private ImageProcessor getIP(ImagePlus img, int slice)
+        // gives the buffers back to the pool (nothing if already done)
+        public void release()
         {
-            img.setPositionWithoutUpdate(chan+1, start+slice+1, frame+1);
-            return img.getProcessor();
+            pool.release(u0);
+            pool.release(u);
+            u0 = null;
+            u  = null;
         }
 
-        public Image3D denoise(FloatBuffer buffPsis, int length, int nit, float beta, int nBlock, VsnrDllLoader dll, float dx, float dy, float dz)
-        {
-            Image3D output = new Image3D(width, height, depth, chan, frame, start, bColor);
+    }
 
-            int dim = (bColor ? 3 : 1);
+    // in place, the blocks read and write the same stack : a slice written by a block and read later by another one (its
+    // overlap with the previous block) is copied when the block writing it is read, which is always before it is
+    // written, then given to the blocks reading it and dropped after the last one
+    // only the overlapping slices of the blocks in the pipeline are kept, not a copy of the stack
+    private static class Halos {
 
-            for (int i = 0 ; i < dim ; i++)
-                dll.VSNR_3D_FIJI_GPU(buffPsis, length, getBuffer(i), height, width, depth, nit, beta, output.getBuffer(i), nBlock, max[i], dx, dy, dz);
+        private final IdentityHashMap<Block, Integer> ranks = new IdentityHashMap<Block, Integer>();
+        private final HashMap<Integer, Integer> writer  = new HashMap<Integer, Integer>();  // stack index -> rank of the block writing it
+        private final HashMap<Integer, Integer> pending = new HashMap<Integer, Integer>();  // stack index -> reads after it is written
+        private final HashMap<Integer, Object>  saved   = new HashMap<Integer, Object>();   // stack index -> original pixels
 
-            return output;
+        public Halos(ArrayList<Block> blocks)
+        {
+            for (int r = 0 ; r < blocks.size() ; r++) {
+                Block b = blocks.get(r);
+                ranks.put(b, r);
+                for (int k = b.dLeft ; k < b.image.depth-b.dRight ; k++)
+                    writer.put(b.image.indexes[k], r);
+            }
+            for (int r = 0 ; r < blocks.size() ; r++) {
+                for (int index : blocks.get(r).image.indexes) {
+                    Integer w = writer.get(index);
+                    if (w != null && w < r) pending.merge(index, 1, Integer::sum);
+                }
+            }
         }
 
-        public FloatBuffer getBuffer(int k)
+        // slices of b, the ones already written by a previous block come from their copy
+        public synchronized Object[] getPixels(Block b, ImageStack stack)
         {
-            // -
-            return FloatBuffer.wrap(arr[k]);
+            int r = ranks.get(b);
+            Object[] planes = new Object[b.image.depth];
+            for (int k = 0 ; k < planes.length ; k++) {
+                int index = b.image.indexes[k];
+                Integer w = writer.get(index);
+                if (w != null && w < r) {
+                    planes[k] = saved.get(index);
+                    if (pending.merge(index, -1, Integer::sum) == 0) saved.remove(index);
+                } else {
+                    planes[k] = stack.getPixels(index);
+                    if (w != null && w == r && pending.containsKey(index)) saved.put(index, copy(planes[k]));
+                }
+            }
+            return planes;
         }
 
-        public void agregate(ImagePlus result, int dLeft, int dRight, Boolean bLog)
+        // -
+        private static Object copy(Object pixels)
         {
-            ImageProcessor ip;
-            float tmp;
-
-            if (bColor) {
-
-                int[] pixel = new int[3];
-                for (int k = dLeft ; k < depth-dRight ; k++) {
-                    ip = getIP(result,k);
-                    for (int j = 0 ; j < height ; j++) {
-                        for (int i = 0 ; i < width ; i++) {
-                            for (int m = 0 ; m < 3 ; m++) {
-                                tmp = arr[m][i+width*(j+height*k)];
-                                if (bLog) tmp = expf(tmp);
-                                pixel[m] = ftoi(tmp);
-                            }
-                            ip.putPixel(i,j,pixel);
-                        }
-                    }
-                }
+            if (pixels instanceof byte[])  return ((byte[])pixels).clone();
+            if (pixels instanceof short[]) return ((short[])pixels).clone();
+            if (pixels instanceof float[]) return ((float[])pixels).clone();
+            return ((int[])pixels).clone();
+        }
 
-            } else {
+    }
 
-                for (int k = dLeft ; k < depth-dRight ; k++) {
-                    ip = getIP(result,k);
-                    for (int j = 0 ; j < height ; j++) {
-                        for (int i = 0 ; i < width ; i++) {
-                            tmp = arr[0][i+width*(j+height*k)];
-                            if (bLog) tmp = expf(tmp);
-                            ip.putPixelValue(i,j,tmp-1.0f);
-                        }
-                    }
-                }
+    // wraping image manipulation, size slices from start of one channel / frame of an image
+    // the pixels go to / come from a float buffer, one block of width*height*depth per RGB channel
+    private static class Image3D {
 
-            }
+        private int width;
+        private int height;
+        private int depth;
+        private int chan;
+        private int frame;
+        private int start;
+
+        private int[] indexes;
+
+        private Boolean bColor;
+
+        public Image3D(ImagePlus img, int start, int size, int channel, int frame)
+        {
+            this.width  = img.getWidth();
+            this.height = img.getHeight();
+            this.depth  = size;
+            this.chan   = channel;
+            this.frame  = frame;
+            this.start  = start;
+            this.bColor = (img.getBitDepth() == 24);
+            this.indexes = new int[size];
+            for (int k = 0 ; k < size ; k++)
+                indexes[k] = img.getStackIndex(channel+1, start+k+1, frame+1);
         }
 
-        private int ftoi(float val)
+        // u = the block (planes : its slices), max = the maximum of each channel
+        public void read(Object[] planes, float[] cTable, FloatBuffer u, float[] max, Boolean bLog)
         {
-            // -
-            return Math.round(val-1.0f);
+            Arrays.fill(max, Float.NEGATIVE_INFINITY);
+            PixelIO.read(planes, width, height, cTable, bLog, u, 0, max, 0);
         }
 
-        private float itof(int val)
+        // slices dLeft to depth-dRight of the block = u
+        // only these slices are fetched, and handed back to the stack (a file for a MappedStack)
+        public void agregate(ImageStack stack, float[] cTable, FloatBuffer u, int dLeft, int dRight, Boolean bLog)
         {
-            // -
-            return (float)(val+1);
+            Object[] planes = new Object[depth];
+            for (int k = dLeft ; k < depth-dRight ; k++)
+                planes[k] = stack.getPixels(indexes[k]);
+            PixelIO.write(u, 0, dLeft, depth-dRight, planes, width, height, cTable, bLog);
+            for (int k = dLeft ; k < depth-dRight ; k++)
+                stack.setPixels(planes[k], indexes[k]);
         }
 
-        private float logf(float val)
+        // pixels of the slices of the block in stack
+        public Object[] getPixels(ImageStack stack)
         {
-            // -
-            return (float)(Math.log((double)val));
+            Object[] planes = new Object[depth];
+            for (int k = 0 ; k < depth ; k++)
+                planes[k] = stack.getPixels(indexes[k]);
+            return planes;
         }
 
-        private float expf(float val)
+        // the table getProcessor would give to the slices of img
+        public static float[] getCTable(ImagePlus img)
         {
-            // -
-            return (float)(Math.exp((double)val));
+            Calibration cal = img.getCalibration();
+            return (cal.calibrated() ? cal.getCTable() : null);
         }
 
     }
@@ -729,18 +1166,4 @@ public class VSNR_3D implements PlugInFilter {
 
     }
 
-    // dll interface
-    private interface VsnrDllLoader extends Library {
-
-        // CUDA denoise function
-        public void VSNR_3D_FIJI_GPU(FloatBuffer psis, int length, FloatBuffer u0, int n0, int n1, int n2, int nit, float beta, FloatBuffer u, int nBlock, float max, float dx, float dy, float dz);
-
-        // return dimBlocks max
-        public int getMaxBlocks();
-
-        // return dimGrid max
-        public int getMaxGrid();
-
-    }
-
 }
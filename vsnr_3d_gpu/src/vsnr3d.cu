@@ -19,13 +19,17 @@
 #endif
 
 
+#include <float.h>
 #include <math.h>
 #include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
 #include "cuda.h"
 #include "cuda_runtime.h"
 #include "cufft.h"
 #include <cuda_runtime.h>
 #include <cublas_v2.h>
+#include <mutex>
 
 #define PI (3.141592653589793)
 
@@ -271,14 +275,17 @@ __global__ void update_fx(CuC* ftmp1, CuC* ftmp2, CuC* ftmp3, CuC* fphi, CuC* fx
     }
 }
 
-// -
-__global__ void update_y(CuR* d1u0, CuR* d2u0, CuR* d3u0, CuR* tmp1, CuR* tmp2, CuR* tmp3, CuR* l1, CuR* l2, CuR* l3, CuR* y1, CuR* y2, CuR* y3, float beta, int n)
+// tmpi = alpha.tmpi + (1-alpha).yi (over-relaxed Ax, kept for update_lambda), then y update
+__global__ void update_y(CuR* d1u0, CuR* d2u0, CuR* d3u0, CuR* tmp1, CuR* tmp2, CuR* tmp3, CuR* l1, CuR* l2, CuR* l3, CuR* y1, CuR* y2, CuR* y3, float beta, float alpha, int n)
 {
     int i    = blockIdx.x * blockDim.x + threadIdx.x;
     int step = blockDim.x * gridDim.x;
     float ng, t1, t2, t3;
 
     for ( ; i < n ; i += step) {
+        tmp1[i] = alpha * tmp1[i] + (1 - alpha) * y1[i];
+        tmp2[i] = alpha * tmp2[i] + (1 - alpha) * y2[i];
+        tmp3[i] = alpha * tmp3[i] + (1 - alpha) * y3[i];
         t1 = d1u0[i] - (tmp1[i] + (l1[i] / beta));
         t2 = d2u0[i] - (tmp2[i] + (l2[i] / beta));
         t3 = d3u0[i] - (tmp3[i] + (l3[i] / beta));
@@ -296,6 +303,55 @@ __global__ void update_y(CuR* d1u0, CuR* d2u0, CuR* d3u0, CuR* tmp1, CuR* tmp2,
     }
 }
 
+// update_y, and the sums res[0..3] += ||Ax - y||^2 (primal residual), ||y - previous y||^2 (dual residual),
+// ||Ax||^2 and ||y||^2 (with Ax before relaxation)
+__global__ void update_y_res(CuR* d1u0, CuR* d2u0, CuR* d3u0, CuR* tmp1, CuR* tmp2, CuR* tmp3, CuR* l1, CuR* l2, CuR* l3, CuR* y1, CuR* y2, CuR* y3, float beta, float alpha, float* res, int n)
+{
+    int i    = blockIdx.x * blockDim.x + threadIdx.x;
+    int step = blockDim.x * gridDim.x;
+    float ng, t1, t2, t3, x1, x2, x3, r1, r2, r3, z1, z2, z3, a;
+    float rp = 0, rd = 0, ax = 0, ny = 0;
+
+    for ( ; i < n ; i += step) {
+        x1 = tmp1[i];
+        x2 = tmp2[i];
+        x3 = tmp3[i];
+        r1 = alpha * x1 + (1 - alpha) * y1[i];
+        r2 = alpha * x2 + (1 - alpha) * y2[i];
+        r3 = alpha * x3 + (1 - alpha) * y3[i];
+        t1 = d1u0[i] - (r1 + (l1[i] / beta));
+        t2 = d2u0[i] - (r2 + (l2[i] / beta));
+        t3 = d3u0[i] - (r3 + (l3[i] / beta));
+        ng = sqrtf(SQ(t1) + SQ(t2) + SQ(t3));
+
+        if (ng > 1.0 / beta) {
+            a  = 1.0 - (1.0 / (beta * ng));
+            z1 = d1u0[i] - t1 * a;
+            z2 = d2u0[i] - t2 * a;
+            z3 = d3u0[i] - t3 * a;
+        } else {
+            z1 = d1u0[i];
+            z2 = d2u0[i];
+            z3 = d3u0[i];
+        }
+
+        rp += SQ(x1 - z1) + SQ(x2 - z2) + SQ(x3 - z3);
+        rd += SQ(z1 - y1[i]) + SQ(z2 - y2[i]) + SQ(z3 - y3[i]);
+        ax += SQ(x1) + SQ(x2) + SQ(x3);
+        ny += SQ(z1) + SQ(z2) + SQ(z3);
+        tmp1[i] = r1;
+        tmp2[i] = r2;
+        tmp3[i] = r3;
+        y1[i] = z1;
+        y2[i] = z2;
+        y3[i] = z3;
+    }
+    atomicAdd(res,   rp);
+    atomicAdd(res+1, rd);
+    atomicAdd(res+2, ax);
+    atomicAdd(res+3, ny);
+}
+
 // -
 __global__ void update_lambda(CuR* lambda, CuR* tmp, CuR* y, float beta, int n)
 {
@@ -306,123 +362,251 @@ __global__ void update_lambda(CuR* lambda, CuR* tmp, CuR* y, float beta, int n)
         lambda[i] = lambda[i] + (beta * (tmp[i] - y[i]));
 }
 
-// Main function
-void VSNR_ADMM_GPU(float *u0, float *psi, int n0, int n1, int n2, int nit, float beta, float *u, int dimGrid, int dimBlock, float dx, float dy, float dz)
-{
+// SESSIONS
+// -------------------------------------------------------------------------
+
+#define PLAN_CACHE_SIZE 4
+#define MAX_DEVICES     16
+
+// R2C / C2R plans of one block size on one device, shared by every session of that size
+typedef struct {
+    int device;
+    int n0, n1, n2;
+    int refs;
     cufftHandle planR2C, planC2R;
+} CachedPlans;
 
-    CuC *fpsi, *fu0, *fphi, *fx; // complex
+// Everything a block size needs : plans, cuBLAS handle and the work buffers
+// (the finite difference spectra are rebuilt per call in fphi, keeping them would cost 3 more volumes)
+// a session lives on the device current when it was opened, its calls switch to it and back
+// y1, y2, y3 and l1, l2, l3 are kept from one call to the next, state is 1 once they hold the state of the previous block
+typedef struct {
+    int device;
+    int n0, n1, n2;
+    int state;
+    int n, m;
+    int dimGrid, dimBlock;
+    float dx, dy, dz;
+    CachedPlans* plans;
+    cublasHandle_t handle;
+    CuR *gu, *gu0, *gpsi;
+    CuC *fpsi, *fphi, *fx;
+    CuC *fphi1, *fphi2, *fphi3;
+    CuC *ftmp1, *ftmp2, *ftmp3;
+    CuR  *tmp1,  *tmp2,  *tmp3;
+    CuR  *d1u0,  *d2u0,  *d3u0;
+    CuR    *y1,    *y2,    *y3;
+    CuR    *l1,    *l2,    *l3;
+    float *res;
+} VsnrSession;
+
+// Process-wide plan cache, the plans of a size stay alive when its last session is closed
+static CachedPlans plan_cache[PLAN_CACHE_SIZE];
+static int plan_cache_used = 0;
+
+// Guards the plan and filter caches, the sessions of several devices run on several threads
+static std::mutex cache_lock;
+
+// Makes device current, returns the previous one for leave_device
+int enter_device(int device)
+{
+    int previous = 0;
+    cudaGetDevice(&previous);
+    if (previous != device) cudaSetDevice(device);
+    return previous;
+}
 
-    CuC *fphi1, *fphi2, *fphi3; // complex
-    CuC *ftmp1, *ftmp2, *ftmp3; // complex
-    CuR  *tmp1,  *tmp2,  *tmp3; // real
-    CuR  *d1u0,  *d2u0,  *d3u0; // real
-    CuC   *fd1,   *fd2,   *fd3; // complex
-    CuR    *d1,    *d2,    *d3; // real
-    CuR    *y1,    *y2,    *y3; // real
-    CuR    *l1,    *l2,    *l3; // real
+// -
+void leave_device(int previous)
+{
+    int device = 0;
+    cudaGetDevice(&device);
+    if (previous != device) cudaSetDevice(previous);
+}
 
-    int n = n0*n1*n2;
-    int m = n0*n2*(n1/2+1);
+// Destroys the plans of a slot on their device
+void destroy_plans(CachedPlans* p)
+{
+    int previous = enter_device(p->device);
+    cufftDestroy(p->planR2C);
+    cufftDestroy(p->planC2R);
+    leave_device(previous);
+    p->n0 = 0;
+    p->n1 = 0;
+    p->n2 = 0;
+}
 
-    cudaMalloc((void**)&fpsi, m*sizeof(CuC));
-    cudaMalloc((void**)&fu0,  m*sizeof(CuC));
+// Plans of n0 x n1 x n2 on the current device, created on the first request only
+// (NULL if they can not be created)
+CachedPlans* acquire_plans(int device, int n0, int n1, int n2)
+{
+    std::lock_guard<std::mutex> lock(cache_lock);
+    int i, slot = -1;
+    CachedPlans* p;
+
+    for (i = 0 ; i < plan_cache_used ; i++) {
+        if (plan_cache[i].device == device && plan_cache[i].n0 == n0 && plan_cache[i].n1 == n1 && plan_cache[i].n2 == n2) {
+            plan_cache[i].refs++;
+            return &plan_cache[i];
+        }
+        if (plan_cache[i].refs == 0 && slot < 0) slot = i;
+    }
 
-    cudaMalloc((void**)&d1u0, n*sizeof(CuR));
-    cudaMalloc((void**)&d2u0, n*sizeof(CuR));
-    cudaMalloc((void**)&d3u0, n*sizeof(CuR));
+    // a new slot, or the first unused size
+    if (plan_cache_used < PLAN_CACHE_SIZE) slot = plan_cache_used++;
+    if (slot < 0) return NULL;
+    p = &plan_cache[slot];
+    if (p->n0 > 0) destroy_plans(p);
+
+    p->device = device;
+    p->n0 = 0;
+    p->n1 = 0;
+    p->n2 = 0;
+    p->refs = 0;
+    if (cufftPlan3d(&p->planR2C, n2, n0, n1, CUFFT_R2C) != CUFFT_SUCCESS) return NULL;
+    if (cufftPlan3d(&p->planC2R, n2, n0, n1, CUFFT_C2R) != CUFFT_SUCCESS) {
+        cufftDestroy(p->planR2C);
+        return NULL;
+    }
+    p->n0 = n0;
+    p->n1 = n1;
+    p->n2 = n2;
+    p->refs = 1;
+    return p;
+}
 
-    cudaMalloc((void**)&tmp1, n*sizeof(CuR));
-    cudaMalloc((void**)&tmp2, n*sizeof(CuR));
-    cudaMalloc((void**)&tmp3, n*sizeof(CuR));
+// -
+void release_plans(CachedPlans* p)
+{
+    std::lock_guard<std::mutex> lock(cache_lock);
+    if (p != NULL) p->refs--;
+}
 
-    cudaMalloc((void**)&ftmp1, m*sizeof(CuC));
-    cudaMalloc((void**)&ftmp2, m*sizeof(CuC));
-    cudaMalloc((void**)&ftmp3, m*sizeof(CuC));
+// Destroys the plans no session uses
+_export_ void clearPlanCache()
+{
+    std::lock_guard<std::mutex> lock(cache_lock);
+    for (int i = 0 ; i < plan_cache_used ; i++)
+        if (plan_cache[i].refs == 0 && plan_cache[i].n0 > 0) destroy_plans(&plan_cache[i]);
+}
 
-    cufftPlan3d(&planR2C, n2, n0, n1, CUFFT_R2C);
-    cufftPlan3d(&planC2R, n2, n0, n1, CUFFT_C2R);
+// cudaMalloc which clears *ok on failure
+void* session_alloc(size_t size, int* ok)
+{
+    void* ptr = NULL;
+    if (cudaMalloc(&ptr, size) != cudaSuccess) {
+        *ok = 0;
+        return NULL;
+    }
+    return ptr;
+}
+
+
+// -------------------------------------------------------------------------
+
+
+// True when the primal and dual residuals summed by update_y_res are below tol, relative to the size of Ax and y :
+// ||Ax - y|| <= tol.max(||Ax||, ||y||) and ||y - previous y|| <= tol.||y||
+int converged(float* res, float tol)
+{
+    float primal = sqrtf(res[0]), dual = sqrtf(res[1]);
+    float ax = sqrtf(res[2]), y = sqrtf(res[3]);
+    return (primal <= tol * MAX(ax, y) && dual <= tol * y);
+}
+
+// Residual balancing : beta is doubled when the relative primal residual ||Ax - y|| / max(||Ax||, ||y||) is 10 times
+// the relative dual residual ||y - previous y|| / ||y|| (the two ratios of converged), halved in the opposite case
+// (lambda is not scaled by beta, it is kept as is)
+float adapt_beta(float* res, float beta)
+{
+    float primal = sqrtf(res[0] / MAX(MAX(res[2], res[3]), FLT_MIN));
+    float dual   = sqrtf(res[1] / MAX(res[3], FLT_MIN));
+    if (primal > 10 * dual) return 2 * beta;
+    if (dual > 10 * primal) return beta / 2;
+    return beta;
+}
+
+// Main function, plans and work buffers come from the session
+// stops before nit iterations once the block has converged (see converged, tol = 0 : never),
+// alpha is the over-relaxation of Ax in the y and lambda updates (1 : none, 1.5 to 1.8 usually faster),
+// adaptive rebalances beta during the first half of the iterations (see adapt_beta, fphi follows beta)
+// warm starts from the y and lambda left by the previous block (warm start, see VSNR_3D_DENOISE)
+// returns the number of iterations run
+int VSNR_ADMM_GPU(VsnrSession* s, float* u0, float* psi, int nit, float beta, float tol, float alpha, int adaptive, int warm, float* u)
+{
+    int n0 = s->n0;
+    int n1 = s->n1;
+    int n = s->n;
+    int m = s->m;
+    int dimGrid  = s->dimGrid;
+    int dimBlock = s->dimBlock;
+    cufftHandle planR2C = s->plans->planR2C;
+    cufftHandle planC2R = s->plans->planC2R;
+
+    CuC *fpsi = s->fpsi, *fphi = s->fphi, *fx = s->fx; // complex
+    CuC *fu0  = s->fx;   // fx is unused before the main loop
+    CuC *fd   = s->fphi; // so is fphi before compute_phi
+
+    CuC *fphi1 = s->fphi1, *fphi2 = s->fphi2, *fphi3 = s->fphi3; // complex
+    CuC *ftmp1 = s->ftmp1, *ftmp2 = s->ftmp2, *ftmp3 = s->ftmp3; // complex
+    CuR  *tmp1 =  s->tmp1,  *tmp2 =  s->tmp2,  *tmp3 =  s->tmp3; // real
+    CuR  *d1u0 =  s->d1u0,  *d2u0 =  s->d2u0,  *d3u0 =  s->d3u0; // real
+    CuR    *y1 =    s->y1,    *y2 =    s->y2,    *y3 =    s->y3; // real
+    CuR    *l1 =    s->l1,    *l2 =    s->l2,    *l3 =    s->l3; // real
 
     cufftExecR2C(planR2C,  u0,  fu0); // fu0  = fftn(u0);
     cufftExecR2C(planR2C, psi, fpsi); // fpsi = fftn(psi);
 
     // Computes d1u0 & fphi1
-    cudaMalloc((void**)&d1,    n*sizeof(CuR));
-    cudaMalloc((void**)&fd1,   m*sizeof(CuC));
-    cudaMalloc((void**)&fphi1, m*sizeof(CuC));
-
-    setd1<<<dimGrid,dimBlock>>>(d1, n, n0, n1, dx); // d1[0] = 1; d1[n1-1] = -1;
-    cufftExecR2C(planR2C, d1, fd1); // fd1 = fft(d1);
-    cudaFree(d1);
+    setd1<<<dimGrid,dimBlock>>>(tmp1, n, n0, n1, s->dx); // d1[0] = 1; d1[n1-1] = -1;
+    cufftExecR2C(planR2C, tmp1, fd); // fd1 = fft(d1);
 
-    product_carray<<<dimGrid,dimBlock>>>(fd1, fu0, ftmp1, m);
+    product_carray<<<dimGrid,dimBlock>>>(fd, fu0, ftmp1, m);
     cufftExecC2R(planC2R, ftmp1, d1u0); // d1u0 = ifftn(fd1.*fu0);
     normalize<<<dimGrid,dimBlock>>>(d1u0, n);
 
-    product_carray<<<dimGrid,dimBlock>>>(fd1, fpsi, fphi1, m); // fphi1 = fpsi.*fd1;
-    cudaFree(fd1);
+    product_carray<<<dimGrid,dimBlock>>>(fd, fpsi, fphi1, m); // fphi1 = fpsi.*fd1;
 
     // Computes d2u0 & fphi2
-    cudaMalloc((void**)&d2,    n*sizeof(CuR));
-    cudaMalloc((void**)&fd2,   m*sizeof(CuC));
-    cudaMalloc((void**)&fphi2, m*sizeof(CuC));
+    setd2<<<dimGrid,dimBlock>>>(tmp2, n, n0, n1, s->dy); // d2[0] = 1; d2[n0n1-n1] = -1;
+    cufftExecR2C(planR2C, tmp2, fd); // fd2 = fft(d2);
 
-    setd2<<<dimGrid,dimBlock>>>(d2, n, n0, n1, dy); // d2[0] = 1; d2[n0n1-n1] = -1;
-    cufftExecR2C(planR2C, d2, fd2); // fd2 = fft(d2);
-    cudaFree(d2);
-
-    product_carray<<<dimGrid,dimBlock>>>(fd2, fu0, ftmp2, m);
+    product_carray<<<dimGrid,dimBlock>>>(fd, fu0, ftmp2, m);
     cufftExecC2R(planC2R, ftmp2, d2u0); // d2u0 = ifftn(fd2.*fu0);
     normalize<<<dimGrid,dimBlock>>>(d2u0, n);
 
-
-    product_carray<<<dimGrid,dimBlock>>>(fd2, fpsi, fphi2, m); // fphi2 = fpsi.*fd2;
-    cudaFree(fd2);
+    product_carray<<<dimGrid,dimBlock>>>(fd, fpsi, fphi2, m); // fphi2 = fpsi.*fd2;
 
     // Computes d3u0 & fphi3
-    cudaMalloc((void**)&d3,    n*sizeof(CuR));
-    cudaMalloc((void**)&fd3,   m*sizeof(CuC));
-    cudaMalloc((void**)&fphi3, m*sizeof(CuC));
+    setd3<<<dimGrid,dimBlock>>>(tmp3, n, n0, n1, s->dz); // d3[0] = 1; d3[n-n0n1] = -1;
+    cufftExecR2C(planR2C, tmp3, fd); // fd3 = fft(d3);
 
-    setd3<<<dimGrid,dimBlock>>>(d3, n, n0, n1, dz); // d3[0] = 1; d3[n-n0n1] = -1;
-    cufftExecR2C(planR2C, d3, fd3); // fd3 = fft(d3);
-    cudaFree(d3);
-
-    product_carray<<<dimGrid,dimBlock>>>(fd3, fu0, ftmp3, m);
+    product_carray<<<dimGrid,dimBlock>>>(fd, fu0, ftmp3, m);
     cufftExecC2R(planC2R, ftmp3, d3u0); // d3u0 = ifftn(fd3.*fu0);
     normalize<<<dimGrid,dimBlock>>>(d3u0, n);
 
-    product_carray<<<dimGrid,dimBlock>>>(fd3, fpsi, fphi3, m); // fphi3 = fpsi.*fd3;
-    cudaFree(fd3);
-
-    // unused till end
-    cudaFree(fu0);
+    product_carray<<<dimGrid,dimBlock>>>(fd, fpsi, fphi3, m); // fphi3 = fpsi.*fd3;
 
     // Computes fphi
-    cudaMalloc((void**)&fphi, m*sizeof(CuC));
     compute_phi<<<dimGrid,dimBlock>>>(fphi1, fphi2, fphi3, fphi, beta, m);
 
-    // Initialization
-    cudaMalloc((void**)&y1, n*sizeof(CuR));
-    cudaMalloc((void**)&y2, n*sizeof(CuR));
-    cudaMalloc((void**)&y3, n*sizeof(CuR));
-
-    cudaMalloc((void**)&l1, n*sizeof(CuR));
-    cudaMalloc((void**)&l2, n*sizeof(CuR));
-    cudaMalloc((void**)&l3, n*sizeof(CuR));
-
-    cudaMalloc((void**)&fx, m*sizeof(CuC));
+    // Initialization, y and lambda are kept when warm
+    if (!warm) {
+        cudaMemset(y1, 0, n*sizeof(CuR));
+        cudaMemset(y2, 0, n*sizeof(CuR));
+        cudaMemset(y3, 0, n*sizeof(CuR));
 
-    cudaMemset(y1, 0, n*sizeof(CuR));
-    cudaMemset(y2, 0, n*sizeof(CuR));
-    cudaMemset(y3, 0, n*sizeof(CuR));
+        cudaMemset(l1, 0, n*sizeof(CuR));
+        cudaMemset(l2, 0, n*sizeof(CuR));
+        cudaMemset(l3, 0, n*sizeof(CuR));
+    }
 
-    cudaMemset(l1, 0, n*sizeof(CuR));
-    cudaMemset(l2, 0, n*sizeof(CuR));
-    cudaMemset(l3, 0, n*sizeof(CuR));
+    cudaMemset(fx, 0, m*sizeof(CuC));
 
     // Main algorithm
-    for (int k = 0 ; k < nit ; ++k) {
+    float res[4];
+    int k;
+    for (k = 0 ; k < nit ; ++k) {
 
         // -------------------------------------------------------------
         // First step, x update : (I+beta ATA)x = AT (-lambda+beta*ATy)
@@ -451,7 +635,12 @@ void VSNR_ADMM_GPU(float *u0, float *psi, int n0, int n1, int n2, int nit, float
         normalize<<<dimGrid,dimBlock>>>(tmp1, n);
         normalize<<<dimGrid,dimBlock>>>(tmp2, n);
         normalize<<<dimGrid,dimBlock>>>(tmp3, n);
-        update_y<<<dimGrid,dimBlock>>>(d1u0, d2u0, d3u0, tmp1, tmp2, tmp3, l1, l2, l3, y1, y2, y3, beta, n);
+        if (tol > 0 || adaptive) {
+            cudaMemset(s->res, 0, 4*sizeof(float));
+            update_y_res<<<dimGrid,dimBlock>>>(d1u0, d2u0, d3u0, tmp1, tmp2, tmp3, l1, l2, l3, y1, y2, y3, beta, alpha, s->res, n);
+        } else {
+            update_y<<<dimGrid,dimBlock>>>(d1u0, d2u0, d3u0, tmp1, tmp2, tmp3, l1, l2, l3, y1, y2, y3, beta, alpha, n);
+        }
 
         // --------------------------
         // Third step lambda update
@@ -460,6 +649,24 @@ void VSNR_ADMM_GPU(float *u0, float *psi, int n0, int n1, int n2, int nit, float
         update_lambda<<<dimGrid,dimBlock>>>(l2, tmp2, y2, beta, n);
         update_lambda<<<dimGrid,dimBlock>>>(l3, tmp3, y3, beta, n);
 
+        // ------------------------------------------------------
+        // Stops once the block has converged, rebalances beta
+        // ------------------------------------------------------
+        if (tol > 0 || adaptive) {
+            cudaMemcpy(res, s->res, 4*sizeof(float), cudaMemcpyDeviceToHost);
+            if (tol > 0 && converged(res, tol)) {
+                k++;
+                break;
+            }
+            if (adaptive && 2*(k+1) <= nit) {
+                float next = adapt_beta(res, beta);
+                if (next != beta) {
+                    beta = next;
+                    compute_phi<<<dimGrid,dimBlock>>>(fphi1, fphi2, fphi3, fphi, beta, m);
+                }
+            }
+        }
+
     }
 
     // Last but not the least : u = u0 - (psi * x)
@@ -467,38 +674,7 @@ void VSNR_ADMM_GPU(float *u0, float *psi, int n0, int n1, int n2, int nit, float
     cufftExecC2R(planC2R, ftmp1, u);
     normalize<<<dimGrid,dimBlock>>>(u, n);
     substract<<<dimGrid,dimBlock>>>(u0, u, u, n);
-
-    // Free memory
-    cudaFree(fpsi);
-    cudaFree(fphi);
-    cudaFree(fx);
-
-    cudaFree(fphi1);
-    cudaFree(fphi2);
-    cudaFree(fphi3);
-
-    cudaFree(ftmp1);
-    cudaFree(ftmp2);
-    cudaFree(ftmp3);
-
-    cudaFree(d1u0);
-    cudaFree(d2u0);
-    cudaFree(d3u0);
-
-    cudaFree(y1);
-    cudaFree(y2);
-    cudaFree(y3);
-
-    cudaFree(l1);
-    cudaFree(l2);
-    cudaFree(l3);
-
-    cudaFree(tmp1);
-    cudaFree(tmp2);
-    cudaFree(tmp3);
-
-    cufftDestroy(planR2C);
-    cufftDestroy(planC2R);
+    return k;
 }
 
 // Sets Gabor
@@ -626,61 +802,53 @@ __global__ void update_psi(CuC* fpsitemp, CuC* fsum, float alpha, int m)
 }
 
 // This function creates the filters from a Java list of filters
-void CREATE_FILTERS(float* psis, float* gu0, int length, float* gpsi, int n0, int n1, int n2, int dimGrid, int dimBlock, float dx, float dy, float dz)
+void CREATE_FILTERS(VsnrSession* s, float* psis, int length, float* gpsi)
 {
     int i = 0;
-    int n = n0*n1*n2;
-    int m = n0*n2*(n1/2+1);
-
-    cufftHandle planR2C, planC2R;
-    cublasHandle_t handle;
+    int n0 = s->n0;
+    int n1 = s->n1;
+    int n2 = s->n2;
+    int n  = s->n;
+    int m  = s->m;
+    int dimGrid  = s->dimGrid;
+    int dimBlock = s->dimBlock;
+    cublasHandle_t handle = s->handle;
+    cufftHandle planR2C = s->plans->planR2C;
+    cufftHandle planC2R = s->plans->planC2R;
 
     float eta, alpha, mmax, norm;
-    float *psitemp, *ftmp;
-    CuC *fpsitemp, *fsum;
-    CuC *fd1, *fd2, *fd3;
-    CuR  *d1,  *d2,  *d3;
     float max1, max2, max3;
     int imax;
 
-    cudaMalloc((void**)&psitemp,  n*sizeof(float));
-    cudaMalloc((void**)&ftmp, 	  m*sizeof(float));
-    cudaMalloc((void**)&fpsitemp, m*sizeof(CuC));
-    cudaMalloc((void**)&fsum, 	  m*sizeof(CuC));
-    cudaMalloc((void**)&fd1,	  m*sizeof(CuC));
-    cudaMalloc((void**)&fd2,      m*sizeof(CuC));
-    cudaMalloc((void**)&fd3,	  m*sizeof(CuC));
-    cudaMalloc((void**)&d1,       n*sizeof(CuR));
-    cudaMalloc((void**)&d2,       n*sizeof(CuR));
-    cudaMalloc((void**)&d3,       n*sizeof(CuR));
+    // Work buffers of the session, free between two denoisings
+    float* psitemp  = s->tmp1;
+    float* d        = s->tmp2;
+    float* ftmp     = (float*)s->ftmp3;
+    CuC*   fpsitemp = s->ftmp1;
+    CuC*   fsum     = s->ftmp2;
+    CuC*   fd1      = s->fphi1;
+    CuC*   fd2      = s->fphi2;
+    CuC*   fd3      = s->fphi3;
 
     cudaMemset(fsum, 0, m*sizeof(CuC));
 
-    cublasCreate(&handle);
-
-    cufftPlan3d(&planR2C, n2, n0, n1, CUFFT_R2C);
-    cufftPlan3d(&planC2R, n2, n0, n1, CUFFT_C2R);
-
-    // Computes the l2 norm of u0 on GPU
-    cublasSnrm2(handle, n, gu0, 1, &norm);
+    // The filters are built for ||u0|| = 1, GET_FILTERS scales them
+    norm = 1.0f;
 
     // Computes d1 and fd1
-    setd1<<<dimGrid,dimBlock>>>(d1, n, n0, n1, dx);
-    cufftExecR2C(planR2C, d1, fd1);
+    setd1<<<dimGrid,dimBlock>>>(d, n, n0, n1, s->dx);
+    cufftExecR2C(planR2C, d, fd1);
     compute_norm<<<dimGrid,dimBlock>>>(fd1, m);
-    cudaFree(d1);
 
     // Computes d2 and fd2
-    setd2<<<dimGrid,dimBlock>>>(d2, n, n0, n1, dy);
-    cufftExecR2C(planR2C, d2, fd2);
+    setd2<<<dimGrid,dimBlock>>>(d, n, n0, n1, s->dy);
+    cufftExecR2C(planR2C, d, fd2);
     compute_norm<<<dimGrid,dimBlock>>>(fd2, m);
-    cudaFree(d2);
 
     // Computes d3 and fd3
-    setd3<<<dimGrid,dimBlock>>>(d3, n, n0, n1, dz);
-    cufftExecR2C(planR2C, d3, fd3);
+    setd3<<<dimGrid,dimBlock>>>(d, n, n0, n1, s->dz);
+    cufftExecR2C(planR2C, d, fd3);
     compute_norm<<<dimGrid,dimBlock>>>(fd3, m);
-    cudaFree(d3);
 
     // Computes PSI = sum_{i=1}^m |PSI_i|^2/alpha_i, where alpha_i is defined in the paper.
     while (i < length) {
@@ -725,19 +893,104 @@ void CREATE_FILTERS(float* psis, float* gu0, int length, float* gpsi, int n0, in
 
     compute_sqrtf<<<dimGrid,dimBlock>>>(fsum, m); // fsum = sqrtf(fsum);
     cufftExecC2R(planC2R, fsum, gpsi);
+}
+
+// Filter cache : alpha_i is proportional to 1/||u0||, hence fsum = ||u0||.fsum(1) and
+// psi(u0) = sqrt(||u0||).psi(1). The unit filter of the last (filter list, n0, n1, n2, dx, dy, dz) is
+// kept on each device so that the blocks / channels of a stack only pay for one CREATE_FILTERS per device.
+typedef struct {
+    float* psis;
+    int    length;
+    int    n0, n1, n2;
+    float  dx, dy, dz;
+    float* gpsi;
+} FilterCache;
+
+static FilterCache filter_cache[MAX_DEVICES];
+
+// -
+int filter_cache_hit(FilterCache* c, float* psis, int length, int n0, int n1, int n2, float dx, float dy, float dz)
+{
+    return c->gpsi != NULL && c->length == length && c->n0 == n0 && c->n1 == n1 && c->n2 == n2 &&
+           c->dx == dx && c->dy == dy && c->dz == dz &&
+           memcmp(c->psis, psis, length*sizeof(float)) == 0;
+}
+
+// Frees one cached filter, its device must be the current one
+void clear_filter(FilterCache* c)
+{
+    if (c->gpsi != NULL) cudaFree(c->gpsi);
+    if (c->psis != NULL) free(c->psis);
+    c->gpsi   = NULL;
+    c->psis   = NULL;
+    c->length = 0;
+}
+
+// Frees the cached filters of every device
+_export_ void clearFilterCache()
+{
+    std::lock_guard<std::mutex> lock(cache_lock);
+    for (int d = 0 ; d < MAX_DEVICES ; d++) {
+        if (filter_cache[d].gpsi == NULL) continue;
+        int previous = enter_device(d);
+        clear_filter(&filter_cache[d]);
+        leave_device(previous);
+    }
+}
+
+// s->gpsi = sqrt(||s->gu0||) * unit filter, the unit filter is built on the first call only
+// returns 0 when the device (or the host) is out of memory for the unit filter
+int GET_FILTERS(VsnrSession* s, float* psis, int length)
+{
+    int n0 = s->n0;
+    int n1 = s->n1;
+    int n2 = s->n2;
+    int n  = s->n;
+    float norm;
+    std::lock_guard<std::mutex> lock(cache_lock);
+    FilterCache* c = &filter_cache[s->device];
+
+    if (!filter_cache_hit(c, psis, length, n0, n1, n2, s->dx, s->dy, s->dz)) {
+        clear_filter(c);
+        int ok = 1;
+        c->gpsi = (float*)session_alloc(n*sizeof(float), &ok);
+        c->psis = (float*)malloc(length*sizeof(float));
+        if (!ok || c->psis == NULL) {
+            clear_filter(c);
+            return 0;
+        }
+        CREATE_FILTERS(s, psis, length, c->gpsi);
+        memcpy(c->psis, psis, length*sizeof(float));
+        c->length = length;
+        c->n0 = n0;
+        c->n1 = n1;
+        c->n2 = n2;
+        c->dx = s->dx;
+        c->dy = s->dy;
+        c->dz = s->dz;
+    }
 
-    cudaFree(psitemp);
-    cudaFree(fpsitemp);
-    cudaFree(ftmp);
-    cudaFree(fsum);
+    // Computes the l2 norm of u0 on GPU
+    cublasSnrm2(s->handle, n, s->gu0, 1, &norm);
 
-    cudaFree(fd1);
-    cudaFree(fd2);
-    cudaFree(fd3);
+    cudaMemcpy(s->gpsi, c->gpsi, n*sizeof(float), cudaMemcpyDeviceToDevice);
+    multiply<<<s->dimGrid,s->dimBlock>>>(s->gpsi, n, sqrtf(norm));
+    return 1;
+}
 
-    cufftDestroy(planR2C);
-    cufftDestroy(planC2R);
-    cublasDestroy(handle);
+// -
+_export_ int getDeviceCount()
+{
+    int count = 0;
+    if (cudaGetDeviceCount(&count) != cudaSuccess) return 0;
+    return count;
+}
+
+// Makes device the current one of the calling thread (the next OPEN uses it), 0 on failure
+_export_ int setDevice(int device)
+{
+    if (device < 0 || device >= MAX_DEVICES) return 0;
+    return (cudaSetDevice(device) == cudaSuccess ? 1 : 0);
 }
 
 // -
@@ -761,36 +1014,183 @@ _export_ int getMaxBlocks()
 }
 
 // -
-_export_ void VSNR_3D_FIJI_GPU(float* psis, int length, float* u0, int n0, int n1, int n2, int nit, float beta, float* u, int nBlocks, float max, float dx, float dy, float dz)
+_export_ long long getFreeMemory()
 {
-    int n = n0*n1*n2;
-    float *gu, *gu0, *gpsi;
+    size_t free = 0, total = 0;
+    if (cudaMemGetInfo(&free, &total) != cudaSuccess) return 0;
+    return (long long)free;
+}
 
-    int dimBlock = MIN(nBlocks, getMaxBlocks());
-    dimBlock = MAX(dimBlock, 1);
-    int dimGrid = MIN(n/dimBlock, getMaxGrid());
-    dimGrid = MAX(dimGrid, 1);
+// Device memory of a session of n0 x n1 x n2 blocks, cuFFT work areas included
+_export_ long long VSNR_3D_BYTES(int n0, int n1, int n2)
+{
+    int dims[3] = {n2, n0, n1};
+    long long n = (long long)n0*n1*n2;
+    long long m = (long long)n0*n2*(n1/2+1);
+    size_t r2c = 0, c2r = 0;
 
-    // 1. Alloc memory    
-    cudaMalloc((void**)&gu,   n*sizeof(float));
-    cudaMalloc((void**)&gpsi, n*sizeof(float));
-    cudaMalloc((void**)&gu0,  n*sizeof(float));
+    cufftEstimateMany(3, dims, NULL, 1, 0, NULL, 1, 0, CUFFT_R2C, 1, &r2c);
+    cufftEstimateMany(3, dims, NULL, 1, 0, NULL, 1, 0, CUFFT_C2R, 1, &c2r);
 
-    cudaMemcpy(gu0, u0, n*sizeof(float), cudaMemcpyHostToDevice);
-    divide<<<dimGrid, dimBlock>>>(gu0, n, max);
+    // 15 real and 9 complex arrays (see VSNR_3D_OPEN), and the unit filter the device caches (see GET_FILTERS)
+    return 15*n*sizeof(CuR) + 9*m*sizeof(CuC) + n*sizeof(float) + r2c + c2r;
+}
 
-    // 2. Prepares filters
-    CREATE_FILTERS(psis, gu0, length, gpsi, n0, n1, n2, dimGrid, dimBlock, dx, dy, dz);
+// -
+// Frees a session, NULL is ignored
+_export_ void VSNR_3D_CLOSE(void* session)
+{
+    VsnrSession* s = (VsnrSession*)session;
+    if (s == NULL) return;
+    int previous = enter_device(s->device);
+
+    cudaFree(s->fpsi);
+    cudaFree(s->fphi);
+    cudaFree(s->fx);
+    cudaFree(s->fphi1);
+    cudaFree(s->fphi2);
+    cudaFree(s->fphi3);
+    cudaFree(s->ftmp1);
+    cudaFree(s->ftmp2);
+    cudaFree(s->ftmp3);
+
+    cudaFree(s->gu);
+    cudaFree(s->gu0);
+    cudaFree(s->gpsi);
+    cudaFree(s->d1u0);
+    cudaFree(s->d2u0);
+    cudaFree(s->d3u0);
+    cudaFree(s->tmp1);
+    cudaFree(s->tmp2);
+    cudaFree(s->tmp3);
+    cudaFree(s->y1);
+    cudaFree(s->y2);
+    cudaFree(s->y3);
+    cudaFree(s->l1);
+    cudaFree(s->l2);
+    cudaFree(s->l3);
+    cudaFree(s->res);
+
+    if (s->handle != NULL) cublasDestroy(s->handle);
+    release_plans(s->plans);
+    free(s);
+    leave_device(previous);
+}
+
+// Allocates plans and work buffers for n0 x n1 x n2 blocks, NULL when the device is out of memory
+_export_ void* VSNR_3D_OPEN(int n0, int n1, int n2, int nBlocks, float dx, float dy, float dz)
+{
+    int ok = 1;
+    int n = (int)n0*n1*n2;
+    int m = (int)n0*n2*(n1/2+1);
+    VsnrSession* s = (VsnrSession*)calloc(1, sizeof(VsnrSession));
+    if (s == NULL) return NULL;
+
+    cudaGetDevice(&s->device);
+    if (s->device >= MAX_DEVICES) {
+        free(s);
+        return NULL;
+    }
+
+    s->n0 = n0;
+    s->n1 = n1;
+    s->n2 = n2;
+    s->n  = n;
+    s->m  = m;
+    s->dx = dx;
+    s->dy = dy;
+    s->dz = dz;
+
+    s->dimBlock = MIN(nBlocks, getMaxBlocks());
+    s->dimBlock = MAX(s->dimBlock, 1);
+    s->dimGrid  = MIN(n/s->dimBlock, getMaxGrid());
+    s->dimGrid  = MAX(s->dimGrid, 1);
+
+    s->plans = acquire_plans(s->device, n0, n1, n2);
+    if (s->plans == NULL) ok = 0;
+    if (cublasCreate(&s->handle) != CUBLAS_STATUS_SUCCESS) {
+        s->handle = NULL;
+        ok = 0;
+    }
+
+    s->gu    = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->gu0   = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->gpsi  = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->d1u0  = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->d2u0  = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->d3u0  = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->tmp1  = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->tmp2  = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->tmp3  = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->y1    = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->y2    = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->y3    = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->l1    = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->l2    = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->l3    = (CuR*)session_alloc(n*sizeof(CuR), &ok);
+    s->res   = (float*)session_alloc(4*sizeof(float), &ok);
+    s->fpsi  = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+    s->fphi  = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+    s->fx    = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+    s->fphi1 = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+    s->fphi2 = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+    s->fphi3 = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+    s->ftmp1 = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+    s->ftmp2 = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+    s->ftmp3 = (CuC*)session_alloc(m*sizeof(CuC), &ok);
+
+    if (!ok) {
+        VSNR_3D_CLOSE(s);
+        return NULL;
+    }
+
+    return s;
+}
+
+// Denoises one n0 x n1 x n2 block with an open session, stops once it has converged (see converged, tol = 0 :
+// after nit iterations), alpha is the over-relaxation and adaptive rebalances beta (see VSNR_ADMM_GPU),
+// when warm, the block starts from the ADMM state (y, lambda) the previous block of the session ended with instead of
+// zero, e.g. the same block of the previous frame of a time-lapse : the solution is the same, reached in fewer
+// iterations when the blocks are alike (with tol > 0)
+// returns the number of iterations run, -1 when the device is out of memory for the filters (u is left untouched)
+_export_ int VSNR_3D_DENOISE(void* session, float* psis, int length, float* u0, int nit, float beta, float tol, float alpha, int adaptive, int warm, float* u, float max)
+{
+    VsnrSession* s = (VsnrSession*)session;
+    int n = s->n;
+    int previous = enter_device(s->device);
+
+    // 1. Copies u0 / max to the device
+    cudaMemcpy(s->gu0, u0, n*sizeof(float), cudaMemcpyHostToDevice);
+    divide<<<s->dimGrid, s->dimBlock>>>(s->gu0, n, max);
+
+    // 2. Prepares filters (cached across calls, scaled by sqrt(||u0||))
+    if (!GET_FILTERS(s, psis, length)) {
+        leave_device(previous);
+        return -1;
+    }
 
     // 3. Denoises the image
-    VSNR_ADMM_GPU(gu0, gpsi, n0, n1, n2, nit, beta, gu, dimGrid, dimBlock, dx, dy, dz);
+    warm = (warm && s->state);
+    s->state  = 0;
+    int iters = VSNR_ADMM_GPU(s, s->gu0, s->gpsi, nit, beta, tol, alpha, adaptive, warm, s->gu);
+    s->state  = 1;
 
     // 4. Copies the result to u
-    multiply<<<dimGrid, dimBlock>>>(gu, n, max);
-    cudaMemcpy(u, gu, n*sizeof(float), cudaMemcpyDeviceToHost);
+    multiply<<<s->dimGrid, s->dimBlock>>>(s->gu, n, max);
+    cudaMemcpy(u, s->gu, n*sizeof(float), cudaMemcpyDeviceToHost);
+
+    leave_device(previous);
+    return iters;
+}
 
-    // 5. Frees memory
-    cudaFree(gu);
-    cudaFree(gu0);
-    cudaFree(gpsi);
+// One shot denoising (open, denoise, close)
+_export_ void VSNR_3D_FIJI_GPU(float* psis, int length, float* u0, int n0, int n1, int n2, int nit, float beta, float* u, int nBlocks, float max, float dx, float dy, float dz)
+{
+    void* s = VSNR_3D_OPEN(n0, n1, n2, nBlocks, dx, dy, dz);
+    if (s == NULL) {
+        fprintf(stderr, "VSNR_3D_FIJI_GPU : can not allocate %d x %d x %d on the device\n", n0, n1, n2);
+        return;
+    }
+    VSNR_3D_DENOISE(s, psis, length, u0, nit, beta, 0, 1, 0, 0, u, max);
+    VSNR_3D_CLOSE(s);
 }
@@ -0,0 +1,79 @@
+// ------------------------------------------------- //
+//                                                   //
+//             VSNR 3D : BACKEND REGISTRY            //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+
+
+// objectives : list the known backends and pick one
+public final class Backends {
+
+    // value of the Backend: key meaning "the fastest available one"
+    public static final String AUTO = "auto";
+
+    private static List<VsnrBackend> all = null;
+
+    private Backends() {}
+
+    // built-in backends plus the ones registered as services, by decreasing priority
+    public static synchronized List<VsnrBackend> list()
+    {
+        if (all == null) {
+            List<VsnrBackend> res = new ArrayList<VsnrBackend>();
+            res.add(new CudaBackend());
+            res.add(new CpuBackend());
+            try {
+                for (VsnrBackend b : ServiceLoader.load(VsnrBackend.class, Backends.class.getClassLoader()))
+                    res.add(b);
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+            res.sort((a, b) -> Integer.compare(b.getPriority(), a.getPriority()));
+            all = Collections.unmodifiableList(res);
+        }
+        return all;
+    }
+
+    // names of the known backends, AUTO first
+    public static String[] names()
+    {
+        List<VsnrBackend> l = list();
+        String[] res = new String[l.size()+1];
+        res[0] = AUTO;
+        for (int i = 0 ; i < l.size() ; i++)
+            res[i+1] = l.get(i).getName();
+        return res;
+    }
+
+    // the named backend when available, otherwise the fastest available one
+    public static VsnrBackend select(String name)
+    {
+        if (name != null && !name.equalsIgnoreCase(AUTO)) {
+            for (VsnrBackend b : list())
+                if (b.getName().equalsIgnoreCase(name) && b.isAvailable()) return b;
+        }
+        for (VsnrBackend b : list())
+            if (b.isAvailable()) return b;
+        throw new IllegalStateException("No VSNR backend available");
+    }
+
+    // the next available backend after the one that just failed, matched by name : a variant of a listed backend
+    // (see VsnrBackend.withHalfPrecision) falls back as the backend it was made from
+    public static VsnrBackend fallback(VsnrBackend failed)
+    {
+        boolean after = false;
+        for (VsnrBackend b : list()) {
+            if (after && b.isAvailable()) return b;
+            if (b == failed || b.getName().equals(failed.getName())) after = true;
+        }
+        return null;
+    }
+
+}
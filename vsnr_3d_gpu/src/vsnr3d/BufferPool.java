@@ -0,0 +1,129 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 3D : STAGING BUFFER POOL          //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+
+// objectives : reusable float buffers for the blocks handed to the backends
+// direct buffers (off-heap, native order) are given to native code by JNA without any copy,
+// heap buffers give their array to the Java engine (see VsnrBackend.usesDirectBuffers)
+// a buffer is reused when a released one holds the request without wasting more than half of it,
+// so once the geometry of a run is known only its first blocks allocate (see getStats)
+public final class BufferPool {
+
+    private final boolean direct;
+    private final ArrayList<FloatBuffer> free = new ArrayList<FloatBuffer>();
+
+    // statistics, in buffers and bytes
+    private long allocations = 0;
+    private long reuses      = 0;
+    private long allocated   = 0;
+    private long inUse       = 0;
+    private long peak        = 0;
+
+    public BufferPool(boolean direct)
+    {
+        // -
+        this.direct = direct;
+    }
+
+    // -
+    public boolean isDirect()
+    {
+        // -
+        return direct;
+    }
+
+    // a buffer of n floats (position 0, limit n), to be given back with release
+    // OutOfMemoryError when n floats do not fit in one buffer (2 GB for a direct one, 2^31 floats on the heap)
+    public synchronized FloatBuffer acquire(long n)
+    {
+        long most = (direct ? Integer.MAX_VALUE / 4 : Integer.MAX_VALUE - 8);
+        if (n > most) throw new OutOfMemoryError(n + " floats do not fit in one " + (direct ? "direct" : "heap") + " buffer (" + most + " at most)");
+        int best = -1;
+        for (int i = 0 ; i < free.size() ; i++) {
+            int c = free.get(i).capacity();
+            if (c >= n && c / 2 <= n && (best < 0 || c < free.get(best).capacity())) best = i;
+        }
+
+        FloatBuffer b;
+        if (best >= 0) {
+            b = free.remove(best);
+            reuses++;
+        } else {
+            b = allocate((int)n);
+            allocations++;
+            allocated += 4L*n;
+        }
+
+        inUse += 4L*b.capacity();
+        peak   = Math.max(peak, inUse);
+        b.clear();
+        b.limit((int)n);
+        return b;
+    }
+
+    // gives a buffer of acquire back to the pool, null is ignored
+    public synchronized void release(FloatBuffer b)
+    {
+        if (b == null) return;
+        inUse -= 4L*b.capacity();
+        free.add(b);
+    }
+
+    // drops the released buffers (the direct ones are freed with them by the GC)
+    public synchronized void clear()
+    {
+        // -
+        free.clear();
+    }
+
+    // number of buffers allocated since the pool was created
+    public synchronized long getAllocations()
+    {
+        // -
+        return allocations;
+    }
+
+    // number of requests served by a released buffer
+    public synchronized long getReuses()
+    {
+        // -
+        return reuses;
+    }
+
+    // bytes of the buffers allocated since the pool was created
+    public synchronized long getAllocatedBytes()
+    {
+        // -
+        return allocated;
+    }
+
+    // one line summary for the log window
+    public synchronized String getStats()
+    {
+        return (direct ? "direct" : "heap") + " buffers : " + allocations + " allocated (" + mb(allocated) + " MB), "
+            + reuses + " reused, " + mb(peak) + " MB at peak";
+    }
+
+    private FloatBuffer allocate(int n)
+    {
+        if (!direct) return FloatBuffer.wrap(new float[n]);
+        return ByteBuffer.allocateDirect(4*n).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private static String mb(long bytes)
+    {
+        // -
+        return String.format("%.1f", bytes / (1024.0*1024.0));
+    }
+
+}
@@ -0,0 +1,156 @@
+// ------------------------------------------------- //
+//                                                   //
+//              VSNR 3D : CPU BACKEND                //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.nio.FloatBuffer;
+
+
+// objectives : VSNR 3D with the Java engine (VsnrCpu3D), always available
+public class CpuBackend implements VsnrBackend {
+
+    // state of the sessions in half precision (see withHalfPrecision)
+    private final boolean half;
+
+    // the half precision one, shared by every worker asking for it (they share the heap)
+    private CpuBackend halved = null;
+
+    public CpuBackend()
+    {
+        // -
+        this(false);
+    }
+
+    private CpuBackend(boolean half)
+    {
+        // -
+        this.half = half;
+    }
+
+    @Override
+    public String getName()
+    {
+        // -
+        return "cpu";
+    }
+
+    @Override
+    public String getDescription()
+    {
+        // -
+        return "Java CPU engine (" + Parallel.threads() + " worker threads" + (half ? ", half precision state" : "") + ")";
+    }
+
+    @Override
+    public boolean isAvailable()
+    {
+        // -
+        return true;
+    }
+
+    @Override
+    public int getPriority()
+    {
+        // -
+        return 10;
+    }
+
+    @Override
+    public int getMaxBlocks()
+    {
+        // -
+        return 256;
+    }
+
+    @Override
+    public long getSessionBytes(int n0, int n1, int n2)
+    {
+        // -
+        return VsnrCpu3D.Session.bytes(n0, n1, n2, half);
+    }
+
+    // half of the free heap
+    @Override
+    public long getFreeMemory(int device)
+    {
+        Runtime rt = Runtime.getRuntime();
+        return (rt.maxMemory() - (rt.totalMemory() - rt.freeMemory())) / 2;
+    }
+
+    @Override
+    public synchronized VsnrBackend withHalfPrecision()
+    {
+        if (half) return this;
+        if (halved == null) halved = new CpuBackend(true);
+        return halved;
+    }
+
+    @Override
+    public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int n0, int n1, int n2, int nit, float beta, FloatBuffer u, int nBlock, float max, float dx, float dy, float dz)
+    {
+        try (VsnrSession s = open(n0, n1, n2, nBlock, dx, dy, dz)) {
+            s.denoise(psis, length, u0, nit, beta, u, max);
+        }
+    }
+
+    @Override
+    public VsnrSession open(int n0, int n1, int n2, int nBlock, float dx, float dy, float dz)
+    {
+        VsnrCpu3D.Session session = new VsnrCpu3D.Session(n0, n1, n2, dx, dy, dz, half);
+        int n = n0*n1*n2;
+        return new VsnrSession() {
+
+            // staging arrays, used when a buffer has no usable array (direct or sliced)
+            private float[] in, out;
+
+            @Override
+            public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int nit, float beta, FloatBuffer u, float max)
+            {
+                // -
+                denoise(psis, length, u0, nit, beta, VsnrSession.Options.DEFAULT, u, max);
+            }
+
+            @Override
+            public int denoise(FloatBuffer psis, int length, FloatBuffer u0, int nit, float beta, VsnrSession.Options opts, FloatBuffer u, float max)
+            {
+                float[] src = backing(u0);
+                float[] dst = backing(u);
+                if (src == null) {
+                    if (in == null) in = new float[n];
+                    u0.duplicate().get(in, 0, n);
+                    src = in;
+                }
+                if (dst == null) {
+                    if (out == null) out = new float[n];
+                    dst = out;
+                }
+                int iters = session.denoise(array(psis, length), length, src, nit, beta, opts, dst, max);
+                if (dst == out) u.duplicate().put(out, 0, n);
+                return iters;
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    // the backing array when it can be used as is, a copy otherwise
+    private static float[] array(FloatBuffer b, int n)
+    {
+        float[] a = backing(b);
+        if (a != null) return a;
+        a = new float[n];
+        b.duplicate().get(a, 0, n);
+        return a;
+    }
+
+    private static float[] backing(FloatBuffer b)
+    {
+        // -
+        return (b.hasArray() && b.arrayOffset() == 0 && b.position() == 0 ? b.array() : null);
+    }
+
+}
@@ -0,0 +1,287 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 3D : CUDA LIBRARY BACKEND         //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.io.File;
+import java.net.URL;
+import java.lang.reflect.Method;
+import java.nio.FloatBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import com.sun.jna.Library;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLibrary;
+import com.sun.jna.Pointer;
+import ij.IJ;
+
+
+// objectives : VSNR 3D on the GPU through libvsnr3d.so / libvsnr3d.dll (vsnr3d.cu)
+// the library is expected next to the plugin jar and loaded on first use
+public class CudaBackend implements VsnrBackend {
+
+    private final String path;
+
+    private VsnrDllLoader dll = null;
+    private boolean loaded = false;
+    private String  error  = null;
+    private int     devices = 0;
+    private boolean multiDevice = false;
+
+    // the functions of VsnrDllLoader the library exports, older builds miss the later ones
+    private final Set<String> symbols = new HashSet<>();
+
+    public CudaBackend()
+    {
+        // -
+        this(defaultPath());
+    }
+
+    public CudaBackend(String path)
+    {
+        // -
+        this.path = path;
+    }
+
+    // libvsnr3d next to the jar containing this class
+    public static String defaultPath()
+    {
+        URL location = CudaBackend.class.getProtectionDomain().getCodeSource().getLocation();
+        String dir   = (new File(location.getFile())).getParentFile().toString();
+        if (IJ.isWindows()) return dir + "\\libvsnr3d.dll";
+        return dir + "/libvsnr3d.so";
+    }
+
+    @Override
+    public String getName()
+    {
+        // -
+        return "cuda";
+    }
+
+    @Override
+    public String getDescription()
+    {
+        if (!isAvailable()) return "CUDA library unavailable (" + error + ")";
+        return "CUDA library " + path + " (" + devices + " device(s), " + dll.getMaxBlocks() + " threads per block)";
+    }
+
+    @Override
+    public synchronized boolean isAvailable()
+    {
+        if (!loaded) {
+            loaded = true;
+            load();
+        }
+        return (dll != null);
+    }
+
+    @Override
+    public int getPriority()
+    {
+        // -
+        return 100;
+    }
+
+    @Override
+    public int getMaxBlocks()
+    {
+        // -
+        return (isAvailable() ? dll.getMaxBlocks() : 256);
+    }
+
+    @Override
+    public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int n0, int n1, int n2, int nit, float beta, FloatBuffer u, int nBlock, float max, float dx, float dy, float dz)
+    {
+        if (!isAvailable()) throw new IllegalStateException(getDescription());
+        dll.VSNR_3D_FIJI_GPU(psis, length, u0, n0, n1, n2, nit, beta, u, nBlock, max, dx, dy, dz);
+    }
+
+    // JNA hands direct buffers to the library as they are
+    @Override
+    public boolean usesDirectBuffers()
+    {
+        // -
+        return true;
+    }
+
+    @Override
+    public int getDeviceCount()
+    {
+        // -
+        return (isAvailable() && multiDevice ? devices : 1);
+    }
+
+    @Override
+    public long getSessionBytes(int n0, int n1, int n2)
+    {
+        if (!isAvailable()) return 0;
+        if (has("VSNR_3D_BYTES")) return dll.VSNR_3D_BYTES(n0, n1, n2);
+        // libraries built before VSNR_3D_BYTES : the work arrays only
+        long n = (long)n0*n1*n2;
+        long m = (long)n0*n2*(n1/2+1);
+        return 4*(15*n + 18*m);
+    }
+
+    // 90% of the free memory of the device
+    @Override
+    public long getFreeMemory(int device)
+    {
+        if (!isAvailable() || !has("getFreeMemory")) return Long.MAX_VALUE;
+        select(device);
+        return dll.getFreeMemory() / 10 * 9;
+    }
+
+    @Override
+    public VsnrSession open(int n0, int n1, int n2, int nBlock, float dx, float dy, float dz)
+    {
+        // -
+        return open(0, n0, n1, n2, nBlock, dx, dy, dz);
+    }
+
+    @Override
+    public VsnrSession open(int device, int n0, int n1, int n2, int nBlock, float dx, float dy, float dz)
+    {
+        if (!isAvailable()) throw new IllegalStateException(getDescription());
+        // libraries built before the session API
+        if (!has("VSNR_3D_OPEN")) return VsnrBackend.super.open(n0, n1, n2, nBlock, dx, dy, dz);
+        select(device);
+        Pointer p = dll.VSNR_3D_OPEN(n0, n1, n2, nBlock, dx, dy, dz);
+        if (p == null) throw new OutOfMemoryError("Can not allocate a " + n0 + " x " + n1 + " x " + n2 + " session on device " + device);
+        return new Session(p);
+    }
+
+    // makes device the current one of the calling thread for the next library call
+    private void select(int device)
+    {
+        if (multiDevice) {
+            if (dll.setDevice(device) == 0) throw new IllegalStateException("Can not use CUDA device " + device);
+        } else if (device != 0) {
+            throw new IllegalStateException("The CUDA library only drives device 0");
+        }
+    }
+
+    // a VSNR_3D_OPEN handle
+    private class Session implements VsnrSession {
+
+        private Pointer handle;
+
+        Session(Pointer handle)
+        {
+            // -
+            this.handle = handle;
+        }
+
+        @Override
+        public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int nit, float beta, FloatBuffer u, float max)
+        {
+            if (handle == null) throw new IllegalStateException("Session closed");
+            dll.VSNR_3D_DENOISE(handle, psis, length, u0, nit, beta, 0, 1, 0, 0, u, max);
+        }
+
+        // OutOfMemoryError when the device has no room left for the filters (-1 iterations)
+        @Override
+        public int denoise(FloatBuffer psis, int length, FloatBuffer u0, int nit, float beta, Options opts, FloatBuffer u, float max)
+        {
+            if (handle == null) throw new IllegalStateException("Session closed");
+            int iters = dll.VSNR_3D_DENOISE(handle, psis, length, u0, nit, beta, opts.tol, opts.alpha, (opts.adaptive ? 1 : 0), (opts.warm ? 1 : 0), u, max);
+            if (iters < 0) throw new OutOfMemoryError("Can not allocate the filters on the device");
+            return iters;
+        }
+
+        @Override
+        public synchronized void close()
+        {
+            if (handle != null) dll.VSNR_3D_CLOSE(handle);
+            handle = null;
+        }
+
+    }
+
+    // loads the library and checks that a device answers
+    private void load()
+    {
+        if (!IJ.isLinux() && !IJ.isWindows()) {
+            error = "unsupported OS";
+            return;
+        }
+        File f = new File(path);
+        if (!f.exists() || f.isDirectory()) {
+            error = "can not find " + path;
+            return;
+        }
+        try {
+            VsnrDllLoader lib = (VsnrDllLoader)Native.loadLibrary(path, VsnrDllLoader.class);
+            probe(NativeLibrary.getInstance(path));
+            // libraries built before getDeviceCount
+            devices = (has("getDeviceCount") ? lib.getDeviceCount() : (lib.getMaxBlocks() > 0 ? 1 : 0));
+            // libraries built before setDevice drive the default device only
+            multiDevice = (has("setDevice") && lib.setDevice(0) != 0);
+            if (devices > 0) dll = lib;
+            else error = "no CUDA device";
+        } catch (Throwable e) {
+            error = "can not load " + path + " : " + e.getMessage();
+        }
+    }
+
+    // looks the functions of VsnrDllLoader up once, instead of catching UnsatisfiedLinkError on every call
+    private void probe(NativeLibrary lib)
+    {
+        for (Method m : VsnrDllLoader.class.getMethods()) {
+            try {
+                lib.getFunction(m.getName());
+                symbols.add(m.getName());
+            } catch (UnsatisfiedLinkError e) {
+                // built before this function
+            }
+        }
+    }
+
+    // true when the library exports the function
+    private boolean has(String name)
+    {
+        // -
+        return symbols.contains(name);
+    }
+
+    // dll interface
+    private interface VsnrDllLoader extends Library {
+
+        // CUDA denoise function
+        public void VSNR_3D_FIJI_GPU(FloatBuffer psis, int length, FloatBuffer u0, int n0, int n1, int n2, int nit, float beta, FloatBuffer u, int nBlock, float max, float dx, float dy, float dz);
+
+        // return dimBlocks max
+        public int getMaxBlocks();
+
+        // return dimGrid max
+        public int getMaxGrid();
+
+        // return the number of CUDA devices
+        public int getDeviceCount();
+
+        // makes device the current one of the calling thread, 0 on failure
+        public int setDevice(int device);
+
+        // free memory of the current device
+        public long getFreeMemory();
+
+        // device memory of a session of n0 x n1 x n2 blocks
+        public long VSNR_3D_BYTES(int n0, int n1, int n2);
+
+        // plans and work buffers for n0 x n1 x n2 blocks, null when the device is out of memory
+        public Pointer VSNR_3D_OPEN(int n0, int n1, int n2, int nBlock, float dx, float dy, float dz);
+
+        // denoises one block with an open session, stopping once the residuals are below tol (0 : after nit iterations),
+        // with the over-relaxation alpha, adaptive beta (0 / 1), starting from the state of the previous block when
+        // warm (0 / 1), returns the number of iterations run, -1 when the device has no room for the filters
+        public int VSNR_3D_DENOISE(Pointer session, FloatBuffer psis, int length, FloatBuffer u0, int nit, float beta, float tol, float alpha, int adaptive, int warm, FloatBuffer u, float max);
+
+        // frees a session
+        public void VSNR_3D_CLOSE(Pointer session);
+
+    }
+
+}
@@ -0,0 +1,210 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 3D CPU : FILTER BANK CACHE        //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// objectives : the part of the filters of VSNR 3D that does not depend on the image
+// alpha_i = sqrt(n).n^2.max_i / (||u0||.eta_i) so fsum = ||u0||.fsum(1) and fftn(psi) = sqrt(||u0||).fftn(psi(1))
+// the banks of the last few (filter list, n0, n1, n2, dx, dy, dz) are kept process-wide, so the blocks and
+// channels of a stack pay once for their filters. The operator spectra are separable and rebuilt by setfd
+// from 1D tables, keeping three more volumes per bank would cost more memory than it saves time
+final class FilterBank {
+
+    // number of banks kept, one per (filter list, block size) in use (the last block of a stack is often shorter)
+    private static final int CAPACITY = 2;
+
+    // the bank of every key is built once by the first thread asking for it, outside of any lock, the others
+    // asking for the same key wait for it, the ones asking for other keys do not
+    private static final ConcurrentHashMap<Key, Entry> cache = new ConcurrentHashMap<Key, Entry>();
+
+    // stamps the last use of the entries, the least recently used one goes first
+    private static final AtomicLong clock = new AtomicLong();
+
+    final float[] fpsi; // fftn(psi) for ||u0|| = 1
+
+    // the bank of (psis, n0, n1, n2, dx, dy, dz), built on the first request only
+    static FilterBank get(float[] psis, int length, int n0, int n1, int n2, float dx, float dy, float dz)
+    {
+        Key key = new Key(Arrays.copyOf(psis, length), n0, n1, n2, dx, dy, dz);
+        Entry e = cache.computeIfAbsent(key, k -> new Entry(new FutureTask<FilterBank>(() -> {
+            long start = System.nanoTime();
+            FilterBank bank = new FilterBank(k.psis, k.n0, k.n1, k.n2, k.dx, k.dy, k.dz);
+            Metrics.filters(start);
+            return bank;
+        })));
+        e.used = clock.incrementAndGet();
+        e.task.run(); // builds the bank on the first call, returns at once on the others
+        try {
+            FilterBank bank = e.task.get();
+            evict();
+            return bank;
+        } catch (ExecutionException x) {
+            // out of memory or bad filters : the next request tries again
+            cache.remove(key, e);
+            Throwable cause = x.getCause();
+            if (cause instanceof Error) throw (Error)cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            throw new IllegalStateException(cause);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while the filters are built", x);
+        }
+    }
+
+    // drops the least recently used entries beyond CAPACITY
+    private static void evict()
+    {
+        while (cache.size() > CAPACITY) {
+            Map.Entry<Key, Entry> eldest = null;
+            for (Map.Entry<Key, Entry> e : cache.entrySet())
+                if (eldest == null || e.getValue().used < eldest.getValue().used) eldest = e;
+            if (eldest == null || !cache.remove(eldest.getKey(), eldest.getValue())) return;
+        }
+    }
+
+    // drops every cached bank
+    static void clear()
+    {
+        // -
+        cache.clear();
+    }
+
+    private FilterBank(float[] psis, int n0, int n1, int n2, float dx, float dy, float dz)
+    {
+        int n = n0*n1*n2;
+        int m = n0*n2*(n1/2+1);
+
+        RealFFT3D fft = RealFFT3D.get(n0, n1, n2);
+        fpsi = new float[2*m];
+
+        float[] psi = new float[n];
+        createFilters(psis, psi, n0, n1, n2, dx, dy, dz, fft);
+        fft.forward(psi, fpsi); // fpsi = fftn(psi);
+    }
+
+    // creates the filter of a unit norm image from a Java list of filters, see CREATE_FILTERS
+    private static void createFilters(float[] psis, float[] gpsi, int n0, int n1, int n2, float dx, float dy, float dz, RealFFT3D fft)
+    {
+        int i = 0;
+        int n = n0*n1*n2;
+        int m = n0*n2*(n1/2+1);
+        int length = psis.length;
+
+        float eta = 0, alpha, max1, max2, max3, mmax;
+        float[] psitemp  = new float[n];
+        float[] fpsitemp = new float[2*m];
+        float[] fsum     = new float[2*m];
+        float[] fd1      = new float[2*m];
+        float[] fd2      = new float[2*m];
+        float[] fd3      = new float[2*m];
+
+        // fdi = |fftn(di)|
+        VsnrCpu3D.setfd(fd1, 0, n0, n1, n2, dx);
+        VsnrCpu3D.setfd(fd2, 1, n0, n1, n2, dy);
+        VsnrCpu3D.setfd(fd3, 2, n0, n1, n2, dz);
+        VsnrCpu3D.computeNorm(fd1, m);
+        VsnrCpu3D.computeNorm(fd2, m);
+        VsnrCpu3D.computeNorm(fd3, m);
+
+        // Computes PSI = sum_{i=1}^m |PSI_i|^2/alpha_i, where alpha_i is defined in the paper (with ||u0|| = 1).
+        while (i < length) {
+
+            if (psis[i] == 0) {
+                VsnrCpu3D.createDirac(psitemp, 1, n);
+                eta = psis[i+1];
+                i += 2;
+            } else if (psis[i] == 1) {
+                // 1 : amplitude,
+                // 2 : sigmaX, 3 : sigmaY, 4 : sigmaZ,
+                // 5 : thetaX, 6 : thetaY, 7 : thetaZ,
+                VsnrCpu3D.createGabor(psitemp, n0, n1, n2, 1, psis[i+2], psis[i+3], psis[i+4], psis[i+5], psis[i+6], psis[i+7]);
+                eta = psis[i+1];
+                i += 8;
+            } else {
+                throw new IllegalArgumentException("Unknown filter type : " + psis[i]);
+            }
+
+            fft.forward(psitemp, fpsitemp);
+
+            VsnrCpu3D.computeSquaredNorm(fpsitemp, m); // fpsitemp = |fpsitemp|^2;
+
+            max1 = VsnrCpu3D.maxProduct(fpsitemp, fd1, m); // max(|fd1|*|fpsitemp|)
+            max2 = VsnrCpu3D.maxProduct(fpsitemp, fd2, m); // max(|fd2|*|fpsitemp|)
+            max3 = VsnrCpu3D.maxProduct(fpsitemp, fd3, m); // max(|fd3|*|fpsitemp|)
+
+            mmax = Math.max(Math.max(max1, max2), max3);
+
+            alpha = (float)(Math.sqrt((double)n) * ((double)n * n) * mmax / eta);
+
+            VsnrCpu3D.updatePsi(fpsitemp, fsum, alpha, m); // fsum += |fpsitemp|^2 / alpha_i;
+
+        }
+
+        VsnrCpu3D.computeSqrtf(fsum, m); // fsum = sqrtf(fsum);
+
+        fft.inverse(fsum, gpsi);
+    }
+
+    // a bank being built or built, and its last use
+    private static final class Entry {
+
+        final FutureTask<FilterBank> task;
+        volatile long used;
+
+        Entry(FutureTask<FilterBank> task)
+        {
+            // -
+            this.task = task;
+        }
+
+    }
+
+    // (filter list, block size, voxel size)
+    private static final class Key {
+
+        final float[] psis;
+        final int n0, n1, n2;
+        final float dx, dy, dz;
+        final int hash;
+
+        Key(float[] psis, int n0, int n1, int n2, float dx, float dy, float dz)
+        {
+            this.psis = psis;
+            this.n0   = n0;
+            this.n1   = n1;
+            this.n2   = n2;
+            this.dx   = dx;
+            this.dy   = dy;
+            this.dz   = dz;
+            this.hash = Arrays.hashCode(new float[] {n0, n1, n2, dx, dy, dz}) * 31 + Arrays.hashCode(psis);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            // -
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) return false;
+            Key k = (Key)o;
+            return n0 == k.n0 && n1 == k.n1 && n2 == k.n2 && dx == k.dx && dy == k.dy && dz == k.dz && Arrays.equals(psis, k.psis);
+        }
+
+    }
+
+}
@@ -0,0 +1,87 @@
+// ------------------------------------------------- //
+//                                                   //
+//          VSNR 3D : HALF PRECISION STORAGE         //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+
+// objectives : IEEE 754 binary16 values stored in shorts, for the arrays of the CPU engine that change slowly
+// (see VsnrCpu3D.Session), same rounding as Float.floatToFloat16 of Java 20 (to nearest, ties to even, overflow
+// to infinity) which Java 8 does not have
+// 11 significant bits : relative error 2^-11 (about 5e-4) above 2^-14, absolute error 2^-25 below
+final class Half {
+
+    private Half() {}
+
+    // every binary16 value as a float, indexed by its 16 bits
+    private static final float[] FLOATS = new float[1 << 16];
+
+    static {
+        for (int h = 0 ; h < FLOATS.length ; h++)
+            FLOATS[h] = widen((short)h);
+    }
+
+    // -
+    static float toFloat(short h)
+    {
+        // -
+        return FLOATS[h & 0xffff];
+    }
+
+    // the nearest binary16 value
+    static short toHalf(float f)
+    {
+        int bits = Float.floatToRawIntBits(f);
+        short sign = (short)((bits & 0x80000000) >>> 16);
+        int biased = (bits >>> 23) & 0xff;
+        if (biased >= 113 && biased <= 142) {
+            // normal binary16 (2^-14 <= |f| < 2^16), the common case : rounding by adding 0xfff plus the lowest kept
+            // bit, a carry raises the exponent (up to infinity)
+            int abs = (bits & 0x7fffffff) + 0xfff + ((bits >>> 13) & 1);
+            return (short)(sign | ((abs - (112 << 23)) >>> 13));
+        }
+        if (Float.isNaN(f)) return (short)(sign | 0x7e00);
+        float abs = Math.abs(f);
+        if (abs >= 0x1.ffcp15f + 0x0.002p15f) return (short)(sign | 0x7c00); // rounds to infinity
+        if (abs <= 0x1.0p-25f) return sign; // rounds to zero
+        int exp = Math.getExponent(f);
+        int shift = 13, msb = 0;
+        if (exp < -14) { // subnormal
+            shift += -14 - exp;
+            exp = -15;
+            msb = 0x00800000;
+        }
+        int signif = (bits & 0x007fffff) | msb;
+        int res    = signif >> shift;
+        int lsb    = signif & (1 << shift);
+        int round  = signif & (1 << (shift - 1));
+        int sticky = signif & ((1 << (shift - 1)) - 1);
+        if (round != 0 && (lsb | sticky) != 0) res++;
+        // a carry out of the significand raises the exponent, as it should
+        return (short)(sign | (((exp + 15) << 10) + res));
+    }
+
+    // dst[0..n) = the floats of src[0..n) as binary16
+    static void pack(float[] src, short[] dst, int n)
+    {
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++)
+                dst[i] = toHalf(src[i]);
+        });
+    }
+
+    // -
+    private static float widen(short h)
+    {
+        int sign   = h & 0x8000;
+        int exp    = (h >> 10) & 0x1f;
+        int signif = h & 0x03ff;
+        float s = (sign != 0 ? -1.0f : 1.0f);
+        if (exp == 0)    return s * 0x1.0p-24f * signif;
+        if (exp == 0x1f) return (signif == 0 ? s * Float.POSITIVE_INFINITY : Float.NaN);
+        return Float.intBitsToFloat((sign << 16) | ((exp - 15 + 127) << 23) | (signif << 13));
+    }
+
+}
@@ -0,0 +1,295 @@
+// ------------------------------------------------- //
+//                                                   //
+//           VSNR 3D : MEMORY-MAPPED STACK           //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+
+// objectives : the slices of an uncompressed TIFF (or raw) file, read and written in place at their offsets
+// so that a volume larger than the memory can be denoised slab by slab (only the slices asked for are loaded)
+// getPixels gives a new array (byte[], short[], float[] or RGB packed int[] as ImageStack.getPixels),
+// setPixels writes it back to the file, both through one slice buffer kept by the stack, close flushes the file
+// signed 16-bit slices are shifted by 32768 as ImageJ does (the calibration of the image gives the values back)
+public final class MappedStack extends VirtualStack {
+
+    private final File        file;
+    private final FileChannel channel;
+    private final boolean     writable;
+    private final FileInfo    info;
+    private final long[]      offsets;
+    private final int         bytes;
+
+    // the bytes of one slice in the byte order of the file, reused by every read and write
+    private ByteBuffer slice = null;
+
+    private MappedStack(File file, FileInfo info, long[] offsets, boolean writable) throws IOException
+    {
+        super(info.width, info.height, null, file.getParent());
+        this.file     = file;
+        this.info     = info;
+        this.offsets  = offsets;
+        this.writable = writable;
+        this.bytes    = info.width*info.height*info.getBytesPerPixel();
+        this.channel  = (writable ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                                  : FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    // the slices of the file of an image (a TIFF file, or a raw file described by info), read only
+    // IOException when there is no such file or its layout can not be mapped
+    public static MappedStack open(FileInfo info) throws IOException
+    {
+        if (info == null || info.directory == null || info.fileName == null) throw new IOException("no file");
+        File f = new File(info.directory, info.fileName);
+        if (!f.isFile()) throw new IOException("can not find " + f);
+        FileInfo[] infos = (info.fileFormat == FileInfo.TIFF ? decode(f) : new FileInfo[] {info});
+        String reason = getReason(infos);
+        if (reason != null) throw new IOException(reason + " in " + f);
+        return new MappedStack(f, infos[0], getOffsets(infos), false);
+    }
+
+    // why the infos of a file can not be mapped, null when they can
+    private static String getReason(FileInfo[] infos)
+    {
+        if (infos == null || infos.length == 0) return "no slices";
+        for (FileInfo fi : infos) {
+            if (fi.compression > FileInfo.COMPRESSION_NONE) return "compressed slices";
+            if (fi.width != infos[0].width || fi.height != infos[0].height || fi.fileType != infos[0].fileType) return "slices of different sizes or types";
+            switch (fi.fileType) {
+                case FileInfo.GRAY8 :
+                case FileInfo.GRAY16_SIGNED :
+                case FileInfo.GRAY16_UNSIGNED :
+                case FileInfo.GRAY32_FLOAT :
+                case FileInfo.RGB :
+                    break;
+                default :
+                    return "unsupported pixel type";
+            }
+        }
+        return null;
+    }
+
+    // a copy of the file of this stack at out, with the same layout, opened to write the denoised slices into
+    public MappedStack copyTo(File out) throws IOException
+    {
+        Files.copy(file.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return new MappedStack(out, info, offsets, true);
+    }
+
+    // -
+    public File getFile()
+    {
+        // -
+        return file;
+    }
+
+    // bytes of the slices in the file
+    public long getBytes()
+    {
+        // -
+        return (long)bytes*offsets.length;
+    }
+
+    // writes the slices set to the disk before closing, the file can then be opened again (as a virtual stack)
+    public void close()
+    {
+        try {
+            if (writable && channel.isOpen()) channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public int getSize()
+    {
+        // -
+        return offsets.length;
+    }
+
+    @Override
+    public int getBitDepth()
+    {
+        switch (info.fileType) {
+            case FileInfo.GRAY8 :        return 8;
+            case FileInfo.GRAY32_FLOAT : return 32;
+            case FileInfo.RGB :          return 24;
+            default :                    return 16;
+        }
+    }
+
+    @Override
+    public String getSliceLabel(int n)
+    {
+        // -
+        return null;
+    }
+
+    // slice n (1 to getSize), read from the file
+    @Override
+    public synchronized Object getPixels(int n)
+    {
+        ByteBuffer b = read(n);
+        int size = info.width*info.height;
+        switch (info.fileType) {
+            case FileInfo.GRAY8 : {
+                byte[] p = new byte[size];
+                b.get(p);
+                return p;
+            }
+            case FileInfo.GRAY16_SIGNED :
+            case FileInfo.GRAY16_UNSIGNED : {
+                short[] p = new short[size];
+                b.asShortBuffer().get(p);
+                if (info.fileType == FileInfo.GRAY16_SIGNED)
+                    for (int i = 0 ; i < size ; i++) p[i] ^= 0x8000;
+                return p;
+            }
+            case FileInfo.GRAY32_FLOAT : {
+                float[] p = new float[size];
+                b.asFloatBuffer().get(p);
+                return p;
+            }
+            default : {
+                int[] p = new int[size];
+                byte[] rgb = new byte[3*size];
+                b.get(rgb);
+                for (int i = 0 ; i < size ; i++)
+                    p[i] = 0xff000000 | ((rgb[3*i] & 0xff) << 16) | ((rgb[3*i+1] & 0xff) << 8) | (rgb[3*i+2] & 0xff);
+                return p;
+            }
+        }
+    }
+
+    // slice n (1 to getSize) = pixels, written to the file
+    @Override
+    public synchronized void setPixels(Object pixels, int n)
+    {
+        if (!writable) throw new UnsupportedOperationException(file + " is opened read only");
+        ByteBuffer b = buffer();
+        int size = info.width*info.height;
+        switch (info.fileType) {
+            case FileInfo.GRAY8 :
+                b.put((byte[])pixels, 0, size);
+                break;
+            case FileInfo.GRAY16_SIGNED : {
+                short[] p = (short[])pixels;
+                ShortBuffer s = b.asShortBuffer();
+                for (int i = 0 ; i < size ; i++) s.put(i, (short)(p[i] ^ 0x8000));
+                break;
+            }
+            case FileInfo.GRAY16_UNSIGNED :
+                b.asShortBuffer().put((short[])pixels, 0, size);
+                break;
+            case FileInfo.GRAY32_FLOAT :
+                b.asFloatBuffer().put((float[])pixels, 0, size);
+                break;
+            default : {
+                int[] p = (int[])pixels;
+                for (int i = 0 ; i < size ; i++) {
+                    b.put(3*i,   (byte)(p[i] >> 16));
+                    b.put(3*i+1, (byte)(p[i] >> 8));
+                    b.put(3*i+2, (byte)p[i]);
+                }
+                break;
+            }
+        }
+        write(n);
+    }
+
+    // slice n (1 to getSize) as a processor, for display
+    @Override
+    public ImageProcessor getProcessor(int n)
+    {
+        Object p = getPixels(n);
+        if (p instanceof byte[])  return new ByteProcessor(info.width, info.height, (byte[])p, null);
+        if (p instanceof short[]) return new ShortProcessor(info.width, info.height, (short[])p, null);
+        if (p instanceof float[]) return new FloatProcessor(info.width, info.height, (float[])p, null);
+        return new ColorProcessor(info.width, info.height, (int[])p);
+    }
+
+    // the slice buffer, cleared
+    private ByteBuffer buffer()
+    {
+        if (slice == null) {
+            slice = ByteBuffer.allocateDirect(bytes);
+            slice.order(info.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        }
+        slice.clear();
+        return slice;
+    }
+
+    // the slice buffer = the bytes of slice n, ready to be read
+    private ByteBuffer read(int n)
+    {
+        ByteBuffer b = buffer();
+        try {
+            while (b.hasRemaining()) {
+                if (channel.read(b, offsets[n-1] + b.position()) < 0) throw new IOException("unexpected end of file");
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not read slice " + n + " of " + file + " : " + e.getMessage(), e);
+        }
+        b.flip();
+        return b;
+    }
+
+    // the bytes of slice n = the slice buffer, filled by absolute puts
+    private void write(int n)
+    {
+        ByteBuffer b = slice;
+        b.clear();
+        try {
+            while (b.hasRemaining())
+                channel.write(b, offsets[n-1] + b.position());
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not write slice " + n + " of " + file + " : " + e.getMessage(), e);
+        }
+    }
+
+    // the TIFF infos of a file (one per slice, or one with nImages for evenly spaced slices)
+    private static FileInfo[] decode(File file) throws IOException
+    {
+        // -
+        return new TiffDecoder(file.getParent() + File.separator, file.getName()).getTiffInfo();
+    }
+
+    // offset of every slice in the file
+    private static long[] getOffsets(FileInfo[] infos)
+    {
+        if (infos.length > 1) {
+            long[] res = new long[infos.length];
+            for (int i = 0 ; i < infos.length ; i++)
+                res[i] = infos[i].getOffset();
+            return res;
+        }
+        FileInfo fi = infos[0];
+        int n = Math.max(fi.nImages, 1);
+        long size = (long)fi.width*fi.height*fi.getBytesPerPixel();
+        long[] res = new long[n];
+        for (int i = 0 ; i < n ; i++)
+            res[i] = fi.getOffset() + i*(size + fi.gapBetweenImages);
+        return res;
+    }
+
+}
@@ -0,0 +1,62 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 3D : METRICS MANAGEMENT           //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+
+// objectives : the attributes of the MXBean vsnr3d:type=Metrics (see Metrics), totals since the JVM started (or
+// since reset), times in seconds summed over the threads running a phase
+public interface MetricsMXBean {
+
+    // images denoised
+    long getRuns();
+
+    // planes (slices of every channel and frame) denoised
+    long getPlanes();
+
+    // voxels of these planes
+    long getVoxels();
+
+    // ADMM iterations run, every block (RGB channel) counts its own
+    long getIterations();
+
+    // bytes of floats read from the images and written back into them
+    long getBytesConverted();
+
+    // bytes of the staging buffers and of the sessions allocated
+    long getBytesAllocated();
+
+    // voxels to floats (and padding)
+    double getReadSeconds();
+
+    // sessions opened (plans, work buffers)
+    double getOpenSeconds();
+
+    // backend calls : the ADMM, with the CUDA library also the transfers and the filters
+    double getSolveSeconds();
+
+    // filter banks of the CPU engine, part of the solve
+    double getFilterSeconds();
+
+    // floats back to voxels (and cropping, blending)
+    double getWriteSeconds();
+
+    // wall time of the runs
+    double getWallSeconds();
+
+    // planes per second of wall time
+    double getPlanesPerSecond();
+
+    // voxels per second of wall time
+    double getVoxelsPerSecond();
+
+    // the summary line of the last run
+    String getLastRun();
+
+    // sets the totals back to 0
+    void reset();
+
+}
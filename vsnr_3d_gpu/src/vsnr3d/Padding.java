@@ -0,0 +1,125 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 3D : FFT-FRIENDLY PADDING         //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.nio.FloatBuffer;
+
+
+// objectives : solve the blocks at a size whose FFT is fast (only factors 2, 3, 5 and 7, see SlabPlanner.nextSmooth)
+// a block of height x width x depth is centred in a block of the padded sizes and extended by mirror reflection
+// (the voxels next to a face are repeated in reverse order), so that the periodic boundary of the FFT does not
+// join the opposite faces of the block, the solved block is cropped back afterwards
+// the blocks are stored slice after slice, row after row (index = (k*height + i)*width + j) as everywhere else
+public final class Padding {
+
+    public final int height, width, depth;
+    public final int paddedHeight, paddedWidth, paddedDepth;
+
+    // the block starts at slice front, row top and column left of the padded block
+    private final int front, top, left;
+
+    // slice / row / column of the block for every slice / row / column of the padded block
+    private final int[] slices, rows, cols;
+
+    // padded sizes when enabled, the sizes themselves otherwise
+    public Padding(int height, int width, int depth, boolean enabled)
+    {
+        this.height       = height;
+        this.width        = width;
+        this.depth        = depth;
+        this.paddedHeight = (enabled ? SlabPlanner.nextSmooth(height) : height);
+        this.paddedWidth  = (enabled ? SlabPlanner.nextSmooth(width)  : width);
+        this.paddedDepth  = (enabled ? SlabPlanner.nextSmooth(depth)  : depth);
+        this.front        = (paddedDepth  - depth)  / 2;
+        this.top          = (paddedHeight - height) / 2;
+        this.left         = (paddedWidth  - width)  / 2;
+        this.slices       = mirror(depth,  paddedDepth,  front);
+        this.rows         = mirror(height, paddedHeight, top);
+        this.cols         = mirror(width,  paddedWidth,  left);
+    }
+
+    // true when the padded block differs from the block
+    public boolean isNeeded()
+    {
+        // -
+        return (paddedHeight != height || paddedWidth != width || paddedDepth != depth);
+    }
+
+    // voxels of a block
+    public int size()
+    {
+        // -
+        return height*width*depth;
+    }
+
+    // voxels of a padded block
+    public int paddedSize()
+    {
+        // -
+        return paddedHeight*paddedWidth*paddedDepth;
+    }
+
+    // dst[dstOffset..] = the count blocks of src[srcOffset..] padded
+    public void pad(FloatBuffer src, int srcOffset, FloatBuffer dst, int dstOffset, int count)
+    {
+        int n = size(), m = paddedSize();
+        Parallel.forRange(count*paddedDepth*paddedHeight, Math.max(1, Parallel.GRAIN / paddedWidth), (start, end) -> {
+            float[] in  = new float[width];
+            float[] out = new float[paddedWidth];
+            FloatBuffer s = src.duplicate();
+            FloatBuffer d = dst.duplicate();
+            for (int r = start ; r < end ; r++) {
+                int b = r / (paddedDepth*paddedHeight), k = (r / paddedHeight) % paddedDepth, i = r % paddedHeight;
+                s.position(srcOffset + b*n + (slices[k]*height + rows[i])*width);
+                s.get(in);
+                for (int j = 0 ; j < paddedWidth ; j++)
+                    out[j] = in[cols[j]];
+                d.position(dstOffset + b*m + (k*paddedHeight + i)*paddedWidth);
+                d.put(out);
+            }
+        });
+    }
+
+    // dst[dstOffset..] = the count padded blocks of src[srcOffset..] cropped
+    public void crop(FloatBuffer src, int srcOffset, FloatBuffer dst, int dstOffset, int count)
+    {
+        int n = size(), m = paddedSize();
+        Parallel.forRange(count*depth*height, Math.max(1, Parallel.GRAIN / width), (start, end) -> {
+            float[] row = new float[width];
+            FloatBuffer s = src.duplicate();
+            FloatBuffer d = dst.duplicate();
+            for (int r = start ; r < end ; r++) {
+                int b = r / (depth*height), k = (r / height) % depth, i = r % height;
+                s.position(srcOffset + b*m + ((k + front)*paddedHeight + i + top)*paddedWidth + left);
+                s.get(row);
+                d.position(dstOffset + b*n + (k*height + i)*width);
+                d.put(row);
+            }
+        });
+    }
+
+    // for the log window
+    @Override
+    public String toString()
+    {
+        return width + "x" + height + "x" + depth
+            + (isNeeded() ? " -> " + paddedWidth + "x" + paddedHeight + "x" + paddedDepth : " (no padding)");
+    }
+
+    // index in [0, n) of every index of [0, padded) when [0, n) starts at offset, mirrored on both sides
+    // (period 2n : ..., 1, 0 | 0, 1, ..., n-1 | n-1, n-2, ...)
+    private static int[] mirror(int n, int padded, int offset)
+    {
+        int[] res = new int[padded];
+        for (int i = 0 ; i < padded ; i++) {
+            int x = Math.floorMod(i - offset, 2*n);
+            res[i] = (x < n ? x : 2*n - 1 - x);
+        }
+        return res;
+    }
+
+}
@@ -0,0 +1,318 @@
+// ------------------------------------------------- //
+//                                                   //
+//           VSNR 3D : BULK PIXEL CONVERSION         //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+
+// objectives : move pixels between the arrays of an ImageStack (ImageStack.getPixels : byte[], short[],
+// float[] or RGB packed int[]) and the float buffers of the engines, without going through ImageProcessor
+// slice k of planes is stored at offset + k*width*height, RGB images store their three channels
+// (red, green, blue) one after the other, every channel holding all the slices
+// values are the ones of getPixelValue / getPixel + 1 (log if asked), written back as putPixelValue / putPixel
+// cTable is the calibration table of ImagePlus.getProcessor (null when the image is not calibrated)
+// 8 and 16-bit pixels are read through tables built once (see inTable), 8-bit ones (and RGB channels) are written
+// through others (see outTable) : no transcendental call per pixel for log images, the values are the same
+public final class PixelIO {
+
+    private PixelIO() {}
+
+    // tables built so far, by pixel type and bLog
+    private static final HashMap<String, float[]> TABLES = new HashMap<String, float[]>();
+
+    // the input table of the last calibrated image : its cTable, bLog and the table
+    private static Object[] calibrated = null;
+
+    // number of float channels of the pixels of a slice
+    public static int channels(Object pixels)
+    {
+        // -
+        return (pixels instanceof int[] ? 3 : 1);
+    }
+
+    // dst[offset..] = 1 + planes (log if bLog), max[maxOffset+m] is raised to the maximum of channel m
+    public static void read(Object[] planes, int width, int height, float[] cTable, boolean bLog, FloatBuffer dst, int offset, float[] max, int maxOffset)
+    {
+        int rows = planes.length*height;
+        int size = rows*width;
+        int dim  = channels(planes[0]);
+        float[] in = inTable(planes[0], cTable, bLog);
+        Parallel.forRange(rows, Math.max(1, Parallel.GRAIN / width), (start, end) -> {
+            FloatBuffer d = dst.duplicate();
+            float[][] row = new float[dim][width];
+            float[] local = new float[dim];
+            Arrays.fill(local, Float.NEGATIVE_INFINITY);
+            for (int r = start ; r < end ; r++) {
+                Object pixels = planes[r / height];
+                int src = (r % height)*width;
+                if (dim == 3) readRGB((int[])pixels, src, width, in, row, local);
+                else readGray(pixels, src, width, cTable, bLog, in, row[0], local);
+                for (int m = 0 ; m < dim ; m++) {
+                    d.position(offset + m*size + r*width);
+                    d.put(row[m], 0, width);
+                }
+            }
+            synchronized (max) {
+                for (int m = 0 ; m < dim ; m++)
+                    max[maxOffset+m] = Math.max(max[maxOffset+m], local[m]);
+            }
+        });
+    }
+
+    // planes[first..last) = src[offset..] (exp if bLog) - 1, rounded and clamped to the pixel type
+    public static void write(FloatBuffer src, int offset, int first, int last, Object[] planes, int width, int height, float[] cTable, boolean bLog)
+    {
+        int rows = (last - first)*height;
+        int row0 = first*height;
+        int size = planes.length*height*width;
+        int dim  = channels(planes[first]);
+        float[] out = outTable(planes[first], cTable, bLog);
+        Parallel.forRange(rows, Math.max(1, Parallel.GRAIN / width), (start, end) -> {
+            FloatBuffer d = src.duplicate();
+            float[][] row = new float[dim][width];
+            for (int r = row0 + start ; r < row0 + end ; r++) {
+                Object pixels = planes[r / height];
+                int dst = (r % height)*width;
+                for (int m = 0 ; m < dim ; m++) {
+                    d.position(offset + m*size + r*width);
+                    d.get(row[m], 0, width);
+                }
+                if (dim == 3) writeRGB(row, width, bLog, out, (int[])pixels, dst);
+                else writeGray(row[0], width, cTable, bLog, out, pixels, dst);
+            }
+        });
+    }
+
+    // one row of a 8, 16 or 32-bit image, through the table in when there is one
+    private static void readGray(Object pixels, int src, int width, float[] cTable, boolean bLog, float[] in, float[] row, float[] max)
+    {
+        if (in != null) {
+            float tmp, mx = max[0];
+            if (pixels instanceof byte[]) {
+                byte[] p = (byte[])pixels;
+                for (int i = 0 ; i < width ; i++) {
+                    tmp = in[p[src+i] & 0xff];
+                    mx = Math.max(mx, tmp);
+                    row[i] = tmp;
+                }
+            } else {
+                short[] p = (short[])pixels;
+                for (int i = 0 ; i < width ; i++) {
+                    tmp = in[p[src+i] & 0xffff];
+                    mx = Math.max(mx, tmp);
+                    row[i] = tmp;
+                }
+            }
+            max[0] = mx;
+            return;
+        }
+        values(pixels, src, width, cTable, row);
+        float tmp, mx = max[0];
+        for (int i = 0 ; i < width ; i++) {
+            tmp = 1.0f + row[i];
+            if (bLog) tmp = logf(tmp);
+            mx = Math.max(mx, tmp);
+            row[i] = tmp;
+        }
+        max[0] = mx;
+    }
+
+    // one row of a RGB image, through the table of 8-bit channels
+    private static void readRGB(int[] pixels, int src, int width, float[] in, float[][] row, float[] max)
+    {
+        float tmp;
+        int c;
+        for (int i = 0 ; i < width ; i++) {
+            c = pixels[src+i];
+            for (int m = 0 ; m < 3 ; m++) {
+                tmp = in[(c >> (16 - 8*m)) & 0xff];
+                max[m] = Math.max(max[m], tmp);
+                row[m][i] = tmp;
+            }
+        }
+    }
+
+    // one row of a 8, 16 or 32-bit image, through the table out when there is one, row is overwritten
+    private static void writeGray(float[] row, int width, float[] cTable, boolean bLog, float[] out, Object pixels, int dst)
+    {
+        if (out != null) {
+            byte[] p = (byte[])pixels;
+            for (int i = 0 ; i < width ; i++)
+                p[dst+i] = (byte)lookup(out, row[i]);
+            return;
+        }
+        float tmp;
+        for (int i = 0 ; i < width ; i++) {
+            tmp = row[i];
+            if (bLog) tmp = expf(tmp);
+            row[i] = tmp-1.0f;
+        }
+        put(row, width, cTable, pixels, dst);
+    }
+
+    // one row of a RGB image, channels are clamped to [0, 255], through the table out when there is one
+    private static void writeRGB(float[][] row, int width, boolean bLog, float[] out, int[] pixels, int dst)
+    {
+        float tmp;
+        int c;
+        for (int i = 0 ; i < width ; i++) {
+            c = 0;
+            for (int m = 0 ; m < 3 ; m++) {
+                tmp = row[m][i];
+                if (out != null) {
+                    c = (c << 8) + lookup(out, tmp);
+                    continue;
+                }
+                if (bLog) tmp = expf(tmp);
+                c = (c << 8) + Math.min(Math.max(Math.round(tmp-1.0f), 0), 255);
+            }
+            pixels[dst+i] = c;
+        }
+    }
+
+    // row[0..width) = getPixelValue of pixels[src..src+width)
+    private static void values(Object pixels, int src, int width, float[] cTable, float[] row)
+    {
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            if (cTable == null) for (int i = 0 ; i < width ; i++) row[i] = p[src+i] & 0xff;
+            else                for (int i = 0 ; i < width ; i++) row[i] = cTable[p[src+i] & 0xff];
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            if (cTable == null) for (int i = 0 ; i < width ; i++) row[i] = p[src+i] & 0xffff;
+            else                for (int i = 0 ; i < width ; i++) row[i] = cTable[p[src+i] & 0xffff];
+        } else {
+            System.arraycopy((float[])pixels, src, row, 0, width);
+        }
+    }
+
+    // putPixelValue of row[0..width) into pixels[dst..dst+width)
+    private static void put(float[] row, int width, float[] cTable, Object pixels, int dst)
+    {
+        double value;
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            for (int i = 0 ; i < width ; i++) {
+                value = Math.min(Math.max(row[i], 0.0), 255.0);
+                p[dst+i] = (byte)(int)(value + 0.5);
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            double shift = (cTable != null && cTable[0] == -32768f ? 32768.0 : 0.0);
+            for (int i = 0 ; i < width ; i++) {
+                value = Math.min(Math.max(row[i] + shift, 0.0), 65535.0);
+                p[dst+i] = (short)(int)(value + 0.5);
+            }
+        } else {
+            System.arraycopy(row, 0, (float[])pixels, dst, width);
+        }
+    }
+
+    // 1 + value (log if bLog) of every 8 or 16-bit pixel (of every RGB channel), indexed by the pixel, null for
+    // 32-bit images
+    private static synchronized float[] inTable(Object pixels, float[] cTable, boolean bLog)
+    {
+        if (pixels instanceof float[]) return null;
+        int size = (pixels instanceof short[] ? 65536 : 256);
+        if (pixels instanceof int[]) cTable = null;
+        if (cTable != null) {
+            if (calibrated == null || calibrated[0] != cTable || !calibrated[1].equals(bLog))
+                calibrated = new Object[] {cTable, bLog, inTable(size, cTable, bLog)};
+            return (float[])calibrated[2];
+        }
+        String key = "in" + size + bLog;
+        float[] res = TABLES.get(key);
+        if (res == null) TABLES.put(key, res = inTable(size, null, bLog));
+        return res;
+    }
+
+    // -
+    private static float[] inTable(int size, float[] cTable, boolean bLog)
+    {
+        float[] res = new float[size];
+        for (int v = 0 ; v < size ; v++) {
+            float tmp = 1.0f + (cTable == null ? v : cTable[v]);
+            res[v] = (bLog ? logf(tmp) : tmp);
+        }
+        return res;
+    }
+
+    // thresholds of the pixel values of a 8-bit or RGB log image : res[k] is the smallest v that writeGray / writeRGB
+    // turn into k or more, null for other images or without bLog (a search in 65536 thresholds is slower than exp)
+    private static synchronized float[] outTable(Object pixels, float[] cTable, boolean bLog)
+    {
+        if (!bLog || !(pixels instanceof byte[] || pixels instanceof int[])) return null;
+        String key = "out" + (pixels instanceof int[] ? "RGB" : "8-bit");
+        float[] res = TABLES.get(key);
+        if (res == null) TABLES.put(key, res = outTable(pixels instanceof int[]));
+        return res;
+    }
+
+    // thresholds by bisection over the floats in ascending order (see level)
+    private static float[] outTable(boolean rgb)
+    {
+        float[] res = new float[256];
+        int lo = sortable(Float.NEGATIVE_INFINITY);
+        for (int k = 0 ; k < res.length ; k++) {
+            int hi = sortable(Float.POSITIVE_INFINITY);
+            while (lo < hi) {
+                int mid = (int)(((long)lo + hi) >> 1);
+                if (level(rgb, unsortable(mid)) >= k) hi = mid;
+                else lo = mid + 1;
+            }
+            res[k] = unsortable(lo);
+        }
+        return res;
+    }
+
+    // the pixel value of v (exp(v) - 1 rounded and clamped) : a RGB channel (as writeRGB) or a 8-bit pixel (as
+    // writeGray and put)
+    private static int level(boolean rgb, float v)
+    {
+        float tmp = expf(v) - 1.0f;
+        if (rgb) return Math.min(Math.max(Math.round(tmp), 0), 255);
+        return (int)(Math.min(Math.max(tmp, 0.0), 255.0) + 0.5);
+    }
+
+    // the largest k with t[k] <= v (t ascending from t[0] = -infinity, its length a power of 2), 0 for NaN
+    private static int lookup(float[] t, float v)
+    {
+        int k = 0;
+        for (int s = t.length >> 1 ; s > 0 ; s >>= 1)
+            if (t[k + s] <= v) k += s;
+        return k;
+    }
+
+    // the bits of a float as an int in the same order (-infinity first)
+    private static int sortable(float f)
+    {
+        int bits = Float.floatToIntBits(f);
+        return bits ^ ((bits >> 31) & 0x7fffffff);
+    }
+
+    // -
+    private static float unsortable(int s)
+    {
+        // -
+        return Float.intBitsToFloat(s ^ ((s >> 31) & 0x7fffffff));
+    }
+
+    private static float logf(float val)
+    {
+        // -
+        return (float)Math.log((double)val);
+    }
+
+    private static float expf(float val)
+    {
+        // -
+        return (float)Math.exp((double)val);
+    }
+
+}
@@ -0,0 +1,266 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 3D CPU : REAL 3D FFT              //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// objectives : R2C / C2R transforms with the layout of cufftPlan3d(n2, n0, n1)
+// real arrays are n2 planes of n0 rows of n1 floats, spectra n2 x n0 x (n1/2+1) complex
+// slab decomposition : a batch of independent 2D plane transforms (one task per few planes),
+// then the 1D transforms along z over all the (row, column) pairs, both on the fork-join pool
+// both transforms are unnormalized
+public final class RealFFT3D {
+
+    // number of z lines gathered together, so that each cache line read is fully used
+    private static final int ZBATCH = 8;
+
+    // number of sizes kept by get
+    private static final int CAPACITY = 4;
+
+    // process-wide plans, the transforms only read their tables so they can be shared
+    private static final Map<Long, RealFFT3D> plans = new LinkedHashMap<Long, RealFFT3D>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, RealFFT3D> eldest)
+        {
+            // -
+            return size() > CAPACITY;
+        }
+    };
+
+    private final int n0;
+    private final int n1;
+    private final int n2;
+    private final int h;
+
+    // rows : half length complex FFT when n1 is even, full length otherwise
+    private final ComplexFFT row;
+    private final ComplexFFT col;
+    private final ComplexFFT dep;
+
+    // exp(-2i.pi.k/n1) for the even/odd split of real rows
+    private final float[] wr;
+    private final float[] wi;
+
+    // work arrays of the transforms, one set per thread : a task only uses them between the start and the end of
+    // its range, during which the thread runs no other task, so the transforms allocate nothing once warm
+    private final ThreadLocal<Scratch> scratch;
+
+    public RealFFT3D(int n0, int n1, int n2)
+    {
+        this.n0  = n0;
+        this.n1  = n1;
+        this.n2  = n2;
+        this.h   = n1/2 + 1;
+        this.row = new ComplexFFT(n1 % 2 == 0 ? n1/2 : n1);
+        this.col = new ComplexFFT(n0);
+        this.dep = new ComplexFFT(n2);
+        this.wr  = new float[h];
+        this.wi  = new float[h];
+        for (int k = 0 ; k < h ; k++) {
+            double a = 2.0 * Math.PI * k / n1;
+            wr[k] = (float)Math.cos(a);
+            wi[k] = (float)-Math.sin(a);
+        }
+        this.scratch = ThreadLocal.withInitial(Scratch::new);
+    }
+
+    // the shared plan of n0 x n1 x n2, created on the first request only
+    // the key packs the sizes on 21 bits each, a longer axis (e.g. a single line of 2M samples) gets a plan of its own
+    public static RealFFT3D get(int n0, int n1, int n2)
+    {
+        if ((n0 | n1 | n2) >>> 21 != 0) return new RealFFT3D(n0, n1, n2);
+        Long key = ((long)n0 << 42) | ((long)n1 << 21) | n2;
+        synchronized (plans) {
+            RealFFT3D fft = plans.get(key);
+            if (fft == null) {
+                fft = new RealFFT3D(n0, n1, n2);
+                plans.put(key, fft);
+            }
+            return fft;
+        }
+    }
+
+    // number of floats of a real array
+    public int realSize()
+    {
+        // -
+        return n0*n1*n2;
+    }
+
+    // number of floats of a complex (interleaved) spectrum
+    public int complexSize()
+    {
+        // -
+        return 2*n0*h*n2;
+    }
+
+    // out = fftn(in), in is left untouched
+    public void forward(float[] in, float[] out)
+    {
+        Parallel.forRange(n2, 1, (start, end) -> {
+            Scratch s = scratch.get();
+            for (int z = start ; z < end ; z++)
+                forwardPlane(in, z*n0*n1, out, 2*z*n0*h, s);
+        });
+        depth(out, false);
+    }
+
+    // out = ifftn(in) without the 1/n factor, in is overwritten (as with cufftExecC2R)
+    public void inverse(float[] in, float[] out)
+    {
+        depth(in, true);
+        Parallel.forRange(n2, 1, (start, end) -> {
+            Scratch s = scratch.get();
+            for (int z = start ; z < end ; z++)
+                inversePlane(in, 2*z*n0*h, out, z*n0*n1, s);
+        });
+    }
+
+    // per thread work arrays
+    private class Scratch {
+        float[] rbuf  = new float[2*row.length()];
+        float[] rwork = new float[row.workSize()];
+        float[] cbuf  = new float[2*n0];
+        float[] cwork = new float[col.workSize()];
+        float[] zbuf  = new float[2*n2*ZBATCH];
+        float[] zwork = new float[dep.workSize()];
+    }
+
+    // complex transforms along n2 for every one of the n0*h (row, column) pairs
+    private void depth(float[] spec, boolean inverse)
+    {
+        if (n2 == 1) return;
+        int p = n0*h;
+        int batches = (p + ZBATCH - 1) / ZBATCH;
+        Parallel.forRange(batches, Math.max(1, 1024 / (ZBATCH*n2)), (start, end) -> {
+            Scratch s = scratch.get();
+            float[] buf  = s.zbuf;
+            float[] work = s.zwork;
+            for (int b = start ; b < end ; b++) {
+                int p0 = b*ZBATCH;
+                int nb = Math.min(ZBATCH, p - p0);
+                for (int z = 0 ; z < n2 ; z++) {
+                    int o = 2*(z*p + p0);
+                    for (int q = 0 ; q < nb ; q++) {
+                        buf[2*(q*n2+z)]   = spec[o+2*q];
+                        buf[2*(q*n2+z)+1] = spec[o+2*q+1];
+                    }
+                }
+                for (int q = 0 ; q < nb ; q++)
+                    dep.transform(buf, 2*q*n2, work, inverse);
+                for (int z = 0 ; z < n2 ; z++) {
+                    int o = 2*(z*p + p0);
+                    for (int q = 0 ; q < nb ; q++) {
+                        spec[o+2*q]   = buf[2*(q*n2+z)];
+                        spec[o+2*q+1] = buf[2*(q*n2+z)+1];
+                    }
+                }
+            }
+        });
+    }
+
+    // 2D R2C of one plane : rows then columns
+    private void forwardPlane(float[] in, int ro, float[] out, int co, Scratch s)
+    {
+        for (int j = 0 ; j < n0 ; j++)
+            forwardRow(in, ro + j*n1, out, co + 2*j*h, s.rbuf, s.rwork);
+        columns(out, co, s, false);
+    }
+
+    // 2D C2R of one plane : columns then rows
+    private void inversePlane(float[] in, int co, float[] out, int ro, Scratch s)
+    {
+        columns(in, co, s, true);
+        for (int j = 0 ; j < n0 ; j++)
+            inverseRow(in, co + 2*j*h, out, ro + j*n1, s.rbuf, s.rwork);
+    }
+
+    // complex transforms along n0 for the h columns of one plane
+    private void columns(float[] spec, int co, Scratch s, boolean inverse)
+    {
+        if (n0 == 1) return;
+        float[] buf = s.cbuf;
+        for (int c = 0 ; c < h ; c++) {
+            for (int j = 0 ; j < n0 ; j++) {
+                buf[2*j]   = spec[co+2*(j*h+c)];
+                buf[2*j+1] = spec[co+2*(j*h+c)+1];
+            }
+            col.transform(buf, s.cwork, inverse);
+            for (int j = 0 ; j < n0 ; j++) {
+                spec[co+2*(j*h+c)]   = buf[2*j];
+                spec[co+2*(j*h+c)+1] = buf[2*j+1];
+            }
+        }
+    }
+
+    // one real row to its half spectrum
+    private void forwardRow(float[] in, int ri, float[] out, int co, float[] buf, float[] work)
+    {
+        if (n1 % 2 != 0) {
+            for (int i = 0 ; i < n1 ; i++) {
+                buf[2*i]   = in[ri+i];
+                buf[2*i+1] = 0.0f;
+            }
+            row.transform(buf, work, false);
+            System.arraycopy(buf, 0, out, co, 2*h);
+            return;
+        }
+
+        // z[k] = x[2k] + i.x[2k+1] is the row itself
+        int hh = n1/2;
+        System.arraycopy(in, ri, buf, 0, n1);
+        row.transform(buf, work, false);
+
+        // X[k] = E[k] + W^k O[k] with E = (Z[k]+conj(Z[-k]))/2 and O = (Z[k]-conj(Z[-k]))/2i
+        for (int k = 0 ; k < h ; k++) {
+            int a = (k == hh ? 0 : k), b = (k == 0 ? 0 : hh-k);
+            float zr = buf[2*a], zi = buf[2*a+1];
+            float cr = buf[2*b], ci = -buf[2*b+1];
+            float er = 0.5f*(zr + cr), ei = 0.5f*(zi + ci);
+            float or = 0.5f*(zi - ci), oi = -0.5f*(zr - cr);
+            out[co+2*k]   = er + (wr[k]*or - wi[k]*oi);
+            out[co+2*k+1] = ei + (wr[k]*oi + wi[k]*or);
+        }
+    }
+
+    // one half spectrum to its real row, imaginary parts of DC and Nyquist are ignored
+    private void inverseRow(float[] in, int co, float[] out, int ri, float[] buf, float[] work)
+    {
+        if (n1 % 2 != 0) {
+            buf[0] = in[co];
+            buf[1] = 0.0f;
+            for (int k = 1 ; k < h ; k++) {
+                buf[2*k]        =  in[co+2*k];
+                buf[2*k+1]      =  in[co+2*k+1];
+                buf[2*(n1-k)]   =  in[co+2*k];
+                buf[2*(n1-k)+1] = -in[co+2*k+1];
+            }
+            row.transform(buf, work, true);
+            for (int i = 0 ; i < n1 ; i++)
+                out[ri+i] = buf[2*i];
+            return;
+        }
+
+        // Z[k] = 2E[k] + 2i.O[k], 2E = X[k]+conj(X[h-k]), 2O = (X[k]-conj(X[h-k])).W^-k
+        int hh = n1/2;
+        for (int k = 0 ; k < hh ; k++) {
+            int b = hh - k;
+            float xr = in[co+2*k], xi = (k == 0 ? 0.0f : in[co+2*k+1]);
+            float cr = in[co+2*b], ci = (b == hh ? 0.0f : -in[co+2*b+1]);
+            float er = xr + cr, ei = xi + ci;
+            float dr = xr - cr, di = xi - ci;
+            // multiply by conj(W^k)
+            float or = dr*wr[k] + di*wi[k], oi = di*wr[k] - dr*wi[k];
+            buf[2*k]   = er - oi;
+            buf[2*k+1] = ei + or;
+        }
+        row.transform(buf, work, true);
+        System.arraycopy(buf, 0, out, ri, n1);
+    }
+
+}
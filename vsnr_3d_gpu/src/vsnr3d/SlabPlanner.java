@@ -0,0 +1,121 @@
+// ------------------------------------------------- //
+//                                                   //
+//              VSNR 3D : Z-SLAB PLANNER             //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.util.ArrayList;
+import java.util.function.IntPredicate;
+
+
+// objectives : cut the slices of a volume into slabs denoised one at a time
+// every slab has the same depth (one session, one set of plans and filters for all of them), a depth whose
+// FFT is fast (only factors 2, 3, 5 and 7) and as large as the memory allows (fits)
+// the inner slices of the slabs share the volume, the others overlap the neighbours by halo slices at least
+// (the first and the last slab take all of theirs on their inner side), only the inner slices are written back
+public final class SlabPlanner {
+
+    private SlabPlanner() {}
+
+    // slices start to start+depth are denoised, first to first+size are written back
+    public static final class Slab {
+
+        public final int start;
+        public final int depth;
+        public final int first;
+        public final int size;
+
+        Slab(int start, int depth, int first, int size)
+        {
+            this.start = start;
+            this.depth = depth;
+            this.first = first;
+            this.size  = size;
+        }
+
+        // overlapping slices before the inner ones
+        public int left()
+        {
+            // -
+            return first - start;
+        }
+
+        // overlapping slices after the inner ones
+        public int right()
+        {
+            // -
+            return start + depth - first - size;
+        }
+
+    }
+
+    // slabs of slices slices with at most size inner slices (0 : no limit) and halo overlapping slices,
+    // the deepest ones whose depth fits (the thinnest ones when none does)
+    // slabs as deep as the volume would each denoise all of it : when the halo makes them so, the volume is a single
+    // slab (tested once)
+    public static ArrayList<Slab> plan(int slices, int size, int halo, IntPredicate fits)
+    {
+        int max = (size > 0 ? Math.min(size, slices) : slices);
+        int last = -1;
+        boolean whole = false;
+        for (int count = (slices + max - 1) / max ; count <= slices ; count++) {
+            int inner = (slices + count - 1) / count;
+            if (inner == last) continue;
+            last = inner;
+            int depth = depth(slices, inner, halo);
+            if (depth >= slices) {
+                if (whole) continue;
+                whole = true;
+                inner = slices;
+            }
+            if (fits.test(depth)) return slabs(slices, inner, depth);
+        }
+        int depth = thinnest(slices, halo);
+        return slabs(slices, (depth >= slices ? slices : 1), depth);
+    }
+
+    // depth of the thinnest slabs plan can return, no slab of fewer slices can be planned
+    public static int thinnest(int slices, int halo)
+    {
+        // -
+        return depth(slices, 1, halo);
+    }
+
+    // true when n has no prime factor above 7
+    public static boolean isSmooth(int n)
+    {
+        if (n < 1) return false;
+        for (int p : new int[] {2, 3, 5, 7})
+            while (n % p == 0) n /= p;
+        return (n == 1);
+    }
+
+    // smallest n' >= n with no prime factor above 7
+    public static int nextSmooth(int n)
+    {
+        int m = Math.max(n, 1);
+        while (!isSmooth(m)) m++;
+        return m;
+    }
+
+    // depth of the slabs of inner slices, the whole volume for a single slab
+    private static int depth(int slices, int inner, int halo)
+    {
+        if (inner >= slices) return slices;
+        return Math.min(nextSmooth(inner + 2*halo), slices);
+    }
+
+    // -
+    private static ArrayList<Slab> slabs(int slices, int inner, int depth)
+    {
+        ArrayList<Slab> res = new ArrayList<Slab>();
+        for (int first = 0 ; first < slices ; first += inner) {
+            int start = Math.min(Math.max(first - (depth - inner)/2, 0), slices - depth);
+            res.add(new Slab(start, depth, first, Math.min(inner, slices - first)));
+        }
+        return res;
+    }
+
+}
@@ -0,0 +1,95 @@
+// ------------------------------------------------- //
+//                                                   //
+//           VSNR 3D : DENOISING BACKEND SPI         //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.nio.FloatBuffer;
+
+
+// objectives : a place where VSNR 3D can run (CUDA library, Java CPU engine, ...)
+// implementations are listed by Backends, other jars can add theirs through
+// META-INF/services/vsnr3d.VsnrBackend
+public interface VsnrBackend {
+
+    // short name used in the parameter file (Backend: cuda)
+    public String getName();
+
+    // human readable capabilities (device, cores, ...)
+    public String getDescription();
+
+    // true when the backend can actually run on this machine
+    public boolean isAvailable();
+
+    // the higher the faster, used to pick a backend automatically
+    public int getPriority();
+
+    // return dimBlocks max (meaningless but positive for non CUDA backends)
+    public int getMaxBlocks();
+
+    // same contract as VSNR_3D_FIJI_GPU : u = denoised(u0), psis is the flat list of filters
+    public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int n0, int n1, int n2, int nit, float beta, FloatBuffer u, int nBlock, float max, float dx, float dy, float dz);
+
+    // true when direct (off-heap) buffers avoid a copy, false when heap arrays are preferred
+    public default boolean usesDirectBuffers()
+    {
+        // -
+        return false;
+    }
+
+    // bytes of an n0 x n1 x n2 session (work arrays and plans), 0 when unknown
+    public default long getSessionBytes(int n0, int n1, int n2)
+    {
+        // -
+        return 0;
+    }
+
+    // bytes the sessions can use on one of the getDeviceCount devices, Long.MAX_VALUE when unknown
+    public default long getFreeMemory(int device)
+    {
+        // -
+        return Long.MAX_VALUE;
+    }
+
+    // number of devices the backend can drive at the same time (one worker each), 1 without devices
+    public default int getDeviceCount()
+    {
+        // -
+        return 1;
+    }
+
+    // the same backend with the state of its sessions (d.u0, y, lambda) stored in half precision, for larger blocks
+    // in the same memory (see VsnrCpu3D.Session), the backend itself when it does not support it
+    public default VsnrBackend withHalfPrecision()
+    {
+        // -
+        return this;
+    }
+
+    // open on one of the getDeviceCount devices, the session keeps it whatever the thread calling it
+    public default VsnrSession open(int device, int n0, int n1, int n2, int nBlock, float dx, float dy, float dz)
+    {
+        // -
+        return open(n0, n1, n2, nBlock, dx, dy, dz);
+    }
+
+    // a session for n0 x n1 x n2 blocks, by default every call goes through denoise
+    public default VsnrSession open(int n0, int n1, int n2, int nBlock, float dx, float dy, float dz)
+    {
+        VsnrBackend backend = this;
+        return new VsnrSession() {
+            @Override
+            public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int nit, float beta, FloatBuffer u, float max)
+            {
+                // -
+                backend.denoise(psis, length, u0, n0, n1, n2, nit, beta, u, nBlock, max, dx, dy, dz);
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+}
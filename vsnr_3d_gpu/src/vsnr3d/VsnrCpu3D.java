@@ -0,0 +1,631 @@
+// ------------------------------------------------- //
+//                                                   //
+//              VSNR 3D CPU ENGINE (JAVA)            //
+//                                                   //
+// ------------------------------------------------- //
+// Original algorithm :                              //
+//   Jerome FEHRENBACH, Pierre WEISS                 //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.util.Arrays;
+
+
+// objectives : pure Java port of vsnr3d.cu for machines without a CUDA device
+// every pass is split over the fork-join pool, arrays follow the cuFFT layouts
+public class VsnrCpu3D {
+
+    // same contract as VSNR_3D_FIJI_GPU
+    public void denoise(float[] psis, int length, float[] u0, int n0, int n1, int n2, int nit, float beta, float[] u, float max, float dx, float dy, float dz)
+    {
+        // -
+        new Session(n0, n1, n2, dx, dy, dz).denoise(psis, length, u0, nit, beta, u, max);
+    }
+
+    // plans and work buffers of one block size, see VSNR_3D_OPEN
+    // a session is not thread safe, open one per thread
+    // with half, d.u0, y and lambda (9 of the 13 real arrays) are stored in half precision (see Half) and widened
+    // in the passes using them, the other arrays (FFT inputs and spectra) stay in single precision
+    public static class Session {
+
+        private final int n0, n1, n2, n, m;
+        private final float dx, dy, dz;
+        private final boolean half;
+        private final RealFFT3D fft;
+
+        private final float[] gu0, fpsi, fd, fphi, fx;
+        private final float[] ftmp1, ftmp2, ftmp3;
+        private final float[] fphi1, fphi2, fphi3;
+        private final float[] tmp1,  tmp2,  tmp3;
+        private final float[] d1u0,  d2u0,  d3u0;
+        private final float[] y1,    y2,    y3;
+        private final float[] l1,    l2,    l3;
+
+        // the same three in half precision, null without half (the ones above are null with it)
+        private final short[] hd1u0, hd2u0, hd3u0;
+        private final short[] hy1,   hy2,   hy3;
+        private final short[] hl1,   hl2,   hl3;
+
+        // true once y1, y2, y3 and l1, l2, l3 hold the state the last block ended with
+        private boolean state = false;
+
+        public Session(int n0, int n1, int n2, float dx, float dy, float dz)
+        {
+            // -
+            this(n0, n1, n2, dx, dy, dz, false);
+        }
+
+        public Session(int n0, int n1, int n2, float dx, float dy, float dz, boolean half)
+        {
+            this.n0 = n0;
+            this.n1 = n1;
+            this.n2 = n2;
+            this.n  = n0*n1*n2;
+            this.m  = n0*n2*(n1/2+1);
+            this.dx = dx;
+            this.dy = dy;
+            this.dz = dz;
+            this.half = half;
+
+            fft = RealFFT3D.get(n0, n1, n2);
+
+            gu0  = new float[n];
+            fpsi = new float[2*m];
+            fd   = new float[2*m];
+            fphi = new float[m];
+            fx   = new float[2*m];
+
+            ftmp1 = new float[2*m]; ftmp2 = new float[2*m]; ftmp3 = new float[2*m];
+            fphi1 = new float[2*m]; fphi2 = new float[2*m]; fphi3 = new float[2*m];
+            tmp1  = new float[n];   tmp2  = new float[n];   tmp3  = new float[n];
+            d1u0  = (half ? null : new float[n]); d2u0 = (half ? null : new float[n]); d3u0 = (half ? null : new float[n]);
+            y1    = (half ? null : new float[n]); y2   = (half ? null : new float[n]); y3   = (half ? null : new float[n]);
+            l1    = (half ? null : new float[n]); l2   = (half ? null : new float[n]); l3   = (half ? null : new float[n]);
+            hd1u0 = (half ? new short[n] : null); hd2u0 = (half ? new short[n] : null); hd3u0 = (half ? new short[n] : null);
+            hy1   = (half ? new short[n] : null); hy2   = (half ? new short[n] : null); hy3   = (half ? new short[n] : null);
+            hl1   = (half ? new short[n] : null); hl2   = (half ? new short[n] : null); hl3   = (half ? new short[n] : null);
+        }
+
+        // bytes of the work arrays of an n0 x n1 x n2 session
+        public static long bytes(int n0, int n1, int n2)
+        {
+            // -
+            return bytes(n0, n1, n2, false);
+        }
+
+        // same, with the state in half precision when half
+        public static long bytes(int n0, int n1, int n2, boolean half)
+        {
+            long n = (long)n0*n1*n2;
+            long m = (long)n0*n2*(n1/2+1);
+            return 4*(13*n + 19*m) - (half ? 18*n : 0);
+        }
+
+        // see VSNR_3D_DENOISE
+        public void denoise(float[] psis, int length, float[] u0, int nit, float beta, float[] u, float max)
+        {
+            // -
+            denoise(psis, length, u0, nit, beta, VsnrSession.Options.DEFAULT, u, max);
+        }
+
+        // see VSNR_3D_DENOISE : with opts.warm, the ADMM starts from the state the last block of the session ended
+        // with (the same block of the previous frame), returns the number of iterations run
+        public int denoise(float[] psis, int length, float[] u0, int nit, float beta, VsnrSession.Options opts, float[] u, float max)
+        {
+            // filters of (psis, n0, n1, n2, dx, dy, dz), cached across blocks and channels
+            FilterBank bank = FilterBank.get(psis, length, n0, n1, n2, dx, dy, dz);
+
+            // 1. u0 / max, and its norm in the same pass
+            float norm = divide(u0, gu0, n, max);
+
+            // 2. Prepares filters : fftn(psi) = sqrt(||u0||).fftn(psi(1))
+            scale(bank.fpsi, fpsi, 2*m, (float)Math.sqrt(norm));
+
+            // 3. Denoises the image, 4. u * max (the last pass of admm)
+            return admm(gu0, nit, beta, opts.tol, opts.alpha, opts.adaptive, opts.warm && state, u, max);
+        }
+
+        // Main function, see VSNR_ADMM_GPU, returns the number of iterations run
+        private int admm(float[] u0, int nit, float beta, float tol, float alpha, boolean adaptive, boolean warm, float[] u, float max)
+        {
+            float[] fu0 = fx; // fx is unused before the main loop
+
+            fft.forward(u0, fu0); // fu0 = fftn(u0);
+
+            // with half, d.u0 goes through tmp (unused before the main loop) before being stored
+            float[] e1 = (half ? tmp1 : d1u0), e2 = (half ? tmp2 : d2u0), e3 = (half ? tmp3 : d3u0);
+
+            // Computes d1u0 & fphi1
+            setfd(fd, 0, n0, n1, n2, dx); // fd1 = fftn(d1);
+            productCarray(fd, fu0, ftmp1, m);
+            fft.inverse(ftmp1, e1); // d1u0 = ifftn(fd1.*fu0);
+            normalize(e1, n);
+            productCarray(fd, fpsi, fphi1, m); // fphi1 = fpsi.*fd1;
+
+            // Computes d2u0 & fphi2
+            setfd(fd, 1, n0, n1, n2, dy); // fd2 = fftn(d2);
+            productCarray(fd, fu0, ftmp2, m);
+            fft.inverse(ftmp2, e2); // d2u0 = ifftn(fd2.*fu0);
+            normalize(e2, n);
+            productCarray(fd, fpsi, fphi2, m); // fphi2 = fpsi.*fd2;
+
+            // Computes d3u0 & fphi3
+            setfd(fd, 2, n0, n1, n2, dz); // fd3 = fftn(d3);
+            productCarray(fd, fu0, ftmp3, m);
+            fft.inverse(ftmp3, e3); // d3u0 = ifftn(fd3.*fu0);
+            normalize(e3, n);
+            productCarray(fd, fpsi, fphi3, m); // fphi3 = fpsi.*fd3;
+
+            if (half) {
+                Half.pack(e1, hd1u0, n);
+                Half.pack(e2, hd2u0, n);
+                Half.pack(e3, hd3u0, n);
+            }
+
+            // Computes fphi
+            computePhi(fphi1, fphi2, fphi3, fphi, beta, m);
+
+            // Initialization, tmp = beta*y - lambda = 0, or y and lambda kept from the previous block (warm start)
+            state = false;
+            if (warm) {
+                if (half) betayMLambda(hl1, hl2, hl3, hy1, hy2, hy3, tmp1, tmp2, tmp3, beta, n);
+                else betayMLambda(l1, l2, l3, y1, y2, y3, tmp1, tmp2, tmp3, beta, n);
+            } else {
+                if (half) {
+                    Arrays.fill(hy1, (short)0); Arrays.fill(hy2, (short)0); Arrays.fill(hy3, (short)0);
+                    Arrays.fill(hl1, (short)0); Arrays.fill(hl2, (short)0); Arrays.fill(hl3, (short)0);
+                } else {
+                    Arrays.fill(y1, 0.0f); Arrays.fill(y2, 0.0f); Arrays.fill(y3, 0.0f);
+                    Arrays.fill(l1, 0.0f); Arrays.fill(l2, 0.0f); Arrays.fill(l3, 0.0f);
+                }
+                Arrays.fill(tmp1, 0.0f); Arrays.fill(tmp2, 0.0f); Arrays.fill(tmp3, 0.0f);
+            }
+            Arrays.fill(fx, 0.0f);
+
+            // Main algorithm, three passes over the arrays besides the FFTs
+            int k;
+            for (k = 0 ; k < nit ; ++k) {
+
+                // -------------------------------------------------------------
+                // First step, x update : (I+beta ATA)x = AT (-lambda+beta*ATy)
+                // -------------------------------------------------------------
+                // fx = (conj(fphi1).*fftn(tmp1) + conj(fphi2).*fftn(tmp2) + conj(fphi3).*fftn(tmp3)) ./ fphi;
+                fft.forward(tmp1, ftmp1);
+                fft.forward(tmp2, ftmp2);
+                fft.forward(tmp3, ftmp3);
+                updateFx(fphi1, fphi2, fphi3, ftmp1, ftmp2, ftmp3, fphi, fx, m);
+
+                // ---------------------------------------------------------------------
+                // Second and third steps, y = prox_{f1/beta}(Ax+lambda/beta) and lambda
+                // ---------------------------------------------------------------------
+                productPhi(fphi1, fphi2, fphi3, fx, ftmp1, ftmp2, ftmp3, n, m);
+                fft.inverse(ftmp1, tmp1); // tmp1 = Ax1
+                fft.inverse(ftmp2, tmp2); // tmp2 = Ax2
+                fft.inverse(ftmp3, tmp3); // tmp3 = Ax3
+                double[] res = (half ? updateYLambda(hd1u0, hd2u0, hd3u0, tmp1, tmp2, tmp3, hl1, hl2, hl3, hy1, hy2, hy3, beta, alpha, tol > 0 || adaptive, n)
+                                     : updateYLambda(d1u0, d2u0, d3u0, tmp1, tmp2, tmp3, l1, l2, l3, y1, y2, y3, beta, alpha, tol > 0 || adaptive, n));
+
+                // ----------------------------------------------------
+                // Stops once the block has converged, rebalances beta
+                // ----------------------------------------------------
+                if (tol > 0 && converged(res, tol)) {
+                    k++;
+                    break;
+                }
+                if (adaptive && 2*(k+1) <= nit) {
+                    float next = adaptBeta(res, beta);
+                    if (next != beta) {
+                        beta = next;
+                        computePhi(fphi1, fphi2, fphi3, fphi, beta, m);
+                        if (half) betayMLambda(hl1, hl2, hl3, hy1, hy2, hy3, tmp1, tmp2, tmp3, beta, n);
+                        else betayMLambda(l1, l2, l3, y1, y2, y3, tmp1, tmp2, tmp3, beta, n);
+                    }
+                }
+
+            }
+
+            // Last but not the least : u = (u0 - (psi * x)).max
+            productCarray(fx, fpsi, ftmp1, m);
+            fft.inverse(ftmp1, u);
+            restore(u0, u, n, max);
+            state = true;
+            return k;
+        }
+
+    }
+
+    // -------------------------------------------------------------------------
+
+    // fftn of the finite difference along axis (0 : x/n1, 1 : y/n0, 2 : z/n2)
+    // d[0] = 1/delta; d[one step backward] = -1/delta gives (1 - exp(2i.pi.k/nk)) / delta
+    // (setd leaves a single 1/delta when the axis has length 1)
+    static void setfd(float[] fd, int axis, int n0, int n1, int n2, float delta)
+    {
+        int h = n1/2+1;
+        int len = (axis == 0 ? n1 : (axis == 1 ? n0 : n2));
+        float[] re = new float[len];
+        float[] im = new float[len];
+        for (int k = 0 ; k < len ; k++) {
+            double a = 2.0 * Math.PI * k / len;
+            re[k] = (float)((len == 1 ? 1.0 : 1.0 - Math.cos(a)) / delta);
+            im[k] = (float)(-Math.sin(a) / delta);
+        }
+        Parallel.forRange(n2, 1, (start, end) -> {
+            for (int z = start ; z < end ; z++) {
+                for (int j = 0 ; j < n0 ; j++) {
+                    for (int k = 0 ; k < h ; k++) {
+                        int c = (axis == 0 ? k : (axis == 1 ? j : z));
+                        int o = 2*((z*n0 + j)*h + k);
+                        fd[o]   = re[c];
+                        fd[o+1] = im[c];
+                    }
+                }
+            }
+        });
+    }
+
+    // Sets Gabor (phase and frequency are not used by the 3D filters)
+    static void createGabor(float[] psi, int n0, int n1, int n2, float level, float sigmax, float sigmay, float sigmaz, float thetax, float thetay, float thetaz)
+    {
+        float tx = (float)(thetax * Math.PI / 180.0);
+        float ty = (float)(thetay * Math.PI / 180.0);
+        float tz = (float)(thetaz * Math.PI / 180.0);
+
+        float off_x = (n1 / 2) + 1;
+        float off_y = (n0 / 2) + 1;
+        float off_z = (n2 / 2) + 1;
+
+        float cx = (float)Math.cos(tx), sx = (float)Math.sin(tx);
+        float cy = (float)Math.cos(ty), sy = (float)Math.sin(ty);
+        float cz = (float)Math.cos(tz), sz = (float)Math.sin(tz);
+
+        float nn = (float)(Math.PI / Math.sqrt(sigmax*sigmay*sigmaz));
+
+        Parallel.forRange(n2, 1, (start, end) -> {
+            for (int k = start ; k < end ; k++) {
+                float z = off_z - k;
+                for (int j = 0 ; j < n0 ; j++) {
+                    float y = off_y - j;
+                    for (int i = 0 ; i < n1 ; i++) {
+                        float x = off_x - i;
+
+                        float x_t = (x*(cy*cz))              - (y*(sz*cy))              + (z*sy);
+                        float y_t = (x*((sy*sx*cz)+(sz*cx))) + (y*((cx*cz)-(sz*sy*sx))) - (z*(sx*cy));
+                        float z_t = (x*((sz*sx)-(sy*cx*cz))) + (y*((sx*cz)+(sy*sz*cx))) + (z*(cy*cx));
+
+                        float val = (float)Math.exp(-0.5*((x_t/sigmax)*(x_t/sigmax) + (y_t/sigmay)*(y_t/sigmay) + (z_t/sigmaz)*(z_t/sigmaz)));
+                        psi[i + n1*(j + n0*k)] = level * val / nn;
+                    }
+                }
+            }
+        });
+    }
+
+    // Sets dirac
+    static void createDirac(float[] psi, float val, int n)
+    {
+        Arrays.fill(psi, 0, n, 0.0f);
+        psi[0] = val;
+    }
+
+    // u = u0 / val, returns the l2 norm of u (accumulated in double)
+    static float divide(float[] u0, float[] u, int n, float val)
+    {
+        double s = Parallel.sum(n, Parallel.GRAIN, (start, end) -> {
+            double acc = 0;
+            for (int i = start ; i < end ; i++) {
+                float tmp = u0[i] / val;
+                u[i] = tmp;
+                acc += (double)tmp * tmp;
+            }
+            return acc;
+        });
+        return (float)Math.sqrt(s);
+    }
+
+    // out = in*val
+    static void scale(float[] in, float[] out, int n, float val)
+    {
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++)
+                out[i] = in[i] * val;
+        });
+    }
+
+    // u = (u0 - u/n)*val, u an inverse FFT not normalized yet
+    static void restore(float[] u0, float[] u, int n, float val)
+    {
+        float fn = (float)n;
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++)
+                u[i] = (u0[i] - u[i] / fn) * val;
+        });
+    }
+
+    // Normalize an array
+    static void normalize(float[] u, int n)
+    {
+        float fn = (float)n;
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++)
+                u[i] = u[i] / fn;
+        });
+    }
+
+    // Computes out = u1.*u2
+    static void productCarray(float[] u1, float[] u2, float[] out, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                float a1 = u1[2*i], b1 = u1[2*i+1];
+                float a2 = u2[2*i], b2 = u2[2*i+1];
+                out[2*i]   = (a1 * a2) - (b1 * b2);
+                out[2*i+1] = (b1 * a2) + (a1 * b2);
+            }
+        });
+    }
+
+    // Compute Phi (real part only, the imaginary part is 0)
+    static void computePhi(float[] fphi1, float[] fphi2, float[] fphi3, float[] fphi, float beta, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                float a1 = fphi1[2*i], b1 = fphi1[2*i+1];
+                float a2 = fphi2[2*i], b2 = fphi2[2*i+1];
+                float a3 = fphi3[2*i], b3 = fphi3[2*i+1];
+                fphi[i] = 1 + beta*(a1*a1 + b1*b1 + a2*a2 + b2*b2 + a3*a3 + b3*b3);
+            }
+        });
+    }
+
+    // Computes tmpi = -lambdai + beta * yi
+    static void betayMLambda(float[] l1, float[] l2, float[] l3, float[] y1, float[] y2, float[] y3, float[] tmp1, float[] tmp2, float[] tmp3, float beta, int n)
+    {
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                tmp1[i] = (beta * y1[i]) - l1[i];
+                tmp2[i] = (beta * y2[i]) - l2[i];
+                tmp3[i] = (beta * y3[i]) - l3[i];
+            }
+        });
+    }
+
+    // same, lambda and y in half precision
+    static void betayMLambda(short[] l1, short[] l2, short[] l3, short[] y1, short[] y2, short[] y3, float[] tmp1, float[] tmp2, float[] tmp3, float beta, int n)
+    {
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                tmp1[i] = (beta * Half.toFloat(y1[i])) - Half.toFloat(l1[i]);
+                tmp2[i] = (beta * Half.toFloat(y2[i])) - Half.toFloat(l2[i]);
+                tmp3[i] = (beta * Half.toFloat(y3[i])) - Half.toFloat(l3[i]);
+            }
+        });
+    }
+
+    // x update in one pass : fx = (conj(fphi1).ftmp1 + conj(fphi2).ftmp2 + conj(fphi3).ftmp3) / fphi
+    static void updateFx(float[] fphi1, float[] fphi2, float[] fphi3, float[] ftmp1, float[] ftmp2, float[] ftmp3, float[] fphi, float[] fx, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                float a1 = fphi1[2*i], b1 = fphi1[2*i+1], c1 = ftmp1[2*i], d1 = ftmp1[2*i+1];
+                float a2 = fphi2[2*i], b2 = fphi2[2*i+1], c2 = ftmp2[2*i], d2 = ftmp2[2*i+1];
+                float a3 = fphi3[2*i], b3 = fphi3[2*i+1], c3 = ftmp3[2*i], d3 = ftmp3[2*i+1];
+                float f = 1 / fphi[i];
+                fx[2*i]   = ((a1 * c1) + (b1 * d1) + (a2 * c2) + (b2 * d2) + (a3 * c3) + (b3 * d3)) * f;
+                fx[2*i+1] = ((a1 * d1) - (b1 * c1) + (a2 * d2) - (b2 * c2) + (a3 * d3) - (b3 * c3)) * f;
+            }
+        });
+    }
+
+    // spectra of Ax in one pass : ftmpi = fphii.fx / n, the 1/n of the inverse FFTs (normalize) folded in
+    static void productPhi(float[] fphi1, float[] fphi2, float[] fphi3, float[] fx, float[] ftmp1, float[] ftmp2, float[] ftmp3, int n, int m)
+    {
+        float f = 1.0f / n;
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                float a = fx[2*i] * f, b = fx[2*i+1] * f;
+                float a1 = fphi1[2*i], b1 = fphi1[2*i+1];
+                float a2 = fphi2[2*i], b2 = fphi2[2*i+1];
+                float a3 = fphi3[2*i], b3 = fphi3[2*i+1];
+                ftmp1[2*i]   = (a1 * a) - (b1 * b);
+                ftmp1[2*i+1] = (b1 * a) + (a1 * b);
+                ftmp2[2*i]   = (a2 * a) - (b2 * b);
+                ftmp2[2*i+1] = (b2 * a) + (a2 * b);
+                ftmp3[2*i]   = (a3 * a) - (b3 * b);
+                ftmp3[2*i+1] = (b3 * a) + (a3 * b);
+            }
+        });
+    }
+
+    // y and lambda updates in one pass, tmp = Ax on entry (see update_y_res and update_lambda) :
+    // r = alpha.Ax + (1-alpha).y (over-relaxation), y = prox_{f1/beta}(r+lambda/beta), lambda = lambda + beta*(r - y)
+    // and tmp = beta*y - lambda for the next x update (betayMLambda), the prox has no branch so that the loop can be
+    // vectorized by the JIT
+    // returns the sums ||Ax - y||^2 (primal residual), ||y - previous y||^2 (dual residual), ||Ax||^2 and ||y||^2
+    // when sums (they cost as much as the rest of the pass), null otherwise
+    static double[] updateYLambda(float[] d1u0, float[] d2u0, float[] d3u0, float[] tmp1, float[] tmp2, float[] tmp3, float[] l1, float[] l2, float[] l3, float[] y1, float[] y2, float[] y3, float beta, float alpha, boolean sums, int n)
+    {
+        double[] res = new double[4];
+        float ib = 1 / beta;
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            double rp = 0, rd = 0, ax = 0, ny = 0;
+            for (int i = start ; i < end ; i++) {
+                float x1 = tmp1[i], x2 = tmp2[i], x3 = tmp3[i];
+                float p1 = y1[i], p2 = y2[i], p3 = y3[i];
+                float k1 = l1[i], k2 = l2[i], k3 = l3[i];
+                float r1 = alpha * x1 + (1 - alpha) * p1;
+                float r2 = alpha * x2 + (1 - alpha) * p2;
+                float r3 = alpha * x3 + (1 - alpha) * p3;
+                float t1 = d1u0[i] - (r1 + (k1 * ib));
+                float t2 = d2u0[i] - (r2 + (k2 * ib));
+                float t3 = d3u0[i] - (r3 + (k3 * ib));
+                float ng = (float)Math.sqrt((t1 * t1) + (t2 * t2) + (t3 * t3));
+                float s  = (ng > ib ? 1.0f - ib / ng : 0.0f);
+                float z1 = d1u0[i] - t1 * s;
+                float z2 = d2u0[i] - t2 * s;
+                float z3 = d3u0[i] - t3 * s;
+
+                if (sums) {
+                    rp += (x1 - z1) * (x1 - z1) + (x2 - z2) * (x2 - z2) + (x3 - z3) * (x3 - z3);
+                    rd += (z1 - p1) * (z1 - p1) + (z2 - p2) * (z2 - p2) + (z3 - p3) * (z3 - p3);
+                    ax += (x1 * x1) + (x2 * x2) + (x3 * x3);
+                    ny += (z1 * z1) + (z2 * z2) + (z3 * z3);
+                }
+                k1 += beta * (r1 - z1);
+                k2 += beta * (r2 - z2);
+                k3 += beta * (r3 - z3);
+                y1[i] = z1;
+                y2[i] = z2;
+                y3[i] = z3;
+                l1[i] = k1;
+                l2[i] = k2;
+                l3[i] = k3;
+                tmp1[i] = (beta * z1) - k1;
+                tmp2[i] = (beta * z2) - k2;
+                tmp3[i] = (beta * z3) - k3;
+            }
+            synchronized (res) {
+                res[0] += rp;
+                res[1] += rd;
+                res[2] += ax;
+                res[3] += ny;
+            }
+        });
+        return (sums ? res : null);
+    }
+
+    // same, d.u0, lambda and y in half precision : y and lambda are rounded before being used, so that the residuals
+    // and tmp follow the state as stored
+    static double[] updateYLambda(short[] d1u0, short[] d2u0, short[] d3u0, float[] tmp1, float[] tmp2, float[] tmp3, short[] l1, short[] l2, short[] l3, short[] y1, short[] y2, short[] y3, float beta, float alpha, boolean sums, int n)
+    {
+        double[] res = new double[4];
+        float ib = 1 / beta;
+        Parallel.forRange(n, Parallel.GRAIN, (start, end) -> {
+            double rp = 0, rd = 0, ax = 0, ny = 0;
+            for (int i = start ; i < end ; i++) {
+                float x1 = tmp1[i], x2 = tmp2[i], x3 = tmp3[i];
+                float p1 = Half.toFloat(y1[i]), p2 = Half.toFloat(y2[i]), p3 = Half.toFloat(y3[i]);
+                float k1 = Half.toFloat(l1[i]), k2 = Half.toFloat(l2[i]), k3 = Half.toFloat(l3[i]);
+                float e1 = Half.toFloat(d1u0[i]), e2 = Half.toFloat(d2u0[i]), e3 = Half.toFloat(d3u0[i]);
+                float r1 = alpha * x1 + (1 - alpha) * p1;
+                float r2 = alpha * x2 + (1 - alpha) * p2;
+                float r3 = alpha * x3 + (1 - alpha) * p3;
+                float t1 = e1 - (r1 + (k1 * ib));
+                float t2 = e2 - (r2 + (k2 * ib));
+                float t3 = e3 - (r3 + (k3 * ib));
+                float ng = (float)Math.sqrt((t1 * t1) + (t2 * t2) + (t3 * t3));
+                float s  = (ng > ib ? 1.0f - ib / ng : 0.0f);
+                short h1 = Half.toHalf(e1 - t1 * s);
+                short h2 = Half.toHalf(e2 - t2 * s);
+                short h3 = Half.toHalf(e3 - t3 * s);
+                float z1 = Half.toFloat(h1), z2 = Half.toFloat(h2), z3 = Half.toFloat(h3);
+
+                if (sums) {
+                    rp += (x1 - z1) * (x1 - z1) + (x2 - z2) * (x2 - z2) + (x3 - z3) * (x3 - z3);
+                    rd += (z1 - p1) * (z1 - p1) + (z2 - p2) * (z2 - p2) + (z3 - p3) * (z3 - p3);
+                    ax += (x1 * x1) + (x2 * x2) + (x3 * x3);
+                    ny += (z1 * z1) + (z2 * z2) + (z3 * z3);
+                }
+                short g1 = Half.toHalf(k1 + beta * (r1 - z1));
+                short g2 = Half.toHalf(k2 + beta * (r2 - z2));
+                short g3 = Half.toHalf(k3 + beta * (r3 - z3));
+                y1[i] = h1;
+                y2[i] = h2;
+                y3[i] = h3;
+                l1[i] = g1;
+                l2[i] = g2;
+                l3[i] = g3;
+                tmp1[i] = (beta * z1) - Half.toFloat(g1);
+                tmp2[i] = (beta * z2) - Half.toFloat(g2);
+                tmp3[i] = (beta * z3) - Half.toFloat(g3);
+            }
+            synchronized (res) {
+                res[0] += rp;
+                res[1] += rd;
+                res[2] += ax;
+                res[3] += ny;
+            }
+        });
+        return (sums ? res : null);
+    }
+
+    // true when the residuals summed by updateYLambda are below tol, relative to the size of Ax and y :
+    // ||Ax - y|| <= tol.max(||Ax||, ||y||) and ||y - previous y|| <= tol.||y|| (see converged)
+    static boolean converged(double[] res, float tol)
+    {
+        double primal = Math.sqrt(res[0]), dual = Math.sqrt(res[1]);
+        double ax = Math.sqrt(res[2]), y = Math.sqrt(res[3]);
+        return (primal <= tol * Math.max(ax, y) && dual <= tol * y);
+    }
+
+    // residual balancing : beta doubled when the relative primal residual ||Ax - y|| / max(||Ax||, ||y||) is 10 times
+    // the relative dual residual ||y - previous y|| / ||y|| (the two ratios of converged), halved in the opposite case
+    // (see adapt_beta)
+    static float adaptBeta(double[] res, float beta)
+    {
+        double primal = Math.sqrt(res[0] / Math.max(Math.max(res[2], res[3]), Double.MIN_NORMAL));
+        double dual = Math.sqrt(res[1] / Math.max(res[3], Double.MIN_NORMAL));
+        if (primal > 10 * dual) return 2 * beta;
+        if (dual > 10 * primal) return beta / 2;
+        return beta;
+    }
+
+    // Sets Psi = |Psi|^2
+    static void computeSquaredNorm(float[] fpsi, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                fpsi[2*i]   = fpsi[2*i]*fpsi[2*i] + fpsi[2*i+1]*fpsi[2*i+1];
+                fpsi[2*i+1] = 0.0f;
+            }
+        });
+    }
+
+    // Sets Psi = sqrtf(|Psi|^2)
+    static void computeNorm(float[] fpsi, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                fpsi[2*i]   = (float)Math.sqrt(fpsi[2*i]*fpsi[2*i] + fpsi[2*i+1]*fpsi[2*i+1]);
+                fpsi[2*i+1] = 0.0f;
+            }
+        });
+    }
+
+    // Sets fsum = sqrtf(fsum)
+    static void computeSqrtf(float[] fsum, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++) {
+                fsum[2*i]   = (float)Math.sqrt(fsum[2*i]);
+                fsum[2*i+1] = 0.0f;
+            }
+        });
+    }
+
+    // max(fpsi * fd), both real parts are non negative
+    static float maxProduct(float[] fpsi, float[] fd, int m)
+    {
+        float[] res = new float[1];
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            float mx = 0.0f;
+            for (int i = start ; i < end ; i++)
+                mx = Math.max(mx, Math.abs(fpsi[2*i] * fd[2*i]));
+            synchronized (res) {
+                res[0] = Math.max(res[0], mx);
+            }
+        });
+        return res[0];
+    }
+
+    // Sets fsum += fpsitemp / alpha
+    static void updatePsi(float[] fpsitemp, float[] fsum, float alpha, int m)
+    {
+        Parallel.forRange(m, Parallel.GRAIN, (start, end) -> {
+            for (int i = start ; i < end ; i++)
+                fsum[2*i] += fpsitemp[2*i] / alpha;
+        });
+    }
+
+}
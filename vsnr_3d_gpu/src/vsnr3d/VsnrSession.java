@@ -0,0 +1,79 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR 3D : DENOISING SESSION            //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.nio.FloatBuffer;
+
+
+// objectives : plans and work memory of one block size, kept alive between blocks
+// opened by VsnrBackend.open, a session is used by one thread at a time
+public interface VsnrSession extends AutoCloseable {
+
+    // same contract as VSNR_3D_FIJI_GPU for the block and voxel size of the session
+    public void denoise(FloatBuffer psis, int length, FloatBuffer u0, int nit, float beta, FloatBuffer u, float max);
+
+    // denoise with the solver options (stopping tolerance, over-relaxation, adaptive beta, warm start), returns the
+    // number of iterations run
+    // by default the backend ignores them and runs nit iterations from zero
+    public default int denoise(FloatBuffer psis, int length, FloatBuffer u0, int nit, float beta, Options opts, FloatBuffer u, float max)
+    {
+        denoise(psis, length, u0, nit, beta, u, max);
+        return nit;
+    }
+
+    // releases the work memory, the plans stay in the process-wide cache
+    @Override
+    public void close();
+
+    // block (or channel) p of n floats of a buffer
+    public static FloatBuffer plane(FloatBuffer b, int p, int n)
+    {
+        FloatBuffer d = b.duplicate();
+        d.position(b.position() + p*n);
+        d.limit(d.position() + n);
+        return d.slice();
+    }
+
+    // objectives : the ADMM options on top of nit and beta, immutable
+    public static final class Options {
+
+        // nit iterations, no over-relaxation, beta kept, from zero
+        public static final Options DEFAULT = new Options(0, 1, false, false);
+
+        // stop before nit iterations once the primal and dual residuals of the block are below tol
+        // (see VsnrCpu3D.converged, 0 : always nit iterations)
+        public final float tol;
+
+        // over-relaxation of the y and lambda updates (1 : none)
+        public final float alpha;
+
+        // beta rebalanced from the residuals during the first half of the iterations (see VsnrCpu3D.adaptBeta)
+        public final boolean adaptive;
+
+        // the block starts from the ADMM state (y and lambda) the previous block of the session ended with, e.g. the
+        // same block of the previous frame of a time-lapse (from zero otherwise), the solution is the same, it is
+        // reached in fewer iterations when the blocks are alike (see VSNR_3D_DENOISE)
+        public final boolean warm;
+
+        public Options(float tol, float alpha, boolean adaptive, boolean warm)
+        {
+            this.tol      = tol;
+            this.alpha    = alpha;
+            this.adaptive = adaptive;
+            this.warm     = warm;
+        }
+
+        // the same options with or without the warm start
+        public Options warm(boolean warm)
+        {
+            // -
+            return (warm == this.warm ? this : new Options(tol, alpha, adaptive, warm));
+        }
+
+    }
+
+}
@@ -0,0 +1,493 @@
+// ------------------------------------------------- //
+//                                                   //
+//           VSNR 3D : WATCH-FOLDER DAEMON           //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+
+// objectives : a daemon denoising the images dropped into a folder (or its subfolders) as they arrive
+//     java -cp VSNR_GPU_2D.jar VSNR_2D [-p params.txt] [-o folder] [-n VSNR_Parameters.txt] [-j 1] [-k 1] [-s 2] [-r 60] folder
+//     java -cp VSNR_GPU_3D.jar VSNR_3D [-p params.txt] [-o folder] [-n VSNR_Parameters.txt] [-j 1] [-k 1] [-s 2] [-r 60] folder
+// the images of a folder are denoised with its parameter file (-n), or the one of the closest folder above it, or -p :
+// without any they are skipped (and looked at again when one is written)
+// an image is taken once its size and date have not changed for -s seconds, its result vsnr_<name>.tif is written next
+// to it (or into the same subfolder of -o) as a hidden file, renamed once complete : a result is whole or missing
+// an image with a result newer than itself is done : skipped on restart, denoised again when it is replaced
+// -j threads denoise images at the same time, each with an engine of the parameter file (see Engine) kept for the next
+// images, at most -k idle engines are kept (the least recently used are closed)
+// the folders are watched by the file system events and looked at again every -r seconds (shares mounted over the
+// network do not send the events of the files written by other machines), 0 : events only
+// the daemon runs until it is killed, the images being denoised then are done again on the next start
+// the engines are made by the plugins (VSNR_2D.main, VSNR_3D.main) through Factory : this class knows nothing of the
+// dimension, vsnr2d.Watch and vsnr3d.Watch are the same file but for their package and title, a fix goes into both
+public final class Watch {
+
+    // a denoising engine made for one parameter file, kept from one image to the next (used by one thread at a time)
+    public interface Engine {
+
+        // a denoised copy of image (or image itself when it is denoised in place)
+        ImagePlus denoise(ImagePlus image);
+
+        // frees its sessions and buffers
+        void close();
+
+    }
+
+    // opens the engine of a parameter file, its failures are those of the images needing it
+    public interface Factory {
+
+        Engine open(File params) throws Exception;
+
+    }
+
+    public static final String PARAMETERS = "VSNR_Parameters.txt";
+
+    // extensions of the images ImageJ opens, the other files of a folder are not denoised
+    private static final Set<String> IMAGES = new HashSet<String>(Arrays.asList("tif", "tiff", "png", "gif", "jpg", "jpeg", "bmp", "pgm", "fits", "fit", "dcm", "lsm"));
+
+    // ms between two looks at the images waiting to settle
+    private static final long POLL = 500;
+
+    private final Path    root;
+    private final Path    out;         // null : next to the images
+    private final String  name;
+    private final File    defaults;    // null : none
+    private final int     kept;
+    private final long    settle;
+    private final long    rescan;      // 0 : never
+    private final Factory factory;
+
+    private final WatchService    service;
+    private final ExecutorService workers;
+
+    // folders watched
+    private final HashMap<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+
+    // images waiting to settle -> size, date and time since when they are the same
+    private final HashMap<Path, long[]> pending = new HashMap<Path, long[]>();
+
+    // images queued or being denoised
+    private final Set<Path> queued = ConcurrentHashMap.newKeySet();
+
+    // images that failed (or have no parameter file) -> their date, not tried again until they change
+    private final ConcurrentHashMap<Path, Long> failed = new ConcurrentHashMap<Path, Long>();
+
+    // idle engines by parameter file (and its date), the least recently used first
+    private final LinkedHashMap<String, ArrayDeque<Engine>> idle = new LinkedHashMap<String, ArrayDeque<Engine>>(16, 0.75f, true);
+
+    private final AtomicInteger done   = new AtomicInteger();
+    private final AtomicInteger errors = new AtomicInteger();
+
+    private volatile boolean stopped = false;
+
+    // root is watched with its subfolders, settle and rescan are in ms
+    public Watch(File root, File out, String name, File defaults, int threads, int kept, long settle, long rescan, Factory factory) throws IOException
+    {
+        this.root     = root.getAbsoluteFile().toPath().normalize();
+        Path o        = (out == null ? null : out.getAbsoluteFile().toPath().normalize());
+        this.out      = (this.root.equals(o) ? null : o);
+        this.name     = name;
+        this.defaults = defaults;
+        this.kept     = kept;
+        this.settle   = settle;
+        this.rescan   = rescan;
+        this.factory  = factory;
+        this.service  = this.root.getFileSystem().newWatchService();
+
+        AtomicInteger count = new AtomicInteger();
+        this.workers  = Executors.newFixedThreadPool(threads, r -> new Thread(r, "vsnr-watch-" + count.getAndIncrement()));
+    }
+
+    // the command line of the daemon (see above), jar and class in command, the engines made by factory
+    public static void run(String[] args, String command, Factory factory)
+    {
+        System.setProperty("java.awt.headless", "true");
+
+        File root = null, outDir = null, defaults = null;
+        String name = PARAMETERS;
+        int threads = 1, kept = -1;
+        double settle = 2, rescan = 60;
+        try {
+            for (int i = 0 ; i < args.length ; i++) {
+                if (args[i].equals("-p") && i+1 < args.length)      defaults = new File(args[++i]);
+                else if (args[i].equals("-o") && i+1 < args.length) outDir   = new File(args[++i]);
+                else if (args[i].equals("-n") && i+1 < args.length) name     = args[++i];
+                else if (args[i].equals("-j") && i+1 < args.length) threads  = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-k") && i+1 < args.length) kept     = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-s") && i+1 < args.length) settle   = Double.parseDouble(args[++i]);
+                else if (args[i].equals("-r") && i+1 < args.length) rescan   = Double.parseDouble(args[++i]);
+                else if (args[i].startsWith("-"))                   usage(command, "Unknown option " + args[i]);
+                else if (root == null)                              root     = new File(args[i]);
+                else                                                usage(command, "A single folder is watched");
+            }
+        } catch (NumberFormatException e) {
+            usage(command, "Invalid number (" + e.getMessage() + ")");
+        }
+        if (root == null || !root.isDirectory())       usage(command, "No folder to watch");
+        if (defaults != null && !defaults.isFile())     usage(command, "No parameter file " + defaults);
+        if (threads < 1 || settle < 0 || rescan < 0)    usage(command, "Invalid -j, -s or -r");
+        if (outDir != null && !outDir.isDirectory() && !outDir.mkdirs()) usage(command, "Cannot create " + outDir);
+
+        try {
+            Watch watch = new Watch(root, outDir, name, defaults, threads, (kept < 0 ? threads : kept), (long)(1000*settle), (long)(1000*rescan), factory);
+            Runtime.getRuntime().addShutdownHook(new Thread(watch::stop, "vsnr-watch-stop"));
+            watch.run();
+        } catch (IOException e) {
+            System.err.println("Error : " + e);
+            System.exit(1);
+        }
+    }
+
+    // watches the folders until stop
+    public void run() throws IOException
+    {
+        System.out.println("Watching " + root + (out != null ? ", results into " + out : "") + ", parameters from " + name
+            + (defaults != null ? " (or " + defaults + ")" : ""));
+        try {
+            register(root);
+            long last = System.currentTimeMillis();
+            while (!stopped) {
+                WatchKey key = service.poll(POLL, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handle(key);
+                    key = service.poll();
+                }
+                long now = System.currentTimeMillis();
+                if (rescan > 0 && now - last >= rescan) {
+                    register(root);
+                    last = now;
+                }
+                submit(now);
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // stops watching, the images being denoised are interrupted (and done again on the next start), the engines closed
+    public void stop()
+    {
+        stopped = true;
+        try {
+            service.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        workers.shutdownNow();
+        try {
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (idle) {
+            for (ArrayDeque<Engine> q : idle.values())
+                for (Engine e : q) e.close();
+            idle.clear();
+        }
+        System.out.println(String.format("Stopped : %d images denoised, %d failed", done.get(), errors.get()));
+    }
+
+    // watches dir and its subfolders (not the hidden ones nor the results), their images wait to settle
+    private void register(Path dir) throws IOException
+    {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs)
+            {
+                if (!d.equals(root) && (hidden(d) || (out != null && d.startsWith(out) && !root.startsWith(out))))
+                    return FileVisitResult.SKIP_SUBTREE;
+                try {
+                    keys.put(d.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), d);
+                    return FileVisitResult.CONTINUE;
+                } catch (IOException e) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs)
+            {
+                if (attrs.isRegularFile()) offer(f);
+                return FileVisitResult.CONTINUE;
+            }
+
+            // removed since listed, or not readable
+            @Override
+            public FileVisitResult visitFileFailed(Path f, IOException e)
+            {
+                // -
+                return FileVisitResult.CONTINUE;
+            }
+
+        });
+    }
+
+    // the events of a folder : new folders are watched, new parameter files bring back the images of their folders
+    private void handle(WatchKey key) throws IOException
+    {
+        Path dir = keys.get(key);
+        for (WatchEvent<?> e : key.pollEvents()) {
+            if (e.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events were lost : every folder is looked at again
+                register(root);
+                continue;
+            }
+            if (dir == null) continue;
+            Path p = dir.resolve((Path)e.context());
+            if (e.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                pending.remove(p);
+            } else if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+                register(p);
+            } else if (p.getFileName().toString().equals(name)) {
+                failed.keySet().removeIf(f -> f.startsWith(dir));
+                register(dir);
+            } else {
+                offer(p);
+            }
+        }
+        if (!key.reset()) keys.remove(key);
+    }
+
+    // p waits to settle, unless it is not an image to denoise
+    private void offer(Path p)
+    {
+        if (!isInput(p, out == null)) return;
+        if (!pending.containsKey(p)) pending.put(p, new long[] {-1, -1, 0});
+    }
+
+    // true when the file p of a folder is an image to denoise : not hidden, with the extension of an image (a parameter
+    // file is not) and, when results are written into its folder, not a result vsnr_<name>.tif (see Batch)
+    public static boolean isInput(Path p, boolean results)
+    {
+        String n = p.getFileName().toString();
+        int dot = n.lastIndexOf('.');
+        if (hidden(p) || dot < 0 || !IMAGES.contains(n.substring(dot + 1).toLowerCase(Locale.ROOT))) return false;
+        return !(results && n.startsWith("vsnr_"));
+    }
+
+    // queues the images whose size and date have not changed for settle ms (the ones being denoised wait)
+    private void submit(long now)
+    {
+        for (Iterator<Map.Entry<Path, long[]>> it = pending.entrySet().iterator() ; it.hasNext() ; ) {
+            Map.Entry<Path, long[]> entry = it.next();
+            Path p = entry.getKey();
+            long[] seen = entry.getValue();
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            } catch (IOException e) {
+                it.remove();
+                continue;
+            }
+            long size = attrs.size(), time = attrs.lastModifiedTime().toMillis();
+            if (size != seen[0] || time != seen[1]) {
+                seen[0] = size;
+                seen[1] = time;
+                seen[2] = now;
+            } else if (now - seen[2] >= settle && !queued.contains(p)) {
+                it.remove();
+                submit(p, time);
+            }
+        }
+    }
+
+    // queues p (of date time) unless its result is newer or it failed as it is
+    private void submit(Path p, long time)
+    {
+        Long t = failed.get(p);
+        if (t != null && t == time) return;
+        Path result = output(p);
+        try {
+            if (Files.getLastModifiedTime(result).toMillis() >= time) return;
+        } catch (IOException e) {
+            // no result yet
+        }
+        File params = parameters(p.getParent());
+        if (params == null) {
+            failed.put(p, time);
+            System.err.println(p + " : SKIPPED (no " + name + " in its folder or above)");
+            return;
+        }
+        queued.add(p);
+        workers.execute(() -> denoise(p, time, params, result));
+    }
+
+    // denoises p (of date time) into result, which is only replaced if p did not change meanwhile
+    private void denoise(Path p, long time, File params, Path result)
+    {
+        try {
+            ImagePlus image = IJ.openImage(p.toString());
+            if (image == null) throw new IllegalArgumentException("cannot open the image");
+
+            long t0 = System.nanoTime();
+            ImagePlus res = denoise(image, params);
+            double s = (System.nanoTime() - t0) * 1e-9;
+
+            Files.createDirectories(result.getParent());
+            String n = result.getFileName().toString();
+            Path part = result.resolveSibling("." + n.substring(0, n.length() - 4) + ".part.tif");
+            FileSaver saver = new FileSaver(res);
+            boolean saved = (res.getStackSize() > 1 ? saver.saveAsTiffStack(part.toString()) : saver.saveAsTiff(part.toString()));
+            if (!saved) throw new IllegalStateException("cannot write " + part);
+
+            if (Files.getLastModifiedTime(p).toMillis() != time) {
+                Files.deleteIfExists(part);
+                System.out.println(p + " : changed while denoised, done again once it settles");
+            } else {
+                move(part, result);
+                int z = res.getStackSize();
+                double mpix = (double)res.getWidth()*res.getHeight()*z*(res.getBitDepth() == 24 ? 3 : 1) / 1e6;
+                System.out.println(String.format("%s : %dx%dx%d, %.2f s, %.1f planes/s, %.1f MPixel/s -> %s",
+                    p, res.getWidth(), res.getHeight(), z, s, z / s, mpix / s, result));
+                done.incrementAndGet();
+            }
+            image.close();
+            res.close();
+        } catch (Exception | OutOfMemoryError e) {
+            failed.put(p, time);
+            errors.incrementAndGet();
+            System.err.println(p + " : FAILED (" + e.getMessage() + ")");
+        } finally {
+            queued.remove(p);
+        }
+    }
+
+    // image denoised by an idle engine of params (or a new one), an engine that fails is closed rather than kept
+    // (not when the image is refused, IllegalArgumentException)
+    private ImagePlus denoise(ImagePlus image, File params) throws Exception
+    {
+        String key = params.getAbsolutePath() + "@" + params.lastModified();
+        Engine engine = null;
+        synchronized (idle) {
+            ArrayDeque<Engine> q = idle.get(key);
+            if (q != null) engine = q.poll();
+        }
+        if (engine == null) {
+            System.out.println("Engine for " + params);
+            engine = factory.open(params);
+        }
+
+        ImagePlus res;
+        try {
+            res = engine.denoise(image);
+        } catch (IllegalArgumentException e) {
+            give(key, engine);
+            throw e;
+        } catch (RuntimeException | OutOfMemoryError e) {
+            engine.close();
+            throw e;
+        }
+        give(key, engine);
+        return res;
+    }
+
+    // keeps engine for the next images of its key, the least recently used engines beyond kept are closed
+    private void give(String key, Engine engine)
+    {
+        ArrayList<Engine> closed = new ArrayList<Engine>();
+        synchronized (idle) {
+            if (stopped) {
+                closed.add(engine);
+            } else {
+                ArrayDeque<Engine> q = idle.get(key);
+                if (q == null) idle.put(key, q = new ArrayDeque<Engine>());
+                q.push(engine);
+                int count = 0;
+                for (ArrayDeque<Engine> d : idle.values()) count += d.size();
+                for (Iterator<ArrayDeque<Engine>> it = idle.values().iterator() ; count > kept && it.hasNext() ; ) {
+                    ArrayDeque<Engine> d = it.next();
+                    while (count > kept && !d.isEmpty()) {
+                        closed.add(d.removeLast());
+                        count--;
+                    }
+                    if (d.isEmpty()) it.remove();
+                }
+            }
+        }
+        for (Engine e : closed) e.close();
+    }
+
+    // the parameter file of the images of dir : its own, the one of the closest folder above it, or the default one
+    private File parameters(Path dir)
+    {
+        for (Path d = dir ; d != null && d.startsWith(root) ; d = d.getParent()) {
+            File f = d.resolve(name).toFile();
+            if (f.isFile()) return f;
+        }
+        return defaults;
+    }
+
+    // vsnr_<name>.tif, next to p or into the same subfolder of out
+    private Path output(Path p)
+    {
+        Path dir = (out == null ? p.getParent() : out.resolve(root.relativize(p.getParent())));
+        String n = p.getFileName().toString();
+        int dot = n.lastIndexOf('.');
+        return dir.resolve("vsnr_" + (dot > 0 ? n.substring(0, dot) : n) + ".tif");
+    }
+
+    // renames part into target, in one step when the file system can
+    private static void move(Path part, Path target) throws IOException
+    {
+        try {
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // -
+    private static boolean hidden(Path p)
+    {
+        // -
+        return p.getFileName() != null && (p.getFileName().toString().startsWith(".") || p.toFile().isHidden());
+    }
+
+    // prints msg and the command line, then exits
+    private static void usage(String command, String msg)
+    {
+        System.err.println("Error : " + msg);
+        System.err.println("usage : java -cp " + command + " [-p params.txt] [-o folder] [-n " + PARAMETERS + "] [-j threads] [-k engines] [-s seconds] [-r seconds] folder");
+        System.exit(2);
+    }
+
+}
@@ -0,0 +1,77 @@
+// ------------------------------------------------- //
+//                                                   //
+//       VSNR 2D BENCHMARKS : PIXEL CONVERSION       //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vsnrbench.Samples;
+
+
+// objectives : the conversion of a plane to the float buffer of the engines (Image2D.read) and back
+// (Image2D.agregate), both are PixelIO passes, for every bit depth (24 : RGB)
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConversionBenchmark {
+
+    @Param({"512", "1024", "2048", "4096", "8192"})
+    public int size;
+
+    @Param({"8", "16", "32", "24"})
+    public int depth;
+
+    @Param({"true", "false"})
+    public boolean log;
+
+    private Object[] planes;
+    private FloatBuffer u;
+    private float[] max;
+
+    @Setup
+    public void setup()
+    {
+        planes = new Object[] {Samples.pixels(depth, size, size, 1)};
+        u      = FloatBuffer.allocate(PixelIO.channels(planes[0])*size*size);
+        max    = new float[3];
+        read(); // agregate writes back what read gave
+    }
+
+    // Image2D.read
+    @Benchmark
+    public float[] read()
+    {
+        Arrays.fill(max, Float.NEGATIVE_INFINITY);
+        PixelIO.read(planes, size, size, null, log, u, 0, max, 0);
+        return max;
+    }
+
+    // Image2D.agregate
+    @Benchmark
+    public Object agregate()
+    {
+        PixelIO.write(u, 0, 0, 1, planes, size, size, null, log);
+        return planes[0];
+    }
+
+}
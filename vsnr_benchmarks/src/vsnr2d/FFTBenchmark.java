@@ -0,0 +1,75 @@
+// ------------------------------------------------- //
+//                                                   //
+//           VSNR 2D BENCHMARKS : REAL FFT           //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vsnrbench.Samples;
+
+
+// objectives : the forward and inverse real FFT of a plane (RealFFT2D), the bulk of an ADMM iteration
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FFTBenchmark {
+
+    @Param({"512", "1024", "2048", "4096", "8192"})
+    public int size;
+
+    private RealFFT2D fft;
+    private float[] real, spectrum, work, out;
+
+    @Setup
+    public void setup()
+    {
+        fft      = RealFFT2D.get(size, size);
+        real     = Samples.levels(fft.realSize(), size, 1);
+        spectrum = new float[fft.complexSize()];
+        work     = new float[fft.complexSize()];
+        out      = new float[fft.realSize()];
+        fft.forward(real, spectrum);
+    }
+
+    // inverse overwrites its input
+    @Setup(Level.Invocation)
+    public void restore()
+    {
+        // -
+        System.arraycopy(spectrum, 0, work, 0, work.length);
+    }
+
+    @Benchmark
+    public float[] forward()
+    {
+        fft.forward(real, work);
+        return work;
+    }
+
+    @Benchmark
+    public float[] inverse()
+    {
+        fft.inverse(work, out);
+        return out;
+    }
+
+}
@@ -0,0 +1,75 @@
+// ------------------------------------------------- //
+//                                                   //
+//        VSNR 2D BENCHMARKS : ADMM AND DENOISE      //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr2d;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vsnrbench.Samples;
+
+
+// objectives : the CPU engine on one plane, through an open session with its filter bank cached (the planes after
+// the first of a stack) : a single ADMM iteration (with the set up of the solve around it) and a whole denoise of
+// nit iterations, (denoise - iteration) / (nit - 1) is the cost of one more iteration
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SolverBenchmark {
+
+    @Param({"512", "1024", "2048", "4096", "8192"})
+    public int size;
+
+    @Param({"20"})
+    public int nit;
+
+    @Param({"gabor"})
+    public String filters;
+
+    private VsnrCpu2D.Session session;
+    private float[] psis, u0, u;
+    private float max;
+
+    @Setup
+    public void setup()
+    {
+        float[] m = new float[1];
+        psis    = Samples.filters(filters, 2);
+        u0      = Samples.u0(size*size, size, m);
+        u       = new float[size*size];
+        max     = m[0];
+        session = new VsnrCpu2D.Session(size, size);
+    }
+
+    @Benchmark
+    public float[] iteration()
+    {
+        session.denoise(psis, psis.length, u0, 1, 10, u, max);
+        return u;
+    }
+
+    @Benchmark
+    public float[] denoise()
+    {
+        session.denoise(psis, psis.length, u0, nit, 10, u, max);
+        return u;
+    }
+
+}
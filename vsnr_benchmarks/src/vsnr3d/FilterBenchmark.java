@@ -0,0 +1,58 @@
+// ------------------------------------------------- //
+//                                                   //
+//        VSNR 3D BENCHMARKS : FILTER CREATION       //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnr3d;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import vsnrbench.Samples;
+
+
+// objectives : the construction of a filter bank (what the first block of a volume pays), the cache is emptied
+// before every call, the FFT plan is kept
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FilterBenchmark {
+
+    @Param({"128", "256"})
+    public int size;
+
+    @Param({"dirac", "gabor"})
+    public String filters;
+
+    private float[] psis;
+
+    @Setup
+    public void setup()
+    {
+        psis = Samples.filters(filters, 3);
+        RealFFT3D.get(size, size, size);
+    }
+
+    @Benchmark
+    public Object create()
+    {
+        FilterBank.clear();
+        return FilterBank.get(psis, psis.length, size, size, size, 1, 1, 1);
+    }
+
+}
@@ -0,0 +1,66 @@
+// ------------------------------------------------- //
+//                                                   //
+//            VSNR BENCHMARKS : MAIN CLASS           //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnrbench;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+// objectives : runs the benchmarks once per thread count, the engines run on the common fork-join pool (see
+// Parallel) whose size is fixed when a JVM starts : every count gets its own forks with
+// -Djava.util.concurrent.ForkJoinPool.common.parallelism, and its own JSON file
+// java [-Dthreads=1,2,4] [-Dresults=results] -jar benchmarks.jar [JMH options, e.g. -p size=512,1024 Solver]
+// threads defaults to 1 and the number of processors, results to the folder "results"
+public final class Runner {
+
+    private Runner() {}
+
+    public static void main(String[] args) throws Exception
+    {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        // listings go to JMH as they are
+        if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListWithParams() || cmd.shouldListProfilers() || cmd.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        File folder = new File(System.getProperty("results", "results"));
+        if (!folder.isDirectory() && !folder.mkdirs()) throw new IllegalStateException("Cannot create " + folder);
+
+        for (int threads : threads()) {
+            File json = new File(folder, "threads-" + threads + ".json");
+            Options opts = new OptionsBuilder()
+                .parent(cmd)
+                .jvmArgsAppend("-Djava.util.concurrent.ForkJoinPool.common.parallelism=" + threads)
+                .resultFormat(ResultFormatType.JSON)
+                .result(json.getPath())
+                .build();
+            System.out.println("# VSNR benchmarks with " + threads + " worker thread(s), results in " + json);
+            new org.openjdk.jmh.runner.Runner(opts).run();
+        }
+    }
+
+    // thread counts of -Dthreads, distinct and in order
+    private static int[] threads()
+    {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        String list = System.getProperty("threads", (cpus > 1 ? "1," + cpus : "1"));
+        return Arrays.stream(list.split(","))
+            .map(String::trim)
+            .filter(s -> !s.isEmpty())
+            .mapToInt(Integer::parseInt)
+            .peek(t -> { if (t < 1) throw new IllegalArgumentException("Invalid thread count : " + t); })
+            .distinct()
+            .toArray();
+    }
+
+}
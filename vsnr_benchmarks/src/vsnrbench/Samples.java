@@ -0,0 +1,94 @@
+// ------------------------------------------------- //
+//                                                   //
+//          VSNR BENCHMARKS : SYNTHETIC IMAGES       //
+//                                                   //
+// ------------------------------------------------- //
+
+package vsnrbench;
+
+import java.util.Random;
+
+
+// objectives : the images the benchmarks run on, a smooth background crossed by thin vertical stripes (the
+// structured noise VSNR removes) plus white noise, the same for a given seed from one run to the next
+public final class Samples {
+
+    private Samples() {}
+
+    // filters as VSNR_2D passes them : a Dirac (white noise), or two Gabors (stripes, see Example_Parameters.txt)
+    public static final float[] DIRAC_2D = {0, 1};
+    public static final float[] GABOR_2D = {1, 1, 50, 0.1f, 0, 1, 1, 0.1f, 100, -5};
+
+    // same as VSNR_3D passes them
+    public static final float[] DIRAC_3D = {0, 1};
+    public static final float[] GABOR_3D = {1, 1, 3, 1, 1, 0, 0, 0};
+
+    // the filters of a dimension by name ("dirac" or "gabor")
+    public static float[] filters(String name, int dim)
+    {
+        if (name.equals("dirac")) return (dim == 2 ? DIRAC_2D : DIRAC_3D);
+        if (name.equals("gabor")) return (dim == 2 ? GABOR_2D : GABOR_3D);
+        throw new IllegalArgumentException("Unknown filter set : " + name);
+    }
+
+    // levels in [0, 1] of n pixels, rows of width pixels
+    public static float[] levels(int n, int width, long seed)
+    {
+        Random r = new Random(seed);
+        float[] res = new float[n];
+        for (int i = 0 ; i < n ; i++) {
+            int x = i % width, y = i / width;
+            double v = 0.5 + 0.2*Math.sin(2*Math.PI*x / width)*Math.cos(2*Math.PI*y / (7*width));
+            if (x % 16 < 2) v += 0.15;
+            v += 0.03*r.nextGaussian();
+            res[i] = (float)Math.min(Math.max(v, 0), 1);
+        }
+        return res;
+    }
+
+    // the pixels of a plane as ImageProcessor.getPixels gives them, depth 8, 16, 32 or 24 (RGB)
+    public static Object pixels(int depth, int width, int height, long seed)
+    {
+        float[] v = levels(width*height, width, seed);
+        switch (depth) {
+            case 8: {
+                byte[] res = new byte[v.length];
+                for (int i = 0 ; i < v.length ; i++) res[i] = (byte)Math.round(255*v[i]);
+                return res;
+            }
+            case 16: {
+                short[] res = new short[v.length];
+                for (int i = 0 ; i < v.length ; i++) res[i] = (short)Math.round(4095*v[i]);
+                return res;
+            }
+            case 24: {
+                int[] res = new int[v.length];
+                for (int i = 0 ; i < v.length ; i++) {
+                    int c = Math.round(255*v[i]);
+                    res[i] = 0xff000000 | (c << 16) | ((c*3/4) << 8) | (c/2);
+                }
+                return res;
+            }
+            case 32: {
+                float[] res = new float[v.length];
+                for (int i = 0 ; i < v.length ; i++) res[i] = 1000*v[i];
+                return res;
+            }
+            default:
+                throw new IllegalArgumentException("Unsupported bit depth : " + depth);
+        }
+    }
+
+    // u0 of the engines : log(1 + pixel) of a 12-bit image of n voxels (as PixelIO reads it), max[0] = its maximum
+    public static float[] u0(int n, int width, float[] max)
+    {
+        float[] res = levels(n, width, 1);
+        max[0] = Float.NEGATIVE_INFINITY;
+        for (int i = 0 ; i < n ; i++) {
+            res[i] = (float)Math.log(1 + Math.round(4095*res[i]));
+            max[0] = Math.max(max[0], res[i]);
+        }
+        return res;
+    }
+
+}